@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.datasource;
+
+ /**
+  * 
+  * 
+  * A recoverable resource that has to scan its back-end for pending work 
+  * before it can recover any participants. The transaction service scans 
+  * all such resources up front, in parallel and within the recovery timeout, 
+  * so that one unreachable or hanging back-end does not hold up recovery 
+  * in the others.
+  * 
+  * While a scan or endRecovery is still in progress, the resource should not 
+  * recover any participants (i.e., recover should return false instead of waiting).
+  */
+
+public interface ScanningRecoverableResource extends RecoverableResource
+{
+	
+	/**
+	 * Scans the back-end for pending work. This always does a fresh scan: 
+	 * the results of any earlier scan (for instance, one triggered by 
+	 * recovering a participant in a pass that did not end recovery here) 
+	 * are replaced, so endRecovery never presumes abort based on a stale list.
+	 * 
+	 * @throws ResourceException On failure.
+	 */
+	
+	public void scanForRecovery() throws ResourceException;
+
+}
@@ -33,6 +33,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ServiceLoader;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.atomikos.datasource.RecoverableResource;
 import com.atomikos.datasource.ResourceException;
@@ -66,6 +67,9 @@ public final class Configuration
     // transaction manager.
 
     private static Vector<RecoverableResource> resourceList_ = new Vector ();
+
+    private static final AtomicLong resourcesVersion_ = new AtomicLong ();
+    // changes whenever resources are added or removed
     // keep resources in a list, to enable ordered search of XAResource
     // this way, an AcceptAllXATransactionalResource can be added at the end
 
@@ -297,6 +301,7 @@ public final class Configuration
 
         resources_.put ( resource.getName (), resource );
         resourceList_.add ( resource );
+        resourcesVersion_.incrementAndGet ();
         resource.setRecoveryService ( recoveryService_ );
 
     }
@@ -353,7 +358,10 @@ public final class Configuration
         RecoverableResource ret = null;
         if ( name != null ) {
         	ret = (RecoverableResource) resources_.remove ( name );
-        	if ( ret != null ) resourceList_.remove ( ret );
+        	if ( ret != null ) {
+        		resourceList_.remove ( ret );
+        		resourcesVersion_.incrementAndGet ();
+        	}
 
         }
         return ret;
@@ -380,14 +388,26 @@ public final class Configuration
      * @return Enumeration The resources.
      */
 
-    public static Enumeration getResources ()
+    public static Enumeration<RecoverableResource> getResources ()
     {
-        // clone to avoid concurrency problems with
+        // copy to avoid concurrency problems with
         // add/removeResource (new recovery makes this possible)
-        Vector ret = (Vector) resourceList_.clone ();
+        Vector<RecoverableResource> ret = new Vector<RecoverableResource> ( resourceList_ );
         return ret.elements ();
     }
 
+    /**
+     * Gets a number that changes whenever a resource is added or removed. 
+     * Useful to invalidate cached lookups of resources.
+     *
+     * @return long The current version of the set of resources.
+     */
+
+    public static long getResourcesVersion ()
+    {
+        return resourcesVersion_.get ();
+    }
+
 	protected static synchronized Assembler getAssembler() {
 		if (assembler == null) loadAssembler();
 		return assembler;
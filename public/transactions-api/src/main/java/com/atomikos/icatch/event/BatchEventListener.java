@@ -0,0 +1,22 @@
+package com.atomikos.icatch.event;
+
+import java.util.List;
+
+
+/**
+ * An event listener that prefers to receive events in batches. 
+ * 
+ * When events are dispatched asynchronously, all events that are pending 
+ * are passed in one call, which is cheaper for listeners that export 
+ * events to some external system. When events are dispatched synchronously
+ * then eventOccurred is called instead, once per event.
+ */
+public interface BatchEventListener extends EventListener {
+
+	/**
+	 * @param events The events, in the order of publication. Implementations 
+	 * should not keep a reference to the list after returning.
+	 */
+	void eventsOccurred(List<Event> events);
+	
+}
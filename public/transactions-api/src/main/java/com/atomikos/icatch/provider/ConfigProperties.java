@@ -16,6 +16,13 @@ public final class ConfigProperties {
 	public static final String THREADED_2PC_PROPERTY_NAME = "com.atomikos.icatch.threaded_2pc";
 	public static final String FORCE_SHUTDOWN_ON_VM_EXIT_PROPERTY_NAME = "com.atomikos.icatch.force_shutdown_on_vm_exit";
 	public static final String FILE_PATH_PROPERTY_NAME = "com.atomikos.icatch.file";
+	public static final String RECOVERY_TIMEOUT_PROPERTY_NAME = "com.atomikos.icatch.recovery_timeout";
+	public static final String RECOVERY_MIN_INTERVAL_PROPERTY_NAME = "com.atomikos.icatch.recovery_min_interval";
+	public static final String RECOVERY_MAX_INTERVAL_PROPERTY_NAME = "com.atomikos.icatch.recovery_max_interval";
+	public static final String REPLAY_MAX_PARALLEL_BATCHES_PROPERTY_NAME = "com.atomikos.icatch.replay_max_parallel_batches";
+	public static final String REPLAY_MAX_BATCH_SIZE_PROPERTY_NAME = "com.atomikos.icatch.replay_max_batch_size";
+	public static final String EVENT_QUEUE_SIZE_PROPERTY_NAME = "com.atomikos.icatch.event_queue_size";
+	public static final String EVENT_QUEUE_BLOCK_WHEN_FULL_PROPERTY_NAME = "com.atomikos.icatch.event_queue_block_when_full";
 
 
 	/**
@@ -174,6 +181,34 @@ public final class ConfigProperties {
 		return getAsBoolean(THREADED_2PC_PROPERTY_NAME);
 	}
 
+	public long getRecoveryTimeout() {
+		return getAsLong(RECOVERY_TIMEOUT_PROPERTY_NAME);
+	}
+
+	public long getRecoveryMinInterval() {
+		return getAsLong(RECOVERY_MIN_INTERVAL_PROPERTY_NAME);
+	}
+
+	public long getRecoveryMaxInterval() {
+		return getAsLong(RECOVERY_MAX_INTERVAL_PROPERTY_NAME);
+	}
+
+	public int getReplayMaxParallelBatches() {
+		return getAsInt(REPLAY_MAX_PARALLEL_BATCHES_PROPERTY_NAME);
+	}
+
+	public int getReplayMaxBatchSize() {
+		return getAsInt(REPLAY_MAX_BATCH_SIZE_PROPERTY_NAME);
+	}
+
+	public int getEventQueueSize() {
+		return getAsInt(EVENT_QUEUE_SIZE_PROPERTY_NAME);
+	}
+
+	public boolean getEventQueueBlockWhenFull() {
+		return getAsBoolean(EVENT_QUEUE_BLOCK_WHEN_FULL_PROPERTY_NAME);
+	}
+
 	public void applyUserSpecificProperties(Properties userSpecificProperties) {
 		Enumeration names = userSpecificProperties.propertyNames();
 		while (names.hasMoreElements()) {
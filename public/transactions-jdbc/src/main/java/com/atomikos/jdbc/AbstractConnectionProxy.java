@@ -26,13 +26,16 @@
 package com.atomikos.jdbc;
 
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
+import com.atomikos.util.MethodClassifier;
 
 /**
  * Common logic for the different dynamic connection proxies.
@@ -44,6 +47,55 @@ implements InvocationHandler
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(AbstractConnectionProxy.class);
 	
+	private final static List<String> ENLISTMENT_METHODS = Arrays.asList(new String[] {"createStatement", "prepareStatement", "prepareCall"});
+	private final static List<String> CLOSE_METHODS = Arrays.asList(new String[] {"close"});
+	private final static List<String> XA_INCOMPATIBLE_METHODS = Arrays.asList(new String[] {"commit", "rollback", "setSavepoint", "releaseSavepoint"});
+	private final static List<String> NON_TRANSACTIONAL_METHOD_NAMES = Arrays.asList(new String[] {
+			"equals",
+			"hashCode",
+			"notify",
+			"notifyAll",
+			"toString",
+			"wait"
+			});
+
+	private static final MethodClassifier<MethodCategory> CLASSIFIER = new MethodClassifier<MethodCategory>() {
+		protected MethodCategory classify ( String methodName ) 
+		{
+			if ( methodName.equals ( "getInvocationHandler" ) ) return MethodCategory.GET_INVOCATION_HANDLER;
+			if ( methodName.equals ( "reap" ) ) return MethodCategory.REAP;
+			if ( methodName.equals ( "isNoLongerInUse" ) ) return MethodCategory.IS_NO_LONGER_IN_USE;
+			if ( methodName.equals ( "isInTransaction" ) ) return MethodCategory.IS_IN_TRANSACTION;
+			if ( methodName.equals ( "isClosed" ) ) return MethodCategory.IS_CLOSED;
+			if ( NON_TRANSACTIONAL_METHOD_NAMES.contains ( methodName ) ) return MethodCategory.NON_TRANSACTIONAL;
+			if ( CLOSE_METHODS.contains ( methodName ) ) return MethodCategory.CLOSE;
+			if ( ENLISTMENT_METHODS.contains ( methodName ) ) return MethodCategory.ENLISTMENT;
+			if ( XA_INCOMPATIBLE_METHODS.contains ( methodName ) ) return MethodCategory.XA_INCOMPATIBLE;
+			if ( methodName.equals ( "setAutoCommit" ) ) return MethodCategory.SET_AUTO_COMMIT;
+			if ( methodName.equals ( "getAutoCommit" ) ) return MethodCategory.GET_AUTO_COMMIT;
+			if ( methodName.equals ( "setTransactionIsolation" ) ) return MethodCategory.SET_TRANSACTION_ISOLATION;
+			return MethodCategory.OTHER;
+		}
+	};
+
+	/**
+	 * The kinds of connection methods that the proxies treat specially.
+	 */
+	protected enum MethodCategory {
+		GET_INVOCATION_HANDLER, REAP, IS_NO_LONGER_IN_USE, IS_IN_TRANSACTION, IS_CLOSED, NON_TRANSACTIONAL, 
+		CLOSE, ENLISTMENT, XA_INCOMPATIBLE, SET_AUTO_COMMIT, GET_AUTO_COMMIT, SET_TRANSACTION_ISOLATION, OTHER;
+
+		public static MethodCategory of ( Method method ) 
+		{
+			return CLASSIFIER.classify ( method );
+		}
+
+		public boolean isLocalTransactionControl()
+		{
+			return this == XA_INCOMPATIBLE || this == SET_AUTO_COMMIT || this == GET_AUTO_COMMIT;
+		}
+	}
+	
 	private List<Statement> statements = new ArrayList<Statement>();
 
 	protected synchronized void addStatement ( Statement s )
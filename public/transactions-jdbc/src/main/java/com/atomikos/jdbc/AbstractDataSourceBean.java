@@ -39,9 +39,12 @@ import javax.sql.DataSource;
 
 import com.atomikos.datasource.pool.ConnectionFactory;
 import com.atomikos.datasource.pool.ConnectionPool;
+import com.atomikos.datasource.pool.ConnectionPoolCapacity;
 import com.atomikos.datasource.pool.ConnectionPoolException;
 import com.atomikos.datasource.pool.ConnectionPoolProperties;
+import com.atomikos.datasource.pool.ConnectionPoolStatistics;
 import com.atomikos.datasource.pool.CreateConnectionException;
+import com.atomikos.datasource.pool.PartitionedConnectionPool;
 import com.atomikos.datasource.pool.PoolExhaustedException;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
@@ -73,11 +76,17 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 	private int maintenanceInterval = 60;
 	private int loginTimeout;
 	private transient ConnectionPool connectionPool;
+	private transient PartitionedConnectionPool<Credentials> partitionedConnectionPool;
 	private transient PrintWriter logWriter;
 	private String resourceName;
 
 	private int defaultIsolationLevel = DEFAULT_ISOLATION_LEVEL_UNSET;
 	private int maxLifetime;
+	private int testIdleTime;
+	private int validationTimeout;
+	private boolean partitionedByCredentials;
+	private int leakDetectionThreshold;
+	private int borrowStackSampleRate = 10;
 	
 	protected void throwAtomikosSQLException ( String msg ) throws AtomikosSQLException 
 	{
@@ -247,12 +256,116 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 		this.testQuery = testQuery;
 	}
 
+	/**
+	 * Gets the minimum idle time (in seconds) before a connection is tested again.
+	 */
+	public int getTestIdleTime() {
+		return testIdleTime;
+	}
+
+	/**
+	 * Sets the minimum amount of seconds that a connection must have been idle in the pool 
+	 * before it is tested again when borrowed. Optional. 
+	 * 
+	 * @param testIdleTime The time in seconds. Connections that were returned to the pool more 
+	 * recently are handed out without testing. Defaults to 0 (test on every borrow).
+	 */
+	public void setTestIdleTime(int testIdleTime) {
+		this.testIdleTime = testIdleTime;
+	}
+
+	/**
+	 * Gets the timeout (in seconds) for JDBC 4 validation of connections.
+	 */
+	public int getValidationTimeout() {
+		return validationTimeout;
+	}
+
+	/**
+	 * Sets the timeout (in seconds) for validating connections with JDBC 4's <code>Connection.isValid</code>. Optional.
+	 * 
+	 * @param validationTimeout The timeout in seconds. If positive, connections are validated with 
+	 * <code>isValid</code> instead of the testQuery, which most drivers implement more efficiently.
+	 * Defaults to 0 (use the testQuery, if any).
+	 */
+	public void setValidationTimeout(int validationTimeout) {
+		this.validationTimeout = validationTimeout;
+	}
+
+	/**
+	 * Tests whether connections obtained with explicit credentials are pooled per user.
+	 */
+	public boolean getPartitionedByCredentials() {
+		return partitionedByCredentials;
+	}
+
+	/**
+	 * Sets whether <code>getConnection ( user , password )</code> should return connections 
+	 * for the given credentials, pooled separately per user. Optional. 
+	 * 
+	 * @param partitionedByCredentials If true, each set of credentials gets its own pool partition. 
+	 * All partitions and the default pool share the same maxPoolSize, and partitions are 
+	 * discarded once idle for longer than maxIdleTime. Defaults to false (credentials are ignored).
+	 */
+	public void setPartitionedByCredentials(boolean partitionedByCredentials) {
+		this.partitionedByCredentials = partitionedByCredentials;
+	}
+
+	/**
+	 * Gets the time (in seconds) after which a borrowed connection is reported as suspected leak.
+	 */
+	public int getLeakDetectionThreshold() {
+		return leakDetectionThreshold;
+	}
+
+	/**
+	 * Sets the time after which a connection that is still in use is reported as suspected leak. Optional. 
+	 * 
+	 * @param leakDetectionThreshold The time in seconds. Suspected leaks are logged and published 
+	 * as events (with the borrow stack, if sampled) but - unlike with reapTimeout - the connection 
+	 * is left alone. Defaults to 0 (no leak detection).
+	 */
+	public void setLeakDetectionThreshold(int leakDetectionThreshold) {
+		this.leakDetectionThreshold = leakDetectionThreshold;
+	}
+
+	/**
+	 * Gets how often the borrow stack is captured for leak detection.
+	 */
+	public int getBorrowStackSampleRate() {
+		return borrowStackSampleRate;
+	}
+
+	/**
+	 * Sets how often the stack trace of the borrowing thread is captured, if leakDetectionThreshold is set. Optional. 
+	 * 
+	 * @param borrowStackSampleRate N to capture the stack for 1 in N borrows: 1 shows 
+	 * the stack of every leak but costs more, 0 disables stack capture. Defaults to 10.
+	 */
+	public void setBorrowStackSampleRate(int borrowStackSampleRate) {
+		this.borrowStackSampleRate = borrowStackSampleRate;
+	}
+
+	/**
+	 * Gets the statistics of the pool, including all partitions (if any). These can be registered as MBean.
+	 * 
+	 * @return The statistics, or null if not initialized.
+	 */
+	public ConnectionPoolStatistics getPoolStatistics() {
+		if (connectionPool == null) return null;
+		return connectionPool.getStatistics();
+	}
+
 	public int poolAvailableSize() {
-		return connectionPool.availableSize();
+		int ret = connectionPool.availableSize();
+		if (partitionedConnectionPool != null) ret += partitionedConnectionPool.availableSize();
+		return ret;
 	}
 
 	public int poolTotalSize() {
-		return connectionPool.totalSize();
+		int ret = connectionPool.totalSize();
+		if (partitionedConnectionPool != null) ret += partitionedConnectionPool.totalSize();
+		return ret;
 	}
 
 	public PrintWriter getLogWriter() throws SQLException {
@@ -283,8 +396,10 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 			throwAtomikosSQLException("Property 'minPoolSize' must be at least 0 and at most maxPoolSize, was: " + minPoolSize);
 		if ( getUniqueResourceName() == null )
 			throwAtomikosSQLException("Property 'uniqueResourceName' cannot be null");
-		if ( getTestQuery() != null ) 
-			LOGGER.logWarning ( this + ": testQuery set - pool may be slower / you might want to consider setting maxLifetime instead..." );
+		if ( partitionedByCredentials && !supportsPartitionedByCredentials() )
+			throwAtomikosSQLException ( "Property 'partitionedByCredentials' is not supported by " + getClass().getName() );
+		if ( getTestQuery() != null && getTestIdleTime() <= 0 && getValidationTimeout() <= 0 ) 
+			LOGGER.logWarning ( this + ": testQuery set - pool may be slower / you might want to consider setting testIdleTime, validationTimeout or maxLifetime instead..." );
 		if ( getMinPoolSize() == DEFAULT_POOL_SIZE ) {
 			LOGGER.logWarning ( this + ": poolSize equals default - this may cause performance problems!" );
 		}
@@ -293,7 +408,14 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 			//initialize JNDI infrastructure for lookup
 			getReference();
 			ConnectionFactory cf = doInit();
-			connectionPool = new ConnectionPool(cf, this);
+			if ( partitionedByCredentials ) {
+				//partitions and default pool must respect maxPoolSize as a whole
+				ConnectionPoolCapacity capacity = new ConnectionPoolCapacity ( maxPoolSize );
+				connectionPool = new ConnectionPool(cf, this, capacity);
+				partitionedConnectionPool = new PartitionedConnectionPool<Credentials> ( new PartitionConnectionFactory() , this , capacity , connectionPool.getStatistics() );
+			} else {
+				connectionPool = new ConnectionPool(cf, this);
+			}
 		
 			
 		
@@ -314,6 +436,10 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 			connectionPool.destroy();
 		}
 		connectionPool = null;
+		if (partitionedConnectionPool != null) {
+			partitionedConnectionPool.destroy();
+		}
+		partitionedConnectionPool = null;
 		doClose();
 		try {
 			IntraVmObjectRegistry.removeResource ( getUniqueResourceName() );
@@ -325,6 +451,25 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 	}
 	
 	protected abstract ConnectionFactory doInit() throws Exception;
+	
+	/**
+	 * Checks if partitionedByCredentials can be enabled. Subclasses that 
+	 * support this should override, along with doInitPartition.
+	 */
+	protected boolean supportsPartitionedByCredentials() 
+	{
+		return false;
+	}
+	
+	/**
+	 * Creates the connection factory for a partition of the pool, 
+	 * if partitionedByCredentials is enabled. Only called if 
+	 * supportsPartitionedByCredentials returns true.
+	 */
+	protected ConnectionFactory doInitPartition ( String user , String password ) throws Exception 
+	{
+		throw new UnsupportedOperationException ( "Property 'partitionedByCredentials' is not supported by " + getClass().getName() );
+	}
 
 	protected abstract void doClose();
 
@@ -333,12 +478,18 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 	public Connection getConnection() throws SQLException 
 	{
 		if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": getConnection()..." );
-		Connection connection = null;
 		
 		init();
 		
+		return borrowConnection ( null );
+	}
+	
+	private Connection borrowConnection ( Credentials credentials ) throws AtomikosSQLException 
+	{
+		Connection connection = null;
 		try {
-			connection = (Connection) connectionPool.borrowConnection();
+			if ( credentials == null ) connection = (Connection) connectionPool.borrowConnection();
+			else connection = (Connection) partitionedConnectionPool.borrowConnection ( credentials );
 			
 		} catch (CreateConnectionException ex) {
 			throwAtomikosSQLException("Failed to grow the connection pool", ex);
@@ -353,8 +504,63 @@ implements DataSource, ConnectionPoolProperties, Referenceable, Serializable
 
 	public Connection getConnection(String username, String password) throws SQLException 
 	{
-    	LOGGER.logWarning ( this + ": getConnection ( user , password ) ignores authentication - returning default connection" );
-		return getConnection();
+		if ( !partitionedByCredentials ) {
+			LOGGER.logWarning ( this + ": getConnection ( user , password ) ignores authentication - returning default connection" );
+			return getConnection();
+		}
+		if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": getConnection ( " + username + " )..." );
+		
+		init();
+		
+		return borrowConnection ( new Credentials ( username , password ) );
+	}
+	
+	private class PartitionConnectionFactory implements PartitionedConnectionPool.PartitionConnectionFactory<Credentials> 
+	{
+		public ConnectionFactory createConnectionFactory ( Credentials key ) throws ConnectionPoolException 
+		{
+			try {
+				return doInitPartition ( key.user , key.password );
+			} catch ( Exception e ) {
+				throw new ConnectionPoolException ( "Failed to create pool partition for user " + key.user , e );
+			}
+		}
+	}
+	
+	private static class Credentials 
+	{
+		private final String user;
+		private final String password;
+		
+		Credentials ( String user , String password ) 
+		{
+			this.user = user;
+			this.password = password;
+		}
+		
+		public boolean equals ( Object o ) 
+		{
+			if ( !( o instanceof Credentials ) ) return false;
+			Credentials other = ( Credentials ) o;
+			return equals ( user , other.user ) && equals ( password , other.password );
+		}
+		
+		private static boolean equals ( String a , String b ) 
+		{
+			return a == null ? b == null : a.equals ( b );
+		}
+		
+		public int hashCode() 
+		{
+			int ret = user == null ? 0 : user.hashCode();
+			return 31 * ret + ( password == null ? 0 : password.hashCode() );
+		}
+		
+		//never show the password in logs
+		public String toString() 
+		{
+			return "user " + user;
+		}
 	}
 
 	/**
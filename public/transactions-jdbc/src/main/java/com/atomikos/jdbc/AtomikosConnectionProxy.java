@@ -29,13 +29,7 @@ import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
 
-import com.atomikos.beans.PropertyUtils;
 import com.atomikos.datasource.pool.Reapable;
 import com.atomikos.datasource.xa.session.InvalidSessionHandleStateException;
 import com.atomikos.datasource.xa.session.SessionHandleState;
@@ -47,27 +41,30 @@ import com.atomikos.icatch.config.Configuration;
 import com.atomikos.icatch.jta.TransactionManagerImp;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
-import com.atomikos.util.ClassLoadingHelper;
 import com.atomikos.util.DynamicProxy;
+import com.atomikos.util.DynamicProxyFactory;
 
 class AtomikosConnectionProxy extends AbstractConnectionProxy
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(AtomikosConnectionProxy.class);
 
-	private final static List<String> ENLISTMENT_METHODS = Arrays.asList(new String[] {"createStatement", "prepareStatement", "prepareCall"});
-	private final static List<String> CLOSE_METHODS = Arrays.asList(new String[] {"close"});
-	private final static List<String> XA_INCOMPATIBLE_METHODS = Arrays.asList(new String[] {"commit", "rollback", "setSavepoint", "releaseSavepoint"});
+	private static final DynamicProxyFactory PROXY_FACTORY = new DynamicProxyFactory ( AtomikosConnectionProxy.class , 
+			new Class[] { Reapable.class , DynamicProxy.class , java.sql.Connection.class } , 
+			//see case 24532
+			new Class[] { Reapable.class , DynamicProxy.class } );
 
 	private final Connection delegate;
+	private final JdbcConnectionState connectionState;
 	private SessionHandleState sessionHandleState;
 	private boolean closed = false;
 	private boolean reaped = false;
 
 	private String toString;
 
-	private AtomikosConnectionProxy ( Connection c, SessionHandleState sessionHandleState)
+	private AtomikosConnectionProxy ( Connection c, JdbcConnectionState connectionState, SessionHandleState sessionHandleState)
 	{
 		this.delegate = c;
+		this.connectionState = connectionState;
 		this.sessionHandleState = sessionHandleState;
 		sessionHandleState.notifySessionBorrowed();
 	}
@@ -86,13 +83,13 @@ class AtomikosConnectionProxy extends AbstractConnectionProxy
 	//no longer synchronized: see case 22101
 	public Object invoke ( Object proxy, Method method, Object[] args ) throws SQLException
 	{
-		final String methodName = method.getName();
+		final MethodCategory category = MethodCategory.of ( method );
 		boolean jtaTxFound = false;
 
 		//see case 24532
-		if ( methodName.equals ( "getInvocationHandler" ) ) return this;
+		if ( category == MethodCategory.GET_INVOCATION_HANDLER ) return this;
 
-		if (methodName.equals("reap")) {
+		if ( category == MethodCategory.REAP ) {
 			if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": reaping pending connection..." );
 
 			//LOGGER.logDebug("{} : reaping pending connection..", this);
@@ -100,20 +97,20 @@ class AtomikosConnectionProxy extends AbstractConnectionProxy
 			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": reap done!" );
 			return null;
 		}
-		if (methodName.equals("isClosed")) {
+		if ( category == MethodCategory.IS_CLOSED ) {
 			if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": isClosed()..." );
 			Object ret = Boolean.valueOf(closed);
 			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": isClosed() returning " + ret );
 			return ret;
 		}
 
-		if ( closed && !methodName.equals("close") ) {
+		if ( closed && category != MethodCategory.CLOSE ) {
 			if ( reaped ) {
 				//'reaped' is a system-triggered variant of closed -> throw exception that explains this
-				String msg = "Connection has been reaped - calling " + methodName + " is no longer allowed! Increase reapTimeout to avoid this problem.";
+				String msg = "Connection has been reaped - calling " + method.getName() + " is no longer allowed! Increase reapTimeout to avoid this problem.";
 				AtomikosSQLException.throwAtomikosSQLException ( msg );
 			} else {
-				String msg = "Connection was already closed - calling " + methodName + " is no longer allowed!";
+				String msg = "Connection was already closed - calling " + method.getName() + " is no longer allowed!";
 				AtomikosSQLException.throwAtomikosSQLException ( msg );
 			}
 			return null;
@@ -121,20 +118,20 @@ class AtomikosConnectionProxy extends AbstractConnectionProxy
 
 
 		// disallow local TX methods in global TX context
-		if (isEnlistedInGlobalTransaction()) {
-	        if (XA_INCOMPATIBLE_METHODS.contains(methodName))
-	        	AtomikosSQLException.throwAtomikosSQLException("Cannot call method '" + methodName + "' while a global transaction is running");
+		if ( category.isLocalTransactionControl() && isEnlistedInGlobalTransaction() ) {
+	        if ( category == MethodCategory.XA_INCOMPATIBLE )
+	        	AtomikosSQLException.throwAtomikosSQLException("Cannot call method '" + method.getName() + "' while a global transaction is running");
 
-	        if (methodName.equals("setAutoCommit") && args[0].equals(Boolean.TRUE)) {
+	        if ( category == MethodCategory.SET_AUTO_COMMIT && args[0].equals(Boolean.TRUE)) {
 	        	AtomikosSQLException.throwAtomikosSQLException("Cannot call 'setAutoCommit(true)' while a global transaction is running");
 	        }
-	        if (methodName.equals("getAutoCommit")) {
+	        if ( category == MethodCategory.GET_AUTO_COMMIT ) {
 	        	return Boolean.FALSE;
 	        }
 		}
 
 		// check for enlistment
-        if (ENLISTMENT_METHODS.contains(methodName)) {
+        if ( category == MethodCategory.ENLISTMENT ) {
         	try {
         		jtaTxFound = enlist();
         	} catch ( Exception e ) {
@@ -147,7 +144,7 @@ class AtomikosConnectionProxy extends AbstractConnectionProxy
         Object ret = null;
 
         // check for delistment
-        if (CLOSE_METHODS.contains(methodName) && args == null ) {
+        if ( category == MethodCategory.CLOSE && args == null ) {
         	//check for args needed by case 24683
  			close();
  			return null;
@@ -156,13 +153,15 @@ class AtomikosConnectionProxy extends AbstractConnectionProxy
 			try {
 				if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": calling " + formatCallDetails(method,args) + "...");
 				ret = method.invoke(delegate, args);
+				if ( category == MethodCategory.SET_AUTO_COMMIT ) connectionState.autoCommitChanged ( ( ( Boolean ) args[0] ).booleanValue() );
+				else if ( category == MethodCategory.SET_TRANSACTION_ISOLATION ) connectionState.isolationLevelChanged ( ( ( Integer ) args[0] ).intValue() );
 
 			} catch (Exception ex) {
 				sessionHandleState.notifySessionErrorOccurred();
-				JdbcConnectionProxyHelper.convertProxyError ( ex , "Error delegating '" + methodName + "' call" );
+				JdbcConnectionProxyHelper.convertProxyError ( ex , "Error delegating '" + method.getName() + "' call" );
 			}
 		}
-        if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": " + methodName + " returning " + ret );
+        if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": " + method.getName() + " returning " + ret );
         if ( ret instanceof Statement ) {
         	//keep statement for closing upon timeout/close
         	//see bug 29708
@@ -250,31 +249,10 @@ class AtomikosConnectionProxy extends AbstractConnectionProxy
 		return sessionHandleState.isActiveInTransaction ( ct );
 	}
 
-	public static Reapable newInstance ( Connection c , SessionHandleState sessionHandleState )
+	public static Reapable newInstance ( Connection c , JdbcConnectionState connectionState , SessionHandleState sessionHandleState )
 	{
-		Reapable ret = null;
-        AtomikosConnectionProxy proxy = new AtomikosConnectionProxy(c, sessionHandleState );
-        Set<Class> interfaces = PropertyUtils.getAllImplementedInterfaces ( c.getClass() );
-        interfaces.add ( Reapable.class );
-        //see case 24532
-        interfaces.add ( DynamicProxy.class );
-        Class[] interfaceClasses = ( Class[] ) interfaces.toArray ( new Class[0] );
-
-		Set<Class> minimumSetOfInterfaces = new HashSet<Class>();
-		minimumSetOfInterfaces.add ( Reapable.class );
-		minimumSetOfInterfaces.add ( DynamicProxy.class );
-		minimumSetOfInterfaces.add ( java.sql.Connection.class );
-        Class[] minimumSetOfInterfaceClasses = ( Class[] ) minimumSetOfInterfaces.toArray( new Class[0] );
-
-        List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
-		classLoaders.add ( Thread.currentThread().getContextClassLoader() );
-		classLoaders.add ( c.getClass().getClassLoader() );
-		classLoaders.add ( AtomikosConnectionProxy.class.getClassLoader() );
-
-
-		ret = ( Reapable ) ClassLoadingHelper.newProxyInstance ( classLoaders , minimumSetOfInterfaceClasses , interfaceClasses , proxy );
-
-        return ret;
+        AtomikosConnectionProxy proxy = new AtomikosConnectionProxy(c, connectionState, sessionHandleState );
+        return ( Reapable ) PROXY_FACTORY.newProxyInstance ( c , proxy );
     }
 
 	private class JdbcRequeueSynchronization implements Synchronization {
@@ -58,6 +58,7 @@ extends AbstractDataSourceBean
 	private Properties xaProperties = null;
 	private String xaDataSourceClassName;
 	private transient XADataSource xaDataSource;
+	private transient JdbcTransactionalResource transactionalResource;
 	public AtomikosDataSourceBean() 
 	{
 		this.xaProperties = new Properties();
@@ -168,7 +169,9 @@ extends AbstractDataSourceBean
 				" testQuery=" + getTestQuery() + "," +
 				" xaProperties=" + printXaProperties() + "," +
 				" loginTimeout=" + getLoginTimeout() + "," + 
-				" maxLifetime=" + getMaxLifetime() +
+				" maxLifetime=" + getMaxLifetime() + "," +
+				" leakDetectionThreshold=" + getLeakDetectionThreshold() + "," +
+				" partitionedByCredentials=" + getPartitionedByCredentials() +
 				"]"
 				);
 		
@@ -196,12 +199,25 @@ extends AbstractDataSourceBean
 			JdbcTransactionalResource tr = new JdbcTransactionalResource(getUniqueResourceName() , xaDataSource);
 			com.atomikos.datasource.pool.ConnectionFactory cf = new com.atomikos.jdbc.AtomikosXAConnectionFactory(xaDataSource, tr, this);
 			Configuration.addResource ( tr );
+			transactionalResource = tr;
 			
 			return cf;
 	}
 	
+	protected boolean supportsPartitionedByCredentials() 
+	{
+		return true;
+	}
+	
+	protected com.atomikos.datasource.pool.ConnectionFactory doInitPartition ( String user , String password ) throws Exception 
+	{
+		//all partitions share the same resource: recovery uses the default credentials
+		return new com.atomikos.jdbc.AtomikosXAConnectionFactory ( xaDataSource, transactionalResource, this, user, password );
+	}
+	
 	protected void doClose() 
 	{
+		transactionalResource = null;
 		RecoverableResource res = Configuration.getResource ( getUniqueResourceName() );
 		if ( res != null ) {
 			Configuration.removeResource ( getUniqueResourceName() );
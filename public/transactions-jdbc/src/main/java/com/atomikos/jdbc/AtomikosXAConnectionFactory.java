@@ -42,10 +42,11 @@ class AtomikosXAConnectionFactory implements ConnectionFactory
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(AtomikosXAConnectionFactory.class);
 
-	//TODO user and password to get new connections
 	private JdbcTransactionalResource jdbcTransactionalResource;
 	private XADataSource xaDataSource;
 	private ConnectionPoolProperties props;
+	private String user;
+	private String password;
 	
 	public AtomikosXAConnectionFactory ( XADataSource xaDataSource, JdbcTransactionalResource jdbcTransactionalResource, ConnectionPoolProperties props ) 
 	{
@@ -53,11 +54,23 @@ class AtomikosXAConnectionFactory implements ConnectionFactory
 		this.jdbcTransactionalResource = jdbcTransactionalResource;
 		this.props = props;
 	}
+	
+	/**
+	 * Creates a factory for connections with the given credentials instead of the default ones.
+	 */
+	public AtomikosXAConnectionFactory ( XADataSource xaDataSource, JdbcTransactionalResource jdbcTransactionalResource, ConnectionPoolProperties props , String user , String password ) 
+	{
+		this ( xaDataSource , jdbcTransactionalResource , props );
+		this.user = user;
+		this.password = password;
+	}
 
 	public XPooledConnection createPooledConnection() throws CreateConnectionException
 	{
 		try {
-			XAConnection xaConnection = xaDataSource.getXAConnection();
+			XAConnection xaConnection = null;
+			if ( user == null ) xaConnection = xaDataSource.getXAConnection();
+			else xaConnection = xaDataSource.getXAConnection ( user , password );
 			return new AtomikosXAPooledConnection ( xaConnection, jdbcTransactionalResource, props );
 		} catch ( SQLException e ) {
 			String msg = "XAConnectionFactory: failed to create pooled connection - DBMS down or unreachable?";
@@ -27,7 +27,6 @@ package com.atomikos.jdbc;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.sql.Statement;
 
 import javax.sql.XAConnection;
 
@@ -55,6 +54,7 @@ public class AtomikosXAPooledConnection extends AbstractXPooledConnection
 	private SessionHandleState sessionHandleState;
 	private XAConnection xaConnection;
 	private Connection connection;
+	private JdbcConnectionState connectionState;
 
 
 	public AtomikosXAPooledConnection ( XAConnection xaConnection, 
@@ -65,6 +65,7 @@ public class AtomikosXAPooledConnection extends AbstractXPooledConnection
 		super ( props );
 		this.xaConnection = xaConnection;
 		this.connection = xaConnection.getConnection();
+		this.connectionState = new JdbcConnectionState ( connection );
 		this.sessionHandleState = new SessionHandleState ( jdbcTransactionalResource, xaConnection.getXAResource());
 		sessionHandleState.registerSessionHandleStateChangeListener(new SessionHandleStateChangeListener() {
 			public void onTerminated() {
@@ -107,29 +108,18 @@ public class AtomikosXAPooledConnection extends AbstractXPooledConnection
 	protected Reapable doCreateConnectionProxy() throws CreateConnectionException
 	{
 		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": creating connection proxy..." );
-		JdbcConnectionProxyHelper.setIsolationLevel ( connection , getDefaultIsolationLevel() );
-		return AtomikosConnectionProxy.newInstance ( connection , sessionHandleState);
+		connectionState.resetIsolationLevel ( getDefaultIsolationLevel() );
+		return AtomikosConnectionProxy.newInstance ( connection , connectionState , sessionHandleState);
 	}
 
 	protected void testUnderlyingConnection() throws CreateConnectionException {
 		if ( isErroneous() ) throw new CreateConnectionException ( this + ": connection is erroneous" );
-		String testQuery = getTestQuery();
-		if (testQuery != null) {
-			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": testing connection with query [" + testQuery + "]" );
-			Statement stmt = null;
-			try {
-				stmt = connection.createStatement();
-				//use execute instead of executeQuery - cf case 58830
-				stmt.execute(testQuery);
-				stmt.close();
-			} catch ( Exception e) {
-				//catch any Exception - cf case 22198
-				throw new CreateConnectionException ( "Error executing testQuery" ,  e );
-			}
-			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": connection tested OK" );
+		if ( isTestDueAfterIdleTime() ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": testing connection..." );
+			JdbcConnectionProxyHelper.testConnection ( connection , getTestQuery() , getValidationTimeout() );
 		}
 		else {
-			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": no test query, skipping test" );
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": connection released recently, skipping test" );
 		}
 	}
 
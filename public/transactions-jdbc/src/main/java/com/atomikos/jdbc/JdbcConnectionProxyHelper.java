@@ -28,6 +28,7 @@ package com.atomikos.jdbc;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 import com.atomikos.datasource.pool.CreateConnectionException;
 import com.atomikos.logging.Logger;
@@ -94,5 +95,56 @@ public class JdbcConnectionProxyHelper {
 					" seems unsupported by the driver - please check your JDBC driver documentation?" , ex );
 		}
 	}
+	
+	/**
+	 * Tests a connection before it is handed out by the pool.
+	 * 
+	 * @param connection The vendor connection.
+	 * @param testQuery The query to test with, or null if none.
+	 * @param validationTimeout If positive, the timeout for JDBC 4 validation (preferred over the test query, 
+	 * which remains the fallback for drivers that do not implement it).
+	 * @throws CreateConnectionException If the connection is no longer usable.
+	 */
+	
+	public static void testConnection ( Connection connection , String testQuery , int validationTimeout ) 
+	throws CreateConnectionException 
+	{
+		boolean validated = false;
+		if ( validationTimeout > 0 ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "validating connection with timeout " + validationTimeout );
+			boolean valid = false;
+			try {
+				valid = connection.isValid ( validationTimeout );
+				validated = true;
+			} catch ( AbstractMethodError pre40Driver ) {
+				if ( testQuery == null ) {
+					String msg = "The JDBC driver does not support Connection.isValid - please unset validationTimeout and use a testQuery instead";
+					LOGGER.logWarning ( msg , pre40Driver );
+					throw new CreateConnectionException ( msg );
+				}
+				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Connection.isValid not supported by the driver - falling back to testQuery" );
+			} catch ( Exception e ) {
+				throw new CreateConnectionException ( "Error validating connection" , e );
+			}
+			if ( validated && !valid ) throw new CreateConnectionException ( "Connection is no longer valid" );
+		} 
+		if ( !validated && testQuery != null ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "testing connection with query [" + testQuery + "]" );
+			Statement stmt = null;
+			try {
+				stmt = connection.createStatement();
+				//use execute instead of executeQuery - cf case 58830
+				stmt.execute(testQuery);
+				stmt.close();
+			} catch ( Exception e) {
+				//catch any Exception - cf case 22198
+				throw new CreateConnectionException ( "Error executing testQuery" ,  e );
+			}
+		} else if ( !validated ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "no test query, skipping test" );
+			return;
+		}
+		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "connection tested OK" );
+	}
 
 }
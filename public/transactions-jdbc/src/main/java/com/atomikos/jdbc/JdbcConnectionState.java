@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import com.atomikos.datasource.pool.CreateConnectionException;
+
+ /**
+  * 
+  * 
+  * Keeps track of the settings of a pooled vendor connection that are reset between uses, 
+  * so the pool only has to contact the driver for settings that actually changed. 
+  * 
+  * Settings are unknown until they are set via this class or reported by a connection proxy.
+  *
+  */
+
+public class JdbcConnectionState 
+{
+	private static final int UNKNOWN_ISOLATION_LEVEL = Integer.MIN_VALUE;
+	
+	private final Connection connection;
+	
+	private volatile int isolationLevel = UNKNOWN_ISOLATION_LEVEL;
+	
+	private volatile Boolean autoCommit;
+	
+	public JdbcConnectionState ( Connection connection ) 
+	{
+		this.connection = connection;
+	}
+	
+	/**
+	 * Sets the isolation level on the connection, unless it already has this level.
+	 * 
+	 * @param defaultIsolationLevel The level, negative values are ignored.
+	 * @throws CreateConnectionException If the driver does not support the level.
+	 */
+	public void resetIsolationLevel ( int defaultIsolationLevel ) throws CreateConnectionException 
+	{
+		if ( defaultIsolationLevel < 0 || defaultIsolationLevel == isolationLevel ) return;
+		isolationLevel = UNKNOWN_ISOLATION_LEVEL;
+		JdbcConnectionProxyHelper.setIsolationLevel ( connection , defaultIsolationLevel );
+		isolationLevel = defaultIsolationLevel;
+	}
+	
+	/**
+	 * Gets the autoCommit mode, asking the driver only if it is not known yet.
+	 */
+	public boolean getAutoCommit() throws SQLException 
+	{
+		Boolean ret = autoCommit;
+		if ( ret == null ) {
+			ret = Boolean.valueOf ( connection.getAutoCommit() );
+			autoCommit = ret;
+		}
+		return ret.booleanValue();
+	}
+	
+	/**
+	 * Sets the autoCommit mode on the connection, unless it already has this mode.
+	 */
+	public void setAutoCommit ( boolean value ) throws SQLException 
+	{
+		Boolean current = autoCommit;
+		if ( current != null && current.booleanValue() == value ) return;
+		autoCommit = null;
+		connection.setAutoCommit ( value );
+		autoCommit = Boolean.valueOf ( value );
+	}
+	
+	/**
+	 * Notification that the application changed the isolation level through a proxy.
+	 */
+	public void isolationLevelChanged ( int level ) 
+	{
+		isolationLevel = level;
+	}
+	
+	/**
+	 * Notification that the application changed the autoCommit mode through a proxy.
+	 */
+	public void autoCommitChanged ( boolean value ) 
+	{
+		autoCommit = Boolean.valueOf ( value );
+	}
+	
+}
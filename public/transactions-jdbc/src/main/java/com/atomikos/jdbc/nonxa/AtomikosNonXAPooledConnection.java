@@ -27,7 +27,6 @@ package com.atomikos.jdbc.nonxa;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.sql.Statement;
 
 import com.atomikos.datasource.pool.AbstractXPooledConnection;
 import com.atomikos.datasource.pool.ConnectionPoolProperties;
@@ -38,6 +37,7 @@ import com.atomikos.icatch.CompositeTransactionManager;
 import com.atomikos.icatch.config.Configuration;
 import com.atomikos.icatch.jta.TransactionManagerImp;
 import com.atomikos.jdbc.JdbcConnectionProxyHelper;
+import com.atomikos.jdbc.JdbcConnectionState;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 import com.atomikos.util.DynamicProxy;
@@ -56,6 +56,8 @@ class AtomikosNonXAPooledConnection extends AbstractXPooledConnection
 	
 	private Connection connection;
 	
+	private JdbcConnectionState connectionState;
+	
 	private boolean erroneous;
 	
 	private boolean readOnly;
@@ -66,6 +68,7 @@ class AtomikosNonXAPooledConnection extends AbstractXPooledConnection
 	{
 		super ( props );
 		this.connection = wrapped;
+		this.connectionState = new JdbcConnectionState ( wrapped );
 		this.erroneous = false;
 		this.readOnly = readOnly;
 		this.props = props;
@@ -101,7 +104,7 @@ class AtomikosNonXAPooledConnection extends AbstractXPooledConnection
 			//previous.incUseCount();
 		} else {
 			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": creating connection proxy..." );
-			JdbcConnectionProxyHelper.setIsolationLevel ( connection, getDefaultIsolationLevel() );
+			connectionState.resetIsolationLevel ( getDefaultIsolationLevel() );
 			ret = ( Reapable ) AtomikosThreadLocalConnection.newInstance ( this , props.getUniqueResourceName() );
 		}
 		return ret;
@@ -113,26 +116,20 @@ class AtomikosNonXAPooledConnection extends AbstractXPooledConnection
 	{
 		return connection;
 	}
+	
+	JdbcConnectionState getConnectionState() 
+	{
+		return connectionState;
+	}
 
 	protected void testUnderlyingConnection() throws CreateConnectionException {
-		String testQuery = getTestQuery();
 		if ( isErroneous() ) throw new CreateConnectionException ( this + ": connection is erroneous" );
-		if (testQuery != null) {
-			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": testing connection with query [" + testQuery + "]" );
-			Statement stmt = null;
-			try {
-				stmt = connection.createStatement();
-				//use execute instead of executeQuery - cf case 58830
-				stmt.execute(testQuery);
-				stmt.close();
-			} catch ( Exception e) {
-				//catch any Exception - cf case 22198
-				throw new CreateConnectionException ( "Error executing testQuery" ,  e );
-			}
-			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": connection tested OK" );
+		if ( isTestDueAfterIdleTime() ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": testing connection..." );
+			JdbcConnectionProxyHelper.testConnection ( connection , getTestQuery() , getValidationTimeout() );
 		}
 		else {
-			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": no test query, skipping test" );
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": connection released recently, skipping test" );
 		}
 	}
 
@@ -28,28 +28,30 @@ package com.atomikos.jdbc.nonxa;
 import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
-import com.atomikos.beans.PropertyUtils;
 import com.atomikos.datasource.pool.Reapable;
 import com.atomikos.datasource.pool.XPooledConnection;
 import com.atomikos.datasource.pool.XPooledConnectionEventListener;
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.icatch.CompositeTransactionManager;
+import com.atomikos.icatch.SubTxAwareParticipant;
 import com.atomikos.icatch.config.Configuration;
 import com.atomikos.icatch.jta.TransactionManagerImp;
 import com.atomikos.jdbc.AbstractConnectionProxy;
 import com.atomikos.jdbc.AtomikosSQLException;
 import com.atomikos.jdbc.JdbcConnectionProxyHelper;
+import com.atomikos.jdbc.JdbcConnectionState;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
-import com.atomikos.util.ClassLoadingHelper;
 import com.atomikos.util.DynamicProxy;
+import com.atomikos.util.DynamicProxyFactory;
 
 /**
  *
@@ -67,6 +69,9 @@ import com.atomikos.util.DynamicProxy;
  * <li>There are no pending close() calls, i.e. no further SQL will arrive on the application's behalf.</li>
  * </ul>
  *
+ * Subtransactions of the transaction that the connection is used for are mapped 
+ * onto JDBC savepoints, so they can be rolled back without needing a second connection.
+ *
  */
 
 class AtomikosThreadLocalConnection extends AbstractConnectionProxy
@@ -75,29 +80,31 @@ implements JtaAwareNonXaConnection
 	private static final Logger LOGGER = LoggerFactory.createLogger(AtomikosThreadLocalConnection.class);
 
 
-	private final static List<String> ENLISTMENT_METHODS = Arrays.asList(new String[] {"createStatement", "prepareStatement", "prepareCall"});
-	private final static List<String> CLOSE_METHODS = Arrays.asList(new String[] {"close"});
-	private final static List<String> XA_INCOMPATIBLE_METHODS = Arrays.asList(new String[] {"commit", "rollback", "setSavepoint", "releaseSavepoint"});
-	private final static List<String> NON_TRANSACTIONAL_METHOD_NAMES = Arrays.asList(new String[] {
-			"equals",
-			"hashCode",
-			"notify",
-			"notifyAll",
-			"toString",
-			"wait"
-			});
+	private static final DynamicProxyFactory PROXY_FACTORY = new DynamicProxyFactory ( AtomikosThreadLocalConnection.class , 
+			new Class[] { Reapable.class , DynamicProxy.class , java.sql.Connection.class } , 
+			//see case 24532
+			new Class[] { Reapable.class , DynamicProxy.class } );
 
 
 	private int useCount;
 
 	private CompositeTransaction transaction;
 
+	// the last (sub)transaction found to be compatible with transaction;
+	// avoids repeating the checks for every statement
+	private CompositeTransaction verifiedTransaction;
+
+	// savepoints of subtransactions, by tid, in the order they were set
+	private final Map<String,Savepoint> savepoints = new LinkedHashMap<String,Savepoint>();
+
 	private boolean stale;
 
 	private AtomikosNonXAPooledConnection pooledConnection;
 
 	private Connection wrapped;
 
+	private JdbcConnectionState wrappedState;
+
 	private boolean originalAutoCommitState;
 
 	private AtomikosNonXAParticipant participant;
@@ -113,25 +120,7 @@ implements JtaAwareNonXaConnection
 	{
 		Object ret = null;
 		Object obj = pooledConnection.getConnection();
-		Set<Class> interfaces = PropertyUtils.getAllImplementedInterfaces ( obj.getClass() );
-		interfaces.add ( Reapable.class );
-		//see case 24532
-		interfaces.add ( DynamicProxy.class );
-		Class[] interfaceClasses = ( Class[] ) interfaces.toArray ( new Class[0] );
-
-		Set<Class> minimumSetOfInterfaces = new HashSet<Class>();
-		minimumSetOfInterfaces.add ( Reapable.class );
-		minimumSetOfInterfaces.add ( DynamicProxy.class );
-		minimumSetOfInterfaces.add ( java.sql.Connection.class );
-        Class[] minimumSetOfInterfaceClasses = ( Class[] ) minimumSetOfInterfaces.toArray( new Class[0] );
-
-
-		List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
-		classLoaders.add ( Thread.currentThread().getContextClassLoader() );
-		classLoaders.add ( obj.getClass().getClassLoader() );
-		classLoaders.add ( AtomikosThreadLocalConnection.class.getClassLoader() );
-
-		ret = ClassLoadingHelper.newProxyInstance ( classLoaders , minimumSetOfInterfaceClasses , interfaceClasses , new AtomikosThreadLocalConnection ( pooledConnection ) );
+		ret = PROXY_FACTORY.newProxyInstance ( obj , new AtomikosThreadLocalConnection ( pooledConnection ) );
 
 		DynamicProxy dproxy = (DynamicProxy) ret;
 		AtomikosThreadLocalConnection c = (AtomikosThreadLocalConnection) dproxy.getInvocationHandler();
@@ -147,6 +136,7 @@ implements JtaAwareNonXaConnection
 		this.transaction = null;
 		this.pooledConnection = pooledConnection;
 		this.wrapped = pooledConnection.getConnection();
+		this.wrappedState = pooledConnection.getConnectionState();
 		this.readOnly = pooledConnection.getReadOnly();
 	}
 
@@ -161,12 +151,16 @@ implements JtaAwareNonXaConnection
         try {
         	if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": resetting autoCommit to " + originalAutoCommitState );
         	//see case 24567
-            wrapped.setAutoCommit ( originalAutoCommitState );
+            wrappedState.setAutoCommit ( originalAutoCommitState );
         }catch ( Exception ex ){
             LOGGER.logWarning ( "Failed to reset original autoCommit state: "+ex.getMessage(), ex);
         }
         setTransaction ( null );
         participant = null;
+        verifiedTransaction = null;
+        synchronized ( savepoints ) {
+        	savepoints.clear();
+        }
 
     }
 
@@ -218,8 +212,8 @@ implements JtaAwareNonXaConnection
                 participant = new AtomikosNonXAParticipant ( this , resourceName );
                 participant.setReadOnly ( readOnly );
                 ct.addParticipant ( participant );
-                originalAutoCommitState = wrapped.getAutoCommit();
-                wrapped.setAutoCommit ( false );
+                originalAutoCommitState = wrappedState.getAutoCommit();
+                wrappedState.setAutoCommit ( false );
 
             }
         } else {
@@ -240,70 +234,60 @@ implements JtaAwareNonXaConnection
 
 
         final String methodName = m.getName();
+        final MethodCategory category = MethodCategory.of ( m );
 
         //see case 24532
-		if ( methodName.equals ( "getInvocationHandler" ) ) return this;
+		if ( category == MethodCategory.GET_INVOCATION_HANDLER ) return this;
 
-		if (methodName.equals("reap")) {
+		if ( category == MethodCategory.REAP ) {
 			if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": reap()..." );
 			reap();
 			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": reap done." );
 			return null;
 		}
-		else if ( methodName.equals ("isNoLongerInUse") ) {
+		else if ( category == MethodCategory.IS_NO_LONGER_IN_USE ) {
 			return Boolean.valueOf ( isNoLongerInUse() );
 		}
-		else if ( methodName.equals ("isInTransaction") ) {
+		else if ( category == MethodCategory.IS_IN_TRANSACTION ) {
 			return m.invoke( this , args);
 		}
-		else if (methodName.equals("isClosed")) {
+		else if ( category == MethodCategory.IS_CLOSED ) {
 			if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": isClosed()..." );
 			Object ret = Boolean.valueOf ( isStale() );
 			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": isClosed() returning " + ret );
 			return ret;
 		}
         // detect illegal use after connection was resubmitted to the pool
-		else if ( isStale () && !NON_TRANSACTIONAL_METHOD_NAMES.contains ( methodName ) ) {
-        	if (!methodName.equals("close"))
+		else if ( isStale () && category != MethodCategory.NON_TRANSACTIONAL ) {
+        	if ( category != MethodCategory.CLOSE )
         		AtomikosSQLException.throwAtomikosSQLException ( "Attempt to use connection after it was closed." );
         }
         // disallow local TX methods in global TX context
 		else if ( isInTransaction() ) {
-	        if (XA_INCOMPATIBLE_METHODS.contains(methodName))
+	        if ( category == MethodCategory.XA_INCOMPATIBLE )
 	        	AtomikosSQLException.throwAtomikosSQLException("Cannot call method '" + methodName + "' while a global transaction is running");
 
-	        if (methodName.equals("setAutoCommit") && args[0].equals(Boolean.TRUE)) {
+	        if ( category == MethodCategory.SET_AUTO_COMMIT && args[0].equals(Boolean.TRUE)) {
 	        	AtomikosSQLException.throwAtomikosSQLException("Cannot call 'setAutoCommit(true)' while a global transaction is running");
 	        }
-	        if (methodName.equals("getAutoCommit")) {
+	        if ( category == MethodCategory.GET_AUTO_COMMIT ) {
 	        	if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": getAutoCommit()..." );
 	        	Object ret = Boolean.FALSE;
 	        	if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": getAutoCommit() returning false." );
 	        	return ret;
 	        }
 
-	        CompositeTransactionManager ctm = Configuration.getCompositeTransactionManager ();
-	        CompositeTransaction ct = ctm.getCompositeTransaction();
-
-            // if we are already in another (parent) tx then reject this,
-            // because nested tx rollback can not be supported!!!
-            if ( ct != null && !isInTransaction ( ct ) )
-                AtomikosSQLException.throwAtomikosSQLException (
-                        "Connection accessed by transaction "
-                                + ct.getTid ()
-                                + " is already in use in another transaction: "
-                                + transaction.getTid ()
-                                + " Non-XA connections are not compatible with nested transaction use." );
+	        verifyCurrentTransaction();
 		}
 		// check for enlistment
-		else if (ENLISTMENT_METHODS.contains(methodName)) {
+		else if ( category == MethodCategory.ENLISTMENT ) {
         	updateInTransaction();
         }
 
 		Object ret = null;
 
         // check for delistment
-        if (CLOSE_METHODS.contains(methodName)) {
+        if ( category == MethodCategory.CLOSE ) {
         	if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": close..." );
 			decUseCount();
 			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": close done." );
@@ -313,6 +297,8 @@ implements JtaAwareNonXaConnection
 			try {
 				if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": calling " + methodName + " on vendor connection..." );
 				ret =  m.invoke ( wrapped , args);
+				if ( category == MethodCategory.SET_AUTO_COMMIT ) wrappedState.autoCommitChanged ( ( ( Boolean ) args[0] ).booleanValue() );
+				else if ( category == MethodCategory.SET_TRANSACTION_ISOLATION ) wrappedState.isolationLevelChanged ( ( ( Integer ) args[0] ).intValue() );
 
 			} catch (Exception ex) {
 				pooledConnection.setErroneous();
@@ -329,6 +315,114 @@ implements JtaAwareNonXaConnection
 	}
 
 
+	/**
+	 * Checks that the calling thread's transaction is the one this connection 
+	 * is used for, or a subtransaction of it. The outcome is remembered 
+	 * until the calling thread's transaction changes.
+	 */
+	private void verifyCurrentTransaction() throws SQLException
+	{
+        CompositeTransactionManager ctm = Configuration.getCompositeTransactionManager ();
+        CompositeTransaction ct = ctm.getCompositeTransaction();
+        if ( ct == null || ct == verifiedTransaction ) return;
+
+        //See case 29060 and 28683 :COPY attribute to avoid race conditions with NPE results
+        CompositeTransaction tx = transaction;
+        if ( tx == null || isInTransaction ( ct ) ) {
+        	verifiedTransaction = ct;
+        } else if ( ct.isDescendantOf ( tx ) ) {
+        	setSavepointsForSubTransaction ( ct , tx );
+        	verifiedTransaction = ct;
+        } else {
+            // if we are already in another (unrelated) tx then reject this
+            AtomikosSQLException.throwAtomikosSQLException (
+                    "Connection accessed by transaction "
+                            + ct.getTid ()
+                            + " is already in use in another transaction: "
+                            + tx.getTid ()
+                            + " Non-XA connections are not compatible with concurrent transaction use." );
+        }
+	}
+
+	/**
+	 * Sets a savepoint for the given subtransaction and any of its ancestors 
+	 * (up to tx) that don't have one yet - outermost first, since rolling back 
+	 * to a savepoint releases all savepoints that were set after it.
+	 */
+	private void setSavepointsForSubTransaction ( CompositeTransaction subtx , CompositeTransaction tx ) throws SQLException
+	{
+		List<CompositeTransaction> lineage = new ArrayList<CompositeTransaction> ( subtx.getLineage() );
+		lineage.add ( subtx );
+		for ( CompositeTransaction ct : lineage ) {
+			if ( ct.isDescendantOf ( tx ) && !ct.isSameTransaction ( tx ) && !hasSavepoint ( ct ) ) {
+				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": setting savepoint for subtransaction " + ct.getTid() );
+				try {
+					Savepoint savepoint = wrapped.setSavepoint();
+					synchronized ( savepoints ) {
+						savepoints.put ( ct.getTid() , savepoint );
+					}
+				} catch ( SQLException e ) {
+					AtomikosSQLException.throwAtomikosSQLException ( "Failed to set savepoint for subtransaction " + ct.getTid() + " - the JDBC driver may not support savepoints" , e );
+				}
+				ct.addSubTxAwareParticipant ( new SavepointParticipant ( this ) );
+			}
+		}
+	}
+
+	private boolean hasSavepoint ( CompositeTransaction ct )
+	{
+		synchronized ( savepoints ) {
+			return savepoints.containsKey ( ct.getTid() );
+		}
+	}
+
+	/**
+	 * Removes the savepoint of the given subtransaction, along with all 
+	 * savepoints set after it: rolling back to or releasing a savepoint 
+	 * invalidates those (which includes the savepoints of all nested subtransactions).
+	 * 
+	 * @return The savepoint, or null if none.
+	 */
+	private Savepoint removeSavepointAndLaterOnes ( CompositeTransaction subtx )
+	{
+		Savepoint ret = null;
+		synchronized ( savepoints ) {
+			Iterator<Map.Entry<String,Savepoint>> it = savepoints.entrySet().iterator();
+			while ( it.hasNext() ) {
+				Map.Entry<String,Savepoint> entry = it.next();
+				if ( ret == null && entry.getKey().equals ( subtx.getTid() ) ) ret = entry.getValue();
+				if ( ret != null ) it.remove();
+			}
+		}
+		return ret;
+	}
+
+	private void subTransactionTerminated ( CompositeTransaction subtx , boolean committed )
+	{
+		verifiedTransaction = null;
+		Savepoint savepoint = removeSavepointAndLaterOnes ( subtx );
+		if ( savepoint == null ) return;
+		try {
+			if ( committed ) {
+				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": releasing savepoint of subtransaction " + subtx.getTid() );
+				wrapped.releaseSavepoint ( savepoint );
+			} else {
+				if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": rolling back to savepoint of subtransaction " + subtx.getTid() );
+				wrapped.rollback ( savepoint );
+			}
+		} catch ( SQLException e ) {
+			if ( committed ) {
+				//optional for drivers: the savepoint is released at the end of the transaction anyway
+				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": failed to release savepoint - ignoring" , e );
+			} else {
+				//the work of the subtransaction cannot be undone on its own
+				LOGGER.logWarning ( this + ": failed to roll back to savepoint - marking transaction as rollback-only" , e );
+				CompositeTransaction tx = transaction;
+				if ( tx != null ) tx.setRollbackOnly();
+			}
+		}
+	}
+
 	/**
 	 * Checks if the connection is being used on behalf the a transaction.
 	 *
@@ -438,6 +532,28 @@ implements JtaAwareNonXaConnection
 		return ret.toString();
 	}
 
+	private static class SavepointParticipant implements SubTxAwareParticipant
+	{
+		private static final long serialVersionUID = 1L;
+
+		private transient AtomikosThreadLocalConnection connection;
+
+		SavepointParticipant ( AtomikosThreadLocalConnection connection )
+		{
+			this.connection = connection;
+		}
+
+		public void committed ( CompositeTransaction subtx )
+		{
+			if ( connection != null ) connection.subTransactionTerminated ( subtx , true );
+		}
+
+		public void rolledback ( CompositeTransaction subtx )
+		{
+			if ( connection != null ) connection.subTransactionTerminated ( subtx , false );
+		}
+	}
+
 	public boolean usesConnection ( XPooledConnection xpc )
 	{
 		boolean ret = false;
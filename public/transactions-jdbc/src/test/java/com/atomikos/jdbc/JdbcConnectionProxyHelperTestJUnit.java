@@ -0,0 +1,71 @@
+package com.atomikos.jdbc;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+import com.atomikos.datasource.pool.CreateConnectionException;
+
+public class JdbcConnectionProxyHelperTestJUnit extends TestCase {
+
+	private static final String TEST_QUERY = "SELECT 1";
+	
+	private Connection connection;
+	
+	private Statement statement;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		connection = mock ( Connection.class );
+		statement = mock ( Statement.class );
+		when ( connection.createStatement() ).thenReturn ( statement );
+	}
+	
+	public void testIsValidIsPreferredOverTestQuery() throws Exception 
+	{
+		when ( connection.isValid ( 5 ) ).thenReturn ( true );
+		JdbcConnectionProxyHelper.testConnection ( connection , TEST_QUERY , 5 );
+		verify ( connection , times ( 1 ) ).isValid ( 5 );
+		verify ( connection , never() ).createStatement();
+	}
+	
+	public void testInvalidConnectionFails() throws Exception 
+	{
+		when ( connection.isValid ( 5 ) ).thenReturn ( false );
+		try {
+			JdbcConnectionProxyHelper.testConnection ( connection , TEST_QUERY , 5 );
+			fail ( "invalid connection passes the test" );
+		} catch ( CreateConnectionException ok ) {}
+		verify ( connection , never() ).createStatement();
+	}
+	
+	public void testPre40DriverFallsBackToTestQuery() throws Exception 
+	{
+		when ( connection.isValid ( 5 ) ).thenThrow ( new AbstractMethodError() );
+		JdbcConnectionProxyHelper.testConnection ( connection , TEST_QUERY , 5 );
+		verify ( statement , times ( 1 ) ).execute ( TEST_QUERY );
+	}
+	
+	public void testPre40DriverWithoutTestQueryFails() throws Exception 
+	{
+		when ( connection.isValid ( 5 ) ).thenThrow ( new AbstractMethodError() );
+		try {
+			JdbcConnectionProxyHelper.testConnection ( connection , null , 5 );
+			fail ( "connection passes the test without any way to validate it" );
+		} catch ( CreateConnectionException ok ) {}
+	}
+	
+	public void testTestQueryIsUsedWithoutValidationTimeout() throws Exception 
+	{
+		JdbcConnectionProxyHelper.testConnection ( connection , TEST_QUERY , 0 );
+		verify ( connection , never() ).isValid ( 0 );
+		verify ( statement , times ( 1 ) ).execute ( TEST_QUERY );
+	}
+}
@@ -0,0 +1,69 @@
+package com.atomikos.jdbc;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+
+import junit.framework.TestCase;
+
+public class JdbcConnectionStateTestJUnit extends TestCase {
+
+	private Connection connection;
+	
+	private JdbcConnectionState state;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		connection = mock ( Connection.class );
+		state = new JdbcConnectionState ( connection );
+	}
+	
+	public void testIsolationLevelIsOnlySetIfChanged() throws Exception 
+	{
+		state.resetIsolationLevel ( Connection.TRANSACTION_READ_COMMITTED );
+		state.resetIsolationLevel ( Connection.TRANSACTION_READ_COMMITTED );
+		verify ( connection , times ( 1 ) ).setTransactionIsolation ( Connection.TRANSACTION_READ_COMMITTED );
+	}
+	
+	public void testIsolationLevelIsResetAfterChangeByApplication() throws Exception 
+	{
+		state.resetIsolationLevel ( Connection.TRANSACTION_READ_COMMITTED );
+		state.isolationLevelChanged ( Connection.TRANSACTION_SERIALIZABLE );
+		state.resetIsolationLevel ( Connection.TRANSACTION_READ_COMMITTED );
+		verify ( connection , times ( 2 ) ).setTransactionIsolation ( Connection.TRANSACTION_READ_COMMITTED );
+	}
+	
+	public void testNegativeIsolationLevelIsIgnored() throws Exception 
+	{
+		state.resetIsolationLevel ( -1 );
+		verify ( connection , times ( 0 ) ).setTransactionIsolation ( -1 );
+	}
+	
+	public void testAutoCommitIsOnlyQueriedOnce() throws Exception 
+	{
+		when ( connection.getAutoCommit() ).thenReturn ( true );
+		assertTrue ( state.getAutoCommit() );
+		assertTrue ( state.getAutoCommit() );
+		verify ( connection , times ( 1 ) ).getAutoCommit();
+	}
+	
+	public void testAutoCommitIsOnlySetIfChanged() throws Exception 
+	{
+		when ( connection.getAutoCommit() ).thenReturn ( true );
+		state.setAutoCommit ( state.getAutoCommit() );
+		verify ( connection , times ( 0 ) ).setAutoCommit ( true );
+		state.setAutoCommit ( false );
+		state.setAutoCommit ( false );
+		verify ( connection , times ( 1 ) ).setAutoCommit ( false );
+	}
+	
+	public void testAutoCommitChangedByApplicationIsTracked() throws Exception 
+	{
+		state.autoCommitChanged ( false );
+		assertFalse ( state.getAutoCommit() );
+		verify ( connection , times ( 0 ) ).getAutoCommit();
+	}
+}
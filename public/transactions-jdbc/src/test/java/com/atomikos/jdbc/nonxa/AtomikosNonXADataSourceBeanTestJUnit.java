@@ -154,6 +154,18 @@ public class AtomikosNonXADataSourceBeanTestJUnit extends TestCase
 		}		
 	}
 	
+	public void testInitWithUnsupportedPartitionedByCredentialsFails () throws SQLException
+	{
+		ds.setUniqueResourceName( "test" );
+		ds.setPartitionedByCredentials ( true );
+		try {
+			ds.init();
+			fail ( "init works with unsupported partitionedByCredentials" );
+		} catch ( AtomikosSQLException ok ) {
+			assertEquals ( "Property 'partitionedByCredentials' is not supported by " + AtomikosNonXADataSourceBean.class.getName() , ok.getMessage() );
+		}
+	}
+	
 	public void testReadOnly() throws Exception 
 	{
 		assertFalse ( ds.getReadOnly() );
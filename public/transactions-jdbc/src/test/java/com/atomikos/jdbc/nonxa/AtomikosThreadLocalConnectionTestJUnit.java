@@ -0,0 +1,137 @@
+package com.atomikos.jdbc.nonxa;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Stack;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+
+import com.atomikos.datasource.pool.ConnectionPoolProperties;
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.CompositeTransactionManager;
+import com.atomikos.icatch.SubTxAwareParticipant;
+import com.atomikos.icatch.config.Configuration;
+import com.atomikos.icatch.jta.TransactionManagerImp;
+
+public class AtomikosThreadLocalConnectionTestJUnit extends TestCase {
+
+	private Connection vendorConnection;
+
+	private Connection proxy;
+
+	private CompositeTransactionManager ctm;
+
+	private CompositeTransaction tx;
+
+	private Savepoint savepoint1;
+
+	private Savepoint savepoint2;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		vendorConnection = mock ( Connection.class );
+		savepoint1 = mock ( Savepoint.class );
+		savepoint2 = mock ( Savepoint.class );
+		when ( vendorConnection.setSavepoint() ).thenReturn ( savepoint1 , savepoint2 );
+		ConnectionPoolProperties props = mock ( ConnectionPoolProperties.class );
+		AtomikosNonXAPooledConnection pooledConnection = new AtomikosNonXAPooledConnection ( vendorConnection , props , false );
+		proxy = ( Connection ) AtomikosThreadLocalConnection.newInstance ( pooledConnection , getName() );
+		ctm = mock ( CompositeTransactionManager.class );
+		Configuration.installCompositeTransactionManager ( ctm );
+		tx = mock ( CompositeTransaction.class );
+		when ( tx.getTid() ).thenReturn ( "tx" );
+		when ( tx.getProperty ( TransactionManagerImp.JTA_PROPERTY_NAME ) ).thenReturn ( "true" );
+		when ( tx.isSameTransaction ( tx ) ).thenReturn ( true );
+		when ( ctm.getCompositeTransaction() ).thenReturn ( tx );
+		proxy.createStatement();
+	}
+
+	protected void tearDown() throws Exception {
+		Configuration.installCompositeTransactionManager ( null );
+		super.tearDown();
+	}
+
+	private CompositeTransaction createSubTransaction ( String tid , CompositeTransaction... ancestors ) {
+		CompositeTransaction ret = mock ( CompositeTransaction.class );
+		when ( ret.getTid() ).thenReturn ( tid );
+		Stack<CompositeTransaction> lineage = new Stack<CompositeTransaction>();
+		for ( CompositeTransaction ancestor : ancestors ) {
+			lineage.push ( ancestor );
+			when ( ret.isDescendantOf ( ancestor ) ).thenReturn ( true );
+		}
+		when ( ret.getLineage() ).thenReturn ( lineage );
+		return ret;
+	}
+
+	private SubTxAwareParticipant useConnectionIn ( CompositeTransaction subtx ) throws SQLException {
+		when ( ctm.getCompositeTransaction() ).thenReturn ( subtx );
+		proxy.createStatement();
+		ArgumentCaptor<SubTxAwareParticipant> captor = ArgumentCaptor.forClass ( SubTxAwareParticipant.class );
+		verify ( subtx ).addSubTxAwareParticipant ( captor.capture() );
+		return captor.getValue();
+	}
+
+	public void testSavepointIsSetForSubTransaction() throws Exception {
+		useConnectionIn ( createSubTransaction ( "sub" , tx ) );
+		verify ( vendorConnection , times ( 1 ) ).setSavepoint();
+	}
+
+	public void testRollbackOfSubTransactionRollsBackToSavepoint() throws Exception {
+		CompositeTransaction subtx = createSubTransaction ( "sub" , tx );
+		useConnectionIn ( subtx ).rolledback ( subtx );
+		verify ( vendorConnection ).rollback ( savepoint1 );
+		verify ( vendorConnection , never() ).rollback();
+	}
+
+	public void testCommitOfSubTransactionReleasesSavepoint() throws Exception {
+		CompositeTransaction subtx = createSubTransaction ( "sub" , tx );
+		useConnectionIn ( subtx ).committed ( subtx );
+		verify ( vendorConnection ).releaseSavepoint ( savepoint1 );
+		verify ( vendorConnection , never() ).rollback ( savepoint1 );
+	}
+
+	public void testRollbackToOuterSavepointDiscardsNestedSavepoints() throws Exception {
+		CompositeTransaction outer = createSubTransaction ( "outer" , tx );
+		CompositeTransaction inner = createSubTransaction ( "inner" , tx , outer );
+		when ( ctm.getCompositeTransaction() ).thenReturn ( inner );
+		proxy.createStatement();
+		verify ( vendorConnection , times ( 2 ) ).setSavepoint();
+		ArgumentCaptor<SubTxAwareParticipant> captor = ArgumentCaptor.forClass ( SubTxAwareParticipant.class );
+		verify ( outer ).addSubTxAwareParticipant ( captor.capture() );
+		captor.getValue().rolledback ( outer );
+		verify ( vendorConnection ).rollback ( savepoint1 );
+		verify ( inner ).addSubTxAwareParticipant ( captor.capture() );
+		captor.getValue().rolledback ( inner );
+		verify ( vendorConnection , never() ).rollback ( savepoint2 );
+	}
+
+	public void testNewSubTransactionGetsNewSavepointAfterRollback() throws Exception {
+		CompositeTransaction first = createSubTransaction ( "first" , tx );
+		useConnectionIn ( first ).rolledback ( first );
+		CompositeTransaction second = createSubTransaction ( "second" , tx );
+		useConnectionIn ( second ).rolledback ( second );
+		verify ( vendorConnection ).rollback ( savepoint2 );
+	}
+
+	public void testUseByUnrelatedTransactionIsRejected() throws Exception {
+		CompositeTransaction other = mock ( CompositeTransaction.class );
+		when ( other.getTid() ).thenReturn ( "other" );
+		when ( ctm.getCompositeTransaction() ).thenReturn ( other );
+		try {
+			proxy.getMetaData();
+			fail ( "connection usable by another transaction" );
+		} catch ( SQLException ok ) {
+		}
+		verify ( vendorConnection , never() ).getMetaData();
+	}
+
+}
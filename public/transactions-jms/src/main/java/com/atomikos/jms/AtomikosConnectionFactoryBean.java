@@ -43,6 +43,7 @@ import com.atomikos.datasource.pool.ConnectionFactory;
 import com.atomikos.datasource.pool.ConnectionPool;
 import com.atomikos.datasource.pool.ConnectionPoolException;
 import com.atomikos.datasource.pool.ConnectionPoolProperties;
+import com.atomikos.datasource.pool.ConnectionPoolStatistics;
 import com.atomikos.datasource.pool.CreateConnectionException;
 import com.atomikos.datasource.pool.PoolExhaustedException;
 import com.atomikos.datasource.xa.jms.JmsTransactionalResource;
@@ -152,6 +153,8 @@ Referenceable, Serializable {
 	private int reapTimeout;
 	private boolean localTransactionMode;
 	private int maxLifetime;
+	private int leakDetectionThreshold;
+	private int borrowStackSampleRate = 10;
 
 	private boolean ignoreSessionTransactedFlag;
 	
@@ -335,6 +338,41 @@ Referenceable, Serializable {
 		return maxLifetime;
 	}
 
+	/**
+	 * Sets the time after which a connection that is still in use is reported as suspected leak. Optional. 
+	 * 
+	 * @param leakDetectionThreshold The time in seconds. Suspected leaks are logged and published 
+	 * as events (with the borrow stack, if sampled) but - unlike with reapTimeout - the connection 
+	 * is left alone. Defaults to 0 (no leak detection).
+	 */
+	public void setLeakDetectionThreshold(int leakDetectionThreshold) {
+		this.leakDetectionThreshold = leakDetectionThreshold;
+	}
+
+	/**
+	 * Gets the time (in seconds) after which a borrowed connection is reported as suspected leak.
+	 */
+	public int getLeakDetectionThreshold() {
+		return leakDetectionThreshold;
+	}
+
+	/**
+	 * Sets how often the stack trace of the borrowing thread is captured, if leakDetectionThreshold is set. Optional. 
+	 * 
+	 * @param borrowStackSampleRate N to capture the stack for 1 in N borrows: 1 shows 
+	 * the stack of every leak but costs more, 0 disables stack capture. Defaults to 10.
+	 */
+	public void setBorrowStackSampleRate(int borrowStackSampleRate) {
+		this.borrowStackSampleRate = borrowStackSampleRate;
+	}
+
+	/**
+	 * Gets how often the borrow stack is captured for leak detection.
+	 */
+	public int getBorrowStackSampleRate() {
+		return borrowStackSampleRate;
+	}
+
 	
 	/**
 	 * Initializes the instance. It is highly recommended that this method be 
@@ -414,6 +452,7 @@ Referenceable, Serializable {
 				" xaProperties=" + printXaProperties() + "," +
 				" localTransactionMode=" + localTransactionMode + "," + 
 				" maxLifetime=" + maxLifetime + "," +
+				" leakDetectionThreshold=" + leakDetectionThreshold + "," +
 				" ignoreSessionTransactedFlag=" + ignoreSessionTransactedFlag +
 				"]"
 				);
@@ -562,6 +601,16 @@ Referenceable, Serializable {
 		return -1;
 	}
 	
+	/* JMS connections are not tested */
+	public int getTestIdleTime() {
+		return 0;
+	}
+	
+	/* JMS connections are not tested */
+	public int getValidationTimeout() {
+		return 0;
+	}
+	
 
 
 	/**
@@ -647,6 +696,16 @@ Referenceable, Serializable {
 		return ret;
 	}
 	
+	/**
+	 * Gets the statistics of the pool. These can be registered as MBean.
+	 * 
+	 * @return The statistics, or null if not initialized.
+	 */
+	public ConnectionPoolStatistics getPoolStatistics() {
+		if (connectionPool == null) return null;
+		return connectionPool.getStatistics();
+	}
+
 	public int poolAvailableSize() {
 		return connectionPool.availableSize();
 	}
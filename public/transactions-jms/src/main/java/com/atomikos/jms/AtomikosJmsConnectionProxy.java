@@ -26,11 +26,11 @@
 package com.atomikos.jms;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.Connection;
 import javax.jms.JMSException;
@@ -38,7 +38,6 @@ import javax.jms.Session;
 import javax.jms.XAConnection;
 import javax.jms.XASession;
 
-import com.atomikos.beans.PropertyUtils;
 import com.atomikos.datasource.pool.ConnectionPoolProperties;
 import com.atomikos.datasource.pool.Reapable;
 import com.atomikos.datasource.xa.XATransactionalResource;
@@ -49,8 +48,8 @@ import com.atomikos.icatch.config.Configuration;
 import com.atomikos.icatch.jta.TransactionManagerImp;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
-import com.atomikos.util.ClassLoadingHelper;
 import com.atomikos.util.DynamicProxy;
+import com.atomikos.util.DynamicProxyFactory;
 
 class AtomikosJmsConnectionProxy extends AbstractJmsProxy 
 implements SessionHandleStateChangeListener
@@ -62,6 +61,11 @@ implements SessionHandleStateChangeListener
 	private static final String CLOSE_METHOD = "close";
 	
 	private static final String REAP_METHOD = "reap";
+
+	private static final DynamicProxyFactory PROXY_FACTORY = new DynamicProxyFactory ( AtomikosJmsConnectionProxy.class , 
+			new Class[] { Reapable.class , DynamicProxy.class , javax.jms.Connection.class } , 
+			//see case 24532
+			new Class[] { Reapable.class , DynamicProxy.class } );
 	
 	protected static void forceConnectionIntoXaMode ( Connection c )
 	{
@@ -91,8 +95,11 @@ implements SessionHandleStateChangeListener
 	
 	private XAConnection delegate;
 	private XATransactionalResource jmsTransactionalResource;
-	private List<Session> sessions;
-	private boolean closed;
+	// copy-on-write: sessions are added rarely but iterated on every pool check
+	private List<TrackedSession> sessions;
+	// sessions whose handle state has not terminated yet
+	private final AtomicInteger pendingSessions = new AtomicInteger();
+	private volatile boolean closed;
 	private boolean reaped;
 	private SessionHandleStateChangeListener owner;
 	private ConnectionPoolProperties props;
@@ -103,7 +110,7 @@ implements SessionHandleStateChangeListener
 	private AtomikosJmsConnectionProxy ( boolean ignoreSessionTransactedFlag, XAConnection c , XATransactionalResource jmsTransactionalResource , SessionHandleStateChangeListener owner, ConnectionPoolProperties props ) 
 	{
 		this.delegate = c;
-		this.sessions = new ArrayList<Session>();
+		this.sessions = new CopyOnWriteArrayList<TrackedSession>();
 		this.jmsTransactionalResource = jmsTransactionalResource;
 		this.closed = false;
 		this.reaped = false;
@@ -120,12 +127,12 @@ implements SessionHandleStateChangeListener
 		reaped = true;
 	}
 	
-	private void addSession ( Session session ) 
+	private void addSession ( Session session , TrackedSession tracked ) 
 	{
-		// fix for case 62041: synchronized!
-		synchronized ( sessions ) {
-			sessions.add ( session );
-		}
+		// fix for case 62041: thread-safe list
+		tracked.session = session;
+		pendingSessions.incrementAndGet();
+		sessions.add ( tracked );
 	}
 
 
@@ -173,8 +180,9 @@ implements SessionHandleStateChangeListener
 							String msg = "Could not create an XASession on the javax.jms.XAConnectionFactory's XAConnection - check if your JMS backend is configured for XA?";
 							convertProxyError( vendorError , msg );
 						}
-						session = (Session) AtomikosJmsXaSessionProxy.newInstance( wrapped , jmsTransactionalResource , owner , this );
-						addSession ( session );
+						TrackedSession tracked = new TrackedSession();
+						session = (Session) AtomikosJmsXaSessionProxy.newInstance( wrapped , jmsTransactionalResource , tracked , this );
+						addSession ( session , tracked );
 					}
 				} else {
 					CompositeTransaction ct = null;
@@ -191,8 +199,9 @@ implements SessionHandleStateChangeListener
 						String msg = "Could not create a non-XA session on the javax.jms.XAConnectionFactory's XAConnection - check your JMS vendor's documentation to see if non-XA use of its XAConnection is supported?";
 						convertProxyError( vendorError , msg );
 					}
-					session = ( Session ) AtomikosJmsNonXaSessionProxy.newInstance( wrapped , owner , this );
-					addSession ( session );
+					TrackedSession tracked = new TrackedSession();
+					session = ( Session ) AtomikosJmsNonXaSessionProxy.newInstance( wrapped , tracked , this );
+					addSession ( session , tracked );
 				}
 				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": returning " + session );
 				return session;
@@ -228,27 +237,25 @@ implements SessionHandleStateChangeListener
 		}
 	}
 	
-	private synchronized Session recycleSession() {
+	private Session recycleSession() {
 		CompositeTransactionManager tm = Configuration.getCompositeTransactionManager();
 		if (tm == null)
 			return null;
 		
 		CompositeTransaction current = tm.getCompositeTransaction();
 		if ( ( current != null ) && ( current.getProperty ( TransactionManagerImp.JTA_PROPERTY_NAME) != null )) {
-			synchronized (sessions) {
-				for (int i=0; i<sessions.size() ;i++) {
-					Session session = (Session) sessions.get(i);
-					DynamicProxy dproxy = ( DynamicProxy ) session;
-					AbstractJmsSessionProxy proxy = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
-					
-					//recycle if either inactive in this tx, OR if active (since a new session will be created anyway, and 
-					//concurrent sessions are allowed on the same underlying connection!
-					if ( proxy.isInactiveTransaction(current) || proxy.isInTransaction( current ) ) {
-						if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": recycling session " + proxy );
-						return session;
-					}
+			for ( TrackedSession tracked : sessions ) {
+				Session session = tracked.session;
+				DynamicProxy dproxy = ( DynamicProxy ) session;
+				AbstractJmsSessionProxy proxy = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
+				
+				//recycle if either inactive in this tx, OR if active (since a new session will be created anyway, and 
+				//concurrent sessions are allowed on the same underlying connection!
+				if ( proxy.isInactiveTransaction(current) || proxy.isInTransaction( current ) ) {
+					if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": recycling session " + proxy );
+					return session;
 				}
-			} // synchronized (sessions)
+			}
 		}
 		return null;
 	}
@@ -260,15 +267,12 @@ implements SessionHandleStateChangeListener
 		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": closing " + sessions.size() + " session(s)" );
 		
 		//close all sessions to make sure the session close notifications are done!
-		synchronized (sessions) {
-			for (int i=0; i<sessions.size() ;i++)
-			{
-				Session session = (Session) sessions.get ( i );
-				try {
-					session.close ();
-				} catch (JMSException ex) {
-					LOGGER.logWarning ( this + ": error closing session " + session, ex );
-				}
+		for ( TrackedSession tracked : sessions ) {
+			Session session = tracked.session;
+			try {
+				session.close ();
+			} catch (JMSException ex) {
+				LOGGER.logWarning ( this + ": error closing session " + session, ex );
 			}
 		}
 		
@@ -286,15 +290,12 @@ implements SessionHandleStateChangeListener
 		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": closing connection and all " + sessions.size() + " session(s)" );
 
 		//close all sessions to make sure the session close notifications are done!
-		synchronized (sessions) {
-			for (int i=0; i<sessions.size() ;i++)
-			{
-				Session session = (Session) sessions.get ( i );
-				try {
-					session.close ();
-				} catch (JMSException ex) {
-					LOGGER.logWarning ( this + ": error closing session " + session, ex );
-				}
+		for ( TrackedSession tracked : sessions ) {
+			Session session = tracked.session;
+			try {
+				session.close ();
+			} catch (JMSException ex) {
+				LOGGER.logWarning ( this + ": error closing session " + session, ex );
 			}
 		}
 
@@ -303,59 +304,24 @@ implements SessionHandleStateChangeListener
 	
 	public static Reapable newInstance ( boolean ignoreSessionTransactedFlag, XAConnection c, XATransactionalResource jmsTransactionalResource , SessionHandleStateChangeListener owner , ConnectionPoolProperties props ) 
 	{
-		 Reapable ret = null;
-		 
         AtomikosJmsConnectionProxy proxy = new AtomikosJmsConnectionProxy ( ignoreSessionTransactedFlag, c , jmsTransactionalResource , owner , props );
-        Set<Class> interfaces = PropertyUtils.getAllImplementedInterfaces ( c.getClass() );
-        interfaces.add ( Reapable.class );
-        //see case 24532
-        interfaces.add ( DynamicProxy.class );
-        Class[] interfaceClasses = ( Class[] ) interfaces.toArray ( new Class[0] );
-        
-        Set<Class> minimumSetOfInterfaces = new HashSet<Class>();
-		minimumSetOfInterfaces.add ( Reapable.class );
-		minimumSetOfInterfaces.add ( DynamicProxy.class );
-		minimumSetOfInterfaces.add ( javax.jms.Connection.class );
-        Class[] minimumSetOfInterfaceClasses = ( Class[] ) minimumSetOfInterfaces.toArray( new Class[0] );
-        
-        List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
-		classLoaders.add ( Thread.currentThread().getContextClassLoader() );
-		classLoaders.add ( c.getClass().getClassLoader() );
-		classLoaders.add ( AtomikosJmsConnectionProxy.class.getClassLoader() );
-        
-		ret = ( Reapable ) ClassLoadingHelper.newProxyInstance ( classLoaders , minimumSetOfInterfaceClasses , interfaceClasses , proxy );
-        
-        return ret;
+        return ( Reapable ) PROXY_FACTORY.newProxyInstance ( c , proxy );
     }
 
 
 	public boolean isAvailable() {
-		boolean ret = closed;
-		synchronized (sessions) {
-			Iterator it = sessions.iterator();
-			while ( it.hasNext() && ret ) {
-				Object handle = it.next();
-				DynamicProxy dproxy = ( DynamicProxy ) handle;
-				AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
-				if ( !session.isAvailable() ) {
-					ret = false;
-				}
-			}
-		}
-		return ret;
+		// O(1): sessions report their own termination, see TrackedSession
+		return closed && pendingSessions.get() == 0;
 	}
 
 
 	public boolean isErroneous() {
 		boolean ret = erroneous;
-		synchronized (sessions) {
-			Iterator it = sessions.iterator();
-			while ( it.hasNext() && !ret ) {
-				Object handle = it.next();
-				DynamicProxy dproxy = ( DynamicProxy ) handle;
-				AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
-				if ( session.isErroneous() ) ret = true;
-			}
+		Iterator<TrackedSession> it = sessions.iterator();
+		while ( it.hasNext() && !ret ) {
+			DynamicProxy dproxy = ( DynamicProxy ) it.next().session;
+			AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
+			if ( session.isErroneous() ) ret = true;
 		}
 		return ret;
 	}
@@ -363,28 +329,22 @@ implements SessionHandleStateChangeListener
 
 	public boolean isInTransaction ( CompositeTransaction ct ) {
 		boolean ret = false;
-		synchronized (sessions) {
-			Iterator it = sessions.iterator();
-			while ( it.hasNext() && !ret ) {
-				Object handle = it.next();
-				DynamicProxy dproxy = ( DynamicProxy ) handle;
-				AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
-				if ( session.isInTransaction ( ct ) ) ret = true;
-			}
+		Iterator<TrackedSession> it = sessions.iterator();
+		while ( it.hasNext() && !ret ) {
+			DynamicProxy dproxy = ( DynamicProxy ) it.next().session;
+			AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
+			if ( session.isInTransaction ( ct ) ) ret = true;
 		}
 		return ret;
 	}
 	
 	boolean isInactiveInTransaction ( CompositeTransaction ct ) {
 		boolean ret = false;
-		synchronized (sessions) {
-			Iterator it = sessions.iterator();
-			while ( it.hasNext() && !ret ) {
-				Object handle = it.next();
-				DynamicProxy dproxy = ( DynamicProxy ) handle;
-				AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
-				if ( session.isInactiveTransaction ( ct ) ) ret = true;
-			}
+		Iterator<TrackedSession> it = sessions.iterator();
+		while ( it.hasNext() && !ret ) {
+			DynamicProxy dproxy = ( DynamicProxy ) it.next().session;
+			AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
+			if ( session.isInactiveTransaction ( ct ) ) ret = true;
 		}
 		return ret;
 	}
@@ -393,16 +353,29 @@ implements SessionHandleStateChangeListener
 		return "atomikos connection proxy for resource " + jmsTransactionalResource.getName();
 	}
 
-	public synchronized void onTerminated() 
+	public void onTerminated() 
 	{
-		//a session has terminated -> remove it from the list of sessions to enable GC
-		synchronized (sessions) {
-			Iterator it = sessions.iterator();
-			while ( it.hasNext() ) {
-				Object handle = it.next();
-				DynamicProxy dproxy = ( DynamicProxy ) handle;
-				AbstractJmsSessionProxy  session = (AbstractJmsSessionProxy) dproxy.getInvocationHandler();
-				if ( session.isAvailable() ) it.remove();
+		//nothing to do: each session's TrackedSession does the bookkeeping
+	}
+
+	/**
+	 * Tracks the termination of one session, so availability can be 
+	 * checked without visiting all sessions. Notifies the owner only 
+	 * after the bookkeeping is done, because the owner checks availability.
+	 */
+
+	private class TrackedSession implements SessionHandleStateChangeListener
+	{
+		private final AtomicBoolean terminated = new AtomicBoolean();
+		private volatile Session session;
+
+		public void onTerminated() 
+		{
+			if ( terminated.compareAndSet ( false , true ) ) {
+				//remove it from the list of sessions to enable GC
+				sessions.remove ( this );
+				pendingSessions.decrementAndGet();
+				owner.onTerminated();
 			}
 		}
 	}
@@ -26,10 +26,6 @@
 package com.atomikos.jms;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
 
 import javax.jms.JMSException;
 import javax.jms.Session;
@@ -37,44 +33,30 @@ import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
-import com.atomikos.beans.PropertyUtils;
 import com.atomikos.datasource.pool.Reapable;
 import com.atomikos.datasource.xa.session.SessionHandleStateChangeListener;
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.icatch.jta.TransactionManagerImp;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
-import com.atomikos.util.ClassLoadingHelper;
 import com.atomikos.util.DynamicProxy;
+import com.atomikos.util.DynamicProxyFactory;
 
 class AtomikosJmsNonXaSessionProxy extends AbstractJmsSessionProxy 
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(AtomikosJmsNonXaSessionProxy.class);
 
 	private final static String CLOSE_METHOD = "close";
+
+	private static final DynamicProxyFactory PROXY_FACTORY = new DynamicProxyFactory ( AtomikosJmsNonXaSessionProxy.class , 
+			new Class[] { Reapable.class , DynamicProxy.class , javax.jms.Session.class } , 
+			//see case 24532
+			new Class[] { DynamicProxy.class } );
 	
 	public static Object newInstance ( Session s , SessionHandleStateChangeListener pooledConnection , SessionHandleStateChangeListener connectionProxy ) throws JMSException 
 	{
         AtomikosJmsNonXaSessionProxy proxy = new AtomikosJmsNonXaSessionProxy ( s , pooledConnection , connectionProxy );
-        Set<Class> interfaces = PropertyUtils.getAllImplementedInterfaces ( s.getClass() );
-        //see case 24532
-        interfaces.add ( DynamicProxy.class );
-        Class[] interfaceClasses = ( Class[] ) interfaces.toArray ( new Class[0] );
-        
-        Set<Class> minimumSetOfInterfaces = new HashSet<Class>();
-		minimumSetOfInterfaces.add ( Reapable.class );
-		minimumSetOfInterfaces.add ( DynamicProxy.class );
-		minimumSetOfInterfaces.add ( javax.jms.Session.class );
-        Class[] minimumSetOfInterfaceClasses = ( Class[] ) minimumSetOfInterfaces.toArray( new Class[0] );
-        
-        
-        List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
-		classLoaders.add ( Thread.currentThread().getContextClassLoader() );
-		classLoaders.add ( s.getClass().getClassLoader() );
-		classLoaders.add ( AtomikosJmsNonXaSessionProxy.class.getClassLoader() );
-		
-		return ( Session ) ClassLoadingHelper.newProxyInstance ( classLoaders , minimumSetOfInterfaceClasses , interfaceClasses , proxy );
-        
+		return ( Session ) PROXY_FACTORY.newProxyInstance ( s , proxy );
     }
 	
 	private Session delegate;
@@ -157,16 +139,18 @@ class AtomikosJmsNonXaSessionProxy extends AbstractJmsSessionProxy
 
 
 	protected void destroy() {
-		try {
-			if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": destroying session...");
-			if ( !closed ) {
-				closed = true;
+		if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": destroying session...");
+		if ( !closed ) {
+			closed = true;
+			try {
 				delegate.close(); 
+			} catch  ( JMSException e ) {
+				LOGGER.logWarning ( this + ": could not close JMS session" , e );
+			} finally {
+				//notify even if the vendor close failed, or the pooled connection never becomes available again
 				owner.onTerminated();
 				connectionProxy.onTerminated();
 			}
-		} catch  ( JMSException e ) {
-			LOGGER.logWarning ( this + ": could not close JMS session" , e );
 		}
 	
 	}
@@ -26,11 +26,8 @@
 package com.atomikos.jms;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import javax.jms.JMSException;
 import javax.jms.MessageConsumer;
@@ -39,7 +36,6 @@ import javax.jms.Session;
 import javax.jms.TopicSubscriber;
 import javax.jms.XASession;
 
-import com.atomikos.beans.PropertyUtils;
 import com.atomikos.datasource.pool.Reapable;
 import com.atomikos.datasource.xa.XATransactionalResource;
 import com.atomikos.datasource.xa.session.SessionHandleState;
@@ -47,39 +43,54 @@ import com.atomikos.datasource.xa.session.SessionHandleStateChangeListener;
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
-import com.atomikos.util.ClassLoadingHelper;
 import com.atomikos.util.DynamicProxy;
+import com.atomikos.util.DynamicProxyFactory;
+import com.atomikos.util.MethodClassifier;
 
 class AtomikosJmsXaSessionProxy extends AbstractJmsSessionProxy implements SessionHandleStateChangeListener
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(AtomikosJmsXaSessionProxy.class);
 
-	private final static List<String> PRODUCER_CONSUMER_METHODS = Arrays.asList("createConsumer", "createProducer","createDurableSubscriber");
 	private final static List<String> SESSION_TRANSACTION_METHODS = Arrays.asList("commit", "rollback");
 	private final static String CLOSE_METHOD = "close";
+
+	private static final DynamicProxyFactory PROXY_FACTORY = new DynamicProxyFactory ( AtomikosJmsXaSessionProxy.class , 
+			new Class[] { Reapable.class , DynamicProxy.class , javax.jms.Session.class } , 
+			//see case 24532
+			new Class[] { DynamicProxy.class } );
+
+	private static final MethodClassifier<MethodCategory> CLASSIFIER = new MethodClassifier<MethodCategory>() {
+		protected MethodCategory classify ( String methodName ) 
+		{
+			if ( methodName.equals ( "getInvocationHandler" ) ) return MethodCategory.GET_INVOCATION_HANDLER;
+			if ( CLOSE_METHOD.equals ( methodName ) ) return MethodCategory.CLOSE;
+			if ( SESSION_TRANSACTION_METHODS.contains ( methodName ) ) return MethodCategory.SESSION_TRANSACTION;
+			if ( "createConsumer".equals ( methodName ) ) return MethodCategory.CREATE_CONSUMER;
+			if ( "createProducer".equals ( methodName ) ) return MethodCategory.CREATE_PRODUCER;
+			if ( "createDurableSubscriber".equals ( methodName ) ) return MethodCategory.CREATE_DURABLE_SUBSCRIBER;
+			return MethodCategory.OTHER;
+		}
+	};
+
+	private enum MethodCategory {
+		GET_INVOCATION_HANDLER, CLOSE, SESSION_TRANSACTION, CREATE_CONSUMER, CREATE_PRODUCER, CREATE_DURABLE_SUBSCRIBER, OTHER;
+
+		static MethodCategory of ( Method method ) 
+		{
+			return CLASSIFIER.classify ( method );
+		}
+
+		boolean isProducerOrConsumerCreation() 
+		{
+			return this == CREATE_CONSUMER || this == CREATE_PRODUCER || this == CREATE_DURABLE_SUBSCRIBER;
+		}
+	}
 	
 	public static Object newInstance ( XASession s , XATransactionalResource jmsTransactionalResource , 
 			SessionHandleStateChangeListener pooledConnection , SessionHandleStateChangeListener connectionProxy ) throws JMSException 
 	{
         AtomikosJmsXaSessionProxy proxy = new AtomikosJmsXaSessionProxy ( s , jmsTransactionalResource , pooledConnection , connectionProxy );
-        Set<Class> interfaces = PropertyUtils.getAllImplementedInterfaces ( s.getClass() );
-        //see case 24532
-        interfaces.add ( DynamicProxy.class );
-        Class[] interfaceClasses = ( Class[] ) interfaces.toArray ( new Class[0] );
-        
-        Set<Class> minimumSetOfInterfaces = new HashSet<Class>();
-		minimumSetOfInterfaces.add ( Reapable.class );
-		minimumSetOfInterfaces.add ( DynamicProxy.class );
-		minimumSetOfInterfaces.add ( javax.jms.Session.class );
-        Class[] minimumSetOfInterfaceClasses = ( Class[] ) minimumSetOfInterfaces.toArray( new Class[0] );
-        
-        
-        List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
-		classLoaders.add ( Thread.currentThread().getContextClassLoader() );
-		classLoaders.add ( s.getClass().getClassLoader() );
-		classLoaders.add ( AtomikosJmsXaSessionProxy.class.getClassLoader() );
-		
-		return ( Session ) ClassLoadingHelper.newProxyInstance ( classLoaders , minimumSetOfInterfaceClasses , interfaceClasses , proxy );
+		return ( Session ) PROXY_FACTORY.newProxyInstance ( s , proxy );
     }
 
 
@@ -104,14 +115,15 @@ class AtomikosJmsXaSessionProxy extends AbstractJmsSessionProxy implements Sessi
 	
 	public Object invoke ( Object proxy, Method method, Object[] args ) throws JMSException 
 	{
+		MethodCategory category = MethodCategory.of ( method );
 		String methodName = method.getName();
 		
 		//see case 24532
-		if ( methodName.equals ( "getInvocationHandler" ) ) return this;
+		if ( category == MethodCategory.GET_INVOCATION_HANDLER ) return this;
 		
 		synchronized (this) {
 			if (closed) {
-				if (!methodName.equals(CLOSE_METHOD)) {
+				if ( category != MethodCategory.CLOSE ) {
 					String msg = "Session was closed already - calling " + methodName + " is no longer allowed.";
 					LOGGER.logWarning ( this + ": " + msg );
 					throw new javax.jms.IllegalStateException( msg );
@@ -119,7 +131,7 @@ class AtomikosJmsXaSessionProxy extends AbstractJmsSessionProxy implements Sessi
 				return null;
 			}
 			
-			if ( SESSION_TRANSACTION_METHODS.contains ( methodName ) ) {
+			if ( category == MethodCategory.SESSION_TRANSACTION ) {
 				String msg = "Calling commit/rollback is not allowed on a managed session!";
 				// When using the Spring PlatformTransactionManager, there is always a call to commit on the Session in a synchronization's afterCompletion.
 				// The PlatformTransactionManager uses that mechanism for non-JTA TX commit which happens because DefaultMessageListenerContainer.sessionTransacted
@@ -133,7 +145,7 @@ class AtomikosJmsXaSessionProxy extends AbstractJmsSessionProxy implements Sessi
 			}
 			
 			
-			if ( CLOSE_METHOD.equals ( methodName ) ) {
+			if ( category == MethodCategory.CLOSE ) {
 				state.notifySessionClosed();
 				if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": closing session " + this + " - is terminated ? " + state.isTerminated() );
 				if ( state.isTerminated() ) {
@@ -149,10 +161,10 @@ class AtomikosJmsXaSessionProxy extends AbstractJmsSessionProxy implements Sessi
 				return null;
 			}
 			
-			if (PRODUCER_CONSUMER_METHODS.contains(methodName)) {
+			if ( category.isProducerOrConsumerCreation() ) {
 				if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( this + ": calling " + methodName + " on JMS driver session " + delegate );
 				Object producerConsumerProxy = null;
-				if ( "createConsumer".equals ( methodName ) ) {
+				if ( category == MethodCategory.CREATE_CONSUMER ) {
 					MessageConsumer vendorConsumer = null;
 					try {
 						vendorConsumer = ( MessageConsumer ) method.invoke ( delegate , args);
@@ -163,7 +175,7 @@ class AtomikosJmsXaSessionProxy extends AbstractJmsSessionProxy implements Sessi
 					}
 					producerConsumerProxy = new AtomikosJmsMessageConsumerProxy ( vendorConsumer , state );
 				}
-				else if ( "createProducer".equals( methodName ) ) {
+				else if ( category == MethodCategory.CREATE_PRODUCER ) {
 					MessageProducer vendorProducer = null;
 					try {
 						vendorProducer = ( MessageProducer ) method.invoke ( delegate , args);
@@ -174,7 +186,7 @@ class AtomikosJmsXaSessionProxy extends AbstractJmsSessionProxy implements Sessi
 					}
 					producerConsumerProxy = new AtomikosJmsMessageProducerProxy ( vendorProducer , state );
 				}
-				else if ( "createDurableSubscriber".equals ( methodName ) ) {
+				else if ( category == MethodCategory.CREATE_DURABLE_SUBSCRIBER ) {
 					TopicSubscriber vendorSubscriber = null;
 					try {
 						vendorSubscriber = ( TopicSubscriber ) method.invoke ( delegate , args);
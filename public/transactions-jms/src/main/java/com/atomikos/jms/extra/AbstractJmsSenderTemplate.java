@@ -26,11 +26,15 @@
 package com.atomikos.jms.extra;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import javax.jms.Connection;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
 import javax.jms.Topic;
@@ -79,6 +83,18 @@ public abstract class AbstractJmsSenderTemplate
 
 	protected abstract void afterUseWithoutErrors ( Connection c , Session s ) throws JMSException;
 
+	/**
+	 * Gets the producers that can be reused with the given session, keyed by destination.
+	 * Subclasses that keep sessions open across sends can override this.
+	 * 
+	 * @param s
+	 * @return Null (the default) to create a new producer for every message.
+	 */
+	protected Map<Destination,MessageProducer> getProducerCache ( Session s )
+	{
+		return null;
+	}
+
 
 	protected void destroy ( Connection c , Session s)
 	throws JMSException {
@@ -313,6 +329,9 @@ public abstract class AbstractJmsSenderTemplate
 	    try {
 	    	conn = getOrReuseConnection();
 	    	session = getOrRefreshSession ( conn );
+	    	if ( callback instanceof ProducerCachingCallback ) {
+	    		( ( ProducerCachingCallback ) callback ).setProducerCache ( getProducerCache ( session ) );
+	    	}
 	    	if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Calling callback..." );
 	    	callback.doInJmsSession ( session );
 	        if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Callback done!" );
@@ -469,6 +488,85 @@ public abstract class AbstractJmsSenderTemplate
 		executeCallback ( cb );
 	}
 
+	/**
+	 * Sends a TextMessage for each of the given texts, all over the same
+	 * session and producer.
+	 *
+	 * @param contents The texts, in the order to send them.
+	 * @throws JMSException
+	 */
+	public void sendTextMessages(Collection<String> contents) throws JMSException {
+		sendMessages ( contents , new SendMessageCallbackFactory<String>() {
+			public AbstractSendMessageCallback create ( String content ) {
+				return new SendTextMessageCallback ( content , getDestination() , getReplyToDestination() , getDeliveryMode() , getPriority() , getTimeToLive() );
+			}
+		} );
+	}
+
+	/**
+	 * Sends a MapMessage for each of the given maps, all over the same
+	 * session and producer.
+	 *
+	 * @param contents The maps to get the contents from.
+	 * @throws JMSException
+	 */
+	public void sendMapMessages(Collection<? extends Map> contents) throws JMSException {
+		sendMessages ( contents , new SendMessageCallbackFactory<Map>() {
+			public AbstractSendMessageCallback create ( Map content ) {
+				return new SendMapMessageCallback ( content , getDestination() , getReplyToDestination() , getDeliveryMode() , getPriority() , getTimeToLive() );
+			}
+		} );
+	}
+
+	/**
+	 * Sends an ObjectMessage for each of the given objects, all over the same
+	 * session and producer.
+	 *
+	 * @param contents The serializable objects.
+	 * @throws JMSException
+	 */
+	public void sendObjectMessages(Collection<? extends Serializable> contents) throws JMSException {
+		sendMessages ( contents , new SendMessageCallbackFactory<Serializable>() {
+			public AbstractSendMessageCallback create ( Serializable content ) {
+				return new SendObjectMessageCallback ( content , getDestination() , getReplyToDestination() , getDeliveryMode() , getPriority() , getTimeToLive() );
+			}
+		} );
+	}
+
+	/**
+	 * Sends a BytesMessage for each of the given byte arrays, all over the same
+	 * session and producer.
+	 *
+	 * @param contents The byte arrays.
+	 * @throws JMSException
+	 */
+	public void sendBytesMessages(Collection<byte[]> contents) throws JMSException {
+		sendMessages ( contents , new SendMessageCallbackFactory<byte[]>() {
+			public AbstractSendMessageCallback create ( byte[] content ) {
+				return new SendBytesMessageCallback ( content , getDestination() , getReplyToDestination() , getDeliveryMode() , getPriority() , getTimeToLive() );
+			}
+		} );
+	}
+
+	private interface SendMessageCallbackFactory<T>
+	{
+		AbstractSendMessageCallback create ( T content );
+	}
+
+	/**
+	 * Sends one message per content item, all in one callback 
+	 * so they share the same session and producer.
+	 */
+	private <T> void sendMessages ( Collection<? extends T> contents , SendMessageCallbackFactory<T> factory ) throws JMSException {
+		retrieveDestinationIfNecessary();
+		retrieveReplyToDestinationIfNecessary();
+		List<AbstractSendMessageCallback> cbs = new ArrayList<AbstractSendMessageCallback> ( contents.size() );
+		for ( T content : contents ) {
+			cbs.add ( factory.create ( content ) );
+		}
+		executeCallback ( new SendMessageBatchCallback ( cbs ) );
+	}
+
 	/**
 	 * Closes all resources.
 	 */
@@ -25,13 +25,15 @@
 
 package com.atomikos.jms.extra;
 
+import java.util.Map;
+
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 
-abstract class AbstractSendMessageCallback implements JmsSenderTemplateCallback
+abstract class AbstractSendMessageCallback implements ProducerCachingCallback
 {
 
 	private Destination replyToDestination;
@@ -39,6 +41,7 @@ abstract class AbstractSendMessageCallback implements JmsSenderTemplateCallback
 	private int priority;
 	private long ttl;
 	private int deliveryMode;
+	private Map<Destination,MessageProducer> producerCache;
 
 	protected AbstractSendMessageCallback ( Destination destination , Destination replyToDestination , int deliveryMode  , int priority , long ttl )
 	{
@@ -49,13 +52,27 @@ abstract class AbstractSendMessageCallback implements JmsSenderTemplateCallback
 		this.deliveryMode = deliveryMode;
 	}
 
+	public void setProducerCache ( Map<Destination,MessageProducer> producerCache )
+	{
+		this.producerCache = producerCache;
+	}
+
 	protected void sendMessage ( Message m , Session s ) throws JMSException
 	{
 	    if ( replyToDestination != null )
             m.setJMSReplyTo ( replyToDestination );
-        MessageProducer mp = s.createProducer( destination );
-        mp.send ( m , deliveryMode, priority, ttl );
-        mp.close();
+	    if ( producerCache == null ) {
+	    	MessageProducer mp = s.createProducer( destination );
+	    	mp.send ( m , deliveryMode, priority, ttl );
+	    	mp.close();
+	    } else {
+	    	MessageProducer mp = producerCache.get ( destination );
+	    	if ( mp == null ) {
+	    		mp = s.createProducer ( destination );
+	    		producerCache.put ( destination , mp );
+	    	}
+	    	mp.send ( m , deliveryMode, priority, ttl );
+	    }
 	}
 
 }
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.jms.extra;
+
+import java.util.List;
+
+import javax.jms.Message;
+import javax.jms.MessageListener;
+
+ /**
+  * A message listener that can consume a batch of messages at once.
+  * 
+  * If the listener of a MessageDrivenContainer implements this interface 
+  * and the container's batchSize is larger than one, then all messages
+  * received in the same JTA transaction are passed in one call. 
+  * Throwing a RuntimeException rolls back the whole batch, after which 
+  * the messages are redelivered one per transaction (as a singleton list).
+  * 
+  * The inherited onMessage method is still called with a null argument 
+  * on close, if notifyListenerOnClose is set.
+  */
+
+public interface BatchMessageListener extends MessageListener 
+{
+	/**
+	 * Consumes the messages of one transaction.
+	 * 
+	 * @param messages The messages, in order of receipt. Never empty.
+	 */
+	public void onMessages ( List<Message> messages );
+
+}
@@ -25,9 +25,22 @@
 
 package com.atomikos.jms.extra;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.jms.Connection;
+import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import com.atomikos.icatch.jta.UserTransactionManager;
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
 
 
 /**
@@ -43,6 +56,9 @@ import javax.jms.Session;
  * This class produces instances for concurrent use by different threads:
  * threaded applications can share one instance.
  * <p>
+ * Within one JTA transaction, all sends reuse the same connection, session and 
+ * producers; these are closed again just before the transaction completes. 
+ * <p>
  * <b>Important: if you change any properties AFTER sending on the session, then
  * you will need to explicitly stop and restart the session to have the changes
  * take effect!</b>
@@ -53,7 +69,10 @@ import javax.jms.Session;
 
 public class ConcurrentJmsSenderTemplate extends AbstractJmsSenderTemplate
 {
+	private static final Logger LOGGER = LoggerFactory.createLogger(ConcurrentJmsSenderTemplate.class);
 
+	private final Map<Transaction,TransactionScopedSession> sessionsPerTransaction = new HashMap<Transaction,TransactionScopedSession>();
+	private final UserTransactionManager tm = new UserTransactionManager();
 
 	public ConcurrentJmsSenderTemplate()
 	{
@@ -66,7 +85,13 @@ public class ConcurrentJmsSenderTemplate extends AbstractJmsSenderTemplate
 	{
 		
 		Session ret = null;
-		ret = c.createSession ( true , 0 );
+		TransactionScopedSession ts = getTransactionScopedSession ( false );
+		if ( ts != null && ts.connection == c ) {
+			if ( ts.session == null ) ts.session = c.createSession ( true , 0 );
+			ret = ts.session;
+		} else {
+			ret = c.createSession ( true , 0 );
+		}
 		return ret;
 	}
 	
@@ -79,24 +104,115 @@ public class ConcurrentJmsSenderTemplate extends AbstractJmsSenderTemplate
 
 
 	protected Connection getOrReuseConnection() throws JMSException {
-		return refreshConnection();
+		TransactionScopedSession ts = getTransactionScopedSession ( true );
+		if ( ts == null ) return refreshConnection();
+		if ( ts.connection == null ) ts.connection = refreshConnection();
+		return ts.connection;
 	}
 
+	protected Map<Destination,MessageProducer> getProducerCache ( Session s ) 
+	{
+		Map<Destination,MessageProducer> ret = null;
+		TransactionScopedSession ts = getTransactionScopedSession ( false );
+		if ( ts != null && ts.session == s ) ret = ts.producers;
+		return ret;
+	}
 
 
 	@Override	
 protected void afterUseWithoutErrors(Connection c, Session s)
 			throws JMSException {
-		// close anyway: pooling will do the reuse
-		destroy(c,s);
+		TransactionScopedSession ts = getTransactionScopedSession ( false );
+		// outside a transaction: close anyway, pooling will do the reuse
+		if ( ts == null || ts.session != s ) destroy(c,s);
 		
 	}
 
+	@Override
+	protected void destroy ( Connection c , Session s ) throws JMSException {
+		// after errors: make the next send in this transaction start afresh
+		TransactionScopedSession ts = getTransactionScopedSession ( false );
+		if ( ts != null && ts.connection == c ) removeTransactionScopedSession ( ts );
+		super.destroy ( c , s );
+	}
+
+	private Transaction getActiveTransaction()
+	{
+		Transaction ret = null;
+		try {
+			Transaction tx = tm.getTransaction();
+			if ( tx != null && tx.getStatus() == Status.STATUS_ACTIVE ) ret = tx;
+		} catch ( SystemException e ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": error getting transaction" , e );
+		}
+		return ret;
+	}
 
+	private TransactionScopedSession getTransactionScopedSession ( boolean create )
+	{
+		TransactionScopedSession ret = null;
+		Transaction tx = getActiveTransaction();
+		if ( tx != null ) {
+			synchronized ( sessionsPerTransaction ) {
+				ret = sessionsPerTransaction.get ( tx );
+			}
+			if ( ret == null && create ) {
+				TransactionScopedSession ts = new TransactionScopedSession();
+				try {
+					tx.registerSynchronization ( ts );
+					synchronized ( sessionsPerTransaction ) {
+						sessionsPerTransaction.put ( tx , ts );
+					}
+					ret = ts;
+				} catch ( Exception e ) {
+					// no reuse then: fall back to a session per send
+					if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": could not register synchronization" , e );
+				}
+			}
+		}
+		return ret;
+	}
 
+	private boolean removeTransactionScopedSession ( TransactionScopedSession ts )
+	{
+		synchronized ( sessionsPerTransaction ) {
+			return sessionsPerTransaction.values().remove ( ts );
+		}
+	}
 
+	/**
+	 * The connection, session and producers used for all sends of one transaction.
+	 */
 
-	
-	
+	private class TransactionScopedSession implements Synchronization
+	{
+		private Connection connection;
+		private Session session;
+		private final Map<Destination,MessageProducer> producers = new HashMap<Destination,MessageProducer>();
+
+		public void beforeCompletion() 
+		{
+			// close before 2PC starts, like a session per send would have been
+			release();
+		}
+
+		public void afterCompletion ( int status ) 
+		{
+			// in case of rollback there was no beforeCompletion
+			release();
+		}
+
+		private void release()
+		{
+			if ( removeTransactionScopedSession ( this ) ) {
+				producers.clear();
+				try {
+					ConcurrentJmsSenderTemplate.super.destroy ( connection , session );
+				} catch ( JMSException e ) {
+					LOGGER.logWarning ( ConcurrentJmsSenderTemplate.this + ": error closing session" , e );
+				}
+			}
+		}
+	}
 
 }
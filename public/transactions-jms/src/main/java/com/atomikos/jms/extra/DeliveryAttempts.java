@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.jms.extra;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+ /**
+  * The number of failed deliveries per message id, for the messages that
+  * failed most recently. The size is bounded: the least recently failed 
+  * ids are forgotten first, so a flood of distinct bad messages cannot 
+  * exhaust the heap (it can only delay their quarantine).
+  */
+
+class DeliveryAttempts 
+{
+	private final Map<String,Integer> failures;
+	
+	DeliveryAttempts ( final int capacity ) 
+	{
+		failures = new LinkedHashMap<String,Integer> ( 16 , 0.75f , true ) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry ( Map.Entry<String,Integer> eldest ) 
+			{
+				return size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * @param messageId
+	 * @return The number of failed deliveries so far.
+	 */
+	synchronized int getFailures ( String messageId ) 
+	{
+		Integer ret = failures.get ( messageId );
+		return ret == null ? 0 : ret.intValue();
+	}
+	
+	/**
+	 * Notification that a delivery of the message has failed.
+	 * 
+	 * @param messageId
+	 * @return The number of failed deliveries so far, including this one.
+	 */
+	synchronized int failed ( String messageId ) 
+	{
+		int ret = getFailures ( messageId ) + 1;
+		failures.put ( messageId , ret );
+		return ret;
+	}
+	
+	synchronized void forget ( String messageId ) 
+	{
+		failures.remove ( messageId );
+	}
+	
+	synchronized int size() 
+	{
+		return failures.size();
+	}
+}
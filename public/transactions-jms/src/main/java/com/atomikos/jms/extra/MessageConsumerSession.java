@@ -25,6 +25,10 @@
 
 package com.atomikos.jms.extra;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import javax.jms.Connection;
 import javax.jms.Destination;
 import javax.jms.ExceptionListener;
@@ -32,6 +36,7 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
 import javax.jms.Topic;
@@ -56,6 +61,11 @@ class MessageConsumerSession
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(MessageConsumerSession.class);
 
+	// consecutive receives with a message before asking the pool for another consumer
+	static final int SCALE_UP_THRESHOLD = 10;
+	// consecutive receive timeouts before offering to stop
+	static final int SCALE_DOWN_THRESHOLD = 3;
+
 	private AtomikosConnectionFactoryBean factory;
 	private String user;
 	private String password;
@@ -70,6 +80,10 @@ class MessageConsumerSession
 	private UserTransactionManager tm;
 	private boolean active;
 	private ExceptionListener exceptionListener;
+	private MessageConsumerSessionPool pool;
+	private Destination deadLetterDestination;
+	private String deadLetterDestinationName;
+	private DeliveryAttempts deliveryAttempts;
 
 	//for durable subscribers only
 	private boolean noLocal;
@@ -114,6 +128,46 @@ class MessageConsumerSession
 		return factory;
 	}
 
+	protected void setPool ( MessageConsumerSessionPool pool )
+	{
+		this.pool = pool;
+	}
+
+	protected void setDeliveryAttempts ( DeliveryAttempts deliveryAttempts )
+	{
+		this.deliveryAttempts = deliveryAttempts;
+	}
+
+	/**
+	 * Sets the destination to move messages to once their delivery has failed
+	 * maxDeliveryAttempts times.
+	 *
+	 * @param destination
+	 */
+	public void setDeadLetterDestination ( Destination destination )
+	{
+		this.deadLetterDestination = destination;
+	}
+
+	/**
+	 * Sets the provider-specific name of the dead-letter destination, as an
+	 * alternative to setDeadLetterDestination.
+	 *
+	 * @param name
+	 */
+	public void setDeadLetterDestinationName ( String name )
+	{
+		this.deadLetterDestinationName = name;
+	}
+
+	private Destination getDeadLetterDestination ( Session session ) throws JMSException
+	{
+		if ( deadLetterDestination == null ) {
+			deadLetterDestination = DestinationHelper.findDestination ( deadLetterDestinationName , session );
+		}
+		return deadLetterDestination;
+	}
+
 	/**
 	 * Sets whether threads should be daemon threads or not.
 	 * Default is false.
@@ -265,9 +319,13 @@ class MessageConsumerSession
 	    msg.append ( "user=" ).append( getUser() ).append ( ", " );
 	    msg.append ( "password=" ).append ( password ).append ( ", " );
 	    msg.append ( "transactionTimeout=" ).append ( getTransactionTimeout() ).append ( ", " );
+	    msg.append ( "receiveTimeout=" ).append ( getReceiveTimeout() ).append ( ", " );
+	    msg.append ( "maxReceiveTimeout=" ).append ( getMaxReceiveTimeout() ).append ( ", " );
 	    msg.append ( "destination=" ).append( getDestinationName() ).append ( ", " );
 	    msg.append ( "notifyListenerOnClose= " ).append( getNotifyListenerOnClose() ).append( ", " );
 	    msg.append ( "messageSelector=" ).append( getMessageSelector() ).append( ", " );
+	    msg.append ( "batchSize=" ).append ( getBatchSize() ).append ( ", " );
+	    msg.append ( "batchTimeout=" ).append ( getBatchTimeout() ).append ( ", " );
 	    msg.append ( "daemonThreads=" ).append ( getDaemonThreads() ).append ( ", " );
 	    msg.append ( "messageListener=" ).append ( getMessageListener() ).append ( ", " );
 	    msg.append ( "exceptionListener=" ).append ( getExceptionListener() ).append ( ", " );
@@ -376,10 +434,104 @@ class MessageConsumerSession
 	    notifyListenerOnClose = b;
 	}
 
+	/**
+	 * Receives more messages after the first one of a batch, until the batch is full
+	 * or the batch timeout has expired. After the timeout, messages that are
+	 * immediately available are still added.
+	 *
+	 * @param receiver
+	 * @param first The first message of the batch.
+	 * @param batchSize
+	 * @param batchTimeout In milliseconds.
+	 * @return The batch, starting with the first message.
+	 * @throws JMSException
+	 */
+	static List<Message> receiveBatch ( MessageConsumer receiver , Message first , int batchSize , long batchTimeout ) throws JMSException
+	{
+		List<Message> ret = new ArrayList<Message> ( batchSize );
+		ret.add ( first );
+		long deadline = System.currentTimeMillis() + batchTimeout;
+		Message msg = first;
+		while ( msg != null && ret.size() < batchSize ) {
+			long remaining = deadline - System.currentTimeMillis();
+			if ( remaining > 0 ) msg = receiver.receive ( remaining );
+			else msg = receiver.receiveNoWait();
+			if ( msg != null ) ret.add ( msg );
+		}
+		return ret;
+	}
+
+	/**
+	 * Computes the receive timeout for the next poll: it doubles after each 
+	 * empty receive (so an idle destination costs fewer empty transactions)
+	 * and drops back to the minimum as soon as a message arrives.
+	 *
+	 * @return The timeout in milliseconds, between min and max.
+	 */
+	static long nextPollTimeout ( long current , boolean received , long min , long max )
+	{
+		long ret = min;
+		if ( !received ) ret = Math.min ( Math.max ( current * 2 , min ) , max );
+		return Math.max ( ret , min );
+	}
+
+	/**
+	 * Moves the messages whose delivery has failed too often to the dead-letter
+	 * destination and removes them from the batch. The move is done with the
+	 * given (transacted) session, so it is part of the same transaction as the receive.
+	 *
+	 * @return The number of messages moved.
+	 * @throws JMSException
+	 */
+	static int quarantine ( List<Message> batch , DeliveryAttempts attempts , int maxDeliveryAttempts ,
+			Session session , Destination deadLetterDestination ) throws JMSException
+	{
+		int ret = 0;
+		MessageProducer producer = null;
+		try {
+			Iterator<Message> it = batch.iterator();
+			while ( it.hasNext() ) {
+				Message msg = it.next();
+				String id = msg.getJMSMessageID();
+				if ( id != null && attempts.getFailures ( id ) >= maxDeliveryAttempts ) {
+					if ( producer == null ) producer = session.createProducer ( deadLetterDestination );
+					producer.send ( msg );
+					it.remove();
+					attempts.forget ( id );
+					ret++;
+				}
+			}
+		} finally {
+			if ( producer != null ) producer.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Passes the batch to the listener: all at once for a BatchMessageListener,
+	 * one message at a time otherwise.
+	 */
+	static void deliver ( MessageListener listener , List<Message> batch )
+	{
+		if ( listener instanceof BatchMessageListener ) {
+			( ( BatchMessageListener ) listener ).onMessages ( batch );
+		} else {
+			for ( Message msg : batch ) listener.onMessage ( msg );
+		}
+	}
+
 	  class ReceiverThread extends Thread
 	    {
 	        private Connection connection;
 	        private Session session;
+	        // after a failed batch: how many messages to consume one per transaction
+	        private int singleMessageDeliveries;
+	        private int consecutiveMessages;
+	        private int consecutiveIdleReceives;
+	        // true if the pool has retired this session for being idle
+	        private boolean retired;
+	        // current receive timeout in milliseconds, adapted to the arrival rate
+	        private long pollTimeout;
 
 	        private ReceiverThread ()
 	        {
@@ -518,6 +670,8 @@ class MessageConsumerSession
 	            	   if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "MessageConsumerSession: JMS listener thread iterating..." );
 	                boolean refresh = false;
 	                boolean commit = true;
+	                List<Message> batch = null;
+	                MessageConsumerStatistics statistics = getStatistics();
 	                try {
 	                    Message msg = null;
 
@@ -552,19 +706,45 @@ class MessageConsumerSession
 	                    tm.begin ();
 	                    // wait for at most half of the tx timeout
 	                    // cf case 83599: use separate timeout for receive to speedup shutdown
-	                    msg = receiver.receive ( getReceiveTimeout() * 1000 );
+	                    long minPollTimeout = getReceiveTimeout() * 1000L;
+	                    if ( pollTimeout < minPollTimeout ) pollTimeout = minPollTimeout;
+	                    msg = receiver.receive ( pollTimeout );
+	                    if ( msg == null ) statistics.emptyReceive();
+	                    pollTimeout = nextPollTimeout ( pollTimeout , msg != null , minPollTimeout , getMaxPollTimeout() );
+	                    if ( msg != null ) {
+	                    	// amortize the 2PC overhead over as many messages as allowed
+	                    	int batchSize = singleMessageDeliveries > 0 ? 1 : getBatchSize();
+	                    	batch = receiveBatch ( receiver , msg , batchSize , getBatchTimeout() );
+	                    	if ( singleMessageDeliveries > 0 ) singleMessageDeliveries--;
+	                    	statistics.received ( batch );
+	                    	int maxDeliveryAttempts = getMaxDeliveryAttempts();
+	                    	if ( maxDeliveryAttempts > 0 && deliveryAttempts != null ) {
+	                    		int moved = quarantine ( batch , deliveryAttempts , maxDeliveryAttempts , session , getDeadLetterDestination ( session ) );
+	                    		if ( moved > 0 ) {
+	                    			statistics.quarantined ( moved );
+	                    			LOGGER.logWarning ( "MessageConsumerSession: moved " + moved + " message(s) to the dead-letter destination after " + maxDeliveryAttempts + " failed deliveries" );
+	                    		}
+	                    	}
+	                    }
+	                    if ( pool != null ) notifyPool ( msg != null );
 
 	                    try {
 
 	                        if ( msg != null && listener != null
 	                                && Thread.currentThread () == current ) {
-	                        	LOGGER
-	                                    .logInfo ( "MessageConsumerSession: Consuming message: "
-	                                            + msg.toString () );
-	                            listener.onMessage ( msg );
-	                            LOGGER
-	                                    .logDebug ( "MessageConsumerSession: Consumed message: "
-	                                            + msg.toString () );
+	                        	// an empty batch means everything was quarantined: just commit the move
+	                        	if ( !batch.isEmpty() ) {
+	                        		if ( LOGGER.isInfoEnabled() ) LOGGER
+	                        			.logInfo ( "MessageConsumerSession: Consuming " + ( batch.size() == 1 ? "message: " + batch.get ( 0 ) : "batch of " + batch.size() + " messages" ) );
+	                        		long start = System.nanoTime();
+	                        		try {
+	                        			deliver ( listener , batch );
+	                        		} finally {
+	                        			statistics.listenerDone ( start );
+	                        		}
+	                        		if ( LOGGER.isDebugEnabled() ) LOGGER
+	                        			.logDebug ( "MessageConsumerSession: Consumed " + ( batch.size() == 1 ? "message: " + batch.get ( 0 ) : "batch of " + batch.size() + " messages" ) );
+	                        	}
 	                        } else {
 	                            commit = false;
 	                        }
@@ -573,6 +753,16 @@ class MessageConsumerSession
 	                                "MessageConsumerSession: Error during JMS processing of message "
 	                                        + msg.toString () + " - rolling back.",
 	                                e );
+	                        // a failed batch is retried per message, so only then do we know which message failed
+	                        if ( batch.size() == 1 ) {
+	                        	statistics.failed ( getDestinationName() , batch.get ( 0 ) );
+	                        	if ( getMaxDeliveryAttempts() > 0 && deliveryAttempts != null ) recordFailure ( batch.get ( 0 ) );
+	                        }
+	                        if ( batch.size() > 1 ) {
+	                        	// redelivery will be one message per transaction, to isolate the failing message
+	                        	singleMessageDeliveries = batch.size();
+	                        	if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( "MessageConsumerSession: Batch of " + batch.size() + " messages failed - consuming the next " + batch.size() + " messages one per transaction." );
+	                        }
 
 	                        // This happens if the listener generated the error.
 	                        // In that case, don't refresh the connection but rather
@@ -609,13 +799,21 @@ class MessageConsumerSession
 	                    // Make sure no tx exists for thread, or we can't reuse
 	                    // the thread for later transactions!
 	                    try {
-	                        if ( commit )
-	                            tm.commit ();
-	                        else {
+	                        if ( commit ) {
+	                        	long start = System.nanoTime();
+	                        	try {
+	                        		tm.commit ();
+	                        	} finally {
+	                        		statistics.commitDone ( start );
+	                        	}
+	                        	statistics.committed ( batch.size() );
+	                        } else {
 	                            tm.rollback ();
+	                            if ( batch != null ) statistics.rolledBack ( batch.size() );
 	                        }
 	                    } catch ( RollbackException e ) {
 	                        // thread still OK
+	                        if ( batch != null ) statistics.rolledBack ( batch.size() );
 	                    	LOGGER
 	                                .logWarning (
 	                                        "MessageConsumerSession: Error in ending transaction",
@@ -692,6 +890,7 @@ class MessageConsumerSession
 	                    	}
 	                        receiver = null;
 	                        closeJmsResources ( false );
+	                        statistics.connectionRefreshed();
 	                    }
 	                }
 
@@ -707,9 +906,16 @@ class MessageConsumerSession
                   receiver = null;
 	            }
 
+	            if ( retired ) {
+	            	// not stopped by the application: just release our own JMS resources,
+	            	// the transaction service is shared with the other sessions
+	            	closeJmsResources ( false );
+	            	active = false;
+	            }
+
 	            LOGGER
 	                    .logInfo ( "MessageConsumerSession: JMS listener thread exiting." );
-	            if ( listener != null && current == null && notifyListenerOnClose ) {
+	            if ( listener != null && current == null && notifyListenerOnClose && !retired ) {
 	                // if this session stops listening (no more threads active) then
 	                // notify the listener of shutdown by calling with null argument
 	                // System.out.println ( "Stopping listener: " + listener );
@@ -718,7 +924,27 @@ class MessageConsumerSession
 
 	        }
 
-
+	        private void notifyPool ( boolean received )
+	        {
+	        	if ( received ) {
+	        		consecutiveIdleReceives = 0;
+	        		if ( ++consecutiveMessages >= SCALE_UP_THRESHOLD ) {
+	        			consecutiveMessages = 0;
+	        			pool.onBacklog ( MessageConsumerSession.this );
+	        		}
+	        	} else {
+	        		consecutiveMessages = 0;
+	        		if ( ++consecutiveIdleReceives >= SCALE_DOWN_THRESHOLD ) {
+	        			consecutiveIdleReceives = 0;
+	        			if ( pool.onIdle ( MessageConsumerSession.this ) ) {
+	        				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "MessageConsumerSession: idle - stopping thread " + this );
+	        				retired = true;
+	        				// exit the loop after this iteration
+	        				current = null;
+	        			}
+	        		}
+	        	}
+	        }
 
 	    }
 
@@ -759,4 +985,66 @@ class MessageConsumerSession
 	public int getReceiveTimeout() {
 		return properties.getReceiveTimeout();
 	}
+
+	/**
+	 * Gets the maximum receive timeout in seconds, or 0 if the timeout does not adapt.
+	 *
+	 * @return
+	 */
+	public int getMaxReceiveTimeout() {
+		return properties.getMaxReceiveTimeout();
+	}
+
+	private long getMaxPollTimeout() {
+		// the receive happens within the transaction, so stay well within its timeout
+		long ret = Math.min ( getMaxReceiveTimeout() , getTransactionTimeout() / 2 ) * 1000L;
+		return Math.max ( ret , getReceiveTimeout() * 1000L );
+	}
+
+	private void recordFailure ( Message msg )
+	{
+		try {
+			String id = msg.getJMSMessageID();
+			if ( id != null ) deliveryAttempts.failed ( id );
+		} catch ( JMSException e ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "MessageConsumerSession: Error retrieving message id" , e );
+		}
+	}
+
+	/**
+	 * Gets the maximum number of failed deliveries of a message before it is
+	 * moved to the dead-letter destination, or 0 for unlimited.
+	 *
+	 * @return
+	 */
+	public int getMaxDeliveryAttempts() {
+		return properties.getMaxDeliveryAttempts();
+	}
+
+	/**
+	 * Gets the statistics to record the consumption in.
+	 *
+	 * @return
+	 */
+	public MessageConsumerStatistics getStatistics() {
+		return properties.getStatistics();
+	}
+
+	/**
+	 * Gets the maximum number of messages per transaction.
+	 *
+	 * @return
+	 */
+	public int getBatchSize() {
+		return properties.getBatchSize();
+	}
+
+	/**
+	 * Gets the batch timeout in milliseconds.
+	 *
+	 * @return
+	 */
+	public int getBatchTimeout() {
+		return properties.getBatchTimeout();
+	}
 }
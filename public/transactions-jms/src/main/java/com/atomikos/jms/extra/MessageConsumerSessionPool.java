@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.jms.extra;
+
+
+ /**
+  * Callbacks from a consumer session to the pool that owns it, 
+  * so the pool can grow while there is a backlog and shrink while idle.
+  *
+  */
+
+interface MessageConsumerSessionPool 
+{
+	
+	/**
+	 * Notifies that the session keeps finding messages on every receive.
+	 * 
+	 * @param session
+	 */
+	public void onBacklog ( MessageConsumerSession session );
+	
+	/**
+	 * Notifies that the session's recent receives all timed out.
+	 * Only sessions that the pool started for a backlog are removed.
+	 * 
+	 * @param session
+	 * @return True if the session was removed from the pool and should stop.
+	 */
+	public boolean onIdle ( MessageConsumerSession session );
+	
+}
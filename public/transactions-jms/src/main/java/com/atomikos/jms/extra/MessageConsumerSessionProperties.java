@@ -42,4 +42,14 @@ interface MessageConsumerSessionProperties
 	
 	public int getReceiveTimeout();
 	
+	public int getMaxReceiveTimeout();
+	
+	public int getBatchSize();
+	
+	public int getBatchTimeout();
+	
+	public MessageConsumerStatistics getStatistics();
+	
+	public int getMaxDeliveryAttempts();
+	
 }
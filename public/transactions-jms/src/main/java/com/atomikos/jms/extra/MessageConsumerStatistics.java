@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.jms.extra;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import com.atomikos.jms.extra.event.MessageConsumptionFailedEvent;
+import com.atomikos.publish.EventPublisher;
+import com.atomikos.util.LatencyHistogram;
+
+/**
+ * Throughput, redelivery and latency statistics of one 
+ * {@link MessageDrivenContainer}, shared by all its sessions. Recording 
+ * is allocation-free; listener failures are also published as events.
+ * 
+ * This class does not register itself with JMX.
+ */
+
+public class MessageConsumerStatistics implements MessageConsumerStatisticsMBean 
+{
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicLong rolledBack = new AtomicLong();
+	private final AtomicLong redelivered = new AtomicLong();
+	private final AtomicLong emptyReceives = new AtomicLong();
+	private final AtomicLong connectionRefreshes = new AtomicLong();
+	private final AtomicLong quarantined = new AtomicLong();
+	private final LatencyHistogram listenerTime = new LatencyHistogram();
+	private final LatencyHistogram commitTime = new LatencyHistogram();
+	
+	MessageConsumerStatistics() 
+	{
+	}
+	
+	/**
+	 * Notification that a receive has timed out without a message.
+	 */
+	void emptyReceive() 
+	{
+		emptyReceives.incrementAndGet();
+	}
+	
+	/**
+	 * Notification that messages were received in one transaction.
+	 */
+	void received ( List<Message> batch ) 
+	{
+		for ( Message msg : batch ) {
+			if ( isRedelivered ( msg ) ) redelivered.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Notification that the listener has returned, normally or not.
+	 * 
+	 * @param start The System.nanoTime() before calling the listener.
+	 */
+	void listenerDone ( long start ) 
+	{
+		listenerTime.record ( ( System.nanoTime() - start ) / 1000 );
+	}
+	
+	/**
+	 * Notification that the commit of a transaction has returned, normally or not.
+	 * 
+	 * @param start The System.nanoTime() before committing.
+	 */
+	void commitDone ( long start ) 
+	{
+		commitTime.record ( ( System.nanoTime() - start ) / 1000 );
+	}
+	
+	void committed ( int messages ) 
+	{
+		consumed.addAndGet ( messages );
+	}
+	
+	void rolledBack ( int messages ) 
+	{
+		rolledBack.addAndGet ( messages );
+	}
+	
+	/**
+	 * Notification that the listener has failed for the given message.
+	 */
+	void failed ( String destinationName , Message msg ) 
+	{
+		String messageId = null;
+		try {
+			messageId = msg.getJMSMessageID();
+		} catch ( JMSException e ) {
+			// ignore: the id is informational only
+		}
+		EventPublisher.publish ( new MessageConsumptionFailedEvent ( destinationName , messageId , isRedelivered ( msg ) ) );
+	}
+	
+	void connectionRefreshed() 
+	{
+		connectionRefreshes.incrementAndGet();
+	}
+	
+	/**
+	 * Notification that messages were moved to the dead-letter destination.
+	 */
+	void quarantined ( int messages ) 
+	{
+		quarantined.addAndGet ( messages );
+	}
+	
+	private static boolean isRedelivered ( Message msg ) 
+	{
+		boolean ret = false;
+		try {
+			ret = msg.getJMSRedelivered();
+		} catch ( JMSException e ) {
+			// ignore: treat as a first delivery
+		}
+		return ret;
+	}
+
+	public long getConsumedCount() 
+	{
+		return consumed.get();
+	}
+
+	public long getRolledBackCount() 
+	{
+		return rolledBack.get();
+	}
+
+	public long getRedeliveredCount() 
+	{
+		return redelivered.get();
+	}
+
+	public long getEmptyReceiveCount() 
+	{
+		return emptyReceives.get();
+	}
+
+	public long getConnectionRefreshCount() 
+	{
+		return connectionRefreshes.get();
+	}
+
+	public long getQuarantinedCount() 
+	{
+		return quarantined.get();
+	}
+
+	public long getListenerTimeMedian() 
+	{
+		return listenerTime.getPercentile ( 50 );
+	}
+
+	public long getListenerTime99thPercentile() 
+	{
+		return listenerTime.getPercentile ( 99 );
+	}
+
+	public long getListenerTimeMax() 
+	{
+		return listenerTime.getMax();
+	}
+
+	public long getCommitTimeMedian() 
+	{
+		return commitTime.getPercentile ( 50 );
+	}
+
+	public long getCommitTime99thPercentile() 
+	{
+		return commitTime.getPercentile ( 99 );
+	}
+
+	public long getCommitTimeMax() 
+	{
+		return commitTime.getMax();
+	}
+
+	public String getSummary() 
+	{
+		return "consumed=" + getConsumedCount() + " rolledBack=" + getRolledBackCount() + 
+				" redelivered=" + getRedeliveredCount() + " emptyReceives=" + getEmptyReceiveCount() + 
+				" connectionRefreshes=" + getConnectionRefreshCount() + " quarantined=" + getQuarantinedCount() + 
+				" listener: median=" + getListenerTimeMedian() + "us p99=" + getListenerTime99thPercentile() + "us max=" + getListenerTimeMax() + "us" +
+				" commit: median=" + getCommitTimeMedian() + "us p99=" + getCommitTime99thPercentile() + "us max=" + getCommitTimeMax() + "us";
+	}
+
+	public void reset() 
+	{
+		consumed.set ( 0 );
+		rolledBack.set ( 0 );
+		redelivered.set ( 0 );
+		emptyReceives.set ( 0 );
+		connectionRefreshes.set ( 0 );
+		quarantined.set ( 0 );
+		listenerTime.reset();
+		commitTime.reset();
+	}
+}
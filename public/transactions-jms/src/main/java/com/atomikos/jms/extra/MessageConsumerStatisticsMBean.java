@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.jms.extra;
+
+/**
+ * An MBean interface for monitoring the consumption done by one
+ * {@link MessageDrivenContainer}: how many messages are consumed,
+ * rolled back or redelivered, and how the time of each transaction
+ * is split between the listener and the two-phase commit.
+ */
+
+public interface MessageConsumerStatisticsMBean 
+{
+	public long getConsumedCount();
+	
+	/**
+	 * @return The number of received messages whose transaction was rolled back.
+	 */
+	public long getRolledBackCount();
+	
+	/**
+	 * @return The number of received messages that had JMSRedelivered set.
+	 */
+	public long getRedeliveredCount();
+	
+	/**
+	 * @return The number of receives that timed out without a message.
+	 */
+	public long getEmptyReceiveCount();
+	
+	public long getConnectionRefreshCount();
+	
+	/**
+	 * @return The number of messages moved to the dead-letter destination.
+	 */
+	public long getQuarantinedCount();
+	
+	/**
+	 * @return The approximate median time (in microseconds) spent in the listener, per transaction.
+	 */
+	public long getListenerTimeMedian();
+	
+	public long getListenerTime99thPercentile();
+	
+	public long getListenerTimeMax();
+	
+	/**
+	 * @return The approximate median time (in microseconds) spent committing, per transaction.
+	 */
+	public long getCommitTimeMedian();
+	
+	public long getCommitTime99thPercentile();
+	
+	public long getCommitTimeMax();
+	
+	/**
+	 * @return One line with all counters and latencies.
+	 */
+	public String getSummary();
+	
+	public void reset();
+}
@@ -26,8 +26,10 @@
 package com.atomikos.jms.extra;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.jms.Destination;
 import javax.jms.ExceptionListener;
@@ -62,14 +64,21 @@ import com.atomikos.logging.LoggerFactory;
   * facing a clean system state. All non-transient errors (i.e., those that happen
   * each time a message is delivered) indicate problems at the application level
   * and should be dealt with by writing better application code.
+  * Alternatively, set maxDeliveryAttempts and a dead-letter destination: messages 
+  * whose delivery keeps failing are then moved there instead of being redelivered forever.
   */
 
 public class MessageDrivenContainer 
-implements MessageConsumerSessionProperties
+implements MessageConsumerSessionProperties, MessageConsumerSessionPool
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(MessageDrivenContainer.class);
 
 	private static final int DEFAULT_TIMEOUT = 30;
+	
+	private static final int DEFAULT_BATCH_TIMEOUT = 1000;
+	
+	// the number of failing message ids to remember for maxDeliveryAttempts
+	private static final int DELIVERY_ATTEMPTS_CAPACITY = 10000;
 
 	
 	private AtomikosConnectionFactoryBean connectionFactoryBean;
@@ -80,7 +89,13 @@ implements MessageConsumerSessionProperties
 	private String destinationName;
 	private int transactionTimeout;
 	private int poolSize;
+	private int maxPoolSize;
+	private boolean running;
+	// incremented by each stop, so sessions started outside the lock can tell they missed it
+	private int stopCount;
 	private List<MessageConsumerSession> sessions;
+	// sessions started for a backlog: only these are retired when idle
+	private Set<MessageConsumerSession> extraSessions;
 	private boolean daemonThreads;
 	private boolean notifyListenerOnClose;
 	private String messageSelector;
@@ -91,16 +106,27 @@ implements MessageConsumerSessionProperties
 	private String clientID;
 	
 	private int receiveTimeout;
+	private int maxReceiveTimeout;
+	private int batchSize;
+	private int batchTimeout;
+	private final MessageConsumerStatistics statistics = new MessageConsumerStatistics();
+	private int maxDeliveryAttempts;
+	private Destination deadLetterDestination;
+	private String deadLetterDestinationName;
+	private final DeliveryAttempts deliveryAttempts = new DeliveryAttempts ( DELIVERY_ATTEMPTS_CAPACITY );
 	
 	public MessageDrivenContainer()
 	{
 		sessions = new ArrayList<MessageConsumerSession> ();
+		extraSessions = new HashSet<MessageConsumerSession> ();
 		notifyListenerOnClose = false;
         setPoolSize ( 1 );
+        setBatchSize ( 1 );
+        setBatchTimeout ( DEFAULT_BATCH_TIMEOUT );
         setTransactionTimeout ( DEFAULT_TIMEOUT );
 	}
 	
-	private MessageConsumerSession createSession() 
+	MessageConsumerSession createSession() 
 	{
 		return new MessageConsumerSession ( this );
 	}
@@ -231,7 +257,7 @@ implements MessageConsumerSessionProperties
 	 * 
 	 * @param listener
 	 */
-	public void setMessageListener ( MessageListener listener ) 
+	public synchronized void setMessageListener ( MessageListener listener ) 
 	{
 	
 	    messageListener = listener;
@@ -307,7 +333,7 @@ implements MessageConsumerSessionProperties
 
 	/**
 	 * Sets the size of the session pool (optional).
-	 * Default is 1.
+	 * Default is 1. If maxPoolSize is set then this is the minimum size.
 	 * 
 	 * @param size 
 	 */
@@ -316,6 +342,49 @@ implements MessageConsumerSessionProperties
 	    poolSize = size;
 	}
 
+	/**
+	 * Gets the maximum size of the pool.
+	 * 
+	 * @return The maximum, or 0 if the pool does not grow beyond poolSize.
+	 */
+	public int getMaxPoolSize() 
+	{
+	    return maxPoolSize;
+	}
+
+	/**
+	 * Sets the maximum size of the session pool (optional).
+	 * Default is 0, meaning the pool has a fixed size of poolSize.
+	 * 
+	 * If this is larger than poolSize then the pool is elastic: while the 
+	 * sessions keep finding messages, extra sessions are started (up to this
+	 * maximum), and extra sessions that keep timing out on receive are 
+	 * stopped again. That way, bursts are drained quickly without keeping 
+	 * idle threads around. Durable subscribers (subscriberName set) always 
+	 * use a fixed pool.
+	 * 
+	 * @param size 
+	 */
+	public void setMaxPoolSize ( int size ) 
+	{
+	    maxPoolSize = size;
+	}
+
+	/**
+	 * Gets the number of sessions currently running.
+	 * 
+	 * @return
+	 */
+	public synchronized int getCurrentPoolSize() 
+	{
+	    return sessions.size();
+	}
+
+	private boolean isElastic() 
+	{
+		return maxPoolSize > poolSize && subscriberName == null;
+	}
+
 	/**
 	 * Gets the exception listener (if any). 
 	 * @return Null if no ExceptionListener was set.
@@ -389,7 +458,7 @@ implements MessageConsumerSessionProperties
 	 * 
 	 * @throws JMSException
 	 */
-	public void start() throws JMSException 
+	public synchronized void start() throws JMSException 
 	{
 	    if ( destination == null && destinationName == null )
 	        throw new JMSException (
@@ -400,7 +469,27 @@ implements MessageConsumerSessionProperties
 	    if ( messageListener == null )
 	        throw new JMSException (
 	                "MessageDrivenContainer: messageListener not set" );
+	    if ( maxDeliveryAttempts > 0 && deadLetterDestination == null && deadLetterDestinationName == null )
+	        throw new JMSException (
+	                "MessageDrivenContainer: maxDeliveryAttempts requires a dead-letter destination" );
+	    if ( maxPoolSize > poolSize && subscriberName != null ) 
+	    	LOGGER.logWarning ( "MessageDrivenContainer: maxPoolSize is ignored for durable subscribers" );
+	    running = true;
 	    for ( int i = 0; i < poolSize; i++ ) {
+	        startListening ( addSession() );
+	    }
+	
+	    // set listener again to trigger listening
+	    setMessageListener ( messageListener );
+	}
+
+	/**
+	 * Creates and configures a new session, and adds it to the pool. 
+	 * Callers must hold the lock on this instance.
+	 */
+	private MessageConsumerSession addSession() 
+	{
+	        int i = sessions.size();
 	        MessageConsumerSession s = createSession();
 	        s.setMessageListener ( messageListener );
 	        s.setPassword ( password );
@@ -418,6 +507,16 @@ implements MessageConsumerSessionProperties
 	        if ( getSubscriberName() != null ) s.setSubscriberName ( getSubscriberName() + "-" + i );
 	        s.setNoLocal ( getNoLocal() );
 	        s.setClientID(clientID);
+	        if ( isElastic() ) s.setPool ( this );
+	        s.setDeadLetterDestination ( deadLetterDestination );
+	        s.setDeadLetterDestinationName ( deadLetterDestinationName );
+	        s.setDeliveryAttempts ( deliveryAttempts );
+	        sessions.add ( s );
+	        return s;
+	}
+
+	private void startListening ( MessageConsumerSession s ) 
+	{
 	        try {
 	            s.startListening ();
 	            // System.out.println ( "MessageDrivenContainer: started
@@ -425,11 +524,39 @@ implements MessageConsumerSessionProperties
 	        } catch ( Exception e ) {
 	            LOGGER.logWarning ( "Error starting pool", e );
 	        }
-	        sessions.add ( s );
-	    }
-	
-	    // set listener again to trigger listening
-	    setMessageListener ( messageListener );
+	}
+
+	public void onBacklog ( MessageConsumerSession session ) 
+	{
+		MessageConsumerSession extra = null;
+		int stopCountBefore = 0;
+		synchronized ( this ) {
+			stopCountBefore = stopCount;
+			// only decide here: starting the session is done outside the lock
+			if ( running && sessions.size() < maxPoolSize ) {
+				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "MessageDrivenContainer: backlog detected - starting extra session" );
+				extra = addSession();
+				extraSessions.add ( extra );
+			}
+		}
+		if ( extra != null ) {
+			startListening ( extra );
+			boolean stopped = false;
+			synchronized ( this ) {
+				// stop may have copied the sessions before the extra one was listening
+				stopped = stopCount != stopCountBefore;
+			}
+			if ( stopped ) extra.stopListening();
+		}
+	}
+
+	public synchronized boolean onIdle ( MessageConsumerSession session ) 
+	{
+		boolean ret = false;
+		if ( running && extraSessions.remove ( session ) ) {
+			ret = sessions.remove ( session );
+		}
+		return ret;
 	}
 
 	/**
@@ -442,7 +569,16 @@ implements MessageConsumerSessionProperties
 	 */
 	public void stop() 
 	{
-	    Iterator<MessageConsumerSession> it = sessions.iterator ();
+		List<MessageConsumerSession> toStop;
+		synchronized ( this ) {
+			// copy first: stopping waits for the session threads, which may call back into this instance
+			running = false;
+			stopCount++;
+			toStop = new ArrayList<MessageConsumerSession> ( sessions );
+			sessions.clear();
+			extraSessions.clear();
+		}
+	    Iterator<MessageConsumerSession> it = toStop.iterator ();
 	    while ( it.hasNext () ) {
 	        MessageConsumerSession s = (MessageConsumerSession) it.next ();
 	        s.stopListening ();
@@ -467,7 +603,7 @@ implements MessageConsumerSessionProperties
 	 *            If true, then the listener will receive a null message if the
 	 *            pool is closed.
 	 */
-	public void setNotifyListenerOnClose ( boolean b ) 
+	public synchronized void setNotifyListenerOnClose ( boolean b ) 
 	{
 	    notifyListenerOnClose = b;
 	    Iterator<MessageConsumerSession> it = sessions.iterator ();
@@ -524,4 +660,160 @@ implements MessageConsumerSessionProperties
 		this.receiveTimeout = seconds;	
 	}
 
+	/**
+	 * Gets the maximum receive timeout in seconds.
+	 * 
+	 * @return 0 if the receive timeout does not adapt.
+	 */
+	public int getMaxReceiveTimeout() {
+		return maxReceiveTimeout;
+	}
+
+	/**
+	 * Sets the maximum receive timeout in seconds (optional). Default is 0, meaning 
+	 * every receive waits for receiveTimeout seconds.
+	 * 
+	 * If set, then the receive timeout doubles after each receive that finds no message,
+	 * up to this maximum, and drops back to receiveTimeout as soon as a message arrives. 
+	 * Idle destinations then cost fewer (empty) transactions, while receiveTimeout 
+	 * can stay low. The maximum is capped at half the transactionTimeout. Note that 
+	 * stop() may have to wait up to this maximum per thread.
+	 * 
+	 * @param seconds
+	 */
+	public void setMaxReceiveTimeout(int seconds) {
+		this.maxReceiveTimeout = seconds;	
+	}
+
+	/**
+	 * Gets the number of receives that timed out without a message, 
+	 * over all sessions of this container (including retired ones).
+	 * 
+	 * @return
+	 */
+	public long getEmptyReceiveCount() {
+		return statistics.getEmptyReceiveCount();
+	}
+
+	/**
+	 * Gets the consumption statistics of all sessions of this container, 
+	 * for monitoring or registration with JMX.
+	 * 
+	 * @return
+	 */
+	public MessageConsumerStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Gets the maximum number of messages consumed in one transaction.
+	 * 
+	 * @return
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of messages to consume in one JTA transaction (optional).
+	 * Default is 1.
+	 * 
+	 * Larger batches amortize the two-phase commit over many messages, which 
+	 * greatly improves throughput on high-volume destinations. If the listener is a 
+	 * {@link BatchMessageListener} then it gets the whole batch at once, otherwise 
+	 * its onMessage method is called once per message within the same transaction. 
+	 * If a batch fails, then its messages are redelivered one per transaction so 
+	 * a single poison message does not keep rolling back the others.
+	 * 
+	 * @param size
+	 */
+	public void setBatchSize ( int size ) {
+		if ( size < 1 ) throw new IllegalArgumentException ( "batchSize must be at least 1" );
+		this.batchSize = size;
+	}
+
+	/**
+	 * Gets the batch timeout in milliseconds.
+	 * 
+	 * @return
+	 */
+	public int getBatchTimeout() {
+		return batchTimeout;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds to wait for more messages once the first 
+	 * message of a batch has been received (optional). Default is 1000. 
+	 * This property only applies if batchSize is larger than 1.
+	 * 
+	 * @param millis
+	 */
+	public void setBatchTimeout ( int millis ) {
+		this.batchTimeout = millis;
+	}
+
+	/**
+	 * Gets the maximum number of failed deliveries per message.
+	 * 
+	 * @return The number, or 0 if unlimited.
+	 */
+	public int getMaxDeliveryAttempts() {
+		return maxDeliveryAttempts;
+	}
+
+	/**
+	 * Sets the number of times the listener may fail for the same message 
+	 * (optional). Once exhausted, the next delivery moves the message to the 
+	 * dead-letter destination instead, in the same transaction as the receive. 
+	 * This keeps a poison message from occupying a session (and costing a 
+	 * rollback) forever. Default is 0, meaning unlimited. 
+	 * 
+	 * Failures are tracked by JMSMessageID for the most recent 
+	 * failing messages only, and not across restarts, so this is a bound on 
+	 * wasted work rather than an exact count. Messages without an id are never moved.
+	 * 
+	 * @param attempts
+	 */
+	public void setMaxDeliveryAttempts ( int attempts ) {
+		if ( attempts < 0 ) throw new IllegalArgumentException ( "maxDeliveryAttempts must not be negative" );
+		this.maxDeliveryAttempts = attempts;
+	}
+
+	/**
+	 * Gets the dead-letter destination. 
+	 * 
+	 * @return The destination, or null if not set.
+	 */
+	public Destination getDeadLetterDestination() {
+		return deadLetterDestination;
+	}
+
+	/**
+	 * Sets the destination for messages that exceed maxDeliveryAttempts 
+	 * (required if maxDeliveryAttempts is set, unless the deadLetterDestinationName is set instead).
+	 * 
+	 * @param destination
+	 */
+	public void setDeadLetterDestination ( Destination destination ) {
+		this.deadLetterDestination = destination;
+	}
+
+	/**
+	 * Gets the dead-letter destination name.
+	 * 
+	 * @return The name, or null if not set.
+	 */
+	public String getDeadLetterDestinationName() {
+		return deadLetterDestinationName;
+	}
+
+	/**
+	 * Sets the JMS provider-specific name of the dead-letter destination.
+	 * 
+	 * @param name
+	 */
+	public void setDeadLetterDestinationName ( String name ) {
+		this.deadLetterDestinationName = name;
+	}
+
 }
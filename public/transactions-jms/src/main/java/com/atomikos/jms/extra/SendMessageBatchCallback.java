@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.jms.extra;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+ /**
+  * Sends a number of messages over the same session, 
+  * using one producer per destination.
+  */
+
+class SendMessageBatchCallback implements ProducerCachingCallback
+{
+
+	private List<AbstractSendMessageCallback> callbacks;
+	private Map<Destination,MessageProducer> producerCache;
+
+	SendMessageBatchCallback ( List<AbstractSendMessageCallback> callbacks ) 
+	{
+		this.callbacks = callbacks;
+	}
+
+	public void setProducerCache ( Map<Destination,MessageProducer> producerCache )
+	{
+		this.producerCache = producerCache;
+	}
+
+	public void doInJmsSession ( Session session ) throws JMSException
+	{
+		Map<Destination,MessageProducer> producers = producerCache;
+		if ( producers == null ) producers = new HashMap<Destination,MessageProducer>();
+		for ( AbstractSendMessageCallback cb : callbacks ) {
+			cb.setProducerCache ( producers );
+			cb.doInJmsSession ( session );
+		}
+		if ( producerCache == null ) {
+			// not kept by the template: on errors, closing the session will close them
+			for ( MessageProducer mp : producers.values() ) mp.close();
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.atomikos.jms;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import javax.jms.XAConnection;
+
+import junit.framework.TestCase;
+
+import com.atomikos.datasource.pool.ConnectionPoolProperties;
+import com.atomikos.datasource.xa.XATransactionalResource;
+import com.atomikos.datasource.xa.session.SessionHandleStateChangeListener;
+import com.atomikos.util.DynamicProxy;
+
+public class AtomikosJmsConnectionProxyTestJUnit extends TestCase 
+{
+	private SessionHandleStateChangeListener owner;
+	private Connection connection;
+	private AtomikosJmsConnectionProxy proxy;
+	private Session vendorSession;
+	
+	protected void setUp() throws Exception 
+	{
+		super.setUp();
+		XAConnection vendorConnection = mock ( XAConnection.class );
+		vendorSession = mock ( Session.class );
+		when ( vendorConnection.createSession ( false , Session.AUTO_ACKNOWLEDGE ) ).thenReturn ( vendorSession );
+		ConnectionPoolProperties props = mock ( ConnectionPoolProperties.class );
+		// local transaction mode: plain (non-XA) sessions
+		when ( props.getLocalTransactionMode() ).thenReturn ( true );
+		owner = mock ( SessionHandleStateChangeListener.class );
+		connection = ( Connection ) AtomikosJmsConnectionProxy.newInstance ( false , vendorConnection , mock ( XATransactionalResource.class ) , owner , props );
+		proxy = ( AtomikosJmsConnectionProxy ) ( ( DynamicProxy ) connection ).getInvocationHandler();
+	}
+	
+	public void testNotAvailableBeforeClose() throws Exception
+	{
+		connection.createSession ( false , Session.AUTO_ACKNOWLEDGE );
+		assertFalse ( proxy.isAvailable() );
+	}
+	
+	public void testNotAvailableWhileSessionOpen() throws Exception
+	{
+		connection.createSession ( false , Session.AUTO_ACKNOWLEDGE );
+		connection.createSession ( false , Session.AUTO_ACKNOWLEDGE ).close();
+		assertFalse ( proxy.isAvailable() );
+	}
+	
+	public void testAvailableAfterClose() throws Exception
+	{
+		connection.createSession ( false , Session.AUTO_ACKNOWLEDGE );
+		connection.createSession ( false , Session.AUTO_ACKNOWLEDGE );
+		connection.close();
+		assertTrue ( proxy.isAvailable() );
+	}
+	
+	public void testOwnerNotifiedOncePerSession() throws Exception
+	{
+		Session s = connection.createSession ( false , Session.AUTO_ACKNOWLEDGE );
+		s.close();
+		s.close();
+		verify ( owner , times ( 1 ) ).onTerminated();
+	}
+	
+	public void testAvailableAfterCloseEvenIfVendorSessionCloseFails() throws Exception
+	{
+		doThrow ( new JMSException ( "close failed" ) ).when ( vendorSession ).close();
+		connection.createSession ( false , Session.AUTO_ACKNOWLEDGE ).close();
+		connection.close();
+		assertTrue ( proxy.isAvailable() );
+		verify ( owner , times ( 2 ) ).onTerminated();
+	}
+}
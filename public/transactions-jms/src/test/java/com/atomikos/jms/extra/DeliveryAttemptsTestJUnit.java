@@ -0,0 +1,27 @@
+package com.atomikos.jms.extra;
+
+import junit.framework.TestCase;
+
+public class DeliveryAttemptsTestJUnit extends TestCase {
+
+	public void testFailuresAreCountedPerMessage() {
+		DeliveryAttempts attempts = new DeliveryAttempts(10);
+		assertEquals(1, attempts.failed("a"));
+		assertEquals(2, attempts.failed("a"));
+		assertEquals(1, attempts.failed("b"));
+		assertEquals(2, attempts.getFailures("a"));
+		attempts.forget("a");
+		assertEquals(0, attempts.getFailures("a"));
+	}
+	
+	public void testLeastRecentlyFailedIsEvicted() {
+		DeliveryAttempts attempts = new DeliveryAttempts(2);
+		attempts.failed("a");
+		attempts.failed("b");
+		attempts.failed("a");
+		attempts.failed("c");
+		assertEquals(2, attempts.size());
+		assertEquals(0, attempts.getFailures("b"));
+		assertEquals(2, attempts.getFailures("a"));
+	}
+}
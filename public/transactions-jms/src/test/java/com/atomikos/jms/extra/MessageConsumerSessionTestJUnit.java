@@ -0,0 +1,113 @@
+package com.atomikos.jms.extra;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import junit.framework.TestCase;
+
+public class MessageConsumerSessionTestJUnit extends TestCase {
+
+	private MessageConsumer receiver;
+	private Message first, second, third;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		receiver = mock(MessageConsumer.class);
+		first = mock(Message.class);
+		second = mock(Message.class);
+		third = mock(Message.class);
+	}
+	
+	public void testBatchOfOneDoesNotReceiveMore() throws Exception {
+		List<Message> batch = MessageConsumerSession.receiveBatch(receiver, first, 1, 1000);
+		assertEquals(Arrays.asList(first), batch);
+		verify(receiver, never()).receive(anyLong());
+	}
+	
+	public void testBatchStopsWhenFull() throws Exception {
+		when(receiver.receive(anyLong())).thenReturn(second, third);
+		List<Message> batch = MessageConsumerSession.receiveBatch(receiver, first, 2, 1000);
+		assertEquals(Arrays.asList(first, second), batch);
+	}
+	
+	public void testBatchStopsWhenNoMoreMessages() throws Exception {
+		when(receiver.receive(anyLong())).thenReturn(second, (Message) null);
+		List<Message> batch = MessageConsumerSession.receiveBatch(receiver, first, 10, 1000);
+		assertEquals(Arrays.asList(first, second), batch);
+	}
+	
+	public void testZeroBatchTimeoutTakesOnlyAvailableMessages() throws Exception {
+		when(receiver.receiveNoWait()).thenReturn(second, (Message) null);
+		List<Message> batch = MessageConsumerSession.receiveBatch(receiver, first, 10, 0);
+		assertEquals(Arrays.asList(first, second), batch);
+	}
+	
+	public void testBatchListenerGetsWholeBatch() {
+		BatchMessageListener listener = mock(BatchMessageListener.class);
+		List<Message> batch = Arrays.asList(first, second);
+		MessageConsumerSession.deliver(listener, batch);
+		verify(listener).onMessages(batch);
+	}
+	
+	public void testPlainListenerGetsOneMessageAtATime() {
+		MessageListener listener = mock(MessageListener.class);
+		MessageConsumerSession.deliver(listener, Arrays.asList(first, second));
+		verify(listener).onMessage(first);
+		verify(listener).onMessage(second);
+	}
+	
+	public void testPollTimeoutDoublesWhileEmpty() {
+		assertEquals(2000, MessageConsumerSession.nextPollTimeout(1000, false, 1000, 8000));
+		assertEquals(8000, MessageConsumerSession.nextPollTimeout(5000, false, 1000, 8000));
+	}
+	
+	public void testPollTimeoutResetsOnMessage() {
+		assertEquals(1000, MessageConsumerSession.nextPollTimeout(8000, true, 1000, 8000));
+	}
+	
+	public void testPollTimeoutIsFixedWithoutMax() {
+		assertEquals(1000, MessageConsumerSession.nextPollTimeout(1000, false, 1000, 1000));
+	}
+	
+	public void testQuarantineMovesOnlyExhaustedMessages() throws Exception {
+		when(first.getJMSMessageID()).thenReturn("ID:1");
+		when(second.getJMSMessageID()).thenReturn("ID:2");
+		DeliveryAttempts attempts = new DeliveryAttempts(10);
+		attempts.failed("ID:1");
+		attempts.failed("ID:1");
+		attempts.failed("ID:2");
+		Session session = mock(Session.class);
+		Destination dlq = mock(Destination.class);
+		MessageProducer producer = mock(MessageProducer.class);
+		when(session.createProducer(dlq)).thenReturn(producer);
+		List<Message> batch = new ArrayList<Message>(Arrays.asList(first, second));
+		assertEquals(1, MessageConsumerSession.quarantine(batch, attempts, 2, session, dlq));
+		assertEquals(Arrays.asList(second), batch);
+		verify(producer).send(first);
+		verify(producer).close();
+		assertEquals(0, attempts.getFailures("ID:1"));
+	}
+	
+	public void testQuarantineWithinBudgetCreatesNoProducer() throws Exception {
+		when(first.getJMSMessageID()).thenReturn("ID:1");
+		Session session = mock(Session.class);
+		List<Message> batch = new ArrayList<Message>(Arrays.asList(first));
+		assertEquals(0, MessageConsumerSession.quarantine(batch, new DeliveryAttempts(10), 1, session, null));
+		assertEquals(1, batch.size());
+		verify(session, never()).createProducer(null);
+	}
+}
@@ -0,0 +1,78 @@
+package com.atomikos.jms.extra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.atomikos.icatch.event.Event;
+import com.atomikos.icatch.event.EventListener;
+import com.atomikos.jms.extra.event.MessageConsumptionFailedEvent;
+import com.atomikos.publish.EventPublisher;
+
+public class MessageConsumerStatisticsTestJUnit {
+
+	private MessageConsumerStatistics statistics;
+	private Message first;
+	private Message redelivered;
+	
+	@Before
+	public void setUp() throws Exception {
+		statistics = new MessageConsumerStatistics();
+		first = Mockito.mock(Message.class);
+		redelivered = Mockito.mock(Message.class);
+		Mockito.when(redelivered.getJMSRedelivered()).thenReturn(true);
+		Mockito.when(redelivered.getJMSMessageID()).thenReturn("ID:1");
+	}
+	
+	private List<Message> batch(Message... msgs) {
+		List<Message> ret = new ArrayList<Message>();
+		for (Message msg : msgs) ret.add(msg);
+		return ret;
+	}
+	
+	@Test
+	public void testCounters() {
+		statistics.received(batch(first, redelivered));
+		statistics.committed(2);
+		statistics.rolledBack(1);
+		statistics.emptyReceive();
+		statistics.connectionRefreshed();
+		assertEquals(2, statistics.getConsumedCount());
+		assertEquals(1, statistics.getRolledBackCount());
+		assertEquals(1, statistics.getRedeliveredCount());
+		assertEquals(1, statistics.getEmptyReceiveCount());
+		assertEquals(1, statistics.getConnectionRefreshCount());
+	}
+	
+	@Test
+	public void testFailureIsPublished() {
+		EventListener listener = Mockito.mock(EventListener.class);
+		EventPublisher.registerEventListener(listener);
+		statistics.failed("queue", redelivered);
+		ArgumentCaptor<Event> captor = ArgumentCaptor.forClass(Event.class);
+		Mockito.verify(listener).eventOccurred(captor.capture());
+		MessageConsumptionFailedEvent event = (MessageConsumptionFailedEvent) captor.getValue();
+		assertEquals("queue", event.destinationName);
+		assertEquals("ID:1", event.messageId);
+		assertEquals(true, event.redelivered);
+	}
+	
+	@Test
+	public void testReset() {
+		statistics.committed(1);
+		statistics.listenerDone(System.nanoTime());
+		statistics.commitDone(System.nanoTime());
+		statistics.reset();
+		assertEquals(0, statistics.getConsumedCount());
+		assertEquals(0, statistics.getListenerTimeMax());
+		assertEquals(0, statistics.getCommitTimeMax());
+	}
+}
@@ -0,0 +1,188 @@
+package com.atomikos.jms.extra;
+
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Destination;
+import javax.jms.MessageListener;
+
+import junit.framework.TestCase;
+
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atomikos.jms.AtomikosConnectionFactoryBean;
+
+public class MessageDrivenContainerTestJUnit extends TestCase {
+
+	private MessageDrivenContainer container;
+	private List<MessageConsumerSession> created;
+	private List<Boolean> startedWithLock;
+	private boolean stopWhileStarting;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		created = new ArrayList<MessageConsumerSession>();
+		startedWithLock = new ArrayList<Boolean>();
+		container = new MessageDrivenContainer() {
+			MessageConsumerSession createSession() {
+				MessageConsumerSession ret = mock ( MessageConsumerSession.class );
+				try {
+					doAnswer ( new Answer<Object>() {
+						public Object answer ( InvocationOnMock invocation ) {
+							startedWithLock.add ( Thread.holdsLock ( container ) );
+							if ( stopWhileStarting ) container.stop();
+							return null;
+						}
+					}).when ( ret ).startListening();
+				} catch ( Exception e ) {
+					throw new IllegalStateException ( e );
+				}
+				created.add ( ret );
+				return ret;
+			}
+		};
+	}
+	
+	private void startElastic ( int poolSize , int maxPoolSize ) throws Exception
+	{
+		container.setPoolSize ( poolSize );
+		container.setMaxPoolSize ( maxPoolSize );
+		container.setDestination ( mock ( Destination.class ) );
+		container.setAtomikosConnectionFactoryBean ( mock ( AtomikosConnectionFactoryBean.class ) );
+		container.setMessageListener ( mock ( MessageListener.class ) );
+		container.start();
+	}
+	
+	public void testPoolSize()
+	{
+		assertEquals ( 1 , container.getPoolSize() );
+		container.setPoolSize ( 2 );
+		assertEquals ( 2 , container.getPoolSize() );
+	}
+	
+	public void testBacklogGrowsPoolUpToMax() throws Exception
+	{
+		startElastic ( 1 , 3 );
+		assertEquals ( 1 , container.getCurrentPoolSize() );
+		for ( int i = 0 ; i < 5 ; i++ ) container.onBacklog ( created.get ( 0 ) );
+		assertEquals ( 3 , container.getCurrentPoolSize() );
+		assertEquals ( 3 , created.size() );
+	}
+	
+	public void testBacklogDoesNotGrowFixedPool() throws Exception
+	{
+		startElastic ( 2 , 0 );
+		container.onBacklog ( created.get ( 0 ) );
+		assertEquals ( 2 , container.getCurrentPoolSize() );
+	}
+	
+	public void testIdleShrinksPoolByRetiringExtraSession() throws Exception
+	{
+		startElastic ( 1 , 3 );
+		container.onBacklog ( created.get ( 0 ) );
+		MessageConsumerSession extra = created.get ( 1 );
+		assertTrue ( container.onIdle ( extra ) );
+		assertEquals ( 1 , container.getCurrentPoolSize() );
+		assertFalse ( container.onIdle ( extra ) );
+	}
+	
+	public void testIdleNeverRetiresInitialSessions() throws Exception
+	{
+		startElastic ( 1 , 3 );
+		container.onBacklog ( created.get ( 0 ) );
+		// above poolSize, but the initial session was not started for the backlog
+		assertFalse ( container.onIdle ( created.get ( 0 ) ) );
+		assertEquals ( 2 , container.getCurrentPoolSize() );
+	}
+	
+	public void testRetiredSessionIsNotStoppedByContainer() throws Exception
+	{
+		startElastic ( 1 , 3 );
+		container.onBacklog ( created.get ( 0 ) );
+		MessageConsumerSession extra = created.get ( 1 );
+		container.onIdle ( extra );
+		container.stop();
+		verify ( extra , never() ).stopListening();
+		verify ( created.get ( 0 ) ).stopListening();
+	}
+	
+	public void testEmptyReceivesOfRetiredSessionsAreStillCounted() throws Exception
+	{
+		startElastic ( 1 , 3 );
+		container.onBacklog ( created.get ( 0 ) );
+		// sessions report to the container's statistics
+		container.getStatistics().emptyReceive();
+		container.onIdle ( created.get ( 1 ) );
+		assertEquals ( 1 , container.getEmptyReceiveCount() );
+	}
+	
+	public void testBacklogStartsExtraSessionOutsideLock() throws Exception
+	{
+		startElastic ( 1 , 3 );
+		container.onBacklog ( created.get ( 0 ) );
+		assertEquals ( Boolean.FALSE , startedWithLock.get ( 1 ) );
+	}
+	
+	public void testExtraSessionIsStoppedIfContainerStopsWhileStartingIt() throws Exception
+	{
+		startElastic ( 1 , 3 );
+		stopWhileStarting = true;
+		container.onBacklog ( created.get ( 0 ) );
+		MessageConsumerSession extra = created.get ( 1 );
+		// the extra session must not keep listening after the container stopped
+		InOrder order = inOrder ( extra );
+		order.verify ( extra ).startListening();
+		order.verify ( extra , atLeastOnce() ).stopListening();
+	}
+	
+	public void testBatchSize()
+	{
+		assertEquals ( 1 , container.getBatchSize() );
+		container.setBatchSize ( 10 );
+		assertEquals ( 10 , container.getBatchSize() );
+	}
+	
+	public void testBatchSizeMustBePositive()
+	{
+		try {
+			container.setBatchSize ( 0 );
+			fail ( "batchSize 0 accepted" );
+		} catch ( IllegalArgumentException ok ) {}
+	}
+	
+	public void testBatchTimeout()
+	{
+		assertEquals ( 1000 , container.getBatchTimeout() );
+		container.setBatchTimeout ( 50 );
+		assertEquals ( 50 , container.getBatchTimeout() );
+	}
+	
+	public void testMaxReceiveTimeout()
+	{
+		assertEquals ( 0 , container.getMaxReceiveTimeout() );
+		container.setMaxReceiveTimeout ( 20 );
+		assertEquals ( 20 , container.getMaxReceiveTimeout() );
+	}
+	
+	public void testNoExtraSessionsWhenNotStarted()
+	{
+		container.setMaxPoolSize ( 5 );
+		container.onBacklog ( mock ( MessageConsumerSession.class ) );
+		assertEquals ( 0 , container.getCurrentPoolSize() );
+	}
+	
+	public void testUnknownSessionIsNotRetired()
+	{
+		container.setMaxPoolSize ( 5 );
+		assertFalse ( container.onIdle ( mock ( MessageConsumerSession.class ) ) );
+	}
+}
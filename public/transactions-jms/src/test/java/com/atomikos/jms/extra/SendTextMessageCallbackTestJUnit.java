@@ -0,0 +1,86 @@
+package com.atomikos.jms.extra;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import junit.framework.TestCase;
+
+import com.atomikos.jms.TestQueue;
+
+public class SendTextMessageCallbackTestJUnit extends TestCase {
+
+	private Session session;
+	private MessageProducer producer;
+	private TextMessage message;
+	private Destination destination;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		session = mock(Session.class);
+		producer = mock(MessageProducer.class);
+		message = mock(TextMessage.class);
+		destination = new TestQueue();
+		when(session.createProducer(destination)).thenReturn(producer);
+		when(session.createTextMessage()).thenReturn(message);
+	}
+	
+	private SendTextMessageCallback createCallback() {
+		return new SendTextMessageCallback("text", destination, null, DeliveryMode.PERSISTENT, 4, 0);
+	}
+	
+	public void testProducerIsClosedWithoutCache() throws Exception {
+		createCallback().doInJmsSession(session);
+		verify(producer).send(message, DeliveryMode.PERSISTENT, 4, 0);
+		verify(producer).close();
+	}
+	
+	public void testProducerIsReusedWithCache() throws Exception {
+		Map<Destination,MessageProducer> cache = new HashMap<Destination,MessageProducer>();
+		for (int i = 0; i < 3; i++) {
+			SendTextMessageCallback cb = createCallback();
+			cb.setProducerCache(cache);
+			cb.doInJmsSession(session);
+		}
+		verify(session, times(1)).createProducer(destination);
+		verify(producer, times(3)).send(eq(message), anyInt(), anyInt(), anyLong());
+		verify(producer, times(0)).close();
+		assertSame(producer, cache.get(destination));
+	}
+	
+	public void testBatchUsesOneProducer() throws Exception {
+		List<AbstractSendMessageCallback> cbs = new ArrayList<AbstractSendMessageCallback>();
+		cbs.add(createCallback());
+		cbs.add(createCallback());
+		new SendMessageBatchCallback(cbs).doInJmsSession(session);
+		verify(session, times(1)).createProducer(destination);
+		verify(producer, times(2)).send(eq(message), anyInt(), anyInt(), anyLong());
+		verify(producer, times(1)).close();
+	}
+	
+	public void testBatchLeavesTemplateProducersOpen() throws Exception {
+		List<AbstractSendMessageCallback> cbs = new ArrayList<AbstractSendMessageCallback>();
+		cbs.add(createCallback());
+		SendMessageBatchCallback batch = new SendMessageBatchCallback(cbs);
+		Map<Destination,MessageProducer> cache = new HashMap<Destination,MessageProducer>();
+		batch.setProducerCache(cache);
+		batch.doInJmsSession(session);
+		verify(producer, times(0)).close();
+		assertSame(producer, cache.get(destination));
+	}
+}
@@ -105,6 +105,29 @@ public abstract class AbstractXPooledConnection implements XPooledConnection {
 		return props.getTestQuery();
 	}
 	
+	protected int getValidationTimeout() 
+	{
+		return props.getValidationTimeout();
+	}
+	
+	/**
+	 * Checks if the underlying connection has been idle long enough to need a test. 
+	 * Recently released connections are assumed to be still valid.
+	 * 
+	 * @return True if the connection should be tested before handing it out.
+	 */
+	protected boolean isTestDueAfterIdleTime() 
+	{
+		return isTestDueAfterIdleTime ( System.currentTimeMillis() );
+	}
+	
+	boolean isTestDueAfterIdleTime ( long now ) 
+	{
+		int testIdleTime = props.getTestIdleTime();
+		if ( testIdleTime <= 0 ) return true;
+		return now - lastTimeReleased >= testIdleTime * 1000L;
+	}
+	
 	protected void updateLastTimeReleased() {
 		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": updating last time released" );
 		lastTimeReleased = System.currentTimeMillis();
@@ -32,6 +32,7 @@ import java.util.List;
 import com.atomikos.datasource.pool.event.ConnectionPoolExhaustedEvent;
 import com.atomikos.datasource.pool.event.PooledConnectionCreatedEvent;
 import com.atomikos.datasource.pool.event.PooledConnectionDestroyedEvent;
+import com.atomikos.datasource.pool.event.PooledConnectionLeakSuspectedEvent;
 import com.atomikos.datasource.pool.event.PooledConnectionReapedEvent;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
@@ -55,15 +56,43 @@ public class ConnectionPool implements XPooledConnectionEventListener
 	private boolean destroyed;
 	private PooledAlarmTimer maintenanceTimer;
 	private String name;
+	private ConnectionPoolCapacity capacity;
+	private ConnectionPoolStatistics statistics;
 
 
 	public ConnectionPool ( ConnectionFactory connectionFactory , ConnectionPoolProperties properties ) throws ConnectionPoolException
+	{
+		this ( connectionFactory , properties , null );
+	}
+
+	/**
+	 * Creates a pool whose connections also count against a shared capacity.
+	 * 
+	 * @param capacity The shared capacity, or null if only the pool's own maxPoolSize applies.
+	 */
+	public ConnectionPool ( ConnectionFactory connectionFactory , ConnectionPoolProperties properties , ConnectionPoolCapacity capacity ) throws ConnectionPoolException
+	{
+		this ( connectionFactory , properties , capacity , true );
+	}
+
+	ConnectionPool ( ConnectionFactory connectionFactory , ConnectionPoolProperties properties , ConnectionPoolCapacity capacity , boolean withMaintenanceTimer ) throws ConnectionPoolException
+	{
+		this ( connectionFactory , properties , capacity , withMaintenanceTimer , new ConnectionPoolStatistics ( properties.getUniqueResourceName() ) );
+	}
+
+	/**
+	 * @param statistics The statistics to record in, possibly shared with other pools.
+	 */
+	ConnectionPool ( ConnectionFactory connectionFactory , ConnectionPoolProperties properties , ConnectionPoolCapacity capacity , boolean withMaintenanceTimer , ConnectionPoolStatistics statistics ) throws ConnectionPoolException
 	{
 		this.connectionFactory = connectionFactory;
 		this.properties = properties;
+		this.capacity = capacity;
 		this.destroyed = false;
 		this.name = properties.getUniqueResourceName();
-		init();
+		this.statistics = statistics;
+		if ( capacity != null ) capacity.register ( this );
+		init ( withMaintenanceTimer );
 	}
 
 	private void assertNotDestroyed() throws ConnectionPoolException
@@ -71,11 +100,11 @@ public class ConnectionPool implements XPooledConnectionEventListener
 		if (destroyed) throw new ConnectionPoolException ( "Pool was already destroyed - you can no longer use it" );
 	}
 
-	private void init() throws ConnectionPoolException
+	private void init ( boolean withMaintenanceTimer ) throws ConnectionPoolException
 	{
 		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": initializing..." );
 		addConnectionsIfMinPoolSizeNotReached();
-		launchMaintenanceTimer();
+		if ( withMaintenanceTimer ) launchMaintenanceTimer();
 	}
 
 	private void launchMaintenanceTimer() {
@@ -87,20 +116,32 @@ public class ConnectionPool implements XPooledConnectionEventListener
 		maintenanceTimer = new PooledAlarmTimer ( maintenanceInterval * 1000 );
 		maintenanceTimer.addAlarmTimerListener(new AlarmTimerListener() {
 			public void alarm(AlarmTimer timer) {
-				reapPool();
-				removeConnectionsThatExceededMaxLifetime();
-				addConnectionsIfMinPoolSizeNotReached();
-				removeIdleConnectionsIfMinPoolSizeExceeded();
+				performMaintenance();
 			}
 		});
 		TaskManager.getInstance().executeTask ( maintenanceTimer );
 	}
 
+	/**
+	 * Runs one round of pool maintenance. Pools without their own 
+	 * maintenance timer rely on their owner to call this regularly.
+	 */
+	void performMaintenance() 
+	{
+		if ( isDestroyed() ) return;
+		detectLeaks();
+		reapPool();
+		removeConnectionsThatExceededMaxLifetime();
+		addConnectionsIfMinPoolSizeNotReached();
+		removeIdleConnectionsIfMinPoolSizeExceeded();
+	}
+
 	private synchronized void addConnectionsIfMinPoolSizeNotReached() {
 		int connectionsToAdd = properties.getMinPoolSize() - totalSize();
 		for ( int i = 0 ; i < connectionsToAdd ; i++ ) {
 			try {
 				XPooledConnection xpc = createPooledConnection();
+				if ( xpc == null ) return;
 				connections.add ( xpc );
 				xpc.registerXPooledConnectionEventListener ( this );
 			} catch ( Exception dbDown ) {
@@ -110,9 +151,22 @@ public class ConnectionPool implements XPooledConnectionEventListener
 		}
 	}
 
+	/**
+	 * Creates a new physical connection.
+	 * @return The connection, or null if the shared capacity (if any) is used up.
+	 */
 	private XPooledConnection createPooledConnection()
 			throws CreateConnectionException {
-		XPooledConnection xpc = connectionFactory.createPooledConnection();
+		if ( capacity != null && !capacity.reserve() ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": no room left in " + capacity );
+			return null;
+		}
+		XPooledConnection xpc = null;
+		try {
+			xpc = connectionFactory.createPooledConnection();
+		} finally {
+			if ( xpc == null && capacity != null ) capacity.release();
+		}
 		EventPublisher.publish(new PooledConnectionCreatedEvent(properties.getUniqueResourceName(),xpc));
 		return xpc;
 	}
@@ -146,16 +200,16 @@ public class ConnectionPool implements XPooledConnectionEventListener
 		Reapable ret = null;	
 		ret = findExistingOpenConnectionForCallingThread();	
 		if (ret == null) {
-			ret = findOrWaitForAnAvailableConnection();		
+			ret = findOrWaitForAnAvailableConnection ( System.currentTimeMillis() );		
 		}
 		return ret;
 	}
 
-	private Reapable findOrWaitForAnAvailableConnection() throws ConnectionPoolException {
+	private Reapable findOrWaitForAnAvailableConnection ( long borrowStart ) throws ConnectionPoolException {
 		Reapable ret = null;
 		long remainingTime = properties.getBorrowConnectionTimeout() * 1000L;		
 		do {
-			ret = retrieveFirstAvailableConnectionAndGrowPoolIfNecessary();
+			ret = retrieveFirstAvailableConnectionAndGrowPoolIfNecessary ( borrowStart );
 			if ( ret == null ) {
 				EventPublisher.publish(new ConnectionPoolExhaustedEvent(properties.getUniqueResourceName()));
 				remainingTime = waitForAtLeastOneAvailableConnection(remainingTime);
@@ -165,12 +219,12 @@ public class ConnectionPool implements XPooledConnectionEventListener
 		return ret;
 	}
 
-	private Reapable retrieveFirstAvailableConnectionAndGrowPoolIfNecessary() throws CreateConnectionException {
+	private Reapable retrieveFirstAvailableConnectionAndGrowPoolIfNecessary ( long borrowStart ) throws CreateConnectionException {
 		
-		Reapable ret = retrieveFirstAvailableConnection();
+		Reapable ret = retrieveFirstAvailableConnection ( borrowStart );
 		if ( ret == null && canGrow() ) {
 			growPool();
-			ret = retrieveFirstAvailableConnection();
+			ret = retrieveFirstAvailableConnection ( borrowStart );
 		}		
 		return ret;
 	}
@@ -193,10 +247,10 @@ public class ConnectionPool implements XPooledConnectionEventListener
 	}
 
 	private boolean canGrow() {
-		return totalSize() < properties.getMaxPoolSize();
+		return totalSize() < properties.getMaxPoolSize() && ( capacity == null || capacity.hasRoom() );
 	}
 
-	private Reapable retrieveFirstAvailableConnection() {
+	private Reapable retrieveFirstAvailableConnection ( long borrowStart ) {
 		Reapable ret = null;
 		Iterator<XPooledConnection> it = connections.iterator();			
 		while ( it.hasNext() && ret == null ) {
@@ -205,6 +259,7 @@ public class ConnectionPool implements XPooledConnectionEventListener
 				try {
 					ret = xpc.createConnectionProxy();
 					if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug( this + ": got connection from pool");
+					statistics.connectionBorrowed ( xpc , System.currentTimeMillis() - borrowStart , getBorrowStackSampleRate() );
 				} catch ( CreateConnectionException ex ) {
 					String msg = this +  ": error creating proxy of connection " + xpc;
 					LOGGER.logWarning( msg , ex);
@@ -220,6 +275,7 @@ public class ConnectionPool implements XPooledConnectionEventListener
 
 	private synchronized void growPool() throws CreateConnectionException {
 		XPooledConnection xpc = createPooledConnection();
+		if ( xpc == null ) return;
 		connections.add ( xpc );
 		xpc.registerXPooledConnectionEventListener(this);
 		logCurrentPoolSize();
@@ -250,11 +306,45 @@ public class ConnectionPool implements XPooledConnectionEventListener
 		logCurrentPoolSize();
 	}
 
+	private int getBorrowStackSampleRate() {
+		if ( properties.getLeakDetectionThreshold() <= 0 ) return 0;
+		return properties.getBorrowStackSampleRate();
+	}
+
 	private void destroyPooledConnection(XPooledConnection xpc) {
 		xpc.destroy();
+		statistics.connectionReleased ( xpc );
+		if ( capacity != null ) capacity.release();
 		EventPublisher.publish(new PooledConnectionDestroyedEvent(properties.getUniqueResourceName(),xpc));
 	}
 
+	/**
+	 * Reports connections that have been in use for longer than the leakDetectionThreshold,
+	 * once per borrow. Unlike reaping, this does not interfere with the application.
+	 */
+	private synchronized void detectLeaks()
+	{
+		long threshold = properties.getLeakDetectionThreshold();
+		if ( connections == null || threshold <= 0 ) return;
+
+		long now = System.currentTimeMillis();
+		for ( XPooledConnection xpc : connections ) {
+			if ( !xpc.isAvailable() && ( now - xpc.getLastTimeAcquired() ) >= threshold * 1000L ) {
+				ConnectionPoolStatistics.BorrowSite site = statistics.suspectLeak ( xpc );
+				if ( site != null ) {
+					String stack = site.getStackTraceAsString();
+					if ( stack.length() == 0 ) {
+						LOGGER.logWarning ( this + ": connection in use for more than " + threshold + "s, possible leak (borrow stack not sampled): " + xpc );
+						stack = null;
+					} else {
+						LOGGER.logWarning ( this + ": connection in use for more than " + threshold + "s, possible leak: " + xpc + " borrowed" + stack );
+					}
+					EventPublisher.publish ( new PooledConnectionLeakSuspectedEvent ( properties.getUniqueResourceName() , xpc , site.time , stack ) );
+				}
+			}
+		}
+	}
+
 	public synchronized void reapPool()
 	{
 		long maxInUseTime = properties.getReapTimeout();
@@ -315,11 +405,57 @@ public class ConnectionPool implements XPooledConnectionEventListener
 			}
 			connections = null;
 			destroyed = true;
-			maintenanceTimer.stop();
+			if ( capacity != null ) capacity.unregister ( this );
+			if ( maintenanceTimer != null ) maintenanceTimer.stop();
 			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": pool destroyed." );
 		}
 	}
 	
+	/**
+	 * Destroys the pool if it no longer has any connections.
+	 * 
+	 * @return True if the pool is destroyed (now or before).
+	 */
+	synchronized boolean destroyIfEmpty() 
+	{
+		if ( !destroyed && connections.isEmpty() ) destroy();
+		return destroyed;
+	}
+
+	synchronized boolean isDestroyed() 
+	{
+		return destroyed;
+	}
+
+	/**
+	 * Closes the connection that has been idle the longest, unless that
+	 * would make the pool shrink below its minPoolSize. Used to make room 
+	 * in a shared capacity for another pool.
+	 * 
+	 * @return True if a connection was closed.
+	 */
+	synchronized boolean destroyIdleConnection() 
+	{
+		if ( destroyed || totalSize() <= properties.getMinPoolSize() ) return false;
+		XPooledConnection idlest = null;
+		for ( XPooledConnection xpc : connections ) {
+			if ( xpc.isAvailable() && ( idlest == null || xpc.getLastTimeReleased() < idlest.getLastTimeReleased() ) ) idlest = xpc;
+		}
+		if ( idlest == null ) return false;
+		connections.remove ( idlest );
+		destroyPooledConnection ( idlest );
+		logCurrentPoolSize();
+		return true;
+	}
+
+	/**
+	 * Called when another pool released room in the shared capacity.
+	 */
+	synchronized void capacityReleased() 
+	{
+		this.notifyAll();
+	}
+
 	public synchronized void refresh() {
 		List<XPooledConnection> connectionsToRemove = new ArrayList<XPooledConnection>();
 		for (XPooledConnection conn : connections) {
@@ -339,23 +475,31 @@ public class ConnectionPool implements XPooledConnectionEventListener
 	 */
 	private synchronized long waitForAtLeastOneAvailableConnection(long waitTime) throws PoolExhaustedException
 	{
-        while (availableSize() == 0) {
-        	if ( waitTime <= 0 ) throw new PoolExhaustedException ( "ConnectionPool: pool is empty - increase either maxPoolSize or borrowConnectionTimeout" );
-            long before = System.currentTimeMillis();
-        	try {
-        		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": about to wait for connection during " + waitTime + "ms...");
-        		this.wait (waitTime);
-
-			} catch (InterruptedException ex) {
-				// cf bug 67457
-				InterruptedExceptionHelper.handleInterruptedException ( ex );
-				// ignore
-				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": interrupted during wait" , ex );
-			}
-			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": done waiting." );
-			long now = System.currentTimeMillis();
-            waitTime -= (now - before);
-        }
+		//register before checking, so room released by other pools cannot go unnoticed
+		if ( capacity != null ) capacity.startWaiting ( this );
+		try {
+	        while (availableSize() == 0 && !canGrow()) {
+	        	//shared capacity used up by others: have one of their idle connections closed
+	        	if ( capacity != null && totalSize() < properties.getMaxPoolSize() ) capacity.reclaimIdleConnectionFor ( this );
+	        	if ( waitTime <= 0 ) throw new PoolExhaustedException ( "ConnectionPool: pool is empty - increase either maxPoolSize or borrowConnectionTimeout" );
+	            long before = System.currentTimeMillis();
+	        	try {
+	        		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": about to wait for connection during " + waitTime + "ms...");
+	        		this.wait (waitTime);
+	
+				} catch (InterruptedException ex) {
+					// cf bug 67457
+					InterruptedExceptionHelper.handleInterruptedException ( ex );
+					// ignore
+					if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": interrupted during wait" , ex );
+				}
+				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": done waiting." );
+				long now = System.currentTimeMillis();
+	            waitTime -= (now - before);
+	        }
+		} finally {
+			if ( capacity != null ) capacity.stopWaiting ( this );
+		}
         return waitTime;
 	}
 
@@ -390,11 +534,19 @@ public class ConnectionPool implements XPooledConnectionEventListener
 	}
 
 	public synchronized void onXPooledConnectionTerminated(XPooledConnection connection) {
+		statistics.connectionReleased ( connection );
 		if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug( this +  ": connection " + connection + " became available, notifying potentially waiting threads");
 		this.notify();
 
 	}
 		
+	/**
+	 * @return The statistics of this pool, for monitoring (e.g., via JMX).
+	 */
+	public ConnectionPoolStatistics getStatistics() {
+		return statistics;
+	}
+
 	public String toString() {
 		return "atomikos connection pool '" + name + "'";
 	}
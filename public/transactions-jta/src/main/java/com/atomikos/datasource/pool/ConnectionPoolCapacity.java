@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.datasource.pool;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+import com.atomikos.thread.TaskManager;
+
+
+ /**
+  * 
+  * 
+  * A budget of physical connections that is shared by several pools,
+  * so that their combined size stays within a global maximum.
+  * 
+  * Pools that wait for room are signalled as soon as another pool 
+  * gives some back. A pool that finds the budget used up can also ask 
+  * for an idle connection of another pool to be closed to make room. 
+  * Both are done in the background, so no pool ever takes the lock of 
+  * another pool while holding its own.
+  *
+  */
+
+public class ConnectionPoolCapacity 
+{
+	private static final Logger LOGGER = LoggerFactory.createLogger(ConnectionPoolCapacity.class);
+	
+	private final int maxTotalSize;
+	
+	private int totalSize;
+	
+	private final Set<ConnectionPool> pools = new CopyOnWriteArraySet<ConnectionPool>();
+	
+	private final Set<ConnectionPool> waitingPools = new HashSet<ConnectionPool>();
+	
+	public ConnectionPoolCapacity ( int maxTotalSize ) 
+	{
+		this.maxTotalSize = maxTotalSize;
+	}
+	
+	/**
+	 * Reserves room for one more connection.
+	 * 
+	 * @return True if reserved, false if the budget is used up.
+	 */
+	synchronized boolean reserve() 
+	{
+		if ( totalSize >= maxTotalSize ) return false;
+		totalSize++;
+		return true;
+	}
+	
+	/**
+	 * Gives back the room reserved for a connection that was destroyed (or never created).
+	 */
+	void release() 
+	{
+		List<ConnectionPool> poolsToSignal = null;
+		synchronized ( this ) {
+			if ( totalSize > 0 ) totalSize--;
+			if ( !waitingPools.isEmpty() ) poolsToSignal = new ArrayList<ConnectionPool> ( waitingPools );
+		}
+		if ( poolsToSignal != null ) signalInBackground ( poolsToSignal );
+	}
+	
+	private void signalInBackground ( final List<ConnectionPool> poolsToSignal ) 
+	{
+		TaskManager.getInstance().executeTask ( new Runnable() {
+			public void run() {
+				for ( ConnectionPool pool : poolsToSignal ) pool.capacityReleased();
+			}
+		});
+	}
+	
+	void register ( ConnectionPool pool ) 
+	{
+		pools.add ( pool );
+	}
+	
+	void unregister ( ConnectionPool pool ) 
+	{
+		pools.remove ( pool );
+		synchronized ( this ) {
+			waitingPools.remove ( pool );
+		}
+	}
+	
+	/**
+	 * Marks a pool as waiting: it will be signalled when room is released.
+	 * Must be called before checking for room, so no release can go unnoticed.
+	 */
+	synchronized void startWaiting ( ConnectionPool pool ) 
+	{
+		waitingPools.add ( pool );
+	}
+	
+	synchronized void stopWaiting ( ConnectionPool pool ) 
+	{
+		waitingPools.remove ( pool );
+	}
+	
+	/**
+	 * Asks for one idle connection of any other pool to be closed, 
+	 * so that the given pool can grow. Done in the background; the 
+	 * release of the connection signals the waiting pool.
+	 */
+	void reclaimIdleConnectionFor ( final ConnectionPool requester ) 
+	{
+		TaskManager.getInstance().executeTask ( new Runnable() {
+			public void run() {
+				for ( ConnectionPool pool : pools ) {
+					if ( pool != requester && pool.destroyIdleConnection() ) {
+						if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Closed an idle connection of " + pool + " to make room for " + requester );
+						return;
+					}
+				}
+			}
+		});
+	}
+	
+	synchronized boolean hasRoom() 
+	{
+		return totalSize < maxTotalSize;
+	}
+	
+	/**
+	 * @return The number of connections currently accounted for.
+	 */
+	public synchronized int getTotalSize() 
+	{
+		return totalSize;
+	}
+	
+	public int getMaxTotalSize() 
+	{
+		return maxTotalSize;
+	}
+	
+	public String toString() 
+	{
+		return "connection pool capacity " + getTotalSize() + "/" + maxTotalSize;
+	}
+
+}
@@ -105,5 +105,34 @@ public interface ConnectionPoolProperties
 	 * @return The level, or -1 if not set.
 	 */
 	int getDefaultIsolationLevel();
+	
+	/**
+	 * Gets the minimum time in seconds that a connection must have been idle in the pool
+	 * before it is tested again when borrowed.
+	 * 
+	 * @return The time in seconds, or 0 to test on every borrow.
+	 */
+	int getTestIdleTime();
+	
+	/**
+	 * Gets the timeout for validating connections with JDBC 4's <code>Connection.isValid</code>.
+	 * 
+	 * @return The timeout in seconds, or 0 if the test query (if any) is to be used instead.
+	 */
+	int getValidationTimeout();
+	
+	/**
+	 * Gets the time after which a connection that is still in use is reported as suspected leak.
+	 * 
+	 * @return The time in seconds, or 0 to disable leak detection.
+	 */
+	int getLeakDetectionThreshold();
+	
+	/**
+	 * Gets how often the stack trace of the borrowing thread is captured for leak detection.
+	 * 
+	 * @return N to capture the stack for 1 in N borrows, or 0 to never capture it.
+	 */
+	int getBorrowStackSampleRate();
 
 }
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.datasource.pool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atomikos.util.LatencyHistogram;
+
+ /**
+  * 
+  * 
+  * Statistics of a connection pool, including leak detection. 
+  * Borrow sites are tracked per pooled connection; the stack trace 
+  * of the borrowing thread is only captured for a sample of the borrows
+  * (as determined by the borrowStackSampleRate) since that is expensive.
+  * 
+  * Instances are thread-safe and can be registered as MBean.
+  *
+  */
+
+public class ConnectionPoolStatistics implements ConnectionPoolStatisticsMBean 
+{
+	private final String uniqueResourceName;
+	private final LatencyHistogram borrowTimes = new LatencyHistogram();
+	private final LatencyHistogram holdTimes = new LatencyHistogram();
+	private final AtomicLong suspectedLeakCount = new AtomicLong();
+	private final Map<XPooledConnection,BorrowSite> borrowSites = new HashMap<XPooledConnection,BorrowSite>();
+	private long borrowsSinceLastSample;
+	
+	ConnectionPoolStatistics ( String uniqueResourceName ) 
+	{
+		this.uniqueResourceName = uniqueResourceName;
+	}
+	
+	void connectionBorrowed ( XPooledConnection xpc , long borrowTime , int sampleRate ) 
+	{
+		borrowTimes.record ( borrowTime );
+		Throwable stack = null;
+		synchronized ( borrowSites ) {
+			if ( sampleRate > 0 && ++borrowsSinceLastSample >= sampleRate ) {
+				borrowsSinceLastSample = 0;
+				stack = new Throwable ( "Connection borrowed by thread " + Thread.currentThread().getName() );
+			}
+			borrowSites.put ( xpc , new BorrowSite ( System.currentTimeMillis() , stack ) );
+		}
+	}
+	
+	void connectionReleased ( XPooledConnection xpc ) 
+	{
+		BorrowSite site = null;
+		synchronized ( borrowSites ) {
+			site = borrowSites.remove ( xpc );
+		}
+		if ( site != null ) holdTimes.record ( System.currentTimeMillis() - site.time );
+	}
+	
+	/**
+	 * Marks a connection as suspected leak, unless that was done before for the current borrow.
+	 * 
+	 * @return The borrow site, or null if already reported (or unknown).
+	 */
+	BorrowSite suspectLeak ( XPooledConnection xpc ) 
+	{
+		synchronized ( borrowSites ) {
+			BorrowSite ret = borrowSites.get ( xpc );
+			if ( ret == null || ret.suspected ) return null;
+			ret.suspected = true;
+			suspectedLeakCount.incrementAndGet();
+			return ret;
+		}
+	}
+	
+	public String getUniqueResourceName() 
+	{
+		return uniqueResourceName;
+	}
+
+	public long getBorrowCount() 
+	{
+		return borrowTimes.getCount();
+	}
+
+	public long getBorrowTimeMedian() 
+	{
+		return borrowTimes.getPercentile ( 50 );
+	}
+
+	public long getBorrowTime99thPercentile() 
+	{
+		return borrowTimes.getPercentile ( 99 );
+	}
+
+	public long getBorrowTimeMax() 
+	{
+		return borrowTimes.getMax();
+	}
+
+	public long[] getBorrowTimeHistogram() 
+	{
+		return borrowTimes.getBucketCounts();
+	}
+
+	public long getHoldTimeMedian() 
+	{
+		return holdTimes.getPercentile ( 50 );
+	}
+
+	public long getHoldTime99thPercentile() 
+	{
+		return holdTimes.getPercentile ( 99 );
+	}
+
+	public long getHoldTimeMax() 
+	{
+		return holdTimes.getMax();
+	}
+
+	public long[] getHoldTimeHistogram() 
+	{
+		return holdTimes.getBucketCounts();
+	}
+
+	public long getSuspectedLeakCount() 
+	{
+		return suspectedLeakCount.get();
+	}
+
+	public String[] getSuspectedLeaks() 
+	{
+		List<String> ret = new ArrayList<String>();
+		synchronized ( borrowSites ) {
+			for ( Map.Entry<XPooledConnection,BorrowSite> entry : borrowSites.entrySet() ) {
+				BorrowSite site = entry.getValue();
+				if ( site.suspected ) ret.add ( entry.getKey() + " borrowed at " + site.time + site.getStackTraceAsString() );
+			}
+		}
+		return ret.toArray ( new String[ret.size()] );
+	}
+
+	public void reset() 
+	{
+		borrowTimes.reset();
+		holdTimes.reset();
+		suspectedLeakCount.set ( 0 );
+	}
+	
+	public String toString() 
+	{
+		return "statistics of pool '" + uniqueResourceName + "': borrow times [" + borrowTimes + "], hold times [" + holdTimes + "]";
+	}
+	
+	static class BorrowSite 
+	{
+		final long time;
+		final Throwable stack;
+		boolean suspected;
+		
+		BorrowSite ( long time , Throwable stack ) 
+		{
+			this.time = time;
+			this.stack = stack;
+		}
+		
+		/**
+		 * @return The stack trace as string, starting with a newline, or an empty string if not sampled.
+		 */
+		String getStackTraceAsString() 
+		{
+			if ( stack == null ) return "";
+			StringBuffer ret = new StringBuffer();
+			for ( StackTraceElement element : stack.getStackTrace() ) {
+				ret.append ( "\n\tat " ).append ( element );
+			}
+			return ret.toString();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.datasource.pool;
+
+/**
+ * An MBean interface for monitoring a connection pool: how long 
+ * borrowing takes, how long connections are held and which ones 
+ * are suspected to leak.
+ */
+
+public interface ConnectionPoolStatisticsMBean 
+{
+	public String getUniqueResourceName();
+	
+	public long getBorrowCount();
+	
+	/**
+	 * @return The approximate median time (in ms) spent waiting for a connection.
+	 */
+	public long getBorrowTimeMedian();
+	
+	/**
+	 * @return The approximate 99th percentile of the time (in ms) spent waiting for a connection.
+	 */
+	public long getBorrowTime99thPercentile();
+	
+	public long getBorrowTimeMax();
+	
+	/**
+	 * @return The number of borrows per histogram bucket (see {@link com.atomikos.util.LatencyHistogram}).
+	 */
+	public long[] getBorrowTimeHistogram();
+	
+	/**
+	 * @return The approximate median time (in ms) that connections were held by the application.
+	 */
+	public long getHoldTimeMedian();
+	
+	/**
+	 * @return The approximate 99th percentile of the time (in ms) that connections were held by the application.
+	 */
+	public long getHoldTime99thPercentile();
+	
+	public long getHoldTimeMax();
+	
+	/**
+	 * @return The number of releases per histogram bucket (see {@link com.atomikos.util.LatencyHistogram}).
+	 */
+	public long[] getHoldTimeHistogram();
+	
+	/**
+	 * @return The number of connections suspected to leak since the last reset.
+	 */
+	public long getSuspectedLeakCount();
+	
+	/**
+	 * @return A description of each connection that is currently suspected to leak, 
+	 * including its borrow stack if it was sampled.
+	 */
+	public String[] getSuspectedLeaks();
+	
+	/**
+	 * Clears all statistics.
+	 */
+	public void reset();
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.datasource.pool;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+import com.atomikos.thread.TaskManager;
+import com.atomikos.timing.AlarmTimer;
+import com.atomikos.timing.AlarmTimerListener;
+import com.atomikos.timing.PooledAlarmTimer;
+
+ /**
+  * 
+  * 
+  * A set of connection pools partitioned by a key (typically the credentials 
+  * of the connections). Partitions are created on first use and evicted once all
+  * their connections have been idle for longer than the maxIdleTime. 
+  * All partitions share one maintenance timer, one {@link ConnectionPoolCapacity}
+  * and one {@link ConnectionPoolStatistics}.
+  * 
+  *
+  */
+
+public class PartitionedConnectionPool<K> 
+{
+	private static final Logger LOGGER = LoggerFactory.createLogger(PartitionedConnectionPool.class);
+	
+	/**
+	 * Creates the connection factory for a partition.
+	 */
+	public interface PartitionConnectionFactory<K> 
+	{
+		ConnectionFactory createConnectionFactory ( K key ) throws ConnectionPoolException;
+	}
+	
+	private final Map<K,ConnectionPool> partitions = new ConcurrentHashMap<K,ConnectionPool>();
+	private final PartitionConnectionFactory<K> partitionConnectionFactory;
+	private final ConnectionPoolProperties properties;
+	private final ConnectionPoolCapacity capacity;
+	private final ConnectionPoolStatistics statistics;
+	private PooledAlarmTimer maintenanceTimer;
+	private boolean destroyed;
+	
+	/**
+	 * 
+	 * @param partitionConnectionFactory The factory for the connection factories of each partition.
+	 * @param properties The properties to use for each partition - the minPoolSize is ignored since idle partitions shrink to zero.
+	 * @param capacity The capacity shared by all partitions (and possibly other pools).
+	 */
+	public PartitionedConnectionPool ( PartitionConnectionFactory<K> partitionConnectionFactory , 
+			ConnectionPoolProperties properties , ConnectionPoolCapacity capacity ) 
+	{
+		this ( partitionConnectionFactory , properties , capacity , new ConnectionPoolStatistics ( properties.getUniqueResourceName() ) );
+	}
+	
+	/**
+	 * 
+	 * @param partitionConnectionFactory The factory for the connection factories of each partition.
+	 * @param properties The properties to use for each partition - the minPoolSize is ignored since idle partitions shrink to zero.
+	 * @param capacity The capacity shared by all partitions (and possibly other pools).
+	 * @param statistics The statistics to record in for all partitions (possibly shared with other pools).
+	 */
+	public PartitionedConnectionPool ( PartitionConnectionFactory<K> partitionConnectionFactory , 
+			ConnectionPoolProperties properties , ConnectionPoolCapacity capacity , ConnectionPoolStatistics statistics ) 
+	{
+		this.partitionConnectionFactory = partitionConnectionFactory;
+		this.properties = new PartitionProperties ( properties );
+		this.capacity = capacity;
+		this.statistics = statistics;
+		launchMaintenanceTimer();
+	}
+	
+	private void launchMaintenanceTimer() 
+	{
+		int maintenanceInterval = properties.getMaintenanceInterval();
+		if ( maintenanceInterval <= 0 ) maintenanceInterval = ConnectionPool.DEFAULT_MAINTENANCE_INTERVAL;
+		maintenanceTimer = new PooledAlarmTimer ( maintenanceInterval * 1000 );
+		maintenanceTimer.addAlarmTimerListener ( new AlarmTimerListener() {
+			public void alarm ( AlarmTimer timer ) {
+				performMaintenance();
+			}
+		});
+		TaskManager.getInstance().executeTask ( maintenanceTimer );
+	}
+	
+	private synchronized ConnectionPool getOrCreatePartition ( K key ) throws ConnectionPoolException 
+	{
+		if ( destroyed ) throw new ConnectionPoolException ( "Pool was already destroyed - you can no longer use it" );
+		ConnectionPool ret = partitions.get ( key );
+		if ( ret == null || ret.isDestroyed() ) {
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": creating partition for " + key );
+			ConnectionFactory cf = partitionConnectionFactory.createConnectionFactory ( key );
+			ret = new ConnectionPool ( cf , properties , capacity , false , statistics );
+			partitions.put ( key , ret );
+		}
+		return ret;
+	}
+	
+	/**
+	 * Borrows a connection from the partition for the given key.
+	 * 
+	 * @see ConnectionPool#borrowConnection()
+	 */
+	public Reapable borrowConnection ( K key ) throws CreateConnectionException , PoolExhaustedException, ConnectionPoolException 
+	{
+		while ( true ) {
+			ConnectionPool partition = getOrCreatePartition ( key );
+			try {
+				return partition.borrowConnection();
+			} catch ( ConnectionPoolException e ) {
+				//partition evicted after lookup? -> retry with a fresh one
+				if ( !partition.isDestroyed() ) throw e;
+				if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": partition for " + key + " was evicted - retrying" );
+			}
+		}
+	}
+	
+	void performMaintenance() 
+	{
+		Iterator<Map.Entry<K,ConnectionPool>> it = partitions.entrySet().iterator();
+		while ( it.hasNext() ) {
+			Map.Entry<K,ConnectionPool> entry = it.next();
+			ConnectionPool partition = entry.getValue();
+			partition.performMaintenance();
+			synchronized ( this ) {
+				if ( partition.destroyIfEmpty() ) {
+					if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( this + ": evicted idle partition for " + entry.getKey() );
+					partitions.remove ( entry.getKey() );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of partitions currently in use.
+	 */
+	public int partitionCount() 
+	{
+		return partitions.size();
+	}
+	
+	public int availableSize() 
+	{
+		int ret = 0;
+		for ( ConnectionPool partition : partitions.values() ) ret += partition.availableSize();
+		return ret;
+	}
+	
+	public int totalSize() 
+	{
+		int ret = 0;
+		for ( ConnectionPool partition : partitions.values() ) ret += partition.totalSize();
+		return ret;
+	}
+	
+	/**
+	 * @return The statistics of all partitions together.
+	 */
+	public ConnectionPoolStatistics getStatistics() 
+	{
+		return statistics;
+	}
+	
+	public synchronized void destroy() 
+	{
+		if ( destroyed ) return;
+		destroyed = true;
+		maintenanceTimer.stop();
+		for ( ConnectionPool partition : partitions.values() ) partition.destroy();
+		partitions.clear();
+	}
+	
+	public String toString() 
+	{
+		return "atomikos partitioned connection pool '" + properties.getUniqueResourceName() + "'";
+	}
+	
+	private static class PartitionProperties implements ConnectionPoolProperties 
+	{
+		private final ConnectionPoolProperties delegate;
+		
+		PartitionProperties ( ConnectionPoolProperties delegate ) 
+		{
+			this.delegate = delegate;
+		}
+		
+		public String getUniqueResourceName() { return delegate.getUniqueResourceName(); }
+		public int getMaxPoolSize() { return delegate.getMaxPoolSize(); }
+		//partitions shrink to zero so they can be evicted
+		public int getMinPoolSize() { return 0; }
+		public int getBorrowConnectionTimeout() { return delegate.getBorrowConnectionTimeout(); }
+		public int getReapTimeout() { return delegate.getReapTimeout(); }
+		public int getMaxIdleTime() { return delegate.getMaxIdleTime(); }
+		public int getMaxLifetime() { return delegate.getMaxLifetime(); }
+		public int getMaintenanceInterval() { return delegate.getMaintenanceInterval(); }
+		public String getTestQuery() { return delegate.getTestQuery(); }
+		public boolean getLocalTransactionMode() { return delegate.getLocalTransactionMode(); }
+		public int getDefaultIsolationLevel() { return delegate.getDefaultIsolationLevel(); }
+		public int getTestIdleTime() { return delegate.getTestIdleTime(); }
+		public int getValidationTimeout() { return delegate.getValidationTimeout(); }
+		public int getLeakDetectionThreshold() { return delegate.getLeakDetectionThreshold(); }
+		public int getBorrowStackSampleRate() { return delegate.getBorrowStackSampleRate(); }
+	}
+}
@@ -0,0 +1,23 @@
+package com.atomikos.datasource.pool.event;
+
+import com.atomikos.datasource.pool.XPooledConnection;
+
+public class PooledConnectionLeakSuspectedEvent extends PooledConnectionEvent {
+
+	private static final long serialVersionUID = 1L;
+	
+	public long borrowTime;
+	
+	/**
+	 * The stack trace of the borrowing thread, or null if the borrow was not sampled.
+	 */
+	public String borrowStack;
+
+	public PooledConnectionLeakSuspectedEvent(String uniqueResourceName,
+			XPooledConnection pc, long borrowTime, String borrowStack) {
+		super(uniqueResourceName, pc);
+		this.borrowTime = borrowTime;
+		this.borrowStack = borrowStack;
+	}
+
+}
@@ -25,6 +25,8 @@
 
 package com.atomikos.datasource.xa;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.transaction.xa.Xid;
 
 /**
@@ -43,19 +45,39 @@ public abstract class AbstractXidFactory implements XidFactory
 
    private static final int MAX_LENGTH_OF_COUNTER = 8;
 //default scope for testing issue 10086
-   static long counter = 0;
+   static final AtomicLong counter = new AtomicLong ();
 
     // to make sure that XIDs for the same
     // combination of TM,TID are still unique
 
     protected static void incCounter ()
     {
-        counter++;
+        nextCounter ();
     }
 
     protected static long getCounter ()
     {
-        return counter;
+        return counter.get ();
+    }
+
+    private static long nextCounter ()
+    {
+    	long current, next;
+    	do {
+    		current = counter.get ();
+    		next = current == Long.MAX_VALUE ? 1 : current + 1;
+    	} while ( !counter.compareAndSet ( current , next ) );
+    	return next;
+    }
+
+    private static int digits ( long value )
+    {
+    	int ret = 1;
+    	while ( value >= 10 ) {
+    		value /= 10;
+    		ret++;
+    	}
+    	return ret;
     }
 
     public AbstractXidFactory ()
@@ -71,17 +93,26 @@ public abstract class AbstractXidFactory implements XidFactory
     public Xid createXid ( String tid , String resourcename )
     {
 
-    	if ( resourcename.getBytes().length + MAX_LENGTH_OF_COUNTER > XID.MAXBQUALSIZE ) {
+    	byte[] resourcenameBytes = resourcename.getBytes();
+    	if ( resourcenameBytes.length + MAX_LENGTH_OF_COUNTER > XID.MAXBQUALSIZE ) {
     		// see case 73086
     		throw new IllegalArgumentException ( "Value too long: " + resourcename );
     	}
 
         // first increment counter to make sure it is
         // different from the last call that was done
-        // by the SAME tid (works because calls within
-        // one TID are serial)
-        incCounter ();
-        return new XID ( tid, resourcename + getCounter () );
+        // by the SAME tid
+        long count = nextCounter ();
+        byte[] tidBytes = tid.getBytes();
+        int countLength = digits ( count );
+        // write resource name and counter digits into the XID's branch directly
+        byte[] branch = new byte[resourcenameBytes.length + countLength];
+        System.arraycopy ( resourcenameBytes , 0 , branch , 0 , resourcenameBytes.length );
+        for ( int i = branch.length - 1 ; i >= resourcenameBytes.length ; i-- ) {
+        	branch[i] = (byte) ( '0' + count % 10 );
+        	count /= 10;
+        }
+        return new XID ( XID.DEFAULT_FORMAT , tidBytes , branch );
     }
 
 }
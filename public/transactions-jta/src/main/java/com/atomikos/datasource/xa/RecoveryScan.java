@@ -1,7 +1,8 @@
 package com.atomikos.datasource.xa;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
@@ -10,18 +11,35 @@ import javax.transaction.xa.Xid;
 public class RecoveryScan {
 	
 	static interface XidSelector {
+		/**
+		 * Called once for every distinct Xid returned by the scan, in the order
+		 * of the resource's recover batches.
+		 * 
+		 * @param xid The vendor's Xid instance (not yet wrapped).
+		 * @return True if the xid is ours.
+		 */
 		boolean selects(Xid xid);
 	}
 	
-	static List<Xid> recoverXids(XAResource xaResource, XidSelector selector) throws XAException {
-		List<Xid> ret = new ArrayList<Xid>();
+	static int recoverXids(XAResource xaResource, XidSelector selector) throws XAException {
+		return recoverXids(xaResource, selector, null);
+	}
+	
+	/**
+	 * Streams the Xids of the resource through the selector, without collecting them.
+	 * 
+	 * @param statistics The statistics to record the recover calls in, or null.
+	 * @return The number of Xids selected.
+	 */
+	static int recoverXids(XAResource xaResource, XidSelector selector, XAResourceStatistics statistics) throws XAException {
+		int ret = 0;
 
         boolean done = false;
         int flags = XAResource.TMSTARTRSCAN;
         Xid[] xidsFromLastScan = null;
-        List<Xid> allRecoveredXidsSoFar = new ArrayList<Xid>();
+        Set<XidKey> allRecoveredXidsSoFar = new HashSet<XidKey>();
         do {
-        	xidsFromLastScan = xaResource.recover(flags);
+        	xidsFromLastScan = recover(xaResource, flags, statistics);
             flags = XAResource.TMNOFLAGS;
             done = (xidsFromLastScan == null || xidsFromLastScan.length == 0);
             if (!done) {
@@ -34,21 +52,80 @@ public class RecoveryScan {
 
                 done = true;
                 for ( int i = 0; i < xidsFromLastScan.length; i++ ) {
-                    Xid xid = new XID ( xidsFromLastScan[i] );
-                    // our own XID implements equals and hashCode properly
-                    if (!allRecoveredXidsSoFar.contains(xid)) {
+                    Xid xid = xidsFromLastScan[i];
+                    if (allRecoveredXidsSoFar.add(new XidKey(xid))) {
                         // a new xid is returned -> we can not be in a recovery loop -> go on
-                        allRecoveredXidsSoFar.add(xid);
                         done = false;
                         if (selector.selects(xid)) {
-                        	ret.add(xid);
+                        	ret++;
                         }
                     }
                 }
+                // let the driver's batch be collected before fetching the next one
+                xidsFromLastScan = null;
             }
         } while (!done);
 		
 		return ret;
 	}
-}
+	
+	private static Xid[] recover(XAResource xaResource, int flags, XAResourceStatistics statistics) throws XAException {
+		if (statistics == null) return xaResource.recover(flags);
+		long start = statistics.begin(XAResourceStatistics.Operation.RECOVER);
+		try {
+			return xaResource.recover(flags);
+		} catch (XAException e) {
+			statistics.failed(XAResourceStatistics.Operation.RECOVER, e.errorCode);
+			throw e;
+		} finally {
+			statistics.end(XAResourceStatistics.Operation.RECOVER, start);
+		}
+	}
+	
+	/**
+	 * Tests if the branch qualifier of the given xid starts with the given bytes,
+	 * without copying or decoding the branch.
+	 */
+	static boolean branchStartsWith(Xid xid, byte[] prefix) {
+		byte[] branch = xid.getBranchQualifier();
+		if (branch == null || branch.length < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (branch[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Lightweight dedup key: no copying, no String conversion and a hash computed once.
+	 * Vendor Xids need not implement equals and hashCode, so we can't use them directly.
+	 */
+	private static final class XidKey {
+		
+		private final byte[] globalTransactionId;
+		private final byte[] branchQualifier;
+		private final int formatId;
+		private final int hash;
+		
+		XidKey(Xid xid) {
+			this.formatId = xid.getFormatId();
+			this.globalTransactionId = xid.getGlobalTransactionId();
+			this.branchQualifier = xid.getBranchQualifier();
+			this.hash = 31 * Arrays.hashCode(globalTransactionId) + Arrays.hashCode(branchQualifier);
+		}
 
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof XidKey)) return false;
+			XidKey other = (XidKey) obj;
+			return hash == other.hash && formatId == other.formatId &&
+					Arrays.equals(globalTransactionId, other.globalTransactionId) && 
+					Arrays.equals(branchQualifier, other.branchQualifier);
+		}
+	}
+}
@@ -31,6 +31,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.xa.Xid;
 
 import com.atomikos.datasource.ResourceException;
 import com.atomikos.datasource.ResourceTransaction;
@@ -39,13 +43,22 @@ import com.atomikos.icatch.CompositeTransaction;
 /**
  * A SiblingMapper encapsulates the policies for creating or reusing XA branches.
  * 
- * Assumption: there is one instance per root transaction, per resource.
+ * Assumption: there is one instance per root transaction, per resource. 
+ * Instances are therefore only contended by threads working for the same root.
+ * 
+ * Branches report their state changes, so the branches that serial siblings 
+ * can join are known without checking every branch of the root.
  */
 
 class SiblingMapper
 {
 
     protected Map<CompositeTransaction,List<XAResourceTransaction>> siblingsOfSameRoot;
+    // all branches of siblingsOfSameRoot, in creation order
+    private final List<XAResourceTransaction> allSiblings;
+    // the branches of allSiblings that are not active: for serial joins
+    // not guarded by this: updated by the branches while they change state
+    private final Set<XAResourceTransaction> inactiveSiblings;
     protected XATransactionalResource res;
 
     protected String root ;
@@ -53,30 +66,43 @@ class SiblingMapper
     SiblingMapper ( XATransactionalResource res , String root )
     {
         this.siblingsOfSameRoot = new HashMap<CompositeTransaction,List<XAResourceTransaction>>();
+        this.allSiblings = new ArrayList<XAResourceTransaction>();
+        this.inactiveSiblings = Collections.newSetFromMap ( new ConcurrentHashMap<XAResourceTransaction,Boolean>() );
         this.res = res;
         this.root = root;
     }
     
     private XAResourceTransaction findSiblingBranchToJoin(CompositeTransaction ct) {
-    	XAResourceTransaction ret = null;
-    	if (ct.isSerial()) {
-    		Iterator <List<XAResourceTransaction>> allSiblingLists = this.siblingsOfSameRoot.values().iterator();
-    		while (ret == null && allSiblingLists.hasNext()) {
-    			List<XAResourceTransaction> siblings = allSiblingLists.next();
-    			ret = findJoinableBranchInList(siblings);
-    		}
+    	if (!ct.isSerial() || !supportsTmJoin()) return null;
+    	Iterator<XAResourceTransaction> it = this.inactiveSiblings.iterator();
+    	while (it.hasNext()) {
+    		// double-check: the state may have changed since it was reported
+    		XAResourceTransaction candidate = it.next();
+    		if (candidate.supportsTmJoin()) return candidate;
     	}
-    	return ret;
+    	return null;
+    }
+
+    private boolean supportsTmJoin() {
+    	return !(this.res.usesWeakCompare() || this.res.acceptsAllXAResources());
+    }
+
+    /**
+     * Called by a branch of this mapper whenever its state changes.
+     */
+    void branchStateChanged(XAResourceTransaction branch) {
+    	if (branch.isActive()) this.inactiveSiblings.remove(branch);
+    	else this.inactiveSiblings.add(branch);
     }
     
     private XAResourceTransaction findJoinableBranchInList(List<XAResourceTransaction> siblings) {
-		XAResourceTransaction ret = null;
-		Iterator<XAResourceTransaction> it = siblings.iterator();
-		while (ret == null && it.hasNext()) {
-			XAResourceTransaction candidate = it.next();
-			if (candidate.supportsTmJoin()) ret = candidate;
+		if (siblings == null) return null;
+		// index-based to avoid iterator allocation: lists are typically very short
+		for (int i = 0; i < siblings.size(); i++) {
+			XAResourceTransaction candidate = siblings.get(i);
+			if (candidate.supportsTmJoin()) return candidate;
 		}
-		return ret;
+		return null;
 	}
 
 	protected synchronized ResourceTransaction findOrCreateBranchForTransaction(CompositeTransaction ct)
@@ -117,16 +143,16 @@ class SiblingMapper
 	}
 
 	private XAResourceTransaction findPreviousBranchToJoin(CompositeTransaction ct) {
-		List<XAResourceTransaction> candidates = findSiblingsForTransaction(ct);
-		return findJoinableBranchInList(candidates);
+		return findJoinableBranchInList(this.siblingsOfSameRoot.get(ct));
 	}
-
-	private List<XAResourceTransaction> findSiblingsForTransaction(CompositeTransaction ct) {
-		List<XAResourceTransaction> ret = this.siblingsOfSameRoot.get(ct);
-		if (ret == null) {
-			ret = new ArrayList<XAResourceTransaction>();
+	
+	/**
+	 * Adds the xids of all branches that are still mapped (i.e., not terminated yet).
+	 */
+	synchronized void collectXids(Set<Xid> xids) {
+		for (int i = 0; i < this.allSiblings.size(); i++) {
+			xids.add(new XID(this.allSiblings.get(i).getXid()));
 		}
-		return Collections.unmodifiableList(ret);
 	}
 	
 	private void rememberBranch(CompositeTransaction ct, XAResourceTransaction branch) {
@@ -136,5 +162,7 @@ class SiblingMapper
 			this.siblingsOfSameRoot.put(ct,list);
 		}
 		list.add(branch);
+		this.allSiblings.add(branch);
+		branch.setSiblingMapper(this);
 	}
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.datasource.xa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.atomikos.datasource.xa.event.XAOperationFailedEvent;
+import com.atomikos.publish.EventPublisher;
+import com.atomikos.util.LatencyHistogram;
+
+/**
+ * Latency, in-flight and error statistics of the XA calls done on 
+ * one resource (per unique resource name). Recording is allocation-free
+ * except for the first error with a given error code. Failures are also
+ * published as events.
+ * 
+ * This class does not register itself with JMX.
+ */
+
+public class XAResourceStatistics implements XAResourceStatisticsMBean 
+{
+	public static enum Operation {
+		START, END, PREPARE, COMMIT, ROLLBACK, FORGET, RECOVER;
+		
+		final String displayName = name().toLowerCase();
+	}
+	
+	private static final ConcurrentMap<String,XAResourceStatistics> instances = new ConcurrentHashMap<String,XAResourceStatistics>();
+	
+	/**
+	 * @param uniqueResourceName
+	 * @return The (shared) instance for the given resource.
+	 */
+	public static XAResourceStatistics getInstance ( String uniqueResourceName ) 
+	{
+		XAResourceStatistics ret = instances.get ( uniqueResourceName );
+		if ( ret == null ) {
+			XAResourceStatistics created = new XAResourceStatistics ( uniqueResourceName );
+			ret = instances.putIfAbsent ( uniqueResourceName , created );
+			if ( ret == null ) ret = created;
+		}
+		return ret;
+	}
+	
+	private final String uniqueResourceName;
+	private final LatencyHistogram[] latencies;
+	private final AtomicLongArray inFlight;
+	private final ConcurrentMap<String,AtomicLong> errorCounts = new ConcurrentHashMap<String,AtomicLong>();
+	
+	XAResourceStatistics ( String uniqueResourceName ) 
+	{
+		this.uniqueResourceName = uniqueResourceName;
+		Operation[] ops = Operation.values();
+		this.latencies = new LatencyHistogram[ops.length];
+		for ( int i = 0 ; i < ops.length ; i++ ) latencies[i] = new LatencyHistogram();
+		this.inFlight = new AtomicLongArray ( ops.length );
+	}
+	
+	/**
+	 * Notification that an XA call is about to be made.
+	 * 
+	 * @return The start time, to pass to {@link #end(Operation, long)}.
+	 */
+	public long begin ( Operation op ) 
+	{
+		inFlight.incrementAndGet ( op.ordinal() );
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Notification that an XA call has returned, normally or not.
+	 */
+	public void end ( Operation op , long start ) 
+	{
+		inFlight.decrementAndGet ( op.ordinal() );
+		latencies[op.ordinal()].record ( ( System.nanoTime() - start ) / 1000 );
+	}
+	
+	/**
+	 * Notification that an XA call has thrown an XAException.
+	 */
+	public void failed ( Operation op , int errorCode ) 
+	{
+		String key = op.displayName + " " + errorCode;
+		AtomicLong counter = errorCounts.get ( key );
+		if ( counter == null ) {
+			AtomicLong created = new AtomicLong();
+			counter = errorCounts.putIfAbsent ( key , created );
+			if ( counter == null ) counter = created;
+		}
+		counter.incrementAndGet();
+		EventPublisher.publish ( new XAOperationFailedEvent ( uniqueResourceName , op.displayName , errorCode ) );
+	}
+	
+	private static Operation toOperation ( String name ) 
+	{
+		return Operation.valueOf ( name.toUpperCase() );
+	}
+
+	public String getUniqueResourceName() 
+	{
+		return uniqueResourceName;
+	}
+
+	public String[] getOperationSummaries() 
+	{
+		List<String> ret = new ArrayList<String>();
+		for ( Operation op : Operation.values() ) {
+			LatencyHistogram h = latencies[op.ordinal()];
+			ret.add ( op.displayName + ": count=" + h.getCount() + " inFlight=" + inFlight.get ( op.ordinal() ) + 
+					" median=" + h.getPercentile ( 50 ) + "us p99=" + h.getPercentile ( 99 ) + "us max=" + h.getMax() + "us" );
+		}
+		return ret.toArray ( new String[0] );
+	}
+
+	public long getCount ( String operation ) 
+	{
+		return latencies[toOperation ( operation ).ordinal()].getCount();
+	}
+
+	public long getInFlight ( String operation ) 
+	{
+		return inFlight.get ( toOperation ( operation ).ordinal() );
+	}
+
+	public long getLatencyMedian ( String operation ) 
+	{
+		return latencies[toOperation ( operation ).ordinal()].getPercentile ( 50 );
+	}
+
+	public long getLatency99thPercentile ( String operation ) 
+	{
+		return latencies[toOperation ( operation ).ordinal()].getPercentile ( 99 );
+	}
+
+	public long getLatencyMax ( String operation ) 
+	{
+		return latencies[toOperation ( operation ).ordinal()].getMax();
+	}
+
+	public String[] getErrorCounts() 
+	{
+		List<String> ret = new ArrayList<String>();
+		for ( Map.Entry<String,AtomicLong> entry : errorCounts.entrySet() ) {
+			ret.add ( entry.getKey() + ": " + entry.getValue().get() );
+		}
+		return ret.toArray ( new String[0] );
+	}
+
+	public void reset() 
+	{
+		for ( LatencyHistogram h : latencies ) h.reset();
+		errorCounts.clear();
+	}
+}
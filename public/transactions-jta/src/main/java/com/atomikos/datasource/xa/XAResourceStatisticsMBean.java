@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.datasource.xa;
+
+/**
+ * An MBean interface for monitoring the XA calls done on one resource:
+ * how long they take, how many are in progress and how often they fail.
+ * Operations are named start, end, prepare, commit, rollback, forget or recover.
+ */
+
+public interface XAResourceStatisticsMBean 
+{
+	public String getUniqueResourceName();
+	
+	/**
+	 * @return One line per operation with its count, in-flight calls and latencies.
+	 */
+	public String[] getOperationSummaries();
+	
+	public long getCount ( String operation );
+	
+	/**
+	 * @return The number of calls of the operation that are currently in progress.
+	 */
+	public long getInFlight ( String operation );
+	
+	/**
+	 * @return The approximate median duration (in microseconds) of the operation.
+	 */
+	public long getLatencyMedian ( String operation );
+	
+	/**
+	 * @return The approximate 99th percentile of the duration (in microseconds) of the operation.
+	 */
+	public long getLatency99thPercentile ( String operation );
+	
+	public long getLatencyMax ( String operation );
+	
+	/**
+	 * @return One line per operation and XAException error code, with the number of failures.
+	 */
+	public String[] getErrorCounts();
+	
+	public void reset();
+}
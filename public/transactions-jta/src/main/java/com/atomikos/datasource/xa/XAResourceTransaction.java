@@ -43,6 +43,7 @@ import javax.transaction.xa.Xid;
 import com.atomikos.datasource.RecoverableResource;
 import com.atomikos.datasource.ResourceException;
 import com.atomikos.datasource.ResourceTransaction;
+import com.atomikos.datasource.xa.XAResourceStatistics.Operation;
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.icatch.DataSerializable;
 import com.atomikos.icatch.HeurCommitException;
@@ -50,6 +51,7 @@ import com.atomikos.icatch.HeurHazardException;
 import com.atomikos.icatch.HeurMixedException;
 import com.atomikos.icatch.HeurRollbackException;
 import com.atomikos.icatch.Participant;
+import com.atomikos.icatch.ResourceManagerAwareParticipant;
 import com.atomikos.icatch.RollbackException;
 import com.atomikos.icatch.SysException;
 import com.atomikos.icatch.TransactionControl;
@@ -66,7 +68,7 @@ import com.atomikos.util.SerializationUtils;
  */
 
 public class XAResourceTransaction implements ResourceTransaction,
-		Externalizable, Participant, DataSerializable {
+		Externalizable, ResourceManagerAwareParticipant, DataSerializable {
 	private static final Logger LOGGER = LoggerFactory
 			.createLogger(XAResourceTransaction.class);
 
@@ -165,9 +167,14 @@ public class XAResourceTransaction implements ResourceTransaction,
 	}
 
 	private transient XATransactionalResource resource;
+	// the mapper to report state changes to, if any
+	private transient volatile SiblingMapper siblingMapper;
 	private transient XAResource xaresource;
 	private transient boolean knownInResource;
 	private transient int timeout;
+	private transient XAResourceStatistics statistics;
+	private transient volatile boolean endPending;
+	// true if locally done but XA end was deferred: xaresource is still associated
 
 	public XAResourceTransaction() {
 		// needed for externalization mechanism
@@ -197,6 +204,14 @@ public class XAResourceTransaction implements ResourceTransaction,
 
 	void setState(TxState state) {
 		this.state = state;
+		SiblingMapper mapper = this.siblingMapper;
+		if (mapper != null) mapper.branchStateChanged(this);
+		if (TxState.TERMINATED.equals(state)) endTwoPhaseCommitInResource();
+	}
+
+	void setSiblingMapper(SiblingMapper mapper) {
+		this.siblingMapper = mapper;
+		mapper.branchStateChanged(this);
 	}
 
 	static String xidToHexString(Xid xid) {
@@ -280,6 +295,24 @@ public class XAResourceTransaction implements ResourceTransaction,
 			this.resource.removeSiblingMap(this.root);
 	}
 
+	/**
+	 * Like terminateInResource, but keeps our xid safe from presumed abort 
+	 * in the resource until the outcome is known in the back-end.
+	 */
+
+	private void startTwoPhaseCommitInResource() {
+		if (this.resource != null) {
+			// before removing the sibling map, or recovery might miss our xid in between
+			this.resource.twoPhaseCommitStarted(this.xid);
+			this.resource.removeSiblingMap(this.root);
+		}
+	}
+
+	private void endTwoPhaseCommitInResource() {
+		if (this.resource != null && this.xid != null)
+			this.resource.twoPhaseCommitEnded(this.xid);
+	}
+
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
 		out.writeObject(this.xid);
@@ -350,7 +383,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 							+ " represented by XAResource instance "
 							+ this.xaresource);
 				}
-				this.xaresource.end(this.xid, XAResource.TMSUCCESS);
+				xaEnd(XAResource.TMSUCCESS);
 
 			} catch (XAException xaerr) {
 				String msg = interpretErrorCode(this.resourcename, "end",
@@ -363,6 +396,137 @@ public class XAResourceTransaction implements ResourceTransaction,
 		}
 	}
 
+	private XAResourceStatistics getStatistics() {
+		if (this.statistics == null) {
+			this.statistics = XAResourceStatistics.getInstance(this.resourcename);
+		}
+		return this.statistics;
+	}
+
+	// the following wrap the XA calls on our xaresource with statistics
+
+	private void xaStart(int flags) throws XAException {
+		long start = getStatistics().begin(Operation.START);
+		try {
+			this.xaresource.start(this.xid, flags);
+		} catch (XAException e) {
+			getStatistics().failed(Operation.START, e.errorCode);
+			throw e;
+		} finally {
+			getStatistics().end(Operation.START, start);
+		}
+	}
+
+	private void xaEnd(int flags) throws XAException {
+		long start = getStatistics().begin(Operation.END);
+		try {
+			this.xaresource.end(this.xid, flags);
+		} catch (XAException e) {
+			getStatistics().failed(Operation.END, e.errorCode);
+			throw e;
+		} finally {
+			getStatistics().end(Operation.END, start);
+		}
+	}
+
+	private int xaPrepare() throws XAException {
+		long start = getStatistics().begin(Operation.PREPARE);
+		try {
+			return this.xaresource.prepare(this.xid);
+		} catch (XAException e) {
+			getStatistics().failed(Operation.PREPARE, e.errorCode);
+			throw e;
+		} finally {
+			getStatistics().end(Operation.PREPARE, start);
+		}
+	}
+
+	private void xaCommit(boolean onePhase) throws XAException {
+		long start = getStatistics().begin(Operation.COMMIT);
+		try {
+			this.xaresource.commit(this.xid, onePhase);
+		} catch (XAException e) {
+			getStatistics().failed(Operation.COMMIT, e.errorCode);
+			throw e;
+		} finally {
+			getStatistics().end(Operation.COMMIT, start);
+		}
+	}
+
+	private void xaRollback() throws XAException {
+		long start = getStatistics().begin(Operation.ROLLBACK);
+		try {
+			this.xaresource.rollback(this.xid);
+		} catch (XAException e) {
+			getStatistics().failed(Operation.ROLLBACK, e.errorCode);
+			throw e;
+		} finally {
+			getStatistics().end(Operation.ROLLBACK, start);
+		}
+	}
+
+	private void xaForget() throws XAException {
+		long start = getStatistics().begin(Operation.FORGET);
+		try {
+			this.xaresource.forget(this.xid);
+		} catch (XAException e) {
+			getStatistics().failed(Operation.FORGET, e.errorCode);
+			throw e;
+		} finally {
+			getStatistics().end(Operation.FORGET, start);
+		}
+	}
+
+	/**
+	 * Marks the branch as locally done, but defers the XA end until prepare
+	 * (or until the xaresource is needed for another branch). If the same
+	 * connection is enlisted again in this branch then no XA calls are needed.
+	 */
+	public synchronized void suspendWithLazyEnd() {
+		if (!supportsLazyEnd()) {
+			suspend();
+		} else if (this.state.equals(TxState.ACTIVE)) {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.logDebug("Deferring XAResource.end ( " + this.xidToHexString
+						+ " ) on resource " + this.resourcename);
+			}
+			this.endPending = true;
+			setState(TxState.LOCALLY_DONE);
+			this.resource.registerPendingEnd(this.xaresource, this);
+		}
+	}
+
+	private boolean supportsLazyEnd() {
+		// lazy end assumes the next enlist on this connection joins us
+		return !(this.resource.usesWeakCompare() || this.resource.acceptsAllXAResources());
+	}
+
+	/**
+	 * Performs the XA end deferred by suspendWithLazyEnd, if any.
+	 */
+	synchronized void endIfPending() {
+		if (this.endPending) {
+			this.endPending = false;
+			this.resource.unregisterPendingEnd(this.xaresource, this);
+			try {
+				if (LOGGER.isInfoEnabled()) {
+					LOGGER.logInfo("XAResource.end ( " + this.xidToHexString
+							+ " , XAResource.TMSUCCESS ) on resource "
+							+ this.resourcename
+							+ " represented by XAResource instance "
+							+ this.xaresource);
+				}
+				xaEnd(XAResource.TMSUCCESS);
+			} catch (XAException xaerr) {
+				String msg = interpretErrorCode(this.resourcename, "end",
+						this.xid, xaerr.errorCode);
+				if (LOGGER.isDebugEnabled())
+					LOGGER.logDebug(msg, xaerr);
+				// don't throw: same as suspend
+			}
+		}
+	}
+
 	boolean supportsTmJoin() {
 		return !(this.resource.usesWeakCompare()
 				|| this.resource.acceptsAllXAResources() || isActive());
@@ -377,6 +541,17 @@ public class XAResourceTransaction implements ResourceTransaction,
 		int flag = 0;
 		Stack errors = new Stack();
 		String logFlag = "";
+		if (this.endPending) {
+			// still associated with the same xaresource: see setXAResource
+			this.endPending = false;
+			this.resource.unregisterPendingEnd(this.xaresource, this);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.logDebug("Reusing XA association of " + this.xidToHexString
+						+ " on resource " + this.resourcename);
+			}
+			setState(TxState.ACTIVE);
+			return;
+		}
 		if (this.state.equals(TxState.LOCALLY_DONE)) {// reused instance
 			flag = XAResource.TMJOIN;
 			logFlag = "XAResource.TMJOIN";
@@ -395,7 +570,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 						+ " represented by XAResource instance "
 						+ this.xaresource);
 			}
-			this.xaresource.start(this.xid, flag);
+			xaStart(flag);
 
 		} catch (XAException xaerr) {
 			String msg = interpretErrorCode(this.resourcename, "resume",
@@ -492,7 +667,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 		terminateInResource();
 		try {
 			if (this.xaresource != null) { // null if recovery failed
-				this.xaresource.forget(this.xid);
+				xaForget();
 			}
 		} catch (Exception err) {
 			LOGGER.logDebug("Error forgetting xid: " + this.xid, err);
@@ -509,7 +684,8 @@ public class XAResourceTransaction implements ResourceTransaction,
 	public synchronized int prepare() throws RollbackException,
 			HeurHazardException, HeurMixedException, SysException {
 		int ret = 0;
-		terminateInResource();
+		startTwoPhaseCommitInResource();
+		endIfPending();
 
 		if (TxState.ACTIVE.equals(this.state)) {
 			// tolerate non-delisting apps/servers
@@ -530,7 +706,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 				LOGGER.logDebug("About to call prepare on XAResource instance: "
 						+ this.xaresource);
 			}
-			ret = this.xaresource.prepare(this.xid);
+			ret = xaPrepare();
 
 		} catch (XAException xaerr) {
 			String msg = interpretErrorCode(this.resourcename, "prepare",
@@ -545,6 +721,8 @@ public class XAResourceTransaction implements ResourceTransaction,
 		}
 		setState(TxState.IN_DOUBT);
 		if (ret == XAResource.XA_RDONLY) {
+			// the back-end has forgotten the branch: no commit or rollback will follow
+			endTwoPhaseCommitInResource();
 			if (LOGGER.isInfoEnabled()) {
 				LOGGER.logInfo("XAResource.prepare ( " + this.xidToHexString
 						+ " ) returning XAResource.XA_RDONLY " + "on resource "
@@ -573,12 +751,11 @@ public class XAResourceTransaction implements ResourceTransaction,
 	public synchronized void rollback()
 			throws HeurCommitException, HeurMixedException,
 			HeurHazardException, SysException {
-		terminateInResource();
+		startTwoPhaseCommitInResource();
+		endIfPending();
 
-		if (rollbackShouldDoNothing()) {
-			return;
-		}
-		if (this.state.equals(TxState.TERMINATED)) {
+		if (rollbackShouldDoNothing() || this.state.equals(TxState.TERMINATED)) {
+			endTwoPhaseCommitInResource();
 			return;
 		}
 
@@ -607,7 +784,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 						+ " represented by XAResource instance "
 						+ this.xaresource);
 			}
-			this.xaresource.rollback(this.xid);
+			xaRollback();
 
 		} catch (ResourceException resErr) {
 			// failure of suspend
@@ -674,10 +851,13 @@ public class XAResourceTransaction implements ResourceTransaction,
 	public synchronized void commit(boolean onePhase)
 			throws HeurRollbackException, HeurHazardException,
 			HeurMixedException, RollbackException, SysException {
-		terminateInResource();
+		startTwoPhaseCommitInResource();
+		endIfPending();
 
-		if (this.state.equals(TxState.TERMINATED))
+		if (this.state.equals(TxState.TERMINATED)) {
+			endTwoPhaseCommitInResource();
 			return;
+		}
 		if (this.state.equals(TxState.HEUR_MIXED))
 			throw new HeurMixedException();
 		if (this.state.equals(TxState.HEUR_ABORTED))
@@ -699,6 +879,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 			// happens if already rolled back or something else;
 			// in any case the transaction can be trusted to act
 			// as if rollback already happened
+			endTwoPhaseCommitInResource();
 			throw new com.atomikos.icatch.RollbackException(re.getMessage());
 		}
 
@@ -717,7 +898,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 						+ " represented by XAResource instance "
 						+ this.xaresource);
 			}
-			this.xaresource.commit(this.xid, onePhase);
+			xaCommit(onePhase);
 
 		} catch (XAException xaerr) {
 			String msg = interpretErrorCode(this.resourcename, "commit",
@@ -729,9 +910,11 @@ public class XAResourceTransaction implements ResourceTransaction,
 
 				if (!onePhase)
 					throw new SysException(msg, xaerr);
-				else
+				else {
+					endTwoPhaseCommitInResource();
 					throw new com.atomikos.icatch.RollbackException(
 							"Already rolled back in resource.");
+				}
 			} else {
 				switch (xaerr.errorCode) {
 				case XAException.XA_HEURHAZ:
@@ -838,6 +1021,15 @@ public class XAResourceTransaction implements ResourceTransaction,
 	 */
 
 	public void setXAResource(XAResource xaresource) {
+		if (this.endPending && xaresource != this.xaresource) {
+			endIfPending();
+		}
+		// the xaresource may still be associated with another branch
+		if (this.resource != null) this.resource.endPendingBranch(xaresource, this);
+		if (this.endPending && xaresource == this.xaresource) {
+			// lazy end: still associated, nothing to switch
+			return;
+		}
 		if (LOGGER.isDebugEnabled())
 			LOGGER.logDebug(this + ": about to switch to XAResource "
 					+ xaresource);
@@ -872,7 +1064,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 							+ " represented by XAResource instance "
 							+ this.xaresource);
 				}
-				this.xaresource.end(this.xid, XAResource.TMSUSPEND);
+				xaEnd(XAResource.TMSUSPEND);
 
 				this.isXaSuspended = true;
 			} catch (XAException xaerr) {
@@ -897,7 +1089,7 @@ public class XAResourceTransaction implements ResourceTransaction,
 						+ " represented by XAResource instance "
 						+ this.xaresource);
 			}
-			this.xaresource.start(this.xid, XAResource.TMRESUME);
+			xaStart(XAResource.TMRESUME);
 
 			this.isXaSuspended = false;
 		} catch (XAException xaerr) {
@@ -940,6 +1132,15 @@ public class XAResourceTransaction implements ResourceTransaction,
 		return this.resourcename;
 	}
 
+	/**
+	 * @see com.atomikos.icatch.ResourceManagerAwareParticipant#getResourceManagerId()
+	 */
+	@Override
+	public String getResourceManagerId() {
+		// one resource per RM: its isSameRM checks already grouped our branches
+		return this.resourcename;
+	}
+
 	XAResource getXAResource() {
 		return this.xaresource;
 	}
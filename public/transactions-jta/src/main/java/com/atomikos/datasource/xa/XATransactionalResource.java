@@ -25,9 +25,18 @@
 
 package com.atomikos.datasource.xa;
 
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
@@ -36,6 +45,7 @@ import javax.transaction.xa.Xid;
 import com.atomikos.datasource.RecoverableResource;
 import com.atomikos.datasource.ResourceException;
 import com.atomikos.datasource.ResourceTransaction;
+import com.atomikos.datasource.ScanningRecoverableResource;
 import com.atomikos.datasource.TransactionalResource;
 import com.atomikos.datasource.xa.RecoveryScan.XidSelector;
 import com.atomikos.icatch.CompositeTransaction;
@@ -44,6 +54,7 @@ import com.atomikos.icatch.RecoveryService;
 import com.atomikos.icatch.SysException;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
+import com.atomikos.thread.InterruptedExceptionHelper;
 
 
 /**
@@ -61,16 +72,24 @@ import com.atomikos.logging.LoggerFactory;
  * ResourceTransaction instances.
  */
 
-public abstract class XATransactionalResource implements TransactionalResource
+public abstract class XATransactionalResource implements TransactionalResource, ScanningRecoverableResource
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(XATransactionalResource.class);
 
     protected XAResource xares_;
     protected String servername;
-    protected Hashtable recoveredXidMap;
-    protected Hashtable rootTransactionToSiblingMapperMap;
+    protected Hashtable<Xid,Object> recoveredXidMap;
+    // keys are the recovered xids; null between recovery scans
+    private final ConcurrentMap<String,SiblingMapper> rootTransactionToSiblingMapperMap;
+    private final Map<XAResource,XAResourceTransaction> branchesWithPendingEnd = new IdentityHashMap<XAResource,XAResourceTransaction>();
+    private final Set<Xid> xidsInTwoPhaseCommit = Collections.newSetFromMap ( new ConcurrentHashMap<Xid,Boolean>() );
+    // branches that are no longer mapped, but whose outcome is not yet known in the back-end
     protected XidFactory xidFact;
     private boolean closed;
+    private final ReentrantLock recoveryLock = new ReentrantLock ();
+    // guards the recovered xids: held while scanning, ending recovery or recovering a participant
+    private volatile boolean scanOrEndRecoveryInProgress;
+    // true while the lock is held for a scan or endRecovery, which can take long
 
     private boolean weakCompare;
     // if true: do NOT delegate usesXAResource calls
@@ -100,7 +119,7 @@ public abstract class XATransactionalResource implements TransactionalResource
     {
 
         this.servername = servername;
-        this.rootTransactionToSiblingMapperMap = new Hashtable ();
+        this.rootTransactionToSiblingMapperMap = new ConcurrentHashMap<String,SiblingMapper> ();
         // name should be less than 64 for xid compatibility
 
         //branch id is server name + long value!
@@ -162,25 +181,72 @@ public abstract class XATransactionalResource implements TransactionalResource
         return this.xidFact;
     }
 
+    /**
+     * Gets the sibling mappers by root transaction id. Replaces the former 
+     * rootTransactionToSiblingMapperMap field for subclasses: the map is no 
+     * longer a Hashtable, so that enlisting needs no global lock.
+     *
+     * @return A read-only, live view.
+     */
+
+    protected Map<String,Object> getRootTransactionToSiblingMapperMap ()
+    {
+        return Collections.<String,Object>unmodifiableMap ( this.rootTransactionToSiblingMapperMap );
+    }
+
     void removeSiblingMap ( String root )
     {
-        synchronized ( this.rootTransactionToSiblingMapperMap ) {
-            this.rootTransactionToSiblingMapperMap.remove ( root );
+        this.rootTransactionToSiblingMapperMap.remove ( root );
+    }
+
+    void twoPhaseCommitStarted ( Xid xid )
+    {
+        this.xidsInTwoPhaseCommit.add ( xid );
+    }
+
+    void twoPhaseCommitEnded ( Xid xid )
+    {
+        this.xidsInTwoPhaseCommit.remove ( xid );
+    }
+
+    void registerPendingEnd ( XAResource xaresource , XAResourceTransaction branch )
+    {
+        synchronized ( this.branchesWithPendingEnd ) {
+            this.branchesWithPendingEnd.put ( xaresource , branch );
         }
+    }
 
+    void unregisterPendingEnd ( XAResource xaresource , XAResourceTransaction branch )
+    {
+        synchronized ( this.branchesWithPendingEnd ) {
+            if ( this.branchesWithPendingEnd.get ( xaresource ) == branch ) this.branchesWithPendingEnd.remove ( xaresource );
+        }
+    }
+
+    /**
+     * Ends the deferred XA association of the given xaresource, unless it is with the given branch.
+     */
+
+    void endPendingBranch ( XAResource xaresource , XAResourceTransaction except )
+    {
+        XAResourceTransaction pending = null;
+        synchronized ( this.branchesWithPendingEnd ) {
+            pending = this.branchesWithPendingEnd.get ( xaresource );
+        }
+        // outside the lock: endIfPending synchronizes on the branch
+        if ( pending != null && pending != except ) pending.endIfPending ();
     }
 
     SiblingMapper getSiblingMap ( String root )
     {
-        synchronized ( this.rootTransactionToSiblingMapperMap ) {
-            if ( this.rootTransactionToSiblingMapperMap.containsKey ( root ) )
-                return (SiblingMapper) this.rootTransactionToSiblingMapperMap.get ( root );
-            else {
-                SiblingMapper map = new SiblingMapper ( this , root );
-                this.rootTransactionToSiblingMapperMap.put ( root, map );
-                return map;
-            }
+        // no lock: enlisting threads of different roots should not contend here
+        SiblingMapper ret = this.rootTransactionToSiblingMapperMap.get ( root );
+        if ( ret == null ) {
+            SiblingMapper map = new SiblingMapper ( this , root );
+            ret = this.rootTransactionToSiblingMapperMap.putIfAbsent ( root , map );
+            if ( ret == null ) ret = map;
         }
+        return ret;
     }
 
     /**
@@ -446,17 +512,43 @@ public abstract class XATransactionalResource implements TransactionalResource
      */
 
     @Override
-	public synchronized boolean recover ( Participant participant )
+	public boolean recover ( Participant participant )
             throws ResourceException
     {
-    	boolean recovered = true;
-    	
         if ( this.closed ){ 
         	throw new IllegalStateException ("XATransactionResource already closed");
         }
         if ( !(participant instanceof XAResourceTransaction) ) {
             throw new ResourceException ( "Wrong argument class: " + participant.getClass ().getName () );
         }
+        if ( !lockUnlessScanningOrEndingRecovery() ) {
+        	// don't wait for a slow back-end: this resource's endRecovery is skipped as well
+        	if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Resource " + getName () + " is busy with recovery - not recovering " + participant );
+        	return false;
+        }
+        try {
+        	return recoverWhileLocked ( (XAResourceTransaction) participant );
+        } finally {
+        	this.recoveryLock.unlock ();
+        }
+    }
+
+    private boolean lockUnlessScanningOrEndingRecovery ()
+    {
+    	try {
+    		while ( !this.recoveryLock.tryLock ( 10 , TimeUnit.MILLISECONDS ) ) {
+    			if ( this.scanOrEndRecoveryInProgress ) return false;
+    		}
+    		return true;
+    	} catch ( InterruptedException e ) {
+    		InterruptedExceptionHelper.handleInterruptedException ( e );
+    		return false;
+    	}
+    }
+
+    private boolean recoverWhileLocked ( XAResourceTransaction xarestx )
+    {
+    	boolean recovered = true;
         
         XAResource xaresource = getXAResource ();
         
@@ -465,8 +557,6 @@ public abstract class XATransactionalResource implements TransactionalResource
             return false;
         }
 
-        XAResourceTransaction xarestx = (XAResourceTransaction) participant;
-
         recoverXidsFromResourceIfNecessary();
 
         if ( !this.recoveredXidMap.containsKey ( xarestx.getXid() ) ) {
@@ -492,7 +582,7 @@ public abstract class XATransactionalResource implements TransactionalResource
 
     protected void recover() throws ResourceException
     {
-        this.recoveredXidMap = new Hashtable ();
+        this.recoveredXidMap = new Hashtable<Xid,Object> ();
        
         if (this.branchIdentifier == null) {
         	LOGGER.logDebug("No recoveryService set yet!");
@@ -504,30 +594,34 @@ public abstract class XATransactionalResource implements TransactionalResource
                     + " with branchIdentifier " + this.branchIdentifier);
         }
         
+        final byte[] branchPrefix = this.branchIdentifier.getBytes ();
         try {
-			RecoveryScan.recoverXids(getXAResource(), 
+			int count = RecoveryScan.recoverXids(getXAResource(), 
 					new XidSelector() {
 						@Override
 						public boolean selects(Xid vendorXid) {
 							boolean ret = false;
-							String branch = new String ( vendorXid.getBranchQualifier () );
-							Xid xid = wrapWithOurOwnXidToHaveCorrectEqualsAndHashCode ( vendorXid );
-	                        if ( branch.startsWith ( branchIdentifier ) ) {
+							// filter before wrapping: foreign xids can be many
+	                        if ( RecoveryScan.branchStartsWith ( vendorXid , branchPrefix ) ) {
 	                        	ret = true;
-	                            recoveredXidMap.put ( xid, new Object () );
+	                        	Xid xid = wrapWithOurOwnXidToHaveCorrectEqualsAndHashCode ( vendorXid );
+	                            recoveredXidMap.put ( xid , Boolean.TRUE );
 	                            if(LOGGER.isInfoEnabled()){
 	                            	LOGGER.logInfo("Resource " + servername + " recovering XID: " + xid);
 	                            }
 	                        } else {
-	                        	if(LOGGER.isInfoEnabled()){
-	                        		LOGGER.logInfo("Resource " + servername + ": XID " + xid + 
-	                        		" with branch " + branch + " is not under my responsibility");
+	                        	if(LOGGER.isDebugEnabled()){
+	                        		LOGGER.logDebug("Resource " + servername + ": XID " + XID.getGlobalTransactionIdAsString ( vendorXid ) + 
+	                        		" with branch " + XID.getBranchQualifierAsString ( vendorXid ) + " is not under my responsibility");
 	                        	}
 	                        }
 	                        return ret;
 						}						
-					}
+					} , XAResourceStatistics.getInstance ( getName () )
 			);
+			if(LOGGER.isDebugEnabled()){
+				LOGGER.logDebug( "recovery found " + count + " XIDs for resource " + getName () );
+			}
         } catch ( NullPointerException ora ) {
         	//Typical for Oracle without XA setup
         	if ( getXAResource ().getClass ().getName ().toLowerCase ().indexOf ( "oracle" ) >= 0 ) {
@@ -555,34 +649,97 @@ public abstract class XATransactionalResource implements TransactionalResource
     {
         if ( this.closed ) throw new IllegalStateException ( "XATransactionResource already closed" );
 
-        if (getXAResource() != null) {
-        	recoverXidsFromResourceIfNecessary();       
-        	performPresumedAbortForRemainingXids();
+        lockForScanOrEndRecovery();
+        try {
+	        if (getXAResource() != null) {
+	        	recoverXidsFromResourceIfNecessary();       
+	        	performPresumedAbortForRemainingXids();
+	        }
+	    	resetForNextRecoveryScan();
+        } finally {
+        	unlockAfterScanOrEndRecovery();
         }
-    	resetForNextRecoveryScan();
         
         if(LOGGER.isDebugEnabled()){
         	LOGGER.logDebug("endRecovery() done for resource " + getName ());
         }
     }
 
+    /**
+     * @see ScanningRecoverableResource
+     */
+
+    public void scanForRecovery () throws ResourceException
+    {
+        if ( this.closed ) throw new IllegalStateException ( "XATransactionResource already closed" );
+
+        lockForScanOrEndRecovery();
+        try {
+        	//don't reuse an earlier scan: it may be older than the XIDs now in doubt
+        	resetForNextRecoveryScan();
+        	if ( getXAResource() != null ) recoverXidsFromResourceIfNecessary();
+        } finally {
+        	unlockAfterScanOrEndRecovery();
+        }
+    }
+
+    private void lockForScanOrEndRecovery ()
+    {
+        this.recoveryLock.lock ();
+        this.scanOrEndRecoveryInProgress = true;
+    }
+
+    private void unlockAfterScanOrEndRecovery ()
+    {
+        this.scanOrEndRecoveryInProgress = false;
+        this.recoveryLock.unlock ();
+    }
+
 	private void performPresumedAbortForRemainingXids() {
-		Enumeration toAbortList = this.recoveredXidMap.keys ();
+		Iterator<Xid> toAbortList = this.recoveredXidMap.keySet ().iterator ();
 		XAResource xaresource = getXAResource();
-        while ( toAbortList.hasMoreElements () ) {
-            XID xid = (XID) toAbortList.nextElement ();
+		XAResourceStatistics statistics = XAResourceStatistics.getInstance ( getName () );
+		Set<Xid> activeXids = getXidsOfActiveBranches();
+        while ( toAbortList.hasNext () ) {
+            Xid xid = toAbortList.next ();
+            if ( activeXids.contains ( xid ) ) {
+            	// recovery while transactions are running: the xid belongs to a live coordinator, not a recovered one
+            	if(LOGGER.isDebugEnabled()){
+            		LOGGER.logDebug("XID " + xid + " is still active - not aborting it on resource " + this.servername);
+            	}
+            	continue;
+            }
+            long start = statistics.begin ( XAResourceStatistics.Operation.ROLLBACK );
             try {
                 xaresource.rollback ( xid );
                 if(LOGGER.isInfoEnabled()){
                 	LOGGER.logInfo("XAResource.rollback ( " + xid + " ) called " + "on resource " + this.servername);
                 }
             } catch ( XAException xaerr ) {
+                statistics.failed ( XAResourceStatistics.Operation.ROLLBACK , xaerr.errorCode );
                 // here, an indoubt tx might remain in resource; we do nothing
                 // to prevent this and leave it to admin tools
+            } finally {
+                statistics.end ( XAResourceStatistics.Operation.ROLLBACK , start );
             }
         }
 	}
 
+	/**
+	 * Must be called after the recovery scan: any branch prepared before the scan
+	 * is either still mapped, in two-phase commit, or terminated. 
+	 * Branches leave the mappers only after entering two-phase commit, 
+	 * so the mappers must be read first.
+	 */
+	private Set<Xid> getXidsOfActiveBranches() {
+		Set<Xid> ret = new HashSet<Xid>();
+		for ( SiblingMapper mapper : this.rootTransactionToSiblingMapperMap.values() ) {
+			mapper.collectXids ( ret );
+		}
+		ret.addAll ( this.xidsInTwoPhaseCommit );
+		return ret;
+	}
+
 	private void resetForNextRecoveryScan() {
 		this.recoveredXidMap = null;
 	}
@@ -25,6 +25,10 @@
 
 package com.atomikos.datasource.xa;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Arrays;
 
@@ -32,6 +36,10 @@ import javax.transaction.xa.Xid;
 
 /**
  * Our Xid class with correct equals and hashCode.
+ * 
+ * The hash is computed once, so XIDs are cheap to use as map keys. 
+ * For the same reason, the getters return the internal arrays without 
+ * copying: callers (drivers included) must not modify them.
  */
 
 public class XID implements Serializable, Xid
@@ -39,24 +47,36 @@ public class XID implements Serializable, Xid
 
 	private static final long serialVersionUID = 4796496938014754464L;
 
-	private static final int DEFAULT_FORMAT = ('A' << 24) + ('T' << 16)
+	static final int DEFAULT_FORMAT = ('A' << 24) + ('T' << 16)
 			+ ('O' << 8) + 'M';
 	
 	// same formatID for each transaction
 	// -1 for null Xid, 0 for OSI CCR and positive for proprietary format...
 	
-	private String cachedToStringForPerformance;
-    private int formatId;
-    private byte[] branchQualifier = new byte[Xid.MAXBQUALSIZE];
-    private byte[] globalTransactionId = new byte[Xid.MAXGTRIDSIZE];
+	// keep the serial form of older releases so existing logs can be read
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField ( "cachedToStringForPerformance" , String.class ),
+		new ObjectStreamField ( "formatId" , int.class ),
+		new ObjectStreamField ( "branchQualifier" , byte[].class ),
+		new ObjectStreamField ( "globalTransactionId" , byte[].class )
+	};
+	
+	private int formatId;
+    private byte[] branchQualifier;
+    private byte[] globalTransactionId;
+    private transient int hash;
+    private transient String cachedToStringForPerformance;
 
-    private XID ( String tid )
+    XID ( int formatId , byte[] globalTransactionId , byte[] branchQualifier )
     {
-        this.formatId = DEFAULT_FORMAT;
-        this.branchQualifier[0] = 0;
-        this.globalTransactionId = tid.toString ().getBytes ();
-        if ( this.globalTransactionId.length > Xid.MAXGTRIDSIZE )
-        	throw new RuntimeException ( "Max global tid length exceeded." );
+    	if ( globalTransactionId.length > Xid.MAXGTRIDSIZE )
+    		throw new RuntimeException ( "Max global tid length exceeded." );
+    	if ( branchQualifier.length > Xid.MAXBQUALSIZE )
+    		throw new RuntimeException ( "Max branch qualifier length exceeded." );
+    	this.formatId = formatId;
+    	this.globalTransactionId = globalTransactionId;
+    	this.branchQualifier = branchQualifier;
+    	this.hash = computeHash ();
     }
 
     /**
@@ -75,12 +95,7 @@ public class XID implements Serializable, Xid
 
     public XID ( String tid , String resourceURL )
     {
-        this ( tid );
-        this.branchQualifier = resourceURL.getBytes ();
-        if ( this.branchQualifier.length > Xid.MAXBQUALSIZE )
-            throw new RuntimeException (
-                    "Max branch qualifier length exceeded." );
-
+        this ( DEFAULT_FORMAT , tid.getBytes () , resourceURL.getBytes () );
     }
 
     /**
@@ -94,9 +109,14 @@ public class XID implements Serializable, Xid
 
     public XID ( Xid xid )
     {
-        this.formatId = xid.getFormatId ();
-        this.globalTransactionId = xid.getGlobalTransactionId ();
-        this.branchQualifier = xid.getBranchQualifier ();
+    	// copy: the vendor's instance may reuse its arrays
+    	this ( xid.getFormatId () , xid.getGlobalTransactionId ().clone () , xid.getBranchQualifier ().clone () );
+    }
+
+    private int computeHash ()
+    {
+    	// formatId is not part of equals, so neither of the hash
+    	return 31 * Arrays.hashCode ( globalTransactionId ) + Arrays.hashCode ( branchQualifier );
     }
 
     @Override
@@ -126,8 +146,10 @@ public class XID implements Serializable, Xid
 			return false;
 		if (getClass() != obj.getClass())
 			return false;
-        Xid xid = (Xid) obj;
-        return Arrays.equals(xid.getGlobalTransactionId (),getGlobalTransactionId ()) && Arrays.equals(xid.getBranchQualifier (), getBranchQualifier ());
+        XID xid = (XID) obj;
+        return this.hash == xid.hash && 
+        		Arrays.equals ( this.globalTransactionId , xid.globalTransactionId ) && 
+        		Arrays.equals ( this.branchQualifier , xid.branchQualifier );
 
     }
 
@@ -135,8 +157,7 @@ public class XID implements Serializable, Xid
 	public String toString ()
     {
         if ( this.cachedToStringForPerformance == null ) {
-            this.cachedToStringForPerformance = getGlobalTransactionIdAsString(this)
-                    + getBranchQualifierAsString(this);
+            this.cachedToStringForPerformance = new String ( this.globalTransactionId ) + new String ( this.branchQualifier );
         }
         return this.cachedToStringForPerformance;
     }
@@ -152,6 +173,25 @@ public class XID implements Serializable, Xid
     @Override
 	public int hashCode ()
     {
-        return toString ().hashCode ();
+        return this.hash;
+    }
+
+    private void writeObject ( ObjectOutputStream out ) throws IOException
+    {
+    	ObjectOutputStream.PutField fields = out.putFields ();
+    	fields.put ( "cachedToStringForPerformance" , null );
+    	fields.put ( "formatId" , this.formatId );
+    	fields.put ( "branchQualifier" , this.branchQualifier );
+    	fields.put ( "globalTransactionId" , this.globalTransactionId );
+    	out.writeFields ();
+    }
+
+    private void readObject ( ObjectInputStream in ) throws IOException, ClassNotFoundException
+    {
+    	ObjectInputStream.GetField fields = in.readFields ();
+    	this.globalTransactionId = (byte[]) fields.get ( "globalTransactionId" , new byte[0] );
+    	this.branchQualifier = (byte[]) fields.get ( "branchQualifier" , new byte[0] );
+    	this.formatId = fields.get ( "formatId" , DEFAULT_FORMAT );
+    	this.hash = computeHash ();
     }
 }
@@ -0,0 +1,27 @@
+package com.atomikos.datasource.xa.event;
+
+import com.atomikos.icatch.event.Event;
+
+public class XAOperationFailedEvent extends Event {
+
+	private static final long serialVersionUID = 1L;
+	
+	public String uniqueResourceName;
+	
+	/**
+	 * The name of the XA operation, like "prepare" or "commit".
+	 */
+	public String operation;
+	
+	/**
+	 * The XAException error code.
+	 */
+	public int errorCode;
+
+	public XAOperationFailedEvent(String uniqueResourceName, String operation, int errorCode) {
+		this.uniqueResourceName = uniqueResourceName;
+		this.operation = operation;
+		this.errorCode = errorCode;
+	}
+
+}
@@ -49,7 +49,12 @@ extends TransactionContextStateHandler
 	{
 		super ( resource , null );
 		this.ct = ct;
-		branch.suspend();
+		if ( ct.isSerial() ) {
+			// the connection is typically reused in this same branch: avoid end/start round trips
+			branch.suspendWithLazyEnd();
+		} else {
+			branch.suspend();
+		}
 	}
 
 	TransactionContextStateHandler checkEnlistBeforeUse ( CompositeTransaction ct)
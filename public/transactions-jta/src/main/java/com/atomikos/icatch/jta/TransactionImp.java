@@ -25,7 +25,6 @@
 
 package com.atomikos.icatch.jta;
 
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -37,19 +36,15 @@ import javax.transaction.Transaction;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 
-import com.atomikos.datasource.RecoverableResource;
 import com.atomikos.datasource.ResourceException;
 import com.atomikos.datasource.TransactionalResource;
-import com.atomikos.datasource.xa.TemporaryXATransactionalResource;
 import com.atomikos.datasource.xa.XAResourceTransaction;
-import com.atomikos.datasource.xa.XATransactionalResource;
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.icatch.HeurHazardException;
 import com.atomikos.icatch.HeurMixedException;
 import com.atomikos.icatch.HeurRollbackException;
 import com.atomikos.icatch.SysException;
 import com.atomikos.icatch.TxState;
-import com.atomikos.icatch.config.Configuration;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 
@@ -86,6 +81,8 @@ class TransactionImp implements Transaction {
 		throw ret;
 	}
 
+	private static final XAResourceResolver RESOURCE_RESOLVER = new XAResourceResolver();
+
 	private CompositeTransaction compositeTransaction;
 
 	private Map<XAResourceKey, XAResourceTransaction> xaResourceToResourceTransactionMap_;
@@ -335,41 +332,7 @@ class TransactionImp implements Transaction {
 
 	private TransactionalResource findRecoverableResourceForXaResource(
 			XAResource xares) {
-		TransactionalResource ret = null;
-		XATransactionalResource xatxres;
-
-		Enumeration enumm = Configuration.getResources();
-		while (enumm.hasMoreElements()) {
-			RecoverableResource rres = (RecoverableResource) enumm
-					.nextElement();
-			if (rres instanceof XATransactionalResource) {
-				System.out.println(rres);
-				xatxres = (XATransactionalResource) rres;
-				if (xatxres.usesXAResource(xares))
-					ret = xatxres;
-			}
-
-		}
-
-		if (ret == null && this.autoRegistration) {
-			synchronized (Configuration.class) {
-				// synchronized to avoid case 61740
-
-				ret = new TemporaryXATransactionalResource(xares);
-				// cf case 61740: check for concurrent additions before this
-				// synch block was entered
-				if (Configuration.getResource(ret.getName()) == null) {
-					if (LOGGER.isDebugEnabled()) {
-						LOGGER.logDebug("constructing new temporary resource "
-								+ "for unknown XAResource: " + xares);
-					}
-					Configuration.addResource(ret);
-				}
-			}
-
-		}
-
-		return ret;
+		return RESOURCE_RESOLVER.resolve(xares, this.autoRegistration);
 	}
 
 	/**
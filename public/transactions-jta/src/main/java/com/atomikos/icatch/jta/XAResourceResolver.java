@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.icatch.jta;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.xa.XAResource;
+
+import com.atomikos.datasource.RecoverableResource;
+import com.atomikos.datasource.xa.TemporaryXATransactionalResource;
+import com.atomikos.datasource.xa.XATransactionalResource;
+import com.atomikos.icatch.config.Configuration;
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+
+/**
+ * Finds the registered resource for an XAResource being enlisted. 
+ * 
+ * The outcome (including the absence of a resource) is cached per XAResource 
+ * instance - pooled connections keep using the same instance, so in the steady 
+ * state enlisting needs no scan of all resources and no isSameRM calls to the driver.
+ * Cached outcomes become invalid as soon as resources are added or removed.
+ * Instances are compared by identity (cf. XAResourceKey). Both the XAResource 
+ * and the resource found for it are only weakly referenced: a temporary resource 
+ * refers to its XAResource, so holding it strongly would keep the key alive.
+ */
+
+class XAResourceResolver
+{
+	private static final Logger LOGGER = LoggerFactory.createLogger(XAResourceResolver.class);
+
+	private final ConcurrentMap<InstanceKey,Resolution> resolutions = new ConcurrentHashMap<InstanceKey,Resolution>();
+
+	private final ReferenceQueue<XAResource> staleKeys = new ReferenceQueue<XAResource>();
+
+	// reused for lookups, so cache hits don't allocate a key
+	private final ThreadLocal<LookupKey> lookupKeys = new ThreadLocal<LookupKey>() {
+		protected LookupKey initialValue() {
+			return new LookupKey();
+		}
+	};
+
+	/**
+	 * 
+	 * @param xares
+	 * @param autoRegistration If true then a temporary resource is added for unknown XAResources.
+	 * @return The resource, or null if none (and autoRegistration is false).
+	 */
+	XATransactionalResource resolve ( XAResource xares , boolean autoRegistration )
+	{
+		purgeStaleKeys();
+		long version = Configuration.getResourcesVersion();
+		Resolution resolution = lookup ( xares );
+		if ( resolution != null && resolution.version == version ) {
+			if ( resolution.resource == null ) return null;
+			XATransactionalResource ret = resolution.resource.get();
+			if ( ret != null ) return ret;
+		}
+
+		XATransactionalResource ret = findRegisteredResource ( xares );
+		if ( ret == null && autoRegistration ) {
+			ret = registerTemporaryResource ( xares );
+		}
+		resolutions.put ( new InstanceKey ( xares , staleKeys ) , new Resolution ( ret , version ) );
+		return ret;
+	}
+
+	private Resolution lookup ( XAResource xares )
+	{
+		LookupKey key = lookupKeys.get();
+		key.set ( xares );
+		try {
+			return resolutions.get ( key );
+		} finally {
+			key.set ( null );
+		}
+	}
+
+	private XATransactionalResource findRegisteredResource ( XAResource xares )
+	{
+		XATransactionalResource ret = null;
+		Enumeration<RecoverableResource> enumm = Configuration.getResources();
+		while ( enumm.hasMoreElements() ) {
+			RecoverableResource rres = enumm.nextElement();
+			if ( rres instanceof XATransactionalResource ) {
+				XATransactionalResource xatxres = (XATransactionalResource) rres;
+				if ( xatxres.usesXAResource ( xares ) ) ret = xatxres;
+			}
+		}
+		return ret;
+	}
+
+	private XATransactionalResource registerTemporaryResource ( XAResource xares )
+	{
+		XATransactionalResource ret = new TemporaryXATransactionalResource ( xares );
+		try {
+			Configuration.addResource ( ret );
+			if ( LOGGER.isDebugEnabled() ) {
+				LOGGER.logDebug ( "constructing new temporary resource for unknown XAResource: " + xares );
+			}
+		} catch ( IllegalStateException sameName ) {
+			// cf case 61740: concurrent addition of a resource with the same name
+			// -> use ours without registering it
+			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "temporary resource already registered: " + ret.getName() );
+		}
+		return ret;
+	}
+
+	private void purgeStaleKeys()
+	{
+		Reference<? extends XAResource> stale = staleKeys.poll();
+		while ( stale != null ) {
+			resolutions.remove ( stale );
+			stale = staleKeys.poll();
+		}
+	}
+
+	private static class Resolution
+	{
+		// null if there is no resource for the XAResource
+		final WeakReference<XATransactionalResource> resource;
+		final long version;
+
+		Resolution ( XATransactionalResource resource , long version )
+		{
+			if ( resource == null ) this.resource = null;
+			else this.resource = new WeakReference<XATransactionalResource> ( resource );
+			this.version = version;
+		}
+	}
+
+	/**
+	 * A mutable key that is only used to look up an InstanceKey.
+	 */
+	private static class LookupKey
+	{
+		private XAResource xares;
+		private int hash;
+
+		void set ( XAResource xares )
+		{
+			this.xares = xares;
+			this.hash = System.identityHashCode ( xares );
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals ( Object o )
+		{
+			return o instanceof InstanceKey && xares != null && xares == ( (InstanceKey) o ).get();
+		}
+	}
+
+	private static class InstanceKey extends WeakReference<XAResource>
+	{
+		private final int hash;
+
+		InstanceKey ( XAResource xares , ReferenceQueue<XAResource> queue )
+		{
+			super ( xares , queue );
+			this.hash = System.identityHashCode ( xares );
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals ( Object o )
+		{
+			if ( o == this ) return true;
+			XAResource xares = get();
+			if ( o instanceof LookupKey ) return xares != null && xares == ( (LookupKey) o ).xares;
+			if ( !( o instanceof InstanceKey ) ) return false;
+			return xares != null && xares == ( (InstanceKey) o ).get();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.atomikos.datasource.pool;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+public class AbstractXPooledConnectionTestJUnit extends TestCase {
+
+	private ConnectionPoolProperties props;
+	
+	private AbstractXPooledConnection connection;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		props = mock ( ConnectionPoolProperties.class );
+		connection = new AbstractXPooledConnection ( props ) {
+			public boolean isAvailable() { return true; }
+			public void destroy() {}
+			public boolean isErroneous() { return false; }
+			protected Reapable doCreateConnectionProxy() { return null; }
+			protected void testUnderlyingConnection() {}
+		};
+	}
+	
+	public void testTestIsDueAtIdleTimeBoundary() 
+	{
+		when ( props.getTestIdleTime() ).thenReturn ( 10 );
+		long released = connection.getLastTimeReleased();
+		assertFalse ( connection.isTestDueAfterIdleTime ( released + 9999 ) );
+		assertTrue ( connection.isTestDueAfterIdleTime ( released + 10000 ) );
+	}
+	
+	public void testTestIsAlwaysDueWithoutIdleTime() 
+	{
+		when ( props.getTestIdleTime() ).thenReturn ( 0 );
+		assertTrue ( connection.isTestDueAfterIdleTime ( connection.getLastTimeReleased() ) );
+	}
+}
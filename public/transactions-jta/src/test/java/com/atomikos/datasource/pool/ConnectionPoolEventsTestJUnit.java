@@ -10,6 +10,7 @@ import org.mockito.Mockito;
 import com.atomikos.datasource.pool.event.ConnectionPoolExhaustedEvent;
 import com.atomikos.datasource.pool.event.PooledConnectionCreatedEvent;
 import com.atomikos.datasource.pool.event.PooledConnectionDestroyedEvent;
+import com.atomikos.datasource.pool.event.PooledConnectionLeakSuspectedEvent;
 import com.atomikos.datasource.pool.event.PooledConnectionReapedEvent;
 import com.atomikos.icatch.event.Event;
 import com.atomikos.icatch.event.EventListener;
@@ -77,6 +78,30 @@ public class ConnectionPoolEventsTestJUnit {
 		Assert.assertTrue(listener.event instanceof PooledConnectionReapedEvent);
 	}
 	
+	@Test
+	public void testPooledConnectionLeakSuspectedEvent() throws Exception {
+		Mockito.when(cpp.getLeakDetectionThreshold()).thenReturn(1);
+		Mockito.when(cpp.getBorrowStackSampleRate()).thenReturn(1);
+		Mockito.when(cpp.getReapTimeout()).thenReturn(0);
+		pool.borrowConnection();
+		Mockito.when(xpc.isAvailable()).thenReturn(false);
+		Mockito.when(xpc.getLastTimeAcquired()).thenReturn(0L);
+		pool.performMaintenance();
+		Assert.assertTrue(listener.event instanceof PooledConnectionLeakSuspectedEvent);
+		Assert.assertNotNull(((PooledConnectionLeakSuspectedEvent) listener.event).borrowStack);
+		Assert.assertEquals(1, pool.getStatistics().getSuspectedLeakCount());
+	}
+	
+	@Test
+	public void testStatisticsRecordBorrowAndHoldTimes() throws Exception {
+		pool.borrowConnection();
+		pool.onXPooledConnectionTerminated(xpc);
+		Assert.assertEquals(1, pool.getStatistics().getBorrowCount());
+		long holds = 0;
+		for (long count : pool.getStatistics().getHoldTimeHistogram()) holds += count;
+		Assert.assertEquals(1, holds);
+	}
+	
 	private static class TestEventListener implements EventListener {
 
 		private Event event;
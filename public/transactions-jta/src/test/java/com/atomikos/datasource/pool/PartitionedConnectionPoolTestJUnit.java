@@ -0,0 +1,149 @@
+package com.atomikos.datasource.pool;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PartitionedConnectionPoolTestJUnit {
+
+	private PartitionedConnectionPool<String> pool;
+	private ConnectionPoolCapacity capacity;
+	private ConnectionPoolProperties cpp;
+	private ConnectionFactory cf;
+	private List<XPooledConnection> created;
+
+	@Before
+	public void setUp() throws Exception {
+		created = new CopyOnWriteArrayList<XPooledConnection>();
+		cf = Mockito.mock(ConnectionFactory.class);
+		final Reapable connProxy = Mockito.mock(Reapable.class);
+		Mockito.when(cf.createPooledConnection()).thenAnswer(new Answer<XPooledConnection>() {
+			public XPooledConnection answer(InvocationOnMock invocation) throws Throwable {
+				XPooledConnection xpc = Mockito.mock(XPooledConnection.class);
+				Mockito.when(xpc.createConnectionProxy()).thenReturn(connProxy);
+				Mockito.when(xpc.isAvailable()).thenReturn(true);
+				created.add(xpc);
+				return xpc;
+			}
+		});
+		cpp = Mockito.mock(ConnectionPoolProperties.class);
+		Mockito.when(cpp.getMaxPoolSize()).thenReturn(1);
+		Mockito.when(cpp.getMinPoolSize()).thenReturn(1);
+		Mockito.when(cpp.getMaxIdleTime()).thenReturn(1);
+		createPool(1);
+	}
+
+	private void createPool(int maxTotalSize) {
+		if (pool != null) pool.destroy();
+		capacity = new ConnectionPoolCapacity(maxTotalSize);
+		pool = new PartitionedConnectionPool<String>(new PartitionedConnectionPool.PartitionConnectionFactory<String>() {
+			public ConnectionFactory createConnectionFactory(String key) {
+				return cf;
+			}
+		}, cpp, capacity);
+	}
+
+	private void markInUse(XPooledConnection xpc) {
+		Mockito.when(xpc.isAvailable()).thenReturn(false);
+	}
+
+	private void markIdle(XPooledConnection xpc) {
+		Mockito.when(xpc.isAvailable()).thenReturn(true);
+		Mockito.when(xpc.getLastTimeReleased()).thenReturn(0L);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (pool != null) pool.destroy();
+	}
+
+	@Test
+	public void testPartitionIsCreatedOnFirstBorrow() throws Exception {
+		Assert.assertEquals(0, pool.partitionCount());
+		pool.borrowConnection("user1");
+		Assert.assertEquals(1, pool.partitionCount());
+		Assert.assertEquals(1, capacity.getTotalSize());
+	}
+
+	@Test(expected=PoolExhaustedException.class)
+	public void testPartitionsShareCapacity() throws Exception {
+		pool.borrowConnection("user1");
+		markInUse(created.get(0));
+		pool.borrowConnection("user2");
+	}
+
+	@Test
+	public void testIdlePartitionIsEvictedAndReleasesCapacity() throws Exception {
+		pool.borrowConnection("user1");
+		markIdle(created.get(0));
+		pool.performMaintenance();
+		Assert.assertEquals(0, pool.partitionCount());
+		Assert.assertEquals(0, capacity.getTotalSize());
+		pool.borrowConnection("user2");
+		Assert.assertEquals(1, pool.partitionCount());
+	}
+
+	@Test
+	public void testDestroyReleasesCapacity() throws Exception {
+		pool.borrowConnection("user1");
+		pool.destroy();
+		Assert.assertEquals(0, capacity.getTotalSize());
+	}
+
+	@Test
+	public void testIdleConnectionOfOtherPartitionIsClosedToMakeRoom() throws Exception {
+		Mockito.when(cpp.getBorrowConnectionTimeout()).thenReturn(5);
+		pool.borrowConnection("user1");
+		XPooledConnection idle = created.get(0);
+		pool.borrowConnection("user2");
+		Mockito.verify(idle).destroy();
+		Assert.assertEquals(2, created.size());
+		Assert.assertEquals(1, capacity.getTotalSize());
+	}
+
+	@Test
+	public void testWaitingPartitionIsSignalledWhenCapacityIsReleased() throws Exception {
+		Mockito.when(cpp.getBorrowConnectionTimeout()).thenReturn(5);
+		pool.borrowConnection("user1");
+		XPooledConnection inUse = created.get(0);
+		markInUse(inUse);
+		final Exception[] error = new Exception[1];
+		Thread borrower = new Thread() {
+			public void run() {
+				try {
+					pool.borrowConnection("user2");
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		borrower.start();
+		Thread.sleep(200);
+		Assert.assertTrue(borrower.isAlive());
+		markIdle(inUse);
+		long releasedAt = System.currentTimeMillis();
+		pool.performMaintenance();
+		borrower.join(5000);
+		Assert.assertFalse(borrower.isAlive());
+		Assert.assertNull(error[0]);
+		Assert.assertTrue(System.currentTimeMillis() - releasedAt < 500);
+	}
+
+	@Test
+	public void testStatisticsCoverAllPartitions() throws Exception {
+		createPool(2);
+		pool.borrowConnection("user1");
+		pool.borrowConnection("user2");
+		Assert.assertEquals(2, pool.partitionCount());
+		Assert.assertEquals(2, pool.getStatistics().getBorrowCount());
+	}
+
+}
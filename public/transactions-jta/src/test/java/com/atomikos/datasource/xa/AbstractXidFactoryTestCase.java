@@ -1,5 +1,9 @@
 package com.atomikos.datasource.xa;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 import javax.transaction.xa.Xid;
 
 import junit.framework.TestCase;
@@ -54,6 +58,30 @@ public abstract class AbstractXidFactoryTestCase extends TestCase {
 		assertFalse ( gtid.equals ( gtid2 ) );
 	}
 
+	public void testBranchStartsWithResourceName() {
+		Xid xid = factory.createXid ( "mytid" , "name" );
+		String bqual = new String ( xid.getBranchQualifier() );
+		assertTrue ( bqual.startsWith ( "name" ) );
+		assertEquals ( new XID ( "mytid" , bqual ) , xid );
+		assertEquals ( new XID ( "mytid" , bqual ).hashCode() , xid.hashCode() );
+	}
+	
+	public void testBranchesAreUniqueAcrossThreads() throws Exception {
+		final int perThread = 1000;
+		final Set<Xid> xids = Collections.synchronizedSet ( new HashSet<Xid>() );
+		Thread[] threads = new Thread[4];
+		for ( int i = 0 ; i < threads.length ; i++ ) {
+			threads[i] = new Thread() {
+				public void run() {
+					for ( int j = 0 ; j < perThread ; j++ ) xids.add ( factory.createXid ( "mytid" , "name" ) );
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread t : threads ) t.join();
+		assertEquals ( threads.length * perThread , xids.size() );
+	}
+
 	protected abstract XidFactory createXidFactory();
 
 }
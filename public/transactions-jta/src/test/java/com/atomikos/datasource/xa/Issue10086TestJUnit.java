@@ -9,7 +9,7 @@ public class Issue10086TestJUnit extends TestCase {
 	protected void setUp() throws Exception {
 		super.setUp();
 		//set counter to max value for max length of branch id
-		AbstractXidFactory.counter = Long.MAX_VALUE -1 ;
+		AbstractXidFactory.counter.set ( Long.MAX_VALUE -1 );
 		factory = new DefaultXidFactory();
 	}
 	
@@ -0,0 +1,82 @@
+package com.atomikos.datasource.xa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.datasource.xa.RecoveryScan.XidSelector;
+
+public class RecoveryScanTestJUnit {
+
+	private XAResource xaResource;
+	private List<Xid> seen;
+	
+	@Before
+	public void setUp() {
+		xaResource = mock(XAResource.class);
+		seen = new ArrayList<Xid>();
+	}
+	
+	private XidSelector selectBranchPrefix(final String prefix) {
+		return new XidSelector() {
+			public boolean selects(Xid xid) {
+				seen.add(xid);
+				return RecoveryScan.branchStartsWith(xid, prefix.getBytes());
+			}
+		};
+	}
+	
+	private static Xid vendorXid(String tid, String branch) {
+		Xid ret = mock(Xid.class); // no equals nor hashCode
+		when(ret.getGlobalTransactionId()).thenReturn(tid.getBytes());
+		when(ret.getBranchQualifier()).thenReturn(branch.getBytes());
+		return ret;
+	}
+	
+	@Test
+	public void testScanStopsWhenResourceKeepsReturningSameXids() throws Exception {
+		Xid[] batch = new Xid[] { vendorXid("tid1", "ours1"), vendorXid("tid2", "theirs1") };
+		when(xaResource.recover(anyInt())).thenReturn(batch);
+		assertEquals(1, RecoveryScan.recoverXids(xaResource, selectBranchPrefix("ours")));
+		assertEquals(2, seen.size());
+	}
+	
+	@Test
+	public void testDuplicateXidsAcrossBatchesAreSelectedOnce() throws Exception {
+		Xid[] first = new Xid[] { vendorXid("tid1", "ours1") };
+		Xid[] second = new Xid[] { vendorXid("tid1", "ours1"), vendorXid("tid2", "ours2") };
+		when(xaResource.recover(anyInt())).thenReturn(first, second, new Xid[0]);
+		assertEquals(2, RecoveryScan.recoverXids(xaResource, selectBranchPrefix("ours")));
+		assertEquals(2, seen.size());
+	}
+	
+	@Test
+	public void testLargeScanWithManyForeignXids() throws Exception {
+		Xid[] batch = new Xid[20000];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new XID("tid" + i, (i % 100 == 0 ? "ours" : "theirs") + i);
+		}
+		when(xaResource.recover(anyInt())).thenReturn(batch, batch);
+		assertEquals(200, RecoveryScan.recoverXids(xaResource, selectBranchPrefix("ours")));
+		assertEquals(batch.length, seen.size());
+	}
+	
+	@Test
+	public void testBranchStartsWith() {
+		assertTrue(RecoveryScan.branchStartsWith(new XID("tid", "resource1"), "resource".getBytes()));
+		assertFalse(RecoveryScan.branchStartsWith(new XID("tid", "res"), "resource".getBytes()));
+		assertFalse(RecoveryScan.branchStartsWith(new XID("tid", "other"), "resource".getBytes()));
+	}
+}
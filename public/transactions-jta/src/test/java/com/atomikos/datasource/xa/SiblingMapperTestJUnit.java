@@ -0,0 +1,119 @@
+package com.atomikos.datasource.xa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.RecoveryService;
+import com.atomikos.icatch.TxState;
+
+public class SiblingMapperTestJUnit {
+
+	private XATransactionalResource resource;
+	private SiblingMapper mapper;
+
+	@Before
+	public void setUp() throws Exception {
+		XAResource xares = mock(XAResource.class);
+		when(xares.isSameRM(xares)).thenReturn(true);
+		resource = new TemporaryXATransactionalResource(xares);
+		RecoveryService recoveryService = mock(RecoveryService.class);
+		when(recoveryService.getName()).thenReturn("tm");
+		resource.setRecoveryService(recoveryService);
+		mapper = new SiblingMapper(resource, "root");
+	}
+
+	private CompositeTransaction createTransaction(String tid, boolean serial) {
+		CompositeTransaction ret = mock(CompositeTransaction.class);
+		when(ret.getTid()).thenReturn(tid);
+		when(ret.isSerial()).thenReturn(serial);
+		return ret;
+	}
+
+	private XAResourceTransaction branchFor(CompositeTransaction ct) {
+		return (XAResourceTransaction) mapper.findOrCreateBranchForTransaction(ct);
+	}
+
+	@Test
+	public void testActiveBranchIsNotJoinedBySerialSibling() {
+		XAResourceTransaction first = branchFor(createTransaction("tx1", true));
+		XAResourceTransaction second = branchFor(createTransaction("tx2", true));
+		assertNotSame(first, second);
+	}
+
+	@Test
+	public void testSerialSiblingJoinsBranchThatBecameInactive() {
+		XAResourceTransaction first = branchFor(createTransaction("tx1", true));
+		first.setState(TxState.LOCALLY_DONE);
+		assertSame(first, branchFor(createTransaction("tx2", true)));
+	}
+
+	@Test
+	public void testSerialSiblingDoesNotJoinBranchThatWasResumed() {
+		XAResourceTransaction first = branchFor(createTransaction("tx1", true));
+		first.setState(TxState.LOCALLY_DONE);
+		first.setState(TxState.ACTIVE);
+		assertNotSame(first, branchFor(createTransaction("tx2", true)));
+	}
+
+	@Test
+	public void testNonSerialSiblingGetsOwnBranch() {
+		XAResourceTransaction first = branchFor(createTransaction("tx1", true));
+		first.setState(TxState.LOCALLY_DONE);
+		assertNotSame(first, branchFor(createTransaction("tx2", false)));
+	}
+
+	@Test
+	public void testSameTransactionJoinsItsOwnInactiveBranch() {
+		CompositeTransaction ct = createTransaction("tx1", false);
+		XAResourceTransaction first = branchFor(ct);
+		first.setState(TxState.LOCALLY_DONE);
+		assertSame(first, branchFor(ct));
+	}
+
+	@Test
+	public void testNoJoinIfResourceAcceptsAllXAResources() {
+		resource.setAcceptAllXAResources(true);
+		XAResourceTransaction first = branchFor(createTransaction("tx1", true));
+		first.setState(TxState.LOCALLY_DONE);
+		assertNotSame(first, branchFor(createTransaction("tx2", true)));
+	}
+
+	@Test
+	public void testXidsOfAllBranchesAreCollected() {
+		branchFor(createTransaction("tx1", false));
+		branchFor(createTransaction("tx2", false));
+		Set<Xid> xids = new HashSet<Xid>();
+		mapper.collectXids(xids);
+		assertEquals(2, xids.size());
+	}
+
+	@Test
+	public void testSiblingMappersAreVisibleToSubclassesButReadOnly() {
+		resource.getSiblingMap("root");
+		assertTrue(resource.getRootTransactionToSiblingMapperMap().containsKey("root"));
+		resource.removeSiblingMap("root");
+		assertFalse(resource.getRootTransactionToSiblingMapperMap().containsKey("root"));
+		try {
+			resource.getRootTransactionToSiblingMapperMap().clear();
+		} catch (UnsupportedOperationException ok) {
+			return;
+		}
+		throw new AssertionError("map should be read-only");
+	}
+
+}
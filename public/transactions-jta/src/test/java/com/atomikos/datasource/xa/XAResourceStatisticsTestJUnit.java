@@ -0,0 +1,61 @@
+package com.atomikos.datasource.xa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.transaction.xa.XAException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.atomikos.datasource.xa.XAResourceStatistics.Operation;
+import com.atomikos.datasource.xa.event.XAOperationFailedEvent;
+import com.atomikos.icatch.event.EventListener;
+import com.atomikos.publish.EventPublisher;
+
+public class XAResourceStatisticsTestJUnit {
+
+	private XAResourceStatistics statistics;
+	
+	@Before
+	public void setUp() {
+		statistics = new XAResourceStatistics("resource");
+	}
+	
+	@Test
+	public void testInstancesAreSharedPerResource() {
+		assertTrue(XAResourceStatistics.getInstance("a") == XAResourceStatistics.getInstance("a"));
+		assertTrue(XAResourceStatistics.getInstance("a") != XAResourceStatistics.getInstance("b"));
+	}
+	
+	@Test
+	public void testInFlightAndCount() {
+		long start = statistics.begin(Operation.PREPARE);
+		assertEquals(1, statistics.getInFlight("prepare"));
+		statistics.end(Operation.PREPARE, start);
+		assertEquals(0, statistics.getInFlight("prepare"));
+		assertEquals(1, statistics.getCount("prepare"));
+		assertEquals(0, statistics.getCount("commit"));
+	}
+	
+	@Test
+	public void testFailureIsCountedAndPublished() {
+		EventListener listener = Mockito.mock(EventListener.class);
+		EventPublisher.registerEventListener(listener);
+		statistics.failed(Operation.COMMIT, XAException.XAER_RMFAIL);
+		statistics.failed(Operation.COMMIT, XAException.XAER_RMFAIL);
+		assertEquals("commit " + XAException.XAER_RMFAIL + ": 2", statistics.getErrorCounts()[0]);
+		Mockito.verify(listener, Mockito.times(2)).eventOccurred(Mockito.any(XAOperationFailedEvent.class));
+	}
+	
+	@Test
+	public void testReset() {
+		statistics.end(Operation.COMMIT, statistics.begin(Operation.COMMIT));
+		statistics.failed(Operation.COMMIT, XAException.XAER_RMFAIL);
+		statistics.reset();
+		assertEquals(0, statistics.getCount("commit"));
+		assertEquals(0, statistics.getErrorCounts().length);
+		assertEquals(Operation.values().length, statistics.getOperationSummaries().length);
+	}
+}
@@ -0,0 +1,119 @@
+package com.atomikos.datasource.xa;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.RecoveryService;
+
+public class XAResourceTransactionTestJUnit {
+
+	private XATransactionalResource resource;
+	private XAResource xares;
+	private XAResource otherXares;
+	private XAResourceTransaction branch;
+
+	@Before
+	public void setUp() throws Exception {
+		xares = mock(XAResource.class);
+		otherXares = mock(XAResource.class);
+		resource = new TemporaryXATransactionalResource(xares);
+		RecoveryService recoveryService = mock(RecoveryService.class);
+		when(recoveryService.getName()).thenReturn("tm");
+		resource.setRecoveryService(recoveryService);
+		branch = createBranch("tx");
+	}
+
+	private XAResourceTransaction createBranch(String tid) {
+		CompositeTransaction ct = mock(CompositeTransaction.class);
+		when(ct.getTid()).thenReturn(tid);
+		return new XAResourceTransaction(resource, ct, tid);
+	}
+
+	private void startAndSuspendWithLazyEnd(XAResourceTransaction branch) throws Exception {
+		branch.setXAResource(xares);
+		branch.resume();
+		branch.suspendWithLazyEnd();
+	}
+
+	@Test
+	public void testResumeReusesPendingAssociation() throws Exception {
+		startAndSuspendWithLazyEnd(branch);
+		branch.setXAResource(xares);
+		branch.resume();
+		verify(xares, times(1)).start(any(Xid.class), anyInt());
+		verify(xares, never()).end(any(Xid.class), anyInt());
+	}
+
+	@Test
+	public void testOtherXAResourceForcesEndBeforeJoin() throws Exception {
+		startAndSuspendWithLazyEnd(branch);
+		branch.setXAResource(otherXares);
+		branch.resume();
+		InOrder order = inOrder(xares, otherXares);
+		order.verify(xares).end(branch.getXid(), XAResource.TMSUCCESS);
+		order.verify(otherXares).start(branch.getXid(), XAResource.TMJOIN);
+	}
+
+	@Test
+	public void testOtherBranchOnSameXAResourceForcesEndFirst() throws Exception {
+		startAndSuspendWithLazyEnd(branch);
+		XAResourceTransaction other = createBranch("other");
+		other.setXAResource(xares);
+		other.resume();
+		InOrder order = inOrder(xares);
+		order.verify(xares).end(branch.getXid(), XAResource.TMSUCCESS);
+		order.verify(xares).start(other.getXid(), XAResource.TMNOFLAGS);
+	}
+
+	@Test
+	public void testPrepareEndsPendingBranchFirst() throws Exception {
+		startAndSuspendWithLazyEnd(branch);
+		branch.prepare();
+		InOrder order = inOrder(xares);
+		order.verify(xares).end(branch.getXid(), XAResource.TMSUCCESS);
+		order.verify(xares).prepare(branch.getXid());
+	}
+
+	@Test
+	public void testCommitEndsPendingBranchFirst() throws Exception {
+		startAndSuspendWithLazyEnd(branch);
+		branch.commit(true);
+		InOrder order = inOrder(xares);
+		order.verify(xares).end(branch.getXid(), XAResource.TMSUCCESS);
+		order.verify(xares).commit(branch.getXid(), true);
+	}
+
+	@Test
+	public void testRollbackEndsPendingBranchFirst() throws Exception {
+		startAndSuspendWithLazyEnd(branch);
+		branch.rollback();
+		InOrder order = inOrder(xares);
+		order.verify(xares).end(branch.getXid(), XAResource.TMSUCCESS);
+		order.verify(xares).rollback(branch.getXid());
+	}
+
+	@Test
+	public void testPendingBranchIsEndedOnlyOnce() throws Exception {
+		startAndSuspendWithLazyEnd(branch);
+		branch.prepare();
+		branch.commit(false);
+		verify(xares, times(1)).end(any(Xid.class), anyInt());
+		verify(xares).commit(any(Xid.class), anyBoolean());
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.atomikos.datasource.xa;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.RecoveryService;
+
+public class XATransactionalResourceTestJUnit {
+
+	private XATransactionalResource resource;
+	private CountDownLatch scanStarted;
+	private CountDownLatch release;
+	private XAResourceTransaction branch;
+	private XAResource xares;
+
+	@Before
+	public void setUp() throws Exception {
+		scanStarted = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+		xares = mock(XAResource.class);
+		when(xares.isSameRM(xares)).thenReturn(true);
+		when(xares.recover(XAResource.TMSTARTRSCAN)).thenAnswer(new Answer<Xid[]>() {
+			public Xid[] answer(InvocationOnMock invocation) throws Throwable {
+				scanStarted.countDown();
+				release.await();
+				return new Xid[] { branch.getXid() };
+			}
+		});
+		resource = new TemporaryXATransactionalResource(xares);
+		RecoveryService recoveryService = mock(RecoveryService.class);
+		when(recoveryService.getName()).thenReturn("tm");
+		resource.setRecoveryService(recoveryService);
+		CompositeTransaction ct = mock(CompositeTransaction.class);
+		when(ct.getTid()).thenReturn("tx");
+		branch = (XAResourceTransaction) new SiblingMapper(resource, "root").findOrCreateBranchForTransaction(ct);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+	}
+
+	private Thread startScan() throws InterruptedException {
+		Thread ret = new Thread() {
+			public void run() {
+				resource.scanForRecovery();
+			}
+		};
+		ret.start();
+		assertTrue(scanStarted.await(5, TimeUnit.SECONDS));
+		return ret;
+	}
+
+	@Test
+	public void testRecoverDoesNotWaitForHangingScan() throws Exception {
+		startScan();
+		long start = System.currentTimeMillis();
+		assertFalse(resource.recover(branch));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	public void testRecoverUsesScanResultOnceScanIsDone() throws Exception {
+		Thread scan = startScan();
+		release.countDown();
+		scan.join(5000);
+		assertFalse(scan.isAlive());
+		assertTrue(resource.recover(branch));
+	}
+
+	@Test
+	public void testScanForRecoveryDoesNotReuseEarlierScan() throws Exception {
+		release.countDown();
+		// a scan triggered by recovering a participant, without endRecovery
+		resource.recover(branch);
+		resource.scanForRecovery();
+		verify(xares, times(2)).recover(XAResource.TMSTARTRSCAN);
+	}
+
+	private void prepareBranch() throws Exception {
+		branch.setXAResource(xares);
+		branch.resume();
+		branch.suspend();
+		branch.prepare();
+	}
+
+	@Test
+	public void testPreparedBranchIsNotPresumedAborted() throws Exception {
+		release.countDown();
+		prepareBranch();
+		resource.endRecovery();
+		verify(xares, never()).rollback(any(Xid.class));
+	}
+
+	@Test
+	public void testRecoveryDuringXaPrepareDoesNotAbortBranch() throws Exception {
+		release.countDown();
+		when(xares.prepare(any(Xid.class))).thenAnswer(new Answer<Integer>() {
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				resource.endRecovery();
+				return XAResource.XA_OK;
+			}
+		});
+		prepareBranch();
+		verify(xares, never()).rollback(any(Xid.class));
+	}
+
+	@Test
+	public void testCommittedBranchIsNoLongerProtected() throws Exception {
+		release.countDown();
+		prepareBranch();
+		branch.commit(false);
+		resource.endRecovery();
+		verify(xares).rollback(branch.getXid());
+	}
+
+}
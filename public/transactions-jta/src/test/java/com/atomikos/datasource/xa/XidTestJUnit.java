@@ -1,6 +1,8 @@
 package com.atomikos.datasource.xa;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -30,6 +32,28 @@ public class XidTestJUnit {
 		in.readFully(data);
 		XID xid2 =(XID)SerializationUtils.deserialize(data);
 		assertEquals(xid,xid2);
+		assertEquals(xid.hashCode(),xid2.hashCode());
+	}
+
+	@Test
+	public void testGettersDoNotCopy() {
+		XID xid = new XID("tid", "resource");
+		assertSame(xid.getGlobalTransactionId(), xid.getGlobalTransactionId());
+		assertSame(xid.getBranchQualifier(), xid.getBranchQualifier());
+		assertEquals("tidresource", xid.toString());
+	}
+
+	@Test
+	public void testCopyDoesNotShareVendorArrays() {
+		XID vendorXid = new XID("tid", "resource");
+		XID copy = new XID(vendorXid);
+		vendorXid.getBranchQualifier()[0] = 'x';
+		assertEquals("resource", XID.getBranchQualifierAsString(copy));
+	}
+
+	@Test
+	public void testTidAndBranchBoundaryMatters() {
+		assertFalse(new XID("tid", "resource").equals(new XID("tidr", "esource")));
 	}
 
 }
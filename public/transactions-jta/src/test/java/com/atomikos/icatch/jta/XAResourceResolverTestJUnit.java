@@ -0,0 +1,97 @@
+package com.atomikos.icatch.jta;
+
+import java.lang.ref.WeakReference;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.atomikos.datasource.xa.TemporaryXATransactionalResource;
+import com.atomikos.datasource.xa.XATransactionalResource;
+import com.atomikos.icatch.config.Configuration;
+
+public class XAResourceResolverTestJUnit {
+
+	private XAResourceResolver resolver;
+	private XAResource xares;
+	private XATransactionalResource resource;
+
+	@Before
+	public void setUp() throws Exception {
+		resolver = new XAResourceResolver();
+		xares = Mockito.mock(XAResource.class);
+		Mockito.when(xares.isSameRM(xares)).thenReturn(true);
+		resource = new TemporaryXATransactionalResource(xares);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Configuration.removeResource(resource.getName());
+	}
+
+	@Test
+	public void testRegisteredResourceIsFoundAndCached() throws Exception {
+		Configuration.addResource(resource);
+		Assert.assertSame(resource, resolver.resolve(xares, false));
+		Mockito.reset(xares);
+		Assert.assertSame(resource, resolver.resolve(xares, false));
+		Mockito.verifyZeroInteractions(xares);
+	}
+
+	@Test
+	public void testUnknownResourceIsCachedUntilResourcesChange() throws Exception {
+		Assert.assertNull(resolver.resolve(xares, false));
+		Assert.assertNull(resolver.resolve(xares, false));
+		Configuration.addResource(resource);
+		Assert.assertSame(resource, resolver.resolve(xares, false));
+	}
+
+	@Test
+	public void testAutoRegistrationAddsTemporaryResource() throws Exception {
+		XATransactionalResource ret = resolver.resolve(xares, true);
+		try {
+			Assert.assertTrue(ret instanceof TemporaryXATransactionalResource);
+			Assert.assertSame(ret, Configuration.getResource(ret.getName()));
+		} finally {
+			Configuration.removeResource(ret.getName());
+		}
+	}
+
+	@Test
+	public void testCachedResolutionDoesNotRetainXAResource() throws Exception {
+		XAResource stub = new XAResourceStub();
+		XATransactionalResource temporary = new TemporaryXATransactionalResource(stub);
+		Configuration.addResource(temporary);
+		Assert.assertSame(temporary, resolver.resolve(stub, false));
+		Configuration.removeResource(temporary.getName());
+		WeakReference<XAResource> ref = new WeakReference<XAResource>(stub);
+		stub = null;
+		temporary = null;
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertNull(ref.get());
+	}
+
+	private static class XAResourceStub implements XAResource {
+		public void commit(Xid xid, boolean onePhase) throws XAException {}
+		public void end(Xid xid, int flags) throws XAException {}
+		public void forget(Xid xid) throws XAException {}
+		public int getTransactionTimeout() throws XAException { return 0; }
+		public boolean isSameRM(XAResource xares) throws XAException { return xares == this; }
+		public int prepare(Xid xid) throws XAException { return XA_OK; }
+		public Xid[] recover(int flag) throws XAException { return new Xid[0]; }
+		public void rollback(Xid xid) throws XAException {}
+		public boolean setTransactionTimeout(int seconds) throws XAException { return false; }
+		public void start(Xid xid, int flags) throws XAException {}
+	}
+
+}
@@ -334,6 +334,24 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
     }
 
    
+    /**
+     * Hands replay of heuristic hazards over to the ReplayResolver: 
+     * our own timer is no longer needed then.
+     */
+
+    void replayThroughResolver ()
+    {
+    	CoordinatorStateHandler stateHandler = null;
+    	synchronized ( fsm_ ) {
+    		if ( timer_ == null ) return; //not started yet: recover will do this
+    		timer_.stop ();
+    		stateHandler = stateHandler_;
+    	}
+    	if ( stateHandler instanceof HeurHazardStateHandler ) {
+    		ReplayResolver.getInstance ().register ( (HeurHazardStateHandler) stateHandler );
+    	}
+    }
+
     private void submitTimer(AlarmTimer timer) {
     		TaskManager.getInstance().executeTask (timer);
 	}
@@ -526,12 +544,41 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 
     public boolean recover () throws SysException
     {
-        boolean allOK = true;
+        boolean allOK;
         boolean ret;
     	 if ( LOGGER.isDebugEnabled() ){
     		 LOGGER.logDebug (  "starting recover() for coordinator: " + getCoordinatorId () );
     	 }
 
+		synchronized ( fsm_ ) {
+			allOK = recoverParticipants();
+			stateHandler_.recover(this);
+			ret = !(!allOK && getState().equals(TxState.IN_DOUBT));
+		} // synchronized
+
+        // ONLY NOW start threads and so on
+        startThreads ( DEFAULT_MILLIS_BETWEEN_TIMER_WAKEUPS );
+        if ( TxState.HEUR_HAZARD.equals ( getState() ) ) replayThroughResolver();
+
+
+        if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug (   "recover() done for coordinator: " + getCoordinatorId () );
+      
+
+        return ret;
+    }
+
+    /**
+     * Presents the participants to their resources, so the resources' 
+     * recovery scan does not presume abort for them. Unlike recover, 
+     * this does not change the state or start any threads, so it can be
+     * called for every new recovery scan.
+     *
+     * @return True if all participants were recovered.
+     */
+
+    boolean recoverParticipants () throws SysException
+    {
+        boolean allOK = true;
 		synchronized ( fsm_ ) {
 			// cf case 61686 and case 62217: avoid concurrent enlists while recovering
 			Iterator parts = getParticipants().iterator();
@@ -553,18 +600,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 				}
 				allOK = allOK && recoveredParticipant;
 			}
-			stateHandler_.recover(this);
-			ret = !(!allOK && getState().equals(TxState.IN_DOUBT));
 		} // synchronized
-
-        // ONLY NOW start threads and so on
-        startThreads ( DEFAULT_MILLIS_BETWEEN_TIMER_WAKEUPS );
-
-
-        if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug (   "recover() done for coordinator: " + getCoordinatorId () );
-      
-
-        return ret;
+        return allOK;
     }
 
     /**
@@ -943,6 +980,7 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 
 	@Override
 	public void transitionPerformed(FSMTransitionEvent<TxState> e) {
+		if (!EventPublisher.hasListeners()) return;
 		TxState fromState = e.fromState();
 		TxState toState = e.toState();
 		if (TxState.TERMINATED.equals(toState)) {
@@ -972,6 +1010,9 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 			) {
 			publishDomainEvent(new TransactionHeuristicEvent(root_));
 		}
+		if ( TxState.HEUR_HAZARD.equals(state) ) {
+			replayThroughResolver();
+		}
 	}
 
 
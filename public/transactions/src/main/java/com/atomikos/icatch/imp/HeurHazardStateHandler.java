@@ -28,8 +28,10 @@ package com.atomikos.icatch.imp;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Stack;
 import java.util.Vector;
 
@@ -42,7 +44,6 @@ import com.atomikos.icatch.Participant;
 import com.atomikos.icatch.RollbackException;
 import com.atomikos.icatch.SysException;
 import com.atomikos.icatch.TxState;
-import com.atomikos.thread.InterruptedExceptionHelper;
 import com.atomikos.util.ClassLoadingHelper;
 
 /**
@@ -53,6 +54,7 @@ public class HeurHazardStateHandler extends CoordinatorStateHandler
 {
 	private static final long serialVersionUID = 3405983048694149334L;
 	private Vector<Participant> hazards_;
+	private transient boolean terminated_;
 
     public HeurHazardStateHandler() {
 	
@@ -105,72 +107,75 @@ public class HeurHazardStateHandler extends CoordinatorStateHandler
 
     protected void onTimeout ()
     {
-        // this state can only be reached through COMMITTING or ABORTING
-        // so getCommitted can not be null
-        // or it can be: cf case 72990
-    	Boolean commitDecided = getCommitted();
-        boolean committed = false;
-        
-        addAllForReplay ( hazards_ ); 
+        // replay is scheduled by the ReplayResolver, together with the
+        // hazards of all other coordinators: only register there
+        ReplayResolver.getInstance ().register ( this );
+    }
+
+    /**
+     * Collects the participants to replay on the next tick of the 
+     * ReplayResolver. 
+     *
+     * @return The participants, without duplicates.
+     */
 
+    synchronized List<Participant> getParticipantsToReplay ()
+    {
+        List<Participant> ret = new ArrayList<Participant> ();
+        addAllForReplay ( hazards_ );
         // get Stack to avoid overwriting effects of
         // intermediate recovery calls
-        Stack replayStack = getReplayStack ();
-        boolean replay = false;
-        if ( !replayStack.empty ()  && commitDecided != null ) {
-        	committed = commitDecided.booleanValue ();
-        	replay = true;
-            int count = replayStack.size ();
-            TerminationResult result = new TerminationResult ( count );
-
-            while ( !replayStack.empty () ) {
-                Participant part = (Participant) replayStack.pop ();
-                if ( committed ) {
-                    CommitMessage cm = new CommitMessage ( part, result, false );
-                    getPropagator ().submitPropagationMessage ( cm );
-                } else {
-                    RollbackMessage rm = new RollbackMessage ( part, result,
-                            true );
-                    getPropagator ().submitPropagationMessage ( rm );
-                }
-            }
-            try {
-                result.waitForReplies ();
-                Stack replies = result.getReplies ();
-                Enumeration enumm = replies.elements ();
-                while ( enumm.hasMoreElements () ) {
-                    Reply reply = (Reply) enumm.nextElement ();
-
-                    if ( !reply.hasFailed () ) {
-                        hazards_.remove ( reply.getParticipant () );
-                    }
-                }
-                // TODO if overall result failed: check if heuristic state
-                // should change?
-                // for instance: if mixed replies -> change state to HEURMIXED
-                // NOTE: this can happen on recovery with late registration
-                // where the resource has ended in mixed mode
-
-
-            } catch ( InterruptedException inter ) {
-            	// cf bug 67457
-    			InterruptedExceptionHelper.handleInterruptedException ( inter );
-                // return silently;
-                // worst case is some remaining indoubt participants
-            }
-
+        Stack<Participant> replayStack = getReplayStack ();
+        while ( !replayStack.empty () ) {
+            Participant part = replayStack.pop ();
+            if ( !ret.contains ( part ) ) ret.add ( part );
         }
+        return ret;
+    }
+
+    /**
+     * Called by the ReplayResolver when a participant has the outcome.
+     *
+     * @return True if no hazards remain, so the coordinator has terminated.
+     */
 
-        if ( hazards_.isEmpty () ) {
-            TerminatedStateHandler termStateHandler = new TerminatedStateHandler (
-                    this );
-            getCoordinator ().setStateHandler ( termStateHandler );
-        } else if ( replay ) {
+    boolean replayed ( Participant participant )
+    {
+        boolean resolved = false;
+        synchronized ( this ) {
+            hazards_.remove ( participant );
+            resolved = hazards_.isEmpty ();
+            if ( resolved ) {
+                if ( terminated_ ) return true;
+                terminated_ = true;
+            }
+        }
+        // change state outside synch: listeners may call back
+        if ( resolved ) {
+            getCoordinator ().setStateHandler ( new TerminatedStateHandler ( this ) );
+        } else {
             // set state to heuristic again, to
             // notify logging of swapout.
-        	// note: only do this if something could have changed such as in replay
             getCoordinator ().setStateHandler ( this );
         }
+        return resolved;
+    }
+
+    /**
+     * Terminates the coordinator if there is nothing (left) to replay.
+     *
+     * @return True if terminated.
+     */
+
+    boolean terminateIfResolved ()
+    {
+        synchronized ( this ) {
+            if ( terminated_ ) return true;
+            if ( !hazards_.isEmpty () || !getReplayStack ().empty () ) return false;
+            terminated_ = true;
+        }
+        getCoordinator ().setStateHandler ( new TerminatedStateHandler ( this ) );
+        return true;
     }
 
     protected void setGlobalSiblingCount ( int count )
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.icatch.imp;
+
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+
+/**
+ * Periodically runs recovery in the background, so in-doubt branches left behind
+ * by a transient resource failure are resolved without operator action.
+ * The interval halves while recovery work is pending, and doubles (up to 
+ * the max) while there is none.
+ */
+
+class RecoveryDaemon implements Runnable
+{
+	private static final Logger LOGGER = LoggerFactory.createLogger(RecoveryDaemon.class);
+
+    private final TransactionServiceImp service_;
+    private final long minInterval_;
+    private final long maxInterval_;
+    private long interval_;
+    private long lastFullScan_;
+    private boolean active_ = true;
+    
+    RecoveryDaemon ( TransactionServiceImp service , long minInterval , long maxInterval )
+    {
+        service_ = service;
+        minInterval_ = minInterval;
+        maxInterval_ = Math.max ( minInterval , maxInterval );
+        interval_ = minInterval_;
+        lastFullScan_ = System.currentTimeMillis ();
+    }
+
+    synchronized long getInterval ()
+    {
+        return interval_;
+    }
+
+    synchronized boolean isActive ()
+    {
+        return active_;
+    }
+
+    synchronized void stop ()
+    {
+        active_ = false;
+        notifyAll ();
+    }
+
+    /**
+     * Runs one recovery pass and adapts the interval to its outcome.
+     */
+
+    void runRecoveryPass ()
+    {
+        long now = System.currentTimeMillis ();
+        boolean fullScan = now - lastFullScan_ >= maxInterval_;
+        boolean pending = true;
+        try {
+            pending = service_.recoverInBackground ( fullScan );
+            if ( fullScan ) lastFullScan_ = now;
+        } catch ( Exception e ) {
+            LOGGER.logWarning ( "Error in background recovery" , e );
+        }
+        synchronized ( this ) {
+            if ( pending ) interval_ = Math.max ( minInterval_ , interval_ / 2 );
+            else interval_ = Math.min ( maxInterval_ , interval_ * 2 );
+        }
+        if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Background recovery pass done - next one in " + getInterval () + " ms" );
+    }
+
+    public void run ()
+    {
+        while ( isActive () ) {
+            synchronized ( this ) {
+                // wait may return early: check elapsed time like PooledAlarmTimer
+                long wakeUp = System.currentTimeMillis () + interval_;
+                long remaining = interval_;
+                while ( active_ && remaining > 0 ) {
+                    try {
+                        wait ( remaining );
+                    } catch ( InterruptedException e ) {
+                        // most likely the thread pool shutting down
+                        active_ = false;
+                        Thread.currentThread ().interrupt ();
+                    }
+                    remaining = wakeUp - System.currentTimeMillis ();
+                }
+            }
+            if ( isActive () ) runRecoveryPass ();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.atomikos.icatch.imp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.atomikos.icatch.Participant;
+import com.atomikos.icatch.ResourceManagerAwareParticipant;
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+import com.atomikos.thread.TaskManager;
+import com.atomikos.timing.AlarmTimer;
+import com.atomikos.timing.AlarmTimerListener;
+import com.atomikos.timing.PooledAlarmTimer;
+
+/**
+ * Central resolver for heuristic hazard coordinators. Instead of each 
+ * coordinator replaying its own participants on its own timer, coordinators 
+ * only register here and do not wait for the outcome. One timer collects the 
+ * replays of all registered coordinators and groups them per resource manager. 
+ * Each group is sent back-to-back in batches, different groups in parallel, 
+ * with an upper limit on the number of batches in flight so that a large 
+ * backlog after an outage does not flood the resources. Each replay is tried 
+ * once per tick: failed replays are retried on the next tick, without 
+ * blocking any thread in between.
+ */
+
+public class ReplayResolver implements ReplayResolverMBean, AlarmTimerListener
+{
+	private static final Logger LOGGER = LoggerFactory.createLogger(ReplayResolver.class);
+
+    static final int DEFAULT_MAX_PARALLEL_BATCHES = 10;
+    static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    private static final ReplayResolver instance = new ReplayResolver ( true , Propagator.RETRY_INTERVAL );
+
+    public static ReplayResolver getInstance ()
+    {
+        return instance;
+    }
+
+    private final boolean threaded_;
+    // interval between ticks, 0 if ticks are triggered by calling alarm
+    private final long retryInterval_;
+    private AlarmTimer timer_;
+    // the coordinators waiting for replay, in registration order
+    private final Set<HeurHazardStateHandler> handlers_ = new LinkedHashSet<HeurHazardStateHandler>();
+    // queued replays per resource manager (or per participant if the RM is unknown), in arrival order
+    private final Map<Object,LinkedList<Replay>> queued_ = new LinkedHashMap<Object,LinkedList<Replay>>();
+    // replays that are queued or being sent: never send the same replay twice at once
+    private final Set<Replay> pending_ = new HashSet<Replay>();
+    // groups with a batch in flight: never send two batches for the same RM at once
+    private final Set<Object> busy_ = new HashSet<Object>();
+    private int maxParallelBatches_ = DEFAULT_MAX_PARALLEL_BATCHES;
+    private int maxBatchSize_ = DEFAULT_MAX_BATCH_SIZE;
+    private long replayed_;
+
+    ReplayResolver ( boolean threaded , long retryInterval )
+    {
+        threaded_ = threaded;
+        retryInterval_ = retryInterval;
+    }
+
+    synchronized void setLimits ( int maxParallelBatches , int maxBatchSize )
+    {
+        if ( maxParallelBatches < 1 || maxBatchSize < 1 ) throw new IllegalArgumentException ( "Replay limits must be positive" );
+        maxParallelBatches_ = maxParallelBatches;
+        maxBatchSize_ = maxBatchSize;
+    }
+
+    /**
+     * Registers a coordinator for replay until it is resolved. Its replays 
+     * are queued right away; the caller does not wait for them.
+     */
+
+    void register ( HeurHazardStateHandler handler )
+    {
+        synchronized ( this ) {
+            if ( !handlers_.add ( handler ) ) return;
+            if ( timer_ == null && retryInterval_ > 0 ) {
+                timer_ = new PooledAlarmTimer ( retryInterval_ );
+                timer_.addAlarmTimerListener ( this );
+                TaskManager.getInstance().executeTask ( timer_ );
+            }
+        }
+        queueReplays ( handler );
+        startBatches();
+    }
+
+    synchronized void unregister ( HeurHazardStateHandler handler )
+    {
+        handlers_.remove ( handler );
+        if ( handlers_.isEmpty() && timer_ != null ) {
+            timer_.stop();
+            timer_ = null;
+        }
+    }
+
+    /**
+     * Stops the timer and forgets all coordinators, on shutdown. 
+     * Recovery registers them again after a restart.
+     */
+
+    synchronized void stop ()
+    {
+        handlers_.clear();
+        for ( LinkedList<Replay> group : queued_.values() ) pending_.removeAll ( group );
+        queued_.clear();
+        if ( timer_ != null ) {
+            timer_.stop();
+            timer_ = null;
+        }
+    }
+
+    private synchronized boolean isRegistered ( HeurHazardStateHandler handler )
+    {
+        return handlers_.contains ( handler );
+    }
+
+    /**
+     * One tick: queues the replays of all registered coordinators.
+     */
+
+    public void alarm ( AlarmTimer timer )
+    {
+        List<HeurHazardStateHandler> handlers = null;
+        synchronized ( this ) {
+            handlers = new ArrayList<HeurHazardStateHandler> ( handlers_ );
+        }
+        for ( HeurHazardStateHandler handler : handlers ) {
+            queueReplays ( handler );
+        }
+        startBatches();
+    }
+
+    private void queueReplays ( HeurHazardStateHandler handler )
+    {
+        if ( handler.terminateIfResolved() ) {
+            unregister ( handler );
+            return;
+        }
+        Boolean committed = handler.getCommitted();
+        // cf case 72990: no replay without a decision
+        if ( committed == null ) return;
+        List<Participant> participants = handler.getParticipantsToReplay();
+        synchronized ( this ) {
+            if ( !handlers_.contains ( handler ) ) return;
+            for ( Participant participant : participants ) {
+                Replay replay = new Replay ( handler , participant , committed.booleanValue() );
+                if ( !pending_.add ( replay ) ) continue;
+                Object key = getResourceManagerId ( participant );
+                if ( key == null ) key = participant;
+                LinkedList<Replay> group = queued_.get ( key );
+                if ( group == null ) {
+                    group = new LinkedList<Replay>();
+                    queued_.put ( key , group );
+                }
+                group.add ( replay );
+            }
+        }
+    }
+
+    private static Object getResourceManagerId ( Participant p )
+    {
+        Object ret = null;
+        if ( p instanceof ResourceManagerAwareParticipant ) {
+            ret = ( (ResourceManagerAwareParticipant) p ).getResourceManagerId ();
+        }
+        return ret;
+    }
+
+    private void startBatches ()
+    {
+        Batch batch = nextBatch();
+        while ( batch != null ) {
+            if ( threaded_ ) {
+                TaskManager.getInstance().executeTask ( batch );
+            } else {
+                batch.run();
+            }
+            batch = nextBatch();
+        }
+    }
+
+    private synchronized Batch nextBatch ()
+    {
+        Batch ret = null;
+        if ( busy_.size() < maxParallelBatches_ ) {
+            Iterator<Map.Entry<Object,LinkedList<Replay>>> it = queued_.entrySet().iterator();
+            while ( ret == null && it.hasNext() ) {
+                Map.Entry<Object,LinkedList<Replay>> entry = it.next();
+                if ( !busy_.contains ( entry.getKey() ) ) {
+                    LinkedList<Replay> group = entry.getValue();
+                    List<Replay> replays = new LinkedList<Replay>();
+                    while ( !group.isEmpty() && replays.size() < maxBatchSize_ ) {
+                        replays.add ( group.removeFirst() );
+                    }
+                    // remaining replays go to the back of the queue, for fairness among RMs
+                    it.remove();
+                    if ( !group.isEmpty() ) queued_.put ( entry.getKey() , group );
+                    busy_.add ( entry.getKey() );
+                    ret = new Batch ( entry.getKey() , replays );
+                }
+            }
+        }
+        return ret;
+    }
+
+    private synchronized void batchDone ( Batch batch )
+    {
+        busy_.remove ( batch.key );
+        pending_.removeAll ( batch.replays );
+        replayed_ += batch.replays.size();
+    }
+
+    public synchronized int getPendingReplays ()
+    {
+        return pending_.size();
+    }
+
+    public synchronized int getPendingCoordinators ()
+    {
+        return handlers_.size();
+    }
+
+    public synchronized int getActiveBatches ()
+    {
+        return busy_.size();
+    }
+
+    public synchronized long getReplayedCount ()
+    {
+        return replayed_;
+    }
+
+    private static class Replay
+    {
+        private final HeurHazardStateHandler handler;
+        private final Participant participant;
+        private final boolean commit;
+
+        Replay ( HeurHazardStateHandler handler , Participant participant , boolean commit )
+        {
+            this.handler = handler;
+            this.participant = participant;
+            this.commit = commit;
+        }
+
+        /**
+         * Sends the replay once: retries are up to the next tick.
+         *
+         * @return True if the participant has the outcome now.
+         */
+
+        boolean send ()
+        {
+            ReplyCollector result = new ReplyCollector();
+            PropagationMessage msg = null;
+            if ( commit ) msg = new CommitMessage ( participant , result , false );
+            else msg = new RollbackMessage ( participant , result , true );
+            try {
+                msg.submit();
+            } catch ( RuntimeException e ) {
+                LOGGER.logWarning ( "Unexpected error in replay for participant " + participant , e );
+            }
+            return result.isSuccessful();
+        }
+
+        public boolean equals ( Object o )
+        {
+            boolean ret = false;
+            if ( o instanceof Replay ) {
+                Replay other = (Replay) o;
+                ret = handler == other.handler && participant.equals ( other.participant );
+            }
+            return ret;
+        }
+
+        public int hashCode ()
+        {
+            return participant.hashCode();
+        }
+    }
+
+    private static class ReplyCollector extends Result
+    {
+        ReplyCollector ()
+        {
+            super ( 1 );
+        }
+
+        protected void calculateResultFromAllReplies ()
+        {
+        }
+
+        synchronized boolean isSuccessful ()
+        {
+            // retried (transient) failures are not even recorded
+            return !replies_.isEmpty() && !replies_.peek().hasFailed();
+        }
+    }
+
+    private class Batch implements Runnable
+    {
+        private final Object key;
+        private final List<Replay> replays;
+
+        Batch ( Object key , List<Replay> replays )
+        {
+            this.key = key;
+            this.replays = replays;
+        }
+
+        public void run ()
+        {
+            try {
+                if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Replaying " + replays.size() + " participant(s) for " + key );
+                for ( Replay replay : replays ) {
+                    // skip coordinators that were resolved or forgotten in the meantime
+                    if ( !isRegistered ( replay.handler ) ) continue;
+                    if ( replay.send() && replay.handler.replayed ( replay.participant ) ) {
+                        unregister ( replay.handler );
+                    }
+                }
+            } finally {
+                batchDone ( this );
+            }
+            startBatches();
+        }
+    }
+}
@@ -25,14 +25,26 @@
 
 package com.atomikos.icatch.imp;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.atomikos.datasource.RecoverableResource;
+import com.atomikos.datasource.ScanningRecoverableResource;
 import com.atomikos.finitestates.FSMEnterEvent;
 import com.atomikos.finitestates.FSMEnterListener;
 import com.atomikos.icatch.CompositeCoordinator;
@@ -53,6 +65,7 @@ import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 import com.atomikos.persistence.LogException;
 import com.atomikos.persistence.StateRecoveryManager;
+import com.atomikos.publish.EventPublisher;
 import com.atomikos.thread.InterruptedExceptionHelper;
 import com.atomikos.thread.TaskManager;
 import com.atomikos.util.UniqueIdMgr;
@@ -66,11 +79,15 @@ public class TransactionServiceImp implements TransactionServiceProvider,
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(TransactionServiceImp.class);
     private static final int NUMLATCHES = 97;
+    private static final long DEFAULT_RECOVERY_TIMEOUT = 60000L;
     
     private long maxTimeout_;
     private Object[] rootLatches_ = null;
     private Hashtable tidToTransactionMap_ = null;
     private Hashtable rootToCoordinatorMap_ = null;
+    private Map<CoordinatorImp,Boolean> coordinatorsFromLog_ = new ConcurrentHashMap<CoordinatorImp,Boolean>();
+    // coordinators read from the log, mapped to true once they were recovered;
+    // live coordinators are never recovered: their resources know them already
     private boolean shutdownInProgress_ = false;
     private Object shutdownSynchronizer_;
     private Object recoverySynchronizer_;
@@ -88,6 +105,14 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     private String tmUniqueName_;
     private Properties initProperties_;
     private boolean single_threaded_2pc_;
+    private long recoveryTimeout_ = DEFAULT_RECOVERY_TIMEOUT;
+    private Map<RecoverableResource,FutureTask<Object>> pendingRecoveries_ = new HashMap<RecoverableResource,FutureTask<Object>>();
+    // scans and endRecovery calls of previous recovery passes that did not finish in time
+    private Set<String> healthyResources_ = new HashSet<String>();
+    // names of the resources whose last endRecovery succeeded
+    private long recoveryMinInterval_;
+    private long recoveryMaxInterval_;
+    private RecoveryDaemon recoveryDaemon_;
 
     /**
      * Create a new instance, with orphan checking set.
@@ -168,6 +193,44 @@ public class TransactionServiceImp implements TransactionServiceProvider,
         single_threaded_2pc_ = single_threaded_2pc;
     }
 
+    /**
+     * Sets the max time to wait for the resources to end recovery.
+     *
+     * @param millis
+     *            The timeout in milliseconds, or 0 to wait as long as it takes.
+     */
+
+    public void setRecoveryTimeout ( long millis )
+    {
+        recoveryTimeout_ = millis;
+    }
+
+    /**
+     * Enables background recovery.
+     *
+     * @param minInterval
+     *            The interval in milliseconds while in-doubt transactions are pending.
+     * @param maxInterval
+     *            The interval in milliseconds when there is nothing to recover, 
+     *            or 0 to disable background recovery.
+     */
+
+    public void setBackgroundRecoveryInterval ( long minInterval , long maxInterval )
+    {
+        recoveryMinInterval_ = minInterval;
+        recoveryMaxInterval_ = maxInterval;
+    }
+
+    /**
+     * Sets how many replay batches for heuristic hazard participants can be
+     * in flight at once, and how many messages each batch can hold.
+     */
+
+    public void setReplayLimits ( int maxParallelBatches , int maxBatchSize )
+    {
+        ReplayResolver.getInstance ().setLimits ( maxParallelBatches , maxBatchSize );
+    }
+
     /**
      * Get an object to lock for the given root. To increase concurrency and
      * still provide atomic operations within the scope of one root.
@@ -244,6 +307,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
 
                 rootToCoordinatorMap_.remove ( coord.getCoordinatorId ().intern () );
             }
+            coordinatorsFromLog_.remove ( coord );
 
             // notify any waiting threads for shutdown
             if ( rootToCoordinatorMap_.isEmpty () )
@@ -406,6 +470,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
                                         + le.getMessage (), le );
                     }
                     if ( cc != null ) {
+                        coordinatorsFromLog_.put ( cc , Boolean.FALSE );
                         startlistening ( cc );
                         rootToCoordinatorMap_.put ( root.intern (), cc );
                     }
@@ -457,6 +522,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
                     rootToCoordinatorMap_.put ( coord.getCoordinatorId ().intern (),
                             coord );
                 }
+                coordinatorsFromLog_.put ( coord , Boolean.FALSE );
                 startlistening ( coord );
             }
         } catch ( Exception e ) {
@@ -477,6 +543,28 @@ public class TransactionServiceImp implements TransactionServiceProvider,
      *
      */
     public void recover ()
+    {
+        recover ( false );
+    }
+
+    /**
+     * Performs one pass of background recovery.
+     *
+     * @param fullScan
+     *            If false then resources whose last endRecovery succeeded are skipped.
+     * @return True if recovery work is still pending.
+     */
+
+    boolean recoverInBackground ( boolean fullScan )
+    {
+        synchronized ( shutdownSynchronizer_ ) {
+            if ( shutdownInProgress_ || !initialized_ ) return false;
+        }
+        recover ( !fullScan );
+        return hasPendingRecoveryWork ();
+    }
+
+    private void recover ( boolean skipHealthyResources )
     {
 
         if ( ! initialized_ ) {
@@ -491,13 +579,26 @@ public class TransactionServiceImp implements TransactionServiceProvider,
             // its recovery scan! this leads to erroneous presumed aborts (since
             // recovery of the first half of the coordinators is no longer considered)
 
+            // resources still busy with a previous pass are left out of this one
+            Set<RecoverableResource> busyResources = collectResourcesWithPendingRecovery ();
+
             try {
-                Vector coordinators = getCoordinatorImpVector ();
-                Iterator it = coordinators.iterator ();
+                scanAllResources ( skipHealthyResources , busyResources );
+
+                Iterator<Map.Entry<CoordinatorImp,Boolean>> it = coordinatorsFromLog_.entrySet ().iterator ();
                 while ( it.hasNext () ) {
-                    CoordinatorImp coord = (CoordinatorImp) it.next ();
+                    Map.Entry<CoordinatorImp,Boolean> entry = it.next ();
+                    CoordinatorImp coord = entry.getKey ();
                     try {
-                        if ( !coord.recover () && LOGGER.isInfoEnabled() )
+                        boolean recovered;
+                        if ( entry.getValue () ) {
+                            // already recovered: only needs to be presented to the resources' new scan
+                            recovered = coord.recoverParticipants ();
+                        } else {
+                            recovered = coord.recover ();
+                            entry.setValue ( Boolean.TRUE );
+                        }
+                        if ( !recovered && LOGGER.isInfoEnabled() )
                         	LOGGER.logInfo ( "Coordinator not recoverable: "
                                     + coord.getCoordinatorId () );
                     } catch ( Exception e ) {
@@ -509,17 +610,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
                     }
                 }
 
-                Enumeration reslist = Configuration.getResources ();
-                while ( reslist.hasMoreElements () ) {
-                    RecoverableResource res = (RecoverableResource) reslist
-                            .nextElement ();
-                    try {
-                        res.endRecovery ();
-                    } catch ( Exception error ) {
-                        LOGGER.logWarning ( "ERROR IN RECOVERY", error );
-                        // continue processing to avoid indoubts for other resources
-                    }
-                }
+                endRecoveryOfAllResources ( skipHealthyResources , busyResources );
             } catch ( Exception e ) {
                 LOGGER.logWarning ( "Error in recover: "
                         + e.getClass ().getName () + e.getMessage (), e );
@@ -534,6 +625,160 @@ public class TransactionServiceImp implements TransactionServiceProvider,
 
 
 
+    /**
+     * Lets all resources that need it scan their back-end in parallel, before 
+     * the coordinators are recovered. Otherwise the first coordinator to 
+     * ask a resource would trigger its scan, so one unreachable back-end 
+     * would hold up the recovery of all coordinators. Resources that don't
+     * finish within the recovery timeout are added to busyResources.
+     * Resources skipped by endRecovery are not scanned either, so each scan 
+     * is followed by the endRecovery that consumes it.
+     */
+
+    private void scanAllResources ( boolean skipHealthyResources , Set<RecoverableResource> busyResources )
+    {
+        Map<RecoverableResource,FutureTask<Object>> tasks = new HashMap<RecoverableResource,FutureTask<Object>>();
+        Enumeration<RecoverableResource> reslist = Configuration.getResources ();
+        while ( reslist.hasMoreElements () ) {
+            RecoverableResource res = reslist.nextElement ();
+            if ( busyResources.contains ( res ) || !( res instanceof ScanningRecoverableResource ) ) continue;
+            if ( skipHealthyResources && healthyResources_.contains ( res.getName () ) ) continue;
+            final ScanningRecoverableResource scanning = (ScanningRecoverableResource) res;
+            tasks.put ( res , startRecoveryTask ( new Runnable() {
+                public void run ()
+                {
+                    long start = System.currentTimeMillis ();
+                    scanning.scanForRecovery ();
+                    if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Resource " + scanning.getName () + 
+                            " scanned for recovery in " + ( System.currentTimeMillis () - start ) + " ms" );
+                }
+            } ) );
+        }
+        busyResources.addAll ( awaitRecoveryTasks ( tasks , "scan for recovery" ).keySet () );
+    }
+
+    /**
+     * Ends recovery in all resources in parallel, so one slow or unreachable resource
+     * does not delay presumed abort in the others. Resources that don't finish within
+     * the recovery timeout are left to finish in the background.
+     */
+
+    private void endRecoveryOfAllResources ( boolean skipHealthyResources , Set<RecoverableResource> busyResources )
+    {
+        Map<RecoverableResource,FutureTask<Object>> tasks = new HashMap<RecoverableResource,FutureTask<Object>>();
+        Enumeration<RecoverableResource> reslist = Configuration.getResources ();
+        while ( reslist.hasMoreElements () ) {
+            final RecoverableResource res = reslist.nextElement ();
+            if ( busyResources.contains ( res ) ) continue;
+            if ( skipHealthyResources && healthyResources_.contains ( res.getName () ) ) continue;
+            healthyResources_.remove ( res.getName () );
+            tasks.put ( res , startRecoveryTask ( new Runnable() {
+                public void run ()
+                {
+                    long start = System.currentTimeMillis ();
+                    res.endRecovery ();
+                    if ( LOGGER.isInfoEnabled() ) LOGGER.logInfo ( "Resource " + res.getName () + 
+                            " ended recovery in " + ( System.currentTimeMillis () - start ) + " ms" );
+                }
+            } ) );
+        }
+        Map<RecoverableResource,Boolean> outcomes = awaitRecoveryTasks ( tasks , "end recovery" );
+        for ( RecoverableResource res : tasks.keySet () ) {
+            if ( !outcomes.containsKey ( res ) ) healthyResources_.add ( res.getName () );
+        }
+    }
+
+    private FutureTask<Object> startRecoveryTask ( Runnable work )
+    {
+        FutureTask<Object> ret = new FutureTask<Object> ( work , null );
+        TaskManager.getInstance ().executeTask ( ret );
+        return ret;
+    }
+
+    /**
+     * Waits (up to the recovery timeout overall) for the given tasks. Tasks that 
+     * are not done by then are added to pendingRecoveries_.
+     *
+     * @return The resources whose task did not succeed: mapped to true if 
+     * still running, false if failed.
+     */
+
+    private Map<RecoverableResource,Boolean> awaitRecoveryTasks ( Map<RecoverableResource,FutureTask<Object>> tasks , String phase )
+    {
+        Map<RecoverableResource,Boolean> ret = new HashMap<RecoverableResource,Boolean>();
+        long deadline = System.currentTimeMillis () + recoveryTimeout_;
+        for ( Map.Entry<RecoverableResource,FutureTask<Object>> entry : tasks.entrySet () ) {
+            RecoverableResource res = entry.getKey ();
+            try {
+                if ( recoveryTimeout_ <= 0 ) entry.getValue ().get ();
+                else entry.getValue ().get ( Math.max ( 0 , deadline - System.currentTimeMillis () ) , TimeUnit.MILLISECONDS );
+            } catch ( TimeoutException timeout ) {
+                LOGGER.logWarning ( "Resource " + res.getName () + " did not " + phase + " within " + 
+                        recoveryTimeout_ + " ms - its recovery will resume when it is done" );
+                pendingRecoveries_.put ( res , entry.getValue () );
+                ret.put ( res , Boolean.TRUE );
+            } catch ( ExecutionException error ) {
+                LOGGER.logWarning ( "ERROR IN RECOVERY", error.getCause () );
+                // continue processing to avoid indoubts for other resources
+                ret.put ( res , Boolean.FALSE );
+            } catch ( InterruptedException inter ) {
+                pendingRecoveries_.put ( res , entry.getValue () );
+                ret.put ( res , Boolean.TRUE );
+                InterruptedExceptionHelper.handleInterruptedException ( inter );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return True if some resource failed its last endRecovery, or if some 
+     * coordinator is waiting for recovery.
+     */
+
+    private boolean hasPendingRecoveryWork ()
+    {
+        synchronized ( recoverySynchronizer_ ) {
+            if ( !pendingRecoveries_.isEmpty () ) return true;
+            Enumeration reslist = Configuration.getResources ();
+            while ( reslist.hasMoreElements () ) {
+                RecoverableResource res = (RecoverableResource) reslist.nextElement ();
+                if ( !healthyResources_.contains ( res.getName () ) ) return true;
+            }
+        }
+        Iterator it = getCoordinatorImpVector ().iterator ();
+        while ( it.hasNext () ) {
+            TxState state = ( (CoordinatorImp) it.next () ).getState ();
+            if ( TxState.IN_DOUBT.equals ( state ) || TxState.COMMITTING.equals ( state ) || 
+                    TxState.ABORTING.equals ( state ) || TxState.HEUR_HAZARD.equals ( state ) ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Resources that are still busy with a previous recovery must not be scanned again
+     * before they are done: that would lead to erroneous presumed aborts.
+     * The other resources need not wait for them.
+     *
+     * @return The resources whose scan or endRecovery is still running.
+     */
+
+    private Set<RecoverableResource> collectResourcesWithPendingRecovery ()
+    {
+        Set<RecoverableResource> ret = new HashSet<RecoverableResource>();
+        Iterator<Map.Entry<RecoverableResource,FutureTask<Object>>> it = pendingRecoveries_.entrySet ().iterator ();
+        while ( it.hasNext () ) {
+            Map.Entry<RecoverableResource,FutureTask<Object>> entry = it.next ();
+            if ( entry.getValue ().isDone () ) it.remove ();
+            else ret.add ( entry.getKey () );
+        }
+        if ( !ret.isEmpty () ) {
+            List<String> names = new ArrayList<String>();
+            for ( RecoverableResource res : ret ) names.add ( res.getName () );
+            LOGGER.logWarning ( "Previous recovery still in progress for resources " + names + " - skipping them in this pass" );
+        }
+        return ret;
+    }
+
     /**
      * Get a LogControl for the service.
      *
@@ -609,6 +854,22 @@ public class TransactionServiceImp implements TransactionServiceProvider,
         control_ = new LogControlImp ( this );
         
         recover(); //ensure that remote participants can start inquiring and replay
+        startRecoveryDaemon ();
+    }
+
+    private void startRecoveryDaemon ()
+    {
+        if ( recoveryMaxInterval_ <= 0 || recoveryDaemon_ != null ) return;
+        recoveryDaemon_ = new RecoveryDaemon ( this , recoveryMinInterval_ , recoveryMaxInterval_ );
+        TaskManager.getInstance ().executeTask ( recoveryDaemon_ );
+    }
+
+    private void stopRecoveryDaemon ()
+    {
+        if ( recoveryDaemon_ != null ) {
+            recoveryDaemon_.stop ();
+            recoveryDaemon_ = null;
+        }
     }
 
     /**
@@ -828,6 +1089,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
                     		if ( TxState.TERMINATED.equals ( c.getState() ) ) {
                     			if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "Transaction Service: removing terminated coordinator: " + id );
                     			rootToCoordinatorMap_.remove ( id );
+                    			coordinatorsFromLog_.remove ( c );
                     		}
                     }
                     //contine the loop: if not empty then wait again
@@ -841,6 +1103,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
             }
 
             initialized_ = false;
+            stopRecoveryDaemon ();
             if ( !wasShuttingDown ) {
                 // If we were already shutting down, then the FIRST thread
                 // to enter this method will do the following. Don't do
@@ -861,10 +1124,13 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     }
 
 	private void shutdownSystemExecutors() {
+		ReplayResolver.getInstance ().stop ();
 		TaskManager exec = TaskManager.getInstance();
         if ( exec != null ) {
         		exec.shutdown();
         }
+        //stops the asynchronous event dispatcher (if any), after delivering queued events
+        EventPublisher.setAsynchronousDispatch ( 0 , false );
 	}
 
     public synchronized void finalize () throws Throwable
@@ -19,6 +19,7 @@ import com.atomikos.logging.LoggerFactory;
 import com.atomikos.persistence.StateRecoveryManager;
 import com.atomikos.persistence.imp.StateRecoveryManagerImp;
 import com.atomikos.persistence.imp.VolatileStateRecoveryManager;
+import com.atomikos.publish.EventPublisher;
 import com.atomikos.util.ClassLoadingHelper;
 import com.atomikos.util.UniqueIdMgr;
 
@@ -127,7 +128,12 @@ public class AssemblerImp implements Assembler {
 			LOGGER.logWarning ( msg );
 			throw new SysException(msg);
 		}
-		return new TransactionServiceImp(tmUniqueName, recMgr, idMgr, maxTimeout, maxActives, !threaded2pc);
+		TransactionServiceImp ret = new TransactionServiceImp(tmUniqueName, recMgr, idMgr, maxTimeout, maxActives, !threaded2pc);
+		ret.setRecoveryTimeout(configProperties.getRecoveryTimeout());
+		ret.setBackgroundRecoveryInterval(configProperties.getRecoveryMinInterval(), configProperties.getRecoveryMaxInterval());
+		ret.setReplayLimits(configProperties.getReplayMaxParallelBatches(), configProperties.getReplayMaxBatchSize());
+		EventPublisher.setAsynchronousDispatch(configProperties.getEventQueueSize(), configProperties.getEventQueueBlockWhenFull());
+		return ret;
 		
 	}
 
@@ -0,0 +1,70 @@
+package com.atomikos.icatch.imp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class RecoveryDaemonTestJUnit {
+
+	private static final long MIN = 100;
+	private static final long MAX = 800;
+	
+	private TransactionServiceImp serviceMock;
+	private RecoveryDaemon daemon;
+	
+	@Before
+	public void setUp() {
+		serviceMock = Mockito.mock(TransactionServiceImp.class);
+		daemon = new RecoveryDaemon(serviceMock, MIN, MAX);
+	}
+	
+	@Test
+	public void testIntervalBacksOffWhenNothingIsPending() {
+		Mockito.when(serviceMock.recoverInBackground(Mockito.anyBoolean())).thenReturn(false);
+		daemon.runRecoveryPass();
+		assertEquals(2 * MIN, daemon.getInterval());
+		for (int i = 0; i < 10; i++) daemon.runRecoveryPass();
+		assertEquals(MAX, daemon.getInterval());
+	}
+	
+	@Test
+	public void testIntervalSpeedsUpWhenWorkIsPending() {
+		Mockito.when(serviceMock.recoverInBackground(Mockito.anyBoolean())).thenReturn(false);
+		for (int i = 0; i < 10; i++) daemon.runRecoveryPass();
+		Mockito.when(serviceMock.recoverInBackground(Mockito.anyBoolean())).thenReturn(true);
+		daemon.runRecoveryPass();
+		assertEquals(MAX / 2, daemon.getInterval());
+		for (int i = 0; i < 10; i++) daemon.runRecoveryPass();
+		assertEquals(MIN, daemon.getInterval());
+	}
+	
+	@Test
+	public void testFailedPassCountsAsPending() {
+		Mockito.when(serviceMock.recoverInBackground(Mockito.anyBoolean())).thenReturn(false);
+		daemon.runRecoveryPass();
+		Mockito.when(serviceMock.recoverInBackground(Mockito.anyBoolean())).thenThrow(new IllegalStateException());
+		daemon.runRecoveryPass();
+		assertEquals(MIN, daemon.getInterval());
+	}
+	
+	@Test
+	public void testHealthyResourcesAreSkippedUntilMaxIntervalElapsed() throws Exception {
+		daemon.runRecoveryPass();
+		Mockito.verify(serviceMock).recoverInBackground(false);
+		Thread.sleep(MAX);
+		daemon.runRecoveryPass();
+		Mockito.verify(serviceMock).recoverInBackground(true);
+	}
+	
+	@Test
+	public void testStopEndsRun() throws Exception {
+		Thread thread = new Thread(daemon);
+		thread.start();
+		daemon.stop();
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+	}
+}
@@ -0,0 +1,124 @@
+package com.atomikos.icatch.imp;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atomikos.icatch.HeurHazardException;
+import com.atomikos.icatch.Participant;
+import com.atomikos.icatch.ResourceManagerAwareParticipant;
+
+public class ReplayResolverTestJUnit {
+
+	private List<String> sent;
+	private List<Integer> pendingWhileSending;
+	private ReplayResolver resolver;
+	
+	@Before
+	public void setUp() {
+		sent = new ArrayList<String>();
+		pendingWhileSending = new ArrayList<Integer>();
+		// no timer: ticks are simulated by calling alarm
+		resolver = new ReplayResolver(false, 0);
+	}
+	
+	private Participant participant(final String name, String resourceManager) throws Exception {
+		ResourceManagerAwareParticipant ret = mock(ResourceManagerAwareParticipant.class);
+		when(ret.getResourceManagerId()).thenReturn(resourceManager);
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				sent.add(name);
+				pendingWhileSending.add(resolver.getPendingReplays());
+				return null;
+			}
+		}).when(ret).commit(anyBoolean());
+		return ret;
+	}
+	
+	private HeurHazardStateHandler coordinator(Participant... participants) {
+		HeurHazardStateHandler ret = mock(HeurHazardStateHandler.class);
+		when(ret.getCommitted()).thenReturn(Boolean.TRUE);
+		// nothing to replay when registering: the first tick drains all coordinators
+		when(ret.getParticipantsToReplay()).thenReturn(Collections.<Participant>emptyList(), Arrays.asList(participants));
+		return ret;
+	}
+	
+	@Test
+	public void testReplaysOfAllCoordinatorsAreGroupedPerResourceManager() throws Exception {
+		HeurHazardStateHandler c1 = coordinator(participant("a1", "A"), participant("b1", "B"));
+		HeurHazardStateHandler c2 = coordinator(participant("a2", "A"));
+		resolver.register(c1);
+		resolver.register(c2);
+		assertEquals(0, sent.size());
+		resolver.alarm(null);
+		assertEquals("[a1, a2, b1]", sent.toString());
+	}
+	
+	@Test
+	public void testLargeGroupIsSplitIntoBatches() throws Exception {
+		resolver.setLimits(1, 2);
+		resolver.register(coordinator(participant("a1", "A"), participant("a2", "A"), participant("a3", "A")));
+		resolver.alarm(null);
+		assertEquals("[a1, a2, a3]", sent.toString());
+		// the backlog shrinks per batch, not per message
+		assertEquals("[3, 3, 1]", pendingWhileSending.toString());
+	}
+	
+	@Test
+	public void testFailedReplayIsRetriedOnNextTick() throws Exception {
+		Participant p = participant("a1", "A");
+		doThrow(new HeurHazardException()).when(p).commit(anyBoolean());
+		HeurHazardStateHandler c = coordinator(p);
+		resolver.register(c);
+		resolver.alarm(null);
+		verify(p, times(1)).commit(false);
+		verify(c, never()).replayed(p);
+		assertEquals(0, resolver.getPendingReplays());
+		assertEquals(1, resolver.getPendingCoordinators());
+		resolver.alarm(null);
+		verify(p, times(2)).commit(false);
+	}
+	
+	@Test
+	public void testResolvedCoordinatorIsUnregistered() throws Exception {
+		Participant p = participant("a1", "A");
+		HeurHazardStateHandler c = coordinator(p);
+		when(c.replayed(p)).thenReturn(true);
+		resolver.register(c);
+		resolver.alarm(null);
+		assertEquals(0, resolver.getPendingCoordinators());
+		assertEquals(0, resolver.getActiveBatches());
+		assertEquals(1, resolver.getReplayedCount());
+		resolver.alarm(null);
+		assertEquals("[a1]", sent.toString());
+	}
+	
+	@Test
+	public void testCoordinatorWithoutHazardsIsUnregistered() throws Exception {
+		HeurHazardStateHandler c = coordinator();
+		when(c.terminateIfResolved()).thenReturn(true);
+		resolver.register(c);
+		assertEquals(0, resolver.getPendingCoordinators());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testLimitsMustBePositive() {
+		resolver.setLimits(0, 1);
+	}
+}
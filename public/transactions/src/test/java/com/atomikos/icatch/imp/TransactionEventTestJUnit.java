@@ -15,7 +15,9 @@ import com.atomikos.icatch.event.transaction.TransactionCommittedEvent;
 import com.atomikos.icatch.event.transaction.TransactionCreatedEvent;
 import com.atomikos.icatch.event.transaction.TransactionHeuristicEvent;
 import com.atomikos.icatch.event.transaction.TransactionReadOnlyEvent;
+import com.atomikos.persistence.StateRecoveryManager;
 import com.atomikos.publish.EventPublisher;
+import com.atomikos.util.UniqueIdMgr;
 
 public class TransactionEventTestJUnit {
 
@@ -40,6 +42,17 @@ public class TransactionEventTestJUnit {
 		coordinator.rollback();
 	}
 	
+	@Test
+	public void testShutdownStopsAsynchronousDispatch() throws Exception {
+		EventPublisher.registerEventListener(eventListenerMock);
+		EventPublisher.setAsynchronousDispatch(10, false);
+		TransactionServiceImp service = new TransactionServiceImp("tm", Mockito.mock(StateRecoveryManager.class), new UniqueIdMgr("tm"), 1000, -1, false);
+		service.shutdown(true);
+		// synchronous again: delivered before publish returns
+		EventPublisher.publish(new TransactionCommittedEvent(ID));
+		Mockito.verify(eventListenerMock, Mockito.times(1)).eventOccurred(Mockito.any(TransactionCommittedEvent.class));
+	}
+	
 	@Test
 	public void testTransactionCommittedEvent() throws Exception {
 		coordinator = createCoordinator();
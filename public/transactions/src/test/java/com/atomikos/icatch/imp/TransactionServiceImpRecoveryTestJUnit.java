@@ -0,0 +1,145 @@
+package com.atomikos.icatch.imp;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atomikos.datasource.RecoverableResource;
+import com.atomikos.datasource.ScanningRecoverableResource;
+import com.atomikos.icatch.TxState;
+import com.atomikos.icatch.config.Configuration;
+import com.atomikos.persistence.StateRecoverable;
+import com.atomikos.persistence.StateRecoveryManager;
+import com.atomikos.util.UniqueIdMgr;
+
+public class TransactionServiceImpRecoveryTestJUnit {
+
+	private static final long RECOVERY_TIMEOUT = 200;
+
+	private StateRecoveryManager recoveryManager;
+	private TransactionServiceImp service;
+	private CountDownLatch release;
+	private ScanningRecoverableResource hangingResource;
+	private RecoverableResource healthyResource;
+
+	@Before
+	public void setUp() throws Exception {
+		recoveryManager = Mockito.mock(StateRecoveryManager.class);
+		Mockito.when(recoveryManager.recover()).thenReturn(new Vector());
+		service = new TransactionServiceImp("tm", recoveryManager, new UniqueIdMgr("tm"), 10000, -1, false);
+		service.setRecoveryTimeout(RECOVERY_TIMEOUT);
+		release = new CountDownLatch(1);
+		hangingResource = Mockito.mock(ScanningRecoverableResource.class);
+		Mockito.when(hangingResource.getName()).thenReturn("hanging");
+		healthyResource = Mockito.mock(RecoverableResource.class);
+		Mockito.when(healthyResource.getName()).thenReturn("healthy");
+		Configuration.addResource(hangingResource);
+		Configuration.addResource(healthyResource);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		Configuration.removeResource("hanging");
+		Configuration.removeResource("healthy");
+	}
+
+	private void blockUntilReleased(RecoverableResource res) {
+		Answer<Object> block = new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				release.await();
+				return null;
+			}
+		};
+		if (res == hangingResource) Mockito.doAnswer(block).when(hangingResource).scanForRecovery();
+		else Mockito.doAnswer(block).when(res).endRecovery();
+	}
+
+	private long timeRecoveryPass() {
+		long start = System.currentTimeMillis();
+		service.recover();
+		return System.currentTimeMillis() - start;
+	}
+
+	@Test
+	public void testHangingScanDoesNotBlockRecoveryOfOtherResources() throws Exception {
+		blockUntilReleased(hangingResource);
+		assertTrue(timeRecoveryPass() < 5 * RECOVERY_TIMEOUT);
+		Mockito.verify(healthyResource).endRecovery();
+		Mockito.verify(hangingResource, Mockito.never()).endRecovery();
+	}
+
+	@Test
+	public void testPendingScanIsSkippedInNextPassButOthersAreNot() throws Exception {
+		blockUntilReleased(hangingResource);
+		service.recover();
+		assertTrue(timeRecoveryPass() < 5 * RECOVERY_TIMEOUT);
+		Mockito.verify(healthyResource, Mockito.times(2)).endRecovery();
+		Mockito.verify(hangingResource, Mockito.times(1)).scanForRecovery();
+		Mockito.verify(hangingResource, Mockito.never()).endRecovery();
+	}
+
+	@Test
+	public void testResourceIsRecoveredAgainOnceItsScanIsDone() throws Exception {
+		blockUntilReleased(hangingResource);
+		service.recover();
+		release.countDown();
+		Thread.sleep(RECOVERY_TIMEOUT);
+		service.recover();
+		Mockito.verify(hangingResource, Mockito.times(2)).scanForRecovery();
+		Mockito.verify(hangingResource).endRecovery();
+	}
+
+	@Test
+	public void testHangingEndRecoveryIsSkippedInNextPassButOthersAreNot() throws Exception {
+		blockUntilReleased(healthyResource);
+		service.recover();
+		final CountDownLatch secondPassDone = new CountDownLatch(1);
+		new Thread() {
+			public void run() {
+				service.recover();
+				secondPassDone.countDown();
+			}
+		}.start();
+		assertTrue(secondPassDone.await(5 * RECOVERY_TIMEOUT, TimeUnit.MILLISECONDS));
+		Mockito.verify(healthyResource, Mockito.times(1)).endRecovery();
+		Mockito.verify(hangingResource, Mockito.times(2)).endRecovery();
+	}
+
+	@Test
+	public void testNonFullPassSkipsHealthyResourcesAndFullPassScansThemAgain() throws Exception {
+		service.recover();
+		service.recoverInBackground(false);
+		Mockito.verify(hangingResource, Mockito.times(1)).scanForRecovery();
+		Mockito.verify(hangingResource, Mockito.times(1)).endRecovery();
+		service.recoverInBackground(true);
+		Mockito.verify(hangingResource, Mockito.times(2)).scanForRecovery();
+		Mockito.verify(hangingResource, Mockito.times(2)).endRecovery();
+	}
+
+	@Test
+	public void testCoordinatorFromLogIsRecoveredOnceAndThenOnlyPresentedToResources() throws Exception {
+		CoordinatorImp coordinator = Mockito.mock(CoordinatorImp.class);
+		Mockito.when(coordinator.getCoordinatorId()).thenReturn("root");
+		Mockito.when(coordinator.getFinalStates()).thenReturn(new TxState[0]);
+		Mockito.when(coordinator.getState()).thenReturn(TxState.IN_DOUBT);
+		Vector<StateRecoverable<TxState>> recovered = new Vector<StateRecoverable<TxState>>();
+		recovered.add(coordinator);
+		Mockito.when(recoveryManager.recover()).thenReturn(recovered);
+		service.recoverCoordinators();
+		service.recover();
+		service.recover();
+		Mockito.verify(coordinator, Mockito.times(1)).recover();
+		Mockito.verify(coordinator, Mockito.times(1)).recoverParticipants();
+	}
+
+}
@@ -28,6 +28,7 @@ package com.atomikos.finitestates;
 import java.util.Enumeration;
 import java.util.EventListener;
 import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -43,12 +44,17 @@ import java.util.Hashtable;
  * return the state that was entered - this state may have changed since.</li>
  * </ul>
  *
+ * State changes are serialized on this instance. Reading the state does 
+ * not synchronize. The per-state listener tables are never modified once 
+ * published (adding a listener replaces them by an updated copy), so 
+ * notifications need not synchronize on this instance or clone them.
+ *
  */
 
 public class FSMImp<Status> implements FSM<Status>
 {
 
-    private Status state_ = null;
+    private final AtomicReference<Status> state_;
     //the current state
 
     private Hashtable<Status,Hashtable<EventListener,Object>>  enterlisteners_ = null;
@@ -57,10 +63,10 @@ public class FSMImp<Status> implements FSM<Status>
     private Hashtable<Status,Hashtable<EventListener,Object>> preenterlisteners_ = null;
     //pre enter listeners
 
-    private Hashtable<Status,Hashtable<EventListener,Object>> transitionlisteners_ = null;
+    private Hashtable<Status,Hashtable<Status,Hashtable<EventListener,Object>>> transitionlisteners_ = null;
     //transition listeners
 
-    private Hashtable<Status,Hashtable<EventListener,Object>> pretransitionlisteners_ = null;
+    private Hashtable<Status,Hashtable<Status,Hashtable<EventListener,Object>>> pretransitionlisteners_ = null;
     //pretransition listeners
 
     private TransitionTable<Status> transitiontable_ = null;
@@ -68,8 +74,6 @@ public class FSMImp<Status> implements FSM<Status>
 
     private Object eventsource_ = null;
 
-    private Object stateLatch_;
-
 
     /**
      *Constructor.
@@ -100,13 +104,12 @@ public class FSMImp<Status> implements FSM<Status>
                     Status initialstate )
     {
         transitiontable_ = transitiontable;
-        state_ = initialstate;
+        state_ = new AtomicReference<Status> ( initialstate );
         enterlisteners_ = new Hashtable<Status,Hashtable<EventListener,Object>>();
         preenterlisteners_ = new Hashtable<Status,Hashtable<EventListener,Object>>();
-        transitionlisteners_ = new Hashtable<Status,Hashtable<EventListener,Object>>();
-        pretransitionlisteners_ = new Hashtable<Status,Hashtable<EventListener,Object>>();
+        transitionlisteners_ = new Hashtable<Status,Hashtable<Status,Hashtable<EventListener,Object>>>();
+        pretransitionlisteners_ = new Hashtable<Status,Hashtable<Status,Hashtable<EventListener,Object>>>();
         eventsource_ = eventsource;
-        stateLatch_ = new Object();
     }
 
     /**
@@ -121,11 +124,15 @@ public class FSMImp<Status> implements FSM<Status>
     		EventListener lstnr,
 			      Status state)
     {
-        Hashtable<EventListener,Object> lstnrs = ( Hashtable<EventListener,Object> ) listeners.get(state);
+        Hashtable<EventListener,Object> lstnrs = listeners.get(state);
         if ( lstnrs == null )
 	  lstnrs = new Hashtable<EventListener,Object>();
-        if ( !lstnrs.containsKey(lstnr) )
-	  lstnrs.put( lstnr , new Object() );
+        else if ( lstnrs.containsKey(lstnr) )
+	  return;
+        else
+	  //copy: notifications iterate the published table without synch
+	  lstnrs = new Hashtable<EventListener,Object> ( lstnrs );
+        lstnrs.put( lstnr , new Object() );
         listeners.put( state , lstnrs );
     }
 
@@ -138,20 +145,17 @@ public class FSMImp<Status> implements FSM<Status>
      *@param to The end state of the transition.
      */
 
-    protected synchronized void addTransitionListener(Hashtable listeners,
-				 Object lstnr,
+    protected synchronized void addTransitionListener(Hashtable<Status,Hashtable<Status,Hashtable<EventListener,Object>>> listeners,
+				 EventListener lstnr,
 				 Status from,
 				 Status to)
     {
-        Hashtable<Status,Hashtable> lstnrs = ( Hashtable<Status,Hashtable> ) listeners.get(from);
+        Hashtable<Status,Hashtable<EventListener,Object>> lstnrs = listeners.get(from);
         if (lstnrs == null)
-	  lstnrs = new Hashtable<Status,Hashtable>();
-        Hashtable tolstnrs = (Hashtable ) lstnrs.get(to);
-        if (tolstnrs == null)
-	  tolstnrs = new Hashtable();
-        if (!tolstnrs.containsKey(lstnr))
-	  tolstnrs.put(lstnr,new Object());
-        lstnrs.put(to,tolstnrs);
+	  lstnrs = new Hashtable<Status,Hashtable<EventListener,Object>>();
+        else
+	  lstnrs = new Hashtable<Status,Hashtable<EventListener,Object>> ( lstnrs );
+        addEnterListener ( lstnrs , lstnr , to );
         listeners.put(from,lstnrs);
     }
 
@@ -163,22 +167,16 @@ public class FSMImp<Status> implements FSM<Status>
      *@param pre True iff before entering.
      */
 
+    @SuppressWarnings("unchecked")
     protected void notifyListeners(Hashtable<Status,Hashtable<EventListener,Object>> listeners, Status state,
 			     boolean pre)
     {
-        Hashtable<EventListener,Object> lstnrs = null;
-        FSMEnterEvent<Status> event = new FSMEnterEvent<Status> (eventsource_, state);
-        synchronized ( this ) {
-
-            lstnrs= listeners.get ( state );
-            if ( lstnrs == null )
-                	return;
-            //clone to avoid concurrency effects outside synch block
-            //during iteration hereafter
-            lstnrs = ( Hashtable<EventListener,Object> ) lstnrs.clone();
-        }
+        Hashtable<EventListener,Object> lstnrs = listeners.get ( state );
+        if ( lstnrs == null )
+            	return;
 
         //notify OUTSIDE SYNCH to minimize deadlocks
+        FSMEnterEvent<Status> event = new FSMEnterEvent<Status> (eventsource_, state);
         Enumeration<EventListener> enumm=lstnrs.keys();
         while (enumm.hasMoreElements()) {
         		EventListener listener=enumm.nextElement();
@@ -198,35 +196,27 @@ public class FSMImp<Status> implements FSM<Status>
      *@param pre True iff before transition.
      */
 
-    protected void notifyListeners ( Hashtable<Status,Hashtable<EventListener,Object>> listeners, Status from ,
+    @SuppressWarnings("unchecked")
+    protected void notifyListeners ( Hashtable<Status,Hashtable<Status,Hashtable<EventListener,Object>>> listeners, Status from ,
     		Status to , boolean pre )
     {
-        FSMTransitionEvent<Status> event = new FSMTransitionEvent<Status> (eventsource_, from, to );
-        Hashtable<EventListener,Object> lstnrs = null;
-        Hashtable<EventListener,Object>  tolstnrs = null;
-        synchronized ( this ) {
-            lstnrs = ( Hashtable<EventListener,Object> ) listeners.get( from );
-            if ( lstnrs == null )
-                return;
-            tolstnrs = ( Hashtable<EventListener,Object> ) lstnrs.get( to );
-            if ( tolstnrs == null )
-                return;
-
-            //clone to avoid concurrency effects
-            //during iteration outside synch block
-            lstnrs = ( Hashtable<EventListener,Object> ) lstnrs.clone();
-            tolstnrs = ( Hashtable<EventListener,Object> ) tolstnrs.clone();
-        }
+        Hashtable<Status,Hashtable<EventListener,Object>> lstnrs = listeners.get( from );
+        if ( lstnrs == null )
+            return;
+        Hashtable<EventListener,Object> tolstnrs = lstnrs.get( to );
+        if ( tolstnrs == null )
+            return;
 
-        //iterator outside synch to avoid deadlocks
-        Enumeration enumm =  tolstnrs.keys();
+        //iterate outside synch to avoid deadlocks
+        FSMTransitionEvent<Status> event = new FSMTransitionEvent<Status> (eventsource_, from, to );
+        Enumeration<EventListener> enumm =  tolstnrs.keys();
         while ( enumm.hasMoreElements() ) {
-            Object listener = enumm.nextElement();
+            EventListener listener = enumm.nextElement();
             if ( pre && ( listener instanceof FSMPreTransitionListener )) {
-                ((FSMPreTransitionListener)listener).beforeTransition(event);
+                ((FSMPreTransitionListener<Status>)listener).beforeTransition(event);
             }
             else if (!pre && (listener instanceof FSMTransitionListener)) {
-                ((FSMTransitionListener) listener).transitionPerformed(event);
+                ((FSMTransitionListener<Status>) listener).transitionPerformed(event);
             }
         }
 
@@ -240,21 +230,7 @@ public class FSMImp<Status> implements FSM<Status>
     {
     	//Note: this method should NOT be synchronized on the FSM itself, to avoid deadlocks
     	//in re-entrant 2PC calls!
-    	Status ret = null;
-    	//don't synch on FSM -> use latch object instead
-    	synchronized ( stateLatch_ ) {
-    		ret = state_;
-    	}
-        return ret;
-    }
-
-    private void setStateObject ( Status state )
-    {
-    	//synchronize on stateLatch ONLY to make sure that getState
-    	//returns the latest (non-cached) value
-    	synchronized ( stateLatch_ ) {
-    		this.state_ = state;
-    	}
+        return state_.get();
     }
 
 
@@ -267,13 +243,13 @@ public class FSMImp<Status> implements FSM<Status>
     {
     	Status oldstate = null;
         synchronized ( this ) {
-            if (!transitiontable_.legalTransition(state_,state))
+            oldstate = state_.get();
+            if (!transitiontable_.legalTransition(oldstate,state))
                 	throw new IllegalStateException("Transition not allowed: "+
-				    state_ +" to "+state);
-            oldstate = state_;
+				    oldstate +" to "+state);
         	   notifyListeners(preenterlisteners_ , state , true);
         	   notifyListeners(pretransitionlisteners_ , oldstate , state , true);
-        	   setStateObject ( state );
+        	   state_.set ( state );
         }
         //ENTER EVENTS ARE OUTSIDE SYNCH BLOCK TO MINIMIZE DEADLOCKS!!!
         notifyListeners(enterlisteners_ , state , false);
@@ -328,4 +304,3 @@ public class FSMImp<Status> implements FSM<Status>
 
 
 }
-
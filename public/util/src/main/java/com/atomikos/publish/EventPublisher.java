@@ -1,19 +1,45 @@
 package com.atomikos.publish;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ServiceLoader;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.atomikos.icatch.event.BatchEventListener;
 import com.atomikos.icatch.event.Event;
 import com.atomikos.icatch.event.EventListener;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 
+/**
+ * Publishes events to all registered listeners. By default listeners are 
+ * called synchronously, on the publishing thread. Optionally, events can be
+ * queued in a bounded buffer and delivered in batches by a background thread,
+ * so a slow listener does not add latency to the publisher (typically a 
+ * committing transaction). 
+ * 
+ * Synchronous publishing takes no lock, and costs nothing if there are no 
+ * listeners. Asynchronous publishing only shares a read lock with the 
+ * shutdown of the dispatcher, so no event is queued after the dispatcher
+ * has stopped.
+ */
+
 public class EventPublisher {
 	
 	private static Logger LOGGER = LoggerFactory.createLogger(EventPublisher.class);
 	
-	private static Set<EventListener> listeners = new HashSet<EventListener>();
+	private static final int MAX_BATCH_SIZE = 100;
+	
+	private static volatile EventListener[] listeners = new EventListener[0];
+	
+	private static volatile AsyncDispatcher dispatcher = null;
+	
+	private static final AtomicLong droppedEvents = new AtomicLong();
 	
 	static {
 		findAllEventListenersInClassPath();
@@ -28,9 +54,22 @@ public class EventPublisher {
 		}
 	}
 
+	/**
+	 * Callers that need to do work to create an event can check this first.
+	 * 
+	 * @return True iff at least one listener is registered.
+	 */
+	public static boolean hasListeners() {
+		return listeners.length > 0;
+	}
+
 	public static void publish(Event event) {
-		if (event != null) {
-			notifyAllListeners(event);
+		if (event != null && listeners.length > 0) {
+			AsyncDispatcher d = dispatcher;
+			if (d == null || !d.enqueue(event)) {
+				// synchronous, or the dispatcher was shut down in the meantime
+				notifyAllListeners(event);
+			}
 		}
 	}
 
@@ -43,14 +82,150 @@ public class EventPublisher {
 			}
 		}
 	}
+	
+	private static void notifyAllListeners(List<Event> events) {
+		for(EventListener listener : listeners) {
+			try {
+				if (listener instanceof BatchEventListener) {
+					((BatchEventListener) listener).eventsOccurred(events);
+				} else {
+					for (Event event : events) listener.eventOccurred(event);
+				}
+			} catch (Exception e) {
+				LOGGER.logWarning("Error notifying listener " + listener, e);
+			}
+		}
+	}
 
 	/**
-	 * Useful for testing only. Not safe for other use.
+	 * Registers a listener, in addition to the ones found via the ServiceLoader.
+	 * Safe to call concurrently with publish. 
 	 * 
 	 * @param listener
 	 */
-	public static void registerEventListener(EventListener listener) {
-		listeners.add(listener);
+	public static synchronized void registerEventListener(EventListener listener) {
+		for (EventListener l : listeners) {
+			if (l.equals(listener)) return;
+		}
+		EventListener[] ret = new EventListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, ret, 0, listeners.length);
+		ret[listeners.length] = listener;
+		listeners = ret;
+	}
+	
+	/**
+	 * Switches between synchronous and asynchronous delivery. Events that are 
+	 * still queued when switching are delivered first. Events published while 
+	 * switching are delivered synchronously, so none are lost.
+	 * 
+	 * @param queueSize The maximum number of events waiting for delivery, 
+	 * or 0 for synchronous delivery (the default). 
+	 * @param blockWhenFull What to do when the queue is full: if true then
+	 * the publisher waits, otherwise the event is dropped (and counted).
+	 */
+	public static synchronized void setAsynchronousDispatch(int queueSize, boolean blockWhenFull) {
+		AsyncDispatcher previous = dispatcher;
+		if (queueSize > 0) {
+			AsyncDispatcher d = new AsyncDispatcher(queueSize, blockWhenFull);
+			d.start();
+			dispatcher = d;
+		} else {
+			dispatcher = null;
+		}
+		if (previous != null) previous.shutdown();
+	}
+	
+	/**
+	 * @return The number of events dropped because the asynchronous queue was full.
+	 */
+	public static long getDroppedEventCount() {
+		return droppedEvents.get();
+	}
+	
+	private static class AsyncDispatcher extends Thread {
+		
+		private final BlockingQueue<Event> queue;
+		private final boolean blockWhenFull;
+		private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+		private volatile boolean closing;
+		private volatile boolean closed;
+		
+		AsyncDispatcher(int queueSize, boolean blockWhenFull) {
+			super("Atomikos:EventPublisher");
+			setDaemon(true);
+			this.queue = new ArrayBlockingQueue<Event>(queueSize);
+			this.blockWhenFull = blockWhenFull;
+		}
+		
+		/**
+		 * @return False if the event was not queued because this dispatcher 
+		 * is closed or dead: the caller must then deliver it.
+		 */
+		boolean enqueue(Event event) {
+			closeLock.readLock().lock();
+			try {
+				if (closing || !isAlive()) return false;
+				if (queue.offer(event)) return true;
+				if (!blockWhenFull) {
+					droppedEvents.incrementAndGet();
+					return true;
+				}
+				// a listener publishing from this thread cannot wait for itself
+				if (Thread.currentThread() == this) return false;
+				return waitForSpace(event);
+			} finally {
+				closeLock.readLock().unlock();
+			}
+		}
+
+		private boolean waitForSpace(Event event) {
+			try {
+				while (!queue.offer(event, 100, TimeUnit.MILLISECONDS)) {
+					// don't wait forever if a listener killed this thread,
+					// or closes this dispatcher and waits for us
+					if (closing || !isAlive()) return false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				droppedEvents.incrementAndGet();
+			}
+			return true;
+		}
+		
+		public void run() {
+			List<Event> batch = new ArrayList<Event>(MAX_BATCH_SIZE);
+			while (!closed || !queue.isEmpty()) {
+				try {
+					Event first = queue.poll(1, TimeUnit.SECONDS);
+					if (first != null) {
+						batch.add(first);
+						queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+						notifyAllListeners(batch);
+						batch.clear();
+					}
+				} catch (InterruptedException e) {
+					// ignore: only closed ends this thread, after draining the queue
+				}
+			}
+		}
+		
+		void shutdown() {
+			closing = true;
+			// wait for ongoing enqueues, so nothing is queued after closing
+			closeLock.writeLock().lock();
+			try {
+				closed = true;
+			} finally {
+				closeLock.writeLock().unlock();
+			}
+			if (Thread.currentThread() != this) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.util;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.atomikos.beans.PropertyUtils;
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+
+/**
+ * A factory for dynamic proxies that caches the generated proxy classes.
+ * 
+ * Unlike {@link ClassLoadingHelper#newProxyInstance(List, Class[], Class[], InvocationHandler)}, 
+ * the interfaces of the delegate class and the resulting proxy class are only 
+ * computed once per delegate class (and context class loader), and the proxy class 
+ * constructor is cached along with the proxy class. Subsequent proxies for the same 
+ * vendor class mostly cost just a constructor call, which matters because pools create 
+ * a new proxy for every borrow.
+ * 
+ * The cache does not keep a redeployed application's class loader alive: class 
+ * loaders and delegate classes are weak keys, and the proxy classes (which may
+ * be defined by those class loaders) are held by weak references. A class loader 
+ * references the classes it defines, so a cached proxy class stays valid as long 
+ * as its class loader is in use. The cached constructor is weakly referenced too, 
+ * since nothing else holds on to it; if the garbage collector clears it, it is simply 
+ * looked up again from the proxy class.
+ *
+ */
+
+public class DynamicProxyFactory 
+{
+	private static final Logger LOGGER = LoggerFactory.createLogger(DynamicProxyFactory.class);
+
+	private static final Class<?>[] CONSTRUCTOR_PARAMETER_TYPES = new Class<?>[] { InvocationHandler.class };
+
+	private final Class<?>[] minimumSetOfInterfaces;
+
+	private final Class<?>[] additionalInterfaces;
+
+	private final ClassLoader ownerClassLoader;
+
+	//by context class loader, then by delegate class; guarded by synchronizing on the outer map
+	private final Map<ClassLoader, Map<Class<?>, CachedProxyClass>> proxyClassCache = 
+			new WeakHashMap<ClassLoader, Map<Class<?>, CachedProxyClass>>();
+
+	/**
+	 * 
+	 * @param owner The class creating the proxies; its class loader is tried last.
+	 * @param minimumSetOfInterfaces The interfaces to fall back to if not all interfaces of the delegate can be loaded.
+	 * @param additionalInterfaces The interfaces to add to those implemented by the delegate.
+	 */
+
+	public DynamicProxyFactory ( Class<?> owner , Class<?>[] minimumSetOfInterfaces , Class<?>[] additionalInterfaces ) 
+	{
+		this.ownerClassLoader = owner.getClassLoader();
+		this.minimumSetOfInterfaces = minimumSetOfInterfaces.clone();
+		this.additionalInterfaces = additionalInterfaces.clone();
+	}
+
+	/**
+	 * Creates a new proxy for the given delegate.
+	 * 
+	 * @param delegate The vendor object whose interfaces the proxy will implement.
+	 * @param handler The handler that will receive the calls on the proxy.
+	 * @return The proxy.
+	 * 
+	 * @exception IllegalArgumentException If the required interfaces could not be loaded.
+	 */
+
+	public Object newProxyInstance ( Object delegate , InvocationHandler handler ) throws IllegalArgumentException 
+	{
+		Class<?> delegateClass = delegate.getClass();
+		ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+		CachedProxyClass cached = getCachedProxyClass ( delegateClass , contextClassLoader );
+		Constructor<?> constructor = null;
+		if ( cached != null ) constructor = cached.getConstructor();
+		if ( constructor == null ) {
+			Class<?> proxyClass = createProxyClass ( delegateClass , contextClassLoader );
+			constructor = cacheProxyClass ( delegateClass , contextClassLoader , proxyClass ).getConstructor();
+		}
+		try {
+			return constructor.newInstance ( new Object[] { handler } );
+		} catch ( Exception e ) {
+			//should not happen: proxy classes always have a public constructor taking the handler
+			throw new IllegalArgumentException ( "Failed to instantiate proxy for " + delegateClass.getName() , e );
+		}
+	}
+
+	private CachedProxyClass getCachedProxyClass ( Class<?> delegateClass , ClassLoader contextClassLoader ) 
+	{
+		synchronized ( proxyClassCache ) {
+			CachedProxyClass ret = null;
+			Map<Class<?>, CachedProxyClass> proxyClasses = proxyClassCache.get ( contextClassLoader );
+			if ( proxyClasses != null ) ret = proxyClasses.get ( delegateClass );
+			return ret;
+		}
+	}
+
+	private CachedProxyClass cacheProxyClass ( Class<?> delegateClass , ClassLoader contextClassLoader , Class<?> proxyClass ) 
+	{
+		CachedProxyClass ret = new CachedProxyClass ( proxyClass );
+		synchronized ( proxyClassCache ) {
+			Map<Class<?>, CachedProxyClass> proxyClasses = proxyClassCache.get ( contextClassLoader );
+			if ( proxyClasses == null ) {
+				proxyClasses = new WeakHashMap<Class<?>, CachedProxyClass>();
+				proxyClassCache.put ( contextClassLoader , proxyClasses );
+			}
+			proxyClasses.put ( delegateClass , ret );
+		}
+		return ret;
+	}
+
+	private Class<?> createProxyClass ( Class<?> delegateClass , ClassLoader contextClassLoader ) 
+	{
+		Set<Class<?>> interfaces = PropertyUtils.getAllImplementedInterfaces ( delegateClass );
+		interfaces.addAll ( Arrays.asList ( additionalInterfaces ) );
+		Class<?>[] interfaceClasses = interfaces.toArray ( new Class<?>[0] );
+
+		List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
+		classLoaders.add ( contextClassLoader );
+		classLoaders.add ( delegateClass.getClassLoader() );
+		classLoaders.add ( ownerClassLoader );
+
+		Class<?> proxyClass = null;
+		try {
+			proxyClass = getProxyClass ( classLoaders , interfaceClasses );
+		} catch ( IllegalArgumentException someClassNotFound ) {
+			if ( LOGGER.isDebugEnabled() ) {
+				LOGGER.logDebug ( "could not create Atomikos proxy with all requested interfaces - trying again with minimum set of interfaces" );
+			}
+			proxyClass = getProxyClass ( classLoaders , minimumSetOfInterfaces );
+		}
+
+		return proxyClass;
+	}
+
+	private static Class<?> getProxyClass ( List<ClassLoader> classLoadersToTry , Class<?>[] interfaces ) throws IllegalArgumentException 
+	{
+		IllegalArgumentException lastError = null;
+		for ( ClassLoader cl : classLoadersToTry ) {
+			try {
+				return Proxy.getProxyClass ( cl , interfaces );
+			} catch ( IllegalArgumentException someClassNotFound ) {
+				lastError = someClassNotFound;
+			}
+		}
+		throw lastError;
+	}
+
+	private static class CachedProxyClass 
+	{
+		private final WeakReference<Class<?>> proxyClass;
+
+		private volatile WeakReference<Constructor<?>> constructor;
+
+		CachedProxyClass ( Class<?> proxyClass ) 
+		{
+			this.proxyClass = new WeakReference<Class<?>> ( proxyClass );
+			this.constructor = new WeakReference<Constructor<?>> ( lookupConstructor ( proxyClass ) );
+		}
+
+		/**
+		 * @return The constructor, or null if the proxy class is no longer cached.
+		 */
+		Constructor<?> getConstructor () 
+		{
+			Constructor<?> ret = constructor.get();
+			if ( ret == null ) {
+				Class<?> clazz = proxyClass.get();
+				if ( clazz != null ) {
+					ret = lookupConstructor ( clazz );
+					constructor = new WeakReference<Constructor<?>> ( ret );
+				}
+			}
+			return ret;
+		}
+
+		private static Constructor<?> lookupConstructor ( Class<?> proxyClass ) 
+		{
+			try {
+				return proxyClass.getConstructor ( CONSTRUCTOR_PARAMETER_TYPES );
+			} catch ( NoSuchMethodException e ) {
+				//should not happen: proxy classes always have a public constructor taking the handler
+				throw new IllegalArgumentException ( "No handler constructor in " + proxyClass.getName() , e );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cheap, thread-safe histogram of durations in milliseconds (callers 
+ * that need finer resolution may record another unit, like microseconds). 
+ * 
+ * Values are counted in exponential buckets: bucket 0 holds 0ms, 
+ * bucket i holds values in [2^(i-1), 2^i) ms and the last bucket 
+ * holds everything above. Recording costs a few atomic increments 
+ * and no allocation, so it can be done on every call. Percentiles are 
+ * approximate: they return the upper bound of the bucket concerned.
+ */
+
+public class LatencyHistogram 
+{
+	private static final int BUCKETS = 24;
+	
+	private final AtomicLongArray counts = new AtomicLongArray ( BUCKETS );
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	private static int bucketFor ( long millis ) 
+	{
+		if ( millis <= 0 ) return 0;
+		int ret = 64 - Long.numberOfLeadingZeros ( millis );
+		return Math.min ( ret , BUCKETS - 1 );
+	}
+	
+	/**
+	 * @param bucket
+	 * @return The (exclusive) upper bound of the bucket in ms, or Long.MAX_VALUE for the last one.
+	 */
+	public static long getUpperBound ( int bucket ) 
+	{
+		if ( bucket >= BUCKETS - 1 ) return Long.MAX_VALUE;
+		return 1L << bucket;
+	}
+	
+	public void record ( long millis ) 
+	{
+		if ( millis < 0 ) millis = 0;
+		counts.incrementAndGet ( bucketFor ( millis ) );
+		count.incrementAndGet();
+		total.addAndGet ( millis );
+		long currentMax = max.get();
+		while ( millis > currentMax && !max.compareAndSet ( currentMax , millis ) ) {
+			currentMax = max.get();
+		}
+	}
+	
+	public long getCount() 
+	{
+		return count.get();
+	}
+	
+	public long getMax() 
+	{
+		return max.get();
+	}
+	
+	/**
+	 * @return The average in ms, or 0 if nothing was recorded.
+	 */
+	public long getAverage() 
+	{
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+	
+	/**
+	 * Gets an approximate percentile.
+	 * 
+	 * @param percentile Between 0 and 100.
+	 * @return The upper bound (in ms) of the bucket containing the percentile, 
+	 * capped at the max recorded value.
+	 */
+	public long getPercentile ( double percentile ) 
+	{
+		long[] snapshot = getBucketCounts();
+		long n = 0;
+		for ( long c : snapshot ) n += c;
+		if ( n == 0 ) return 0;
+		long rank = (long) Math.ceil ( n * percentile / 100.0 );
+		long seen = 0;
+		for ( int i = 0 ; i < snapshot.length ; i++ ) {
+			seen += snapshot[i];
+			if ( seen >= rank && snapshot[i] > 0 ) {
+				if ( i == 0 ) return 0;
+				return Math.min ( getUpperBound ( i ) - 1 , getMax() );
+			}
+		}
+		return getMax();
+	}
+	
+	/**
+	 * @return A copy of the bucket counts.
+	 */
+	public long[] getBucketCounts() 
+	{
+		long[] ret = new long[BUCKETS];
+		for ( int i = 0 ; i < BUCKETS ; i++ ) ret[i] = counts.get ( i );
+		return ret;
+	}
+	
+	public void reset() 
+	{
+		for ( int i = 0 ; i < BUCKETS ; i++ ) counts.set ( i , 0 );
+		count.set ( 0 );
+		total.set ( 0 );
+		max.set ( 0 );
+	}
+	
+	public String toString() 
+	{
+		return "count=" + getCount() + ", avg=" + getAverage() + "ms, p50=" + getPercentile ( 50 ) + 
+				"ms, p99=" + getPercentile ( 99 ) + "ms, max=" + getMax() + "ms";
+	}
+}
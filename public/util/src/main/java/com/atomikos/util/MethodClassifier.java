@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2000-2010 Atomikos <info@atomikos.com>
+ *
+ * This code ("Atomikos TransactionsEssentials"), by itself,
+ * is being distributed under the
+ * Apache License, Version 2.0 ("License"), a copy of which may be found at
+ * http://www.atomikos.com/licenses/apache-license-2.0.txt .
+ * You may not use this file except in compliance with the License.
+ *
+ * While the License grants certain patent license rights,
+ * those patent license rights only extend to the use of
+ * Atomikos TransactionsEssentials by itself.
+ *
+ * This code (Atomikos TransactionsEssentials) contains certain interfaces
+ * in package (namespace) com.atomikos.icatch
+ * (including com.atomikos.icatch.Participant) which, if implemented, may
+ * infringe one or more patents held by Atomikos.
+ * It should be appreciated that you may NOT implement such interfaces;
+ * licensing to implement these interfaces must be obtained separately from Atomikos.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.atomikos.util;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Maps the methods called on a dynamic proxy to a category (typically an enum), 
+ * so invocation handlers can dispatch without comparing method names on every call.
+ * 
+ * Results are cached per Method, so overloads get their own entry. Methods 
+ * are weak keys: a static cache must not hold on to vendor classes (and 
+ * their class loaders). Proxy classes keep their Method instances, so the 
+ * entries live as long as the proxy classes do.
+ */
+
+public abstract class MethodClassifier<C> 
+{
+	private final Map<Method,C> categories = Collections.synchronizedMap ( new WeakHashMap<Method,C>() );
+	
+	/**
+	 * @param method
+	 * @return The (cached) category of the method.
+	 */
+	public C classify ( Method method ) 
+	{
+		C ret = categories.get ( method );
+		if ( ret == null ) {
+			ret = classify ( method.getName() );
+			categories.put ( method , ret );
+		}
+		return ret;
+	}
+	
+	/**
+	 * Computes the category for a method name. Called at most a few times per method.
+	 */
+	protected abstract C classify ( String methodName );
+}
@@ -75,5 +75,36 @@ public class FSMImpTestJUnit extends TestCase
         if (!lstnr4.isNotified())
         		fail ("ERROR: notification does not work");
 	}
+	
+	public void testWithoutPreListeners()
+	{
+		FSM plain = new FSMImp ( new TestTransitionTable() , TestTransitionTable.INITIAL );
+		TestListener lstnr = new TestListener();
+		plain.addFSMEnterListener ( lstnr , TestTransitionTable.END );
+		plain.setState ( TestTransitionTable.MIDDLE );
+		assertFalse ( lstnr.isNotified() );
+		assertEquals ( TestTransitionTable.MIDDLE , plain.getState() );
+		try {
+			plain.setState ( TestTransitionTable.INITIAL );
+			fail ( "ERROR: transition checking not ok" );
+		} catch ( IllegalStateException ok ) {
+		}
+		plain.setState ( TestTransitionTable.END );
+		assertTrue ( lstnr.isNotified() );
+	}
+	
+	public void testListenerAddedTwiceIsNotifiedOnce()
+	{
+		final int[] count = new int[1];
+		FSMEnterListener lstnr = new FSMEnterListener() {
+			public void entered ( FSMEnterEvent e ) {
+				count[0]++;
+			}
+		};
+		fsm.addFSMEnterListener ( lstnr , TestTransitionTable.MIDDLE );
+		fsm.addFSMEnterListener ( lstnr , TestTransitionTable.MIDDLE );
+		fsm.setState ( TestTransitionTable.MIDDLE );
+		assertEquals ( 1 , count[0] );
+	}
 
 }
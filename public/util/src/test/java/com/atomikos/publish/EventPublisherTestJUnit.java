@@ -1,11 +1,25 @@
 package com.atomikos.publish;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.atomikos.icatch.event.BatchEventListener;
 import com.atomikos.icatch.event.Event;
 import com.atomikos.icatch.event.EventListener;
+import com.atomikos.icatch.event.transaction.TransactionAbortedEvent;
 import com.atomikos.icatch.event.transaction.TransactionCommittedEvent;
 
 public class EventPublisherTestJUnit {
@@ -19,6 +33,11 @@ public class EventPublisherTestJUnit {
 		mock = Mockito.mock(EventListener.class);
 		EventPublisher.registerEventListener(mock);
 	}
+	
+	@After
+	public void tearDown() {
+		EventPublisher.setAsynchronousDispatch(0, false);
+	}
 
 	@Test
 	public void testPublishNullEventDoesNotThrow() {
@@ -44,5 +63,142 @@ public class EventPublisherTestJUnit {
 		Mockito.verify(mock,Mockito.times(1)).eventOccurred(event);
 	}
 
+	@Test
+	public void testRegisteringTwiceNotifiesOnce() {
+		EventPublisher.registerEventListener(mock);
+		EventPublisher.publish(event);
+		Mockito.verify(mock,Mockito.times(1)).eventOccurred(event);
+	}
+	
+	@Test
+	public void testAsynchronousDispatchDeliversInBatches() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		EventPublisher.registerEventListener(new BatchEventListener() {
+			public void eventOccurred(Event e) {
+			}
+			public void eventsOccurred(List<Event> events) {
+				blocked.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+				synchronized (batchSizes) {
+					batchSizes.add(events.size());
+				}
+			}
+		});
+		EventPublisher.setAsynchronousDispatch(10, false);
+		EventPublisher.publish(event);
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		// the dispatcher is busy now: these are queued
+		EventPublisher.publish(event);
+		EventPublisher.publish(event);
+		release.countDown();
+		// switching back drains the queue
+		EventPublisher.setAsynchronousDispatch(0, false);
+		assertEquals(2, batchSizes.size());
+		assertEquals(Integer.valueOf(2), batchSizes.get(1));
+		Mockito.verify(mock,Mockito.times(3)).eventOccurred(event);
+	}
+	
+	@Test
+	public void testFullQueueDropsEvents() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		EventPublisher.registerEventListener(new EventListener() {
+			public void eventOccurred(Event e) {
+				blocked.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+				}
+			}
+		});
+		EventPublisher.setAsynchronousDispatch(1, false);
+		long dropped = EventPublisher.getDroppedEventCount();
+		EventPublisher.publish(event);
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		EventPublisher.publish(event);
+		EventPublisher.publish(event);
+		assertEquals(dropped + 1, EventPublisher.getDroppedEventCount());
+		release.countDown();
+	}
+	
+	@Test
+	public void testNoEventIsLostWhileSwitchingDispatch() throws Exception {
+		final Event counted = new TransactionAbortedEvent("counted");
+		final AtomicInteger delivered = new AtomicInteger();
+		EventPublisher.registerEventListener(new EventListener() {
+			public void eventOccurred(Event e) {
+				if (e == counted) delivered.incrementAndGet();
+			}
+		});
+		EventPublisher.setAsynchronousDispatch(10, true);
+		Thread[] publishers = new Thread[4];
+		for (int i = 0; i < publishers.length; i++) {
+			publishers[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 1000; j++) EventPublisher.publish(counted);
+				}
+			};
+			publishers[i].start();
+		}
+		for (int i = 0; i < 200; i++) {
+			EventPublisher.setAsynchronousDispatch(i % 2 == 0 ? 0 : 10, true);
+		}
+		for (Thread publisher : publishers) {
+			publisher.join(5000);
+			assertFalse(publisher.isAlive());
+		}
+		EventPublisher.setAsynchronousDispatch(0, false);
+		assertEquals(4000, delivered.get());
+	}
 	
+	private Thread publishInBackground(final Event event, final int count) {
+		Thread ret = new Thread() {
+			public void run() {
+				for (int i = 0; i < count; i++) EventPublisher.publish(event);
+			}
+		};
+		ret.start();
+		return ret;
+	}
+	
+	@Test
+	public void testListenerPublishingFromDispatcherDoesNotBlockOnFullQueue() throws Exception {
+		final Event nested = new TransactionAbortedEvent("nested");
+		final CountDownLatch delivered = new CountDownLatch(3);
+		EventPublisher.registerEventListener(new EventListener() {
+			public void eventOccurred(Event e) {
+				if (e == event) {
+					for (int i = 0; i < 3; i++) EventPublisher.publish(nested);
+				} else if (e == nested) {
+					delivered.countDown();
+				}
+			}
+		});
+		EventPublisher.setAsynchronousDispatch(1, true);
+		EventPublisher.publish(event);
+		assertTrue(delivered.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testPublishDoesNotBlockOnDeadDispatcher() throws Exception {
+		final Event fatal = new TransactionAbortedEvent("fatal");
+		final AtomicBoolean thrown = new AtomicBoolean();
+		EventPublisher.registerEventListener(new EventListener() {
+			public void eventOccurred(Event e) {
+				if (e == fatal && thrown.compareAndSet(false, true)) {
+					throw new Error("dispatcher killed by listener");
+				}
+			}
+		});
+		EventPublisher.setAsynchronousDispatch(1, true);
+		EventPublisher.publish(fatal);
+		Thread publisher = publishInBackground(event, 5);
+		publisher.join(5000);
+		assertFalse(publisher.isAlive());
+	}
 }
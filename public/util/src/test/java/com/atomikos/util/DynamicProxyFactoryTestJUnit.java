@@ -0,0 +1,97 @@
+package com.atomikos.util;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import junit.framework.TestCase;
+
+public class DynamicProxyFactoryTestJUnit extends TestCase {
+
+	private DynamicProxyFactory factory;
+	
+	private InvocationHandler handler;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		factory = new DynamicProxyFactory ( getClass() , new Class[] { DynamicProxy.class , Runnable.class } , new Class[] { DynamicProxy.class } );
+		handler = new InvocationHandler() {
+			public Object invoke ( Object proxy , Method method , Object[] args ) throws Throwable {
+				if ( method.getName().equals ( "getInvocationHandler" ) ) return this;
+				return null;
+			}
+		};
+	}
+	
+	public void testProxyImplementsInterfacesOfDelegate() 
+	{
+		Object proxy = factory.newProxyInstance ( new Delegate() , handler );
+		assertTrue ( proxy instanceof Runnable );
+		assertTrue ( proxy instanceof Serializable );
+	}
+	
+	public void testProxyImplementsAdditionalInterfaces() 
+	{
+		Object proxy = factory.newProxyInstance ( new Delegate() , handler );
+		DynamicProxy dproxy = ( DynamicProxy ) proxy;
+		assertSame ( handler , dproxy.getInvocationHandler() );
+	}
+	
+	public void testProxyClassIsReusedForSameDelegateClass() 
+	{
+		Object first = factory.newProxyInstance ( new Delegate() , handler );
+		Object second = factory.newProxyInstance ( new Delegate() , handler );
+		assertNotSame ( first , second );
+		assertSame ( first.getClass() , second.getClass() );
+	}
+	
+	public void testContextClassLoaderIsNotRetained() throws Exception 
+	{
+		ClassLoader original = Thread.currentThread().getContextClassLoader();
+		ClassLoader loader = new URLClassLoader ( new URL[0] , getClass().getClassLoader() );
+		WeakReference<ClassLoader> ref = new WeakReference<ClassLoader> ( loader );
+		Thread.currentThread().setContextClassLoader ( loader );
+		try {
+			factory.newProxyInstance ( new Delegate() , handler );
+		} finally {
+			Thread.currentThread().setContextClassLoader ( original );
+		}
+		loader = null;
+		for ( int i = 0 ; i < 50 && ref.get() != null ; i++ ) {
+			System.gc();
+			Thread.sleep ( 20 );
+		}
+		assertNull ( ref.get() );
+	}
+	
+	public void testMethodsAreClassifiedOncePerMethod() throws Exception 
+	{
+		final int[] calls = new int[1];
+		MethodClassifier<String> classifier = new MethodClassifier<String>() {
+			protected String classify ( String methodName ) {
+				calls[0]++;
+				return methodName.toUpperCase();
+			}
+		};
+		Method run = Runnable.class.getMethod ( "run" );
+		assertEquals ( "RUN" , classifier.classify ( run ) );
+		assertEquals ( "RUN" , classifier.classify ( Runnable.class.getMethod ( "run" ) ) );
+		assertEquals ( 1 , calls[0] );
+		//overloads are separate entries
+		assertEquals ( "WAIT" , classifier.classify ( Object.class.getMethod ( "wait" ) ) );
+		assertEquals ( "WAIT" , classifier.classify ( Object.class.getMethod ( "wait" , long.class ) ) );
+		assertEquals ( 3 , calls[0] );
+	}
+	
+	private static class Delegate implements Runnable , Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		public void run() {
+		}
+		
+	}
+}
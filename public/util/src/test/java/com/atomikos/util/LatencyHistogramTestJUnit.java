@@ -0,0 +1,52 @@
+package com.atomikos.util;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTestJUnit extends TestCase {
+
+	private LatencyHistogram histogram;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		histogram = new LatencyHistogram();
+	}
+	
+	public void testEmpty() {
+		assertEquals ( 0 , histogram.getCount() );
+		assertEquals ( 0 , histogram.getAverage() );
+		assertEquals ( 0 , histogram.getPercentile ( 99 ) );
+	}
+	
+	public void testCountAverageAndMax() {
+		histogram.record ( 10 );
+		histogram.record ( 30 );
+		assertEquals ( 2 , histogram.getCount() );
+		assertEquals ( 20 , histogram.getAverage() );
+		assertEquals ( 30 , histogram.getMax() );
+	}
+	
+	public void testBuckets() {
+		histogram.record ( 0 );
+		histogram.record ( 1 );
+		histogram.record ( 3 );
+		long[] counts = histogram.getBucketCounts();
+		assertEquals ( 1 , counts[0] );
+		assertEquals ( 1 , counts[1] );
+		assertEquals ( 1 , counts[2] );
+	}
+	
+	public void testPercentileIsUpperBoundOfBucket() {
+		for ( int i = 0 ; i < 99 ; i++ ) histogram.record ( 5 );
+		histogram.record ( 1000 );
+		assertEquals ( 7 , histogram.getPercentile ( 50 ) );
+		assertEquals ( 7 , histogram.getPercentile ( 99 ) );
+		assertEquals ( 1000 , histogram.getPercentile ( 100 ) );
+	}
+	
+	public void testReset() {
+		histogram.record ( 5 );
+		histogram.reset();
+		assertEquals ( 0 , histogram.getCount() );
+		assertEquals ( 0 , histogram.getMax() );
+	}
+}